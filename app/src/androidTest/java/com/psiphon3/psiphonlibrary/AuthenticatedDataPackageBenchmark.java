@@ -0,0 +1,174 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the single threaded and pipelined AuthenticatedDataPackage verifiers on
+ * synthetic signed packages. Results are logged with the tag below.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AuthenticatedDataPackageBenchmark {
+    private static final String TAG = "AuthDataPackageBench";
+    private static final int MB = 1024 * 1024;
+    private static final int[] PAYLOAD_SIZES_MB = {1, 10, 50, 100};
+
+    private Context mContext;
+    private KeyPair mKeyPair;
+    private String mPublicKey;
+    private File mPackageFile;
+    private File mDestinationFile;
+
+    @Before
+    public void initialize() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        mKeyPair = generator.generateKeyPair();
+        mPublicKey = Base64.encodeToString(mKeyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        mPackageFile = new File(mContext.getCacheDir(), "benchmark_package.json");
+        mDestinationFile = new File(mContext.getCacheDir(), "benchmark_package.data");
+    }
+
+    @After
+    public void cleanup() {
+        mPackageFile.delete();
+        mDestinationFile.delete();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int sizeMB : PAYLOAD_SIZES_MB) {
+            writeSignedPackage(sizeMB * MB);
+
+            // Warm up both paths once on the smallest package
+            if (sizeMB == PAYLOAD_SIZES_MB[0]) {
+                verify(false);
+                verify(true);
+            }
+
+            long serialMs = verify(false);
+            long pipelinedMs = verify(true);
+            assertEquals(sizeMB * MB, mDestinationFile.length());
+
+            Log.i(TAG, String.format("%d MB: single threaded %.1f MB/s, pipelined %.1f MB/s (%.2fx)",
+                    sizeMB,
+                    sizeMB * 1000.0 / Math.max(1, serialMs),
+                    sizeMB * 1000.0 / Math.max(1, pipelinedMs),
+                    (double) serialMs / Math.max(1, pipelinedMs)));
+        }
+    }
+
+    @Test
+    public void pipelinedRejectsTamperedPackage() throws Exception {
+        writeSignedPackage(MB);
+        // Flip one Base64 character well inside the data value
+        RandomAccessFile file = new RandomAccessFile(mPackageFile, "rw");
+        try {
+            file.seek(1000);
+            int c = file.read();
+            file.seek(1000);
+            file.write(c == 'A' ? 'B' : 'A');
+        } finally {
+            file.close();
+        }
+
+        try {
+            verify(true);
+            fail("tampered package verified");
+        } catch (AuthenticatedDataPackage.AuthenticatedDataPackageException e) {
+            // Expected
+        }
+    }
+
+    private long verify(boolean pipelined) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        AuthenticatedDataPackage.extractAndVerifyData(
+                mPublicKey,
+                new BufferedInputStream(new FileInputStream(mPackageFile), 64 * 1024),
+                true,
+                new FileOutputStream(mDestinationFile),
+                pipelined);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    // Writes {"data": <Base64 payload>, "signingPublicKeyDigest": ..., "signature": ...}
+    // streaming, signing the Base64 encoded data as it's written.
+    private void writeSignedPackage(int payloadSize) throws Exception {
+        final Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(mKeyPair.getPrivate());
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(mPackageFile), 64 * 1024);
+        try {
+            out.write("{\"data\":\"".getBytes("UTF-8"));
+
+            OutputStream signingOut = new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    try {
+                        signer.update(b, off, len);
+                    } catch (SignatureException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void close() {
+                    // Leave the package stream open
+                }
+            };
+            OutputStream base64Out = new Base64OutputStream(signingOut, Base64.NO_WRAP);
+            Random random = new Random(payloadSize);
+            byte[] block = new byte[MB];
+            for (int written = 0; written < payloadSize; written += block.length) {
+                random.nextBytes(block);
+                base64Out.write(block, 0, Math.min(block.length, payloadSize - written));
+            }
+            base64Out.close();
+
+            String keyDigest = Base64.encodeToString(
+                    MessageDigest.getInstance("SHA256").digest(mPublicKey.getBytes()), Base64.NO_WRAP);
+            String signature = Base64.encodeToString(signer.sign(), Base64.NO_WRAP);
+            out.write(("\",\"signingPublicKeyDigest\":\"" + keyDigest
+                    + "\",\"signature\":\"" + signature + "\"}").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks offline that UpgradeManager falls back to the full upgrade package when a delta
+ * upgrade patch can't be applied, using the installed test APK as the source fixture.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeltaUpgradeFallbackTest {
+
+    private Context mContext;
+    private byte[] mSourceBytes;
+    private TestUpgradeFile mPatchFile;
+    private TestUpgradeFile mPatchedFile;
+
+    // Keeps the fixtures apart from the files of a real upgrade
+    private static class TestUpgradeFile extends UpgradeManager.UpgradeFile {
+        private final String mFilename;
+
+        TestUpgradeFile(Context context, String filename) {
+            super(context);
+            mFilename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return mFilename;
+        }
+
+        @Override
+        public boolean isWorldReadable() {
+            return false;
+        }
+    }
+
+    @Before
+    public void initialize() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mSourceBytes = DeltaUpgradePatchTest.readFile(new File(mContext.getApplicationInfo().sourceDir));
+        mPatchFile = new TestUpgradeFile(mContext, "delta_upgrade_fallback_test.patch");
+        mPatchedFile = new TestUpgradeFile(mContext, "delta_upgrade_fallback_test.apk");
+        mContext.deleteFile(UpgradeManager.DeltaUpgrade.FAILED_FILENAME);
+    }
+
+    @After
+    public void cleanup() {
+        mPatchFile.delete();
+        mPatchedFile.delete();
+        mContext.deleteFile(UpgradeManager.DeltaUpgrade.FAILED_FILENAME);
+    }
+
+    @Test
+    public void appliedDeltaKeepsDeltaDownloads() throws Exception {
+        byte[] target = appendTo(mSourceBytes, "appended");
+        String urls = getUpgradeDownloadURLs();
+        writePatch(DeltaUpgradePatchTest.createPatch(mSourceBytes, target, mSourceBytes.length, 0));
+
+        assertNotNull(UpgradeManager.DeltaUpgrade.applyPatch(mContext, mPatchFile, mPatchedFile));
+
+        assertArrayEquals(target, DeltaUpgradePatchTest.readFile(mPatchedFile.getFile()));
+        assertFalse(mPatchFile.exists());
+        assertEquals(urls, getUpgradeDownloadURLs());
+    }
+
+    @Test
+    public void mismatchedDeltaFallsBackToFullPackage() throws Exception {
+        byte[] otherSource = mSourceBytes.clone();
+        otherSource[0] ^= 1;
+        writePatch(DeltaUpgradePatchTest.createPatch(otherSource, mSourceBytes, mSourceBytes.length, 0));
+
+        assertFallback();
+    }
+
+    @Test
+    public void corruptedDeltaFallsBackToFullPackage() throws Exception {
+        byte[] patch = DeltaUpgradePatchTest.createPatch(mSourceBytes, appendTo(mSourceBytes, "appended"), mSourceBytes.length, 0);
+        // Corrupt the compressed blocks after the header
+        int blocks = DeltaUpgradePatch.MAGIC.length + 2 * (DeltaUpgradePatch.DIGEST_LENGTH + 8);
+        for (int i = blocks + (patch.length - blocks) / 2; i < patch.length - 8; i += 97) {
+            patch[i] ^= 0xff;
+        }
+        writePatch(patch);
+
+        assertFallback();
+    }
+
+    private void assertFallback() throws Exception {
+        assertNull(UpgradeManager.DeltaUpgrade.applyPatch(mContext, mPatchFile, mPatchedFile));
+
+        assertFalse(mPatchFile.exists());
+        assertFalse(mPatchedFile.exists());
+        // Only the full upgrade packages are downloaded from now on
+        assertEquals(new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON).toString(), getUpgradeDownloadURLs());
+    }
+
+    private String getUpgradeDownloadURLs() throws Exception {
+        return UpgradeManager.DeltaUpgrade.getUpgradeDownloadURLs(mContext).toString();
+    }
+
+    private void writePatch(byte[] patch) throws IOException {
+        FileOutputStream out = mPatchFile.createForWriting();
+        try {
+            out.write(patch);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] appendTo(byte[] data, String suffix) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(data);
+        out.write(suffix.getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,188 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applies delta patches offline, using the installed test APK as the source fixture.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeltaUpgradePatchTest {
+
+    private Context mContext;
+    private File mSource;
+    private File mTarget;
+    private byte[] mSourceBytes;
+
+    @Before
+    public void initialize() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mSource = new File(mContext.getApplicationInfo().sourceDir);
+        mSourceBytes = readFile(mSource);
+        mTarget = new File(mContext.getCacheDir(), "delta_upgrade_patch_test.apk");
+    }
+
+    @After
+    public void cleanup() {
+        mTarget.delete();
+    }
+
+    @Test
+    public void applyReproducesTarget() throws Exception {
+        // Target: source with a modified region in the middle, a removed region and appended data
+        int half = mSourceBytes.length / 2;
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(mSourceBytes, 0, half);
+        for (int i = 0; i < 1000; i++) {
+            expected.write(mSourceBytes[half + i] ^ 0x5a);
+        }
+        expected.write(mSourceBytes, half + 2000, mSourceBytes.length - half - 2000);
+        expected.write("appended".getBytes("UTF-8"));
+        byte[] expectedBytes = expected.toByteArray();
+
+        byte[] patch = createPatch(mSourceBytes, expectedBytes, half + 1000, 1000);
+
+        assertTrue(DeltaUpgradePatch.isPatch(writeTemp(patch)));
+        DeltaUpgradePatch.apply(mSource, new ByteArrayInputStream(patch), openTarget());
+
+        assertArrayEquals(expectedBytes, readFile(mTarget));
+    }
+
+    @Test
+    public void applyRejectsWrongSource() throws Exception {
+        byte[] otherSource = mSourceBytes.clone();
+        otherSource[0] ^= 1;
+        byte[] patch = createPatch(otherSource, mSourceBytes, mSourceBytes.length, 0);
+
+        try {
+            DeltaUpgradePatch.apply(mSource, new ByteArrayInputStream(patch), openTarget());
+            fail("patch for a different source applied");
+        } catch (DeltaUpgradePatch.DeltaUpgradePatchException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void applyRejectsWrongTarget() throws Exception {
+        byte[] patch = createPatch(mSourceBytes, mSourceBytes, mSourceBytes.length, 0);
+        // Corrupt the expected target digest in the header
+        patch[DeltaUpgradePatch.MAGIC.length + DeltaUpgradePatch.DIGEST_LENGTH + 8] ^= 1;
+
+        try {
+            DeltaUpgradePatch.apply(mSource, new ByteArrayInputStream(patch), openTarget());
+            fail("patch with a bad target digest applied");
+        } catch (DeltaUpgradePatch.DeltaUpgradePatchException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void applyRejectsTruncatedPatch() throws Exception {
+        byte[] patch = createPatch(mSourceBytes, mSourceBytes, mSourceBytes.length, 0);
+        byte[] truncated = new byte[patch.length / 2];
+        System.arraycopy(patch, 0, truncated, 0, truncated.length);
+
+        try {
+            DeltaUpgradePatch.apply(mSource, new ByteArrayInputStream(truncated), openTarget());
+            fail("truncated patch applied");
+        } catch (DeltaUpgradePatch.DeltaUpgradePatchException | IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void isPatchRejectsApk() throws Exception {
+        assertFalse(DeltaUpgradePatch.isPatch(mSource));
+    }
+
+    // Minimal patch writer: the first diffLength bytes are diffed against the start of
+    // source, the next skipLength source bytes are skipped, then the rest of the target is
+    // diffed against the following source bytes where possible and stored as extra otherwise.
+    static byte[] createPatch(byte[] source, byte[] target, int diffLength, int skipLength) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(out);
+        header.write(DeltaUpgradePatch.MAGIC);
+        header.write(sha256(source));
+        header.writeLong(source.length);
+        header.write(sha256(target));
+        header.writeLong(target.length);
+        header.flush();
+
+        DataOutputStream blocks = new DataOutputStream(new GZIPOutputStream(out));
+        diffLength = Math.min(diffLength, Math.min(source.length, target.length));
+        int sourcePosition = diffLength + skipLength;
+        int secondDiffLength = Math.max(0, Math.min(target.length - diffLength, source.length - sourcePosition));
+        int extraLength = target.length - diffLength - secondDiffLength;
+
+        blocks.writeLong(diffLength);
+        blocks.writeLong(0);
+        blocks.writeLong(skipLength);
+        for (int i = 0; i < diffLength; i++) {
+            blocks.write(target[i] - source[i]);
+        }
+
+        blocks.writeLong(secondDiffLength);
+        blocks.writeLong(extraLength);
+        blocks.writeLong(0);
+        for (int i = 0; i < secondDiffLength; i++) {
+            blocks.write(target[diffLength + i] - source[sourcePosition + i]);
+        }
+        blocks.write(target, diffLength + secondDiffLength, extraLength);
+        blocks.close();
+
+        return out.toByteArray();
+    }
+
+    private UpgradeManager.DigestingChannelOutputStream openTarget() throws Exception {
+        return new UpgradeManager.DigestingChannelOutputStream(new FileOutputStream(mTarget).getChannel());
+    }
+
+    private File writeTemp(byte[] data) throws IOException {
+        File file = new File(mContext.getCacheDir(), "delta_upgrade_patch_test.patch");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+    static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
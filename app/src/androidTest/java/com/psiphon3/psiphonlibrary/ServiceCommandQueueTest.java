@@ -0,0 +1,64 @@
+package com.psiphon3.psiphonlibrary;
+
+import com.psiphon3.psiphonlibrary.TunnelServiceInteractor.ServiceCommandQueue;
+import com.psiphon3.psiphonlibrary.TunnelServiceInteractor.ServiceCommandType;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServiceCommandQueueTest {
+
+    @Test
+    public void mergesIdempotentCommands() {
+        ServiceCommandQueue queue = new ServiceCommandQueue();
+        queue.add(ServiceCommandType.REGISTER, null);
+        queue.add(ServiceCommandType.RESTART_SERVICE, null);
+        queue.add(ServiceCommandType.RESYNC_TUNNEL_STATE, null);
+        queue.add(ServiceCommandType.RESTART_SERVICE, null);
+        queue.add(ServiceCommandType.REGISTER, null);
+
+        assertEquals(Arrays.asList(
+                ServiceCommandType.REGISTER,
+                ServiceCommandType.RESTART_SERVICE,
+                ServiceCommandType.RESYNC_TUNNEL_STATE),
+                pollAll(queue));
+    }
+
+    @Test
+    public void keepsEveryNfcImport() {
+        ServiceCommandQueue queue = new ServiceCommandQueue();
+        queue.add(ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_IMPORT, null);
+        queue.add(ServiceCommandType.RESTART_SERVICE, null);
+        queue.add(ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_IMPORT, null);
+
+        assertEquals(Arrays.asList(
+                ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_IMPORT,
+                ServiceCommandType.RESTART_SERVICE,
+                ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_IMPORT),
+                pollAll(queue));
+    }
+
+    @Test
+    public void stopDropsRestarts() {
+        ServiceCommandQueue queue = new ServiceCommandQueue();
+        queue.add(ServiceCommandType.RESTART_SERVICE, null);
+        queue.add(ServiceCommandType.STOP_SERVICE, null);
+        queue.add(ServiceCommandType.RESTART_SERVICE, null);
+
+        assertEquals(Arrays.asList(ServiceCommandType.STOP_SERVICE), pollAll(queue));
+    }
+
+    private static List<ServiceCommandType> pollAll(ServiceCommandQueue queue) {
+        List<ServiceCommandType> types = new ArrayList<>();
+        ServiceCommandQueue.PendingCommand pendingCommand;
+        while ((pendingCommand = queue.poll()) != null) {
+            types.add(pendingCommand.type);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,305 @@
+package com.psiphon3.psiphonlibrary.codec;
+
+import android.os.Debug;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares Codec with the encoders it replaced: throughput and bytes allocated per operation on
+ * small and large inputs, and Base64 streaming against android.util.Base64OutputStream. Results
+ * are logged with the tag below.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class CodecBenchmark {
+    private static final String TAG = "CodecBench";
+    private static final int[] SIZES = {32, 1024};
+    private static final int BYTES_PER_SIZE = 4 * 1024 * 1024;
+    private static final int STREAM_SIZE = 8 * 1024 * 1024;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Random random = new Random(0);
+        for (int size : SIZES) {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+            final String base64 = Codec.BASE64.encodeToString(data);
+            assertEquals(Legacy.base64Encode(data), base64);
+            assertEquals(Legacy.hexEncode(data), Codec.HEX_UPPER.encodeToString(data));
+            assertEquals(Legacy.base32Encode(data), Codec.BASE32_LOWER_UNPADDED.encodeToString(data));
+            assertArrayEquals(Legacy.base64Decode(base64), Codec.BASE64.decode(base64));
+
+            final char[] chars = new char[Codec.BASE64.encodedLength(size) * 2];
+            final byte[] bytes = new byte[Codec.BASE64.maxDecodedLength(base64.length())];
+            int iterations = BYTES_PER_SIZE / size;
+
+            measure("hex encode legacy", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Legacy.hexEncode(data);
+                }
+            });
+            measure("hex encode String", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.HEX_UPPER.encodeToString(data);
+                }
+            });
+            measure("hex encode char[]", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.HEX_UPPER.encode(data, 0, data.length, chars, 0);
+                }
+            });
+
+            measure("base64 encode legacy", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Legacy.base64Encode(data);
+                }
+            });
+            measure("base64 encode platform", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Base64.encodeToString(data, Base64.NO_WRAP);
+                }
+            });
+            measure("base64 encode String", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.BASE64.encodeToString(data);
+                }
+            });
+            measure("base64 encode char[]", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.BASE64.encode(data, 0, data.length, chars, 0);
+                }
+            });
+
+            measure("base64 decode legacy", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Legacy.base64Decode(base64);
+                }
+            });
+            measure("base64 decode platform", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Base64.decode(base64, Base64.NO_WRAP);
+                }
+            });
+            measure("base64 decode byte[] result", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.BASE64.decode(base64);
+                }
+            });
+            measure("base64 decode into byte[]", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.BASE64.decode(base64, 0, base64.length(), bytes, 0);
+                }
+            });
+
+            measure("base32 encode legacy", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Legacy.base32Encode(data);
+                }
+            });
+            measure("base32 encode String", size, iterations, new Operation() {
+                @Override
+                public void run() {
+                    Codec.BASE32_LOWER_UNPADDED.encodeToString(data);
+                }
+            });
+        }
+
+        final byte[] chunk = new byte[16 * 1024];
+        random.nextBytes(chunk);
+        measure("base64 stream platform", STREAM_SIZE, 1, new Operation() {
+            @Override
+            public void run() throws IOException {
+                writeStream(new Base64OutputStream(new NullOutputStream(), Base64.NO_WRAP), chunk);
+            }
+        });
+        measure("base64 stream codec", STREAM_SIZE, 1, new Operation() {
+            @Override
+            public void run() throws IOException {
+                writeStream(Codec.BASE64.encodingStream(new NullOutputStream()), chunk);
+            }
+        });
+    }
+
+    // Runs the operation once to warm up, then iterations times, and logs throughput and the
+    // bytes allocated by this thread per operation.
+    @SuppressWarnings("deprecation")
+    private static void measure(String name, int size, int iterations, Operation operation)
+            throws Exception {
+        operation.run();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, String.format("%s, %d bytes: %.1f MB/s, %d bytes allocated/op",
+                name,
+                size,
+                (double) size * iterations * 1000 / Math.max(1, elapsedNs),
+                allocated / iterations));
+    }
+
+    private static void writeStream(OutputStream out, byte[] chunk) throws IOException {
+        try {
+            for (int written = 0; written < STREAM_SIZE; written += chunk.length) {
+                out.write(chunk, 0, chunk.length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    // The implementations Codec replaced, as they were
+    private static class Legacy {
+        // Utils.byteArrayToHexString
+        static String hexEncode(byte[] bytes) {
+            char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+            char[] hexChars = new char[bytes.length * 2];
+            int v;
+            for (int j = 0; j < bytes.length; j++) {
+                v = bytes[j] & 0xFF;
+                hexChars[j * 2] = hexArray[v / 16];
+                hexChars[j * 2 + 1] = hexArray[v % 16];
+            }
+            return new String(hexChars);
+        }
+
+        // Utils.Base64.encode
+        static String base64Encode(byte[] d) {
+            byte data[] = new byte[d.length + 2];
+            System.arraycopy(d, 0, data, 0, d.length);
+            byte dest[] = new byte[(data.length / 3) * 4];
+            for (int sidx = 0, didx = 0; sidx < d.length; sidx += 3, didx += 4) {
+                dest[didx] = (byte) ((data[sidx] >>> 2) & 077);
+                dest[didx + 1] = (byte) ((data[sidx + 1] >>> 4) & 017 | (data[sidx] << 4) & 077);
+                dest[didx + 2] = (byte) ((data[sidx + 2] >>> 6) & 003 | (data[sidx + 1] << 2) & 077);
+                dest[didx + 3] = (byte) (data[sidx + 2] & 077);
+            }
+            for (int idx = 0; idx < dest.length; idx++) {
+                if (dest[idx] < 26)
+                    dest[idx] = (byte) (dest[idx] + 'A');
+                else if (dest[idx] < 52)
+                    dest[idx] = (byte) (dest[idx] + 'a' - 26);
+                else if (dest[idx] < 62)
+                    dest[idx] = (byte) (dest[idx] + '0' - 52);
+                else if (dest[idx] < 63)
+                    dest[idx] = (byte) '+';
+                else
+                    dest[idx] = (byte) '/';
+            }
+            for (int idx = dest.length - 1; idx > (d.length * 4) / 3; idx--) {
+                dest[idx] = (byte) '=';
+            }
+            return new String(dest);
+        }
+
+        // Utils.Base64.decode
+        static byte[] base64Decode(String str) {
+            byte data[] = str.getBytes();
+            int tail = data.length;
+            while (data[tail - 1] == '=')
+                tail--;
+            byte dest[] = new byte[tail - data.length / 4];
+            for (int idx = 0; idx < data.length; idx++) {
+                if (data[idx] == '=')
+                    data[idx] = 0;
+                else if (data[idx] == '/')
+                    data[idx] = 63;
+                else if (data[idx] == '+')
+                    data[idx] = 62;
+                else if (data[idx] >= '0' && data[idx] <= '9')
+                    data[idx] = (byte) (data[idx] - ('0' - 52));
+                else if (data[idx] >= 'a' && data[idx] <= 'z')
+                    data[idx] = (byte) (data[idx] - ('a' - 26));
+                else if (data[idx] >= 'A' && data[idx] <= 'Z')
+                    data[idx] = (byte) (data[idx] - 'A');
+            }
+            int sidx, didx;
+            for (sidx = 0, didx = 0; didx < dest.length - 2; sidx += 4, didx += 3) {
+                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
+                dest[didx + 1] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
+                dest[didx + 2] = (byte) (((data[sidx + 2] << 6) & 255) | (data[sidx + 3] & 077));
+            }
+            if (didx < dest.length) {
+                dest[didx] = (byte) (((data[sidx] << 2) & 255) | ((data[sidx + 1] >>> 4) & 3));
+            }
+            if (++didx < dest.length) {
+                dest[didx] = (byte) (((data[sidx + 1] << 4) & 255) | ((data[sidx + 2] >>> 2) & 017));
+            }
+            return dest;
+        }
+
+        // Weave Base32.encode (Bitzi), lowercased through an intermediate String
+        static String base32Encode(byte[] bytes) {
+            String base32Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+            int i = 0, index = 0, digit;
+            int currByte, nextByte;
+            StringBuffer base32 = new StringBuffer((bytes.length + 7) * 8 / 5);
+            while (i < bytes.length) {
+                currByte = (bytes[i] >= 0) ? bytes[i] : (bytes[i] + 256);
+                if (index > 3) {
+                    if ((i + 1) < bytes.length) {
+                        nextByte = (bytes[i + 1] >= 0) ? bytes[i + 1] : (bytes[i + 1] + 256);
+                    } else {
+                        nextByte = 0;
+                    }
+                    digit = currByte & (0xFF >> index);
+                    index = (index + 5) % 8;
+                    digit <<= index;
+                    digit |= nextByte >> (8 - index);
+                    i++;
+                } else {
+                    digit = (currByte >> (8 - (index + 5))) & 0x1F;
+                    index = (index + 5) % 8;
+                    if (index == 0)
+                        i++;
+                }
+                base32.append(base32Chars.charAt(digit));
+            }
+            return base32.toString().toLowerCase();
+        }
+    }
+}
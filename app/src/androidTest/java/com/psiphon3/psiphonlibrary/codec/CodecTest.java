@@ -0,0 +1,176 @@
+package com.psiphon3.psiphonlibrary.codec;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class CodecTest {
+    private static final Codec[] CODECS = {
+            Codec.HEX, Codec.HEX_UPPER, Codec.BASE32, Codec.BASE32_LOWER_UNPADDED, Codec.BASE64};
+
+    @Test
+    public void rfc4648Vectors() {
+        String[] inputs = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        String[] base64 = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        String[] base32 = {"", "MY======", "MZXQ====", "MZXW6===", "MZXW6YQ=", "MZXW6YTB",
+                "MZXW6YTBOI======"};
+        String[] hex = {"", "66", "666F", "666F6F", "666F6F62", "666F6F6261", "666F6F626172"};
+        for (int i = 0; i < inputs.length; i++) {
+            byte[] bytes = inputs[i].getBytes();
+            assertEquals(base64[i], Codec.BASE64.encodeToString(bytes));
+            assertEquals(base32[i], Codec.BASE32.encodeToString(bytes));
+            assertEquals(base32[i].toLowerCase().replace("=", ""),
+                    Codec.BASE32_LOWER_UNPADDED.encodeToString(bytes));
+            assertEquals(hex[i], Codec.HEX_UPPER.encodeToString(bytes));
+            assertEquals(hex[i].toLowerCase(), Codec.HEX.encodeToString(bytes));
+
+            assertArrayEquals(bytes, Codec.BASE64.decode(base64[i]));
+            assertArrayEquals(bytes, Codec.BASE32.decode(base32[i]));
+            assertArrayEquals(bytes, Codec.BASE32.decode(base32[i].toLowerCase()));
+            assertArrayEquals(bytes, Codec.HEX.decode(hex[i]));
+        }
+    }
+
+    @Test
+    public void base64MatchesPlatform() {
+        Random random = new Random(0);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = Base64.encodeToString(data, Base64.NO_WRAP);
+            assertEquals(expected, Codec.BASE64.encodeToString(data));
+            assertArrayEquals(data, Codec.BASE64.decode(expected));
+            assertArrayEquals(data, Codec.BASE64.decode(Base64.encodeToString(data, Base64.DEFAULT)));
+        }
+    }
+
+    @Test
+    public void roundTripsSlices() {
+        Random random = new Random(1);
+        byte[] data = new byte[77];
+        random.nextBytes(data);
+        for (Codec codec : CODECS) {
+            for (int length = 0; length < 40; length++) {
+                int offset = 3;
+                int encodedLength = codec.encodedLength(length);
+
+                char[] chars = new char[encodedLength + 2];
+                assertEquals(encodedLength, codec.encode(data, offset, length, chars, 1));
+                byte[] ascii = new byte[encodedLength + 2];
+                assertEquals(encodedLength, codec.encode(data, offset, length, ascii, 1));
+                String encoded = new String(chars, 1, encodedLength);
+                assertEquals(encoded, new String(ascii, 1, encodedLength));
+                assertEquals(encoded, codec.encodeToString(data, offset, length));
+
+                byte[] decoded = new byte[codec.maxDecodedLength(encodedLength) + 1];
+                assertEquals(length, codec.decode(encoded, 0, encodedLength, decoded, 1));
+                assertSlice(data, offset, length, decoded, 1);
+                Arrays.fill(decoded, (byte) 0);
+                assertEquals(length, codec.decode(ascii, 1, encodedLength, decoded, 1));
+                assertSlice(data, offset, length, decoded, 1);
+            }
+        }
+    }
+
+    @Test
+    public void buffers() {
+        byte[] data = "buffers of either kind".getBytes();
+        for (Codec codec : CODECS) {
+            String expected = codec.encodeToString(data);
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuffer src = direct ? ByteBuffer.allocateDirect(data.length + 4)
+                        : ByteBuffer.allocate(data.length + 4);
+                src.position(2);
+                src.put(data);
+                src.flip();
+                src.position(2);
+                CharBuffer chars = CharBuffer.allocate(expected.length() + 1);
+                chars.put('x');
+                codec.encode(src, chars);
+                assertFalse(src.hasRemaining());
+                chars.flip();
+                chars.get();
+                assertEquals(expected, chars.toString());
+
+                ByteBuffer decoded = direct ? ByteBuffer.allocateDirect(data.length + 8)
+                        : ByteBuffer.allocate(data.length + 8);
+                codec.decode(chars, decoded);
+                assertFalse(chars.hasRemaining());
+                decoded.flip();
+                byte[] bytes = new byte[decoded.remaining()];
+                decoded.get(bytes);
+                assertArrayEquals(data, bytes);
+            }
+        }
+    }
+
+    @Test
+    public void streamsMatchSingleCalls() throws IOException {
+        Random random = new Random(2);
+        byte[] data = new byte[5000];
+        random.nextBytes(data);
+        for (Codec codec : CODECS) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            OutputStream encoder = codec.encodingStream(encoded);
+            // Uneven writes cross character groups and the internal buffer
+            for (int offset = 0, chunk = 1; offset < data.length; offset += chunk, chunk += 7) {
+                encoder.write(data, offset, Math.min(chunk, data.length - offset));
+            }
+            encoder.close();
+            assertEquals(codec.encodeToString(data), new String(encoded.toByteArray(), "US-ASCII"));
+
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            OutputStream decoder = codec.decodingStream(decoded);
+            byte[] ascii = encoded.toByteArray();
+            decoder.write(ascii, 0, 10);
+            decoder.write(ascii[10]);
+            decoder.write(ascii, 11, ascii.length - 11);
+            decoder.close();
+            assertArrayEquals(data, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void decodeSkipsWhitespace() {
+        assertArrayEquals("foobar".getBytes(), Codec.BASE64.decode(" Zm9v\nYmFy\r\n"));
+        assertArrayEquals("fooba".getBytes(), Codec.BASE64.decode("Zm9vYmE=\n"));
+        assertArrayEquals(new byte[]{(byte) 0xab, 0x12}, Codec.HEX_UPPER.decode("ab 12"));
+    }
+
+    @Test
+    public void decodeRejectsInvalidCharacters() {
+        String[][] invalid = {
+                {"BASE64", "Zm9v-mFy"}, {"BASE64", "Zm8=Zm8="}, {"BASE64", "Zm9v\u00e9"},
+                {"HEX", "0g"}, {"BASE32", "MZXW1"}};
+        for (String[] input : invalid) {
+            Codec codec = input[0].equals("BASE64") ? Codec.BASE64
+                    : input[0].equals("HEX") ? Codec.HEX : Codec.BASE32;
+            try {
+                codec.decode(input[1]);
+                fail(input[1]);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static void assertSlice(byte[] expected, int expectedOffset, int length,
+            byte[] actual, int actualOffset) {
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[expectedOffset + i], actual[actualOffset + i]);
+        }
+    }
+}
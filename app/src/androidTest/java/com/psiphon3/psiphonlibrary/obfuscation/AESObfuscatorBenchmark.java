@@ -0,0 +1,93 @@
+package com.psiphon3.psiphonlibrary.obfuscation;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures AESObfuscator construction with and without a cached key, single value and bulk
+ * throughput, and throughput with several threads sharing one instance. Results are logged with
+ * the tag below.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AESObfuscatorBenchmark {
+    private static final String TAG = "AESObfuscatorBench";
+    private static final int VALUES = 2000;
+    private static final int THREADS = 4;
+
+    @Test
+    public void benchmark() throws Exception {
+        byte[] salt = new byte[16];
+        new java.security.SecureRandom().nextBytes(salt);
+
+        long start = SystemClock.elapsedRealtime();
+        final AESObfuscator obfuscator = new AESObfuscator(salt, "com.psiphon3", "benchmark");
+        long deriveMs = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        new AESObfuscator(salt, "com.psiphon3", "benchmark");
+        long cachedMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, String.format("constructor: derived key %d ms, cached key %d ms", deriveMs, cachedMs));
+
+        final Map<String, String> originals = new LinkedHashMap<>();
+        for (int i = 0; i < VALUES; i++) {
+            originals.put("key" + i, "some preference value " + i);
+        }
+
+        // Warm up
+        obfuscator.unobfuscateAll(obfuscator.obfuscateAll(originals));
+
+        start = SystemClock.elapsedRealtime();
+        Map<String, String> obfuscated = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : originals.entrySet()) {
+            obfuscated.put(entry.getKey(), obfuscator.obfuscate(entry.getValue(), entry.getKey()));
+        }
+        for (Map.Entry<String, String> entry : obfuscated.entrySet()) {
+            obfuscator.unobfuscate(entry.getValue(), entry.getKey());
+        }
+        long singleMs = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(originals, obfuscator.unobfuscateAll(obfuscator.obfuscateAll(originals)));
+        long bulkMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, String.format("%d values round trip: single %.0f values/s, bulk %.0f values/s",
+                VALUES,
+                VALUES * 1000.0 / Math.max(1, singleMs),
+                VALUES * 1000.0 / Math.max(1, bulkMs)));
+
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final Throwable[] failure = new Throwable[1];
+        start = SystemClock.elapsedRealtime();
+        for (int t = 0; t < THREADS; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        obfuscator.unobfuscateAll(obfuscator.obfuscateAll(originals));
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        long threadedMs = SystemClock.elapsedRealtime() - start;
+        assertNull(failure[0]);
+
+        Log.i(TAG, String.format("%d threads sharing one instance: %.0f values/s",
+                THREADS, THREADS * VALUES * 1000.0 / Math.max(1, threadedMs)));
+    }
+}
@@ -0,0 +1,148 @@
+package com.psiphon3.psiphonlibrary.obfuscation;
+
+import android.util.Base64;
+
+import org.junit.Test;
+
+import java.security.spec.KeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class AESObfuscatorTest {
+    private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    private static final String APP_ID = "com.psiphon3";
+    private static final String DEVICE_ID = "test-device";
+
+    private final AESObfuscator mObfuscator = new AESObfuscator(SALT, APP_ID, DEVICE_ID);
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (String original : new String[]{"", "value", "ünïcödé", repeat("long value ", 200)}) {
+            String obfuscated = mObfuscator.obfuscate(original, "key");
+            assertNotEquals(original, obfuscated);
+            assertEquals(original, mObfuscator.unobfuscate(obfuscated, "key"));
+        }
+        assertNull(mObfuscator.obfuscate(null, "key"));
+        assertNull(mObfuscator.unobfuscate(null, "key"));
+    }
+
+    @Test
+    public void sameFormatAsSingleCipherImplementation() throws Exception {
+        // The format stored by earlier versions: AES/CBC over header + key + value with the
+        // PBKDF derived key, Base64 encoded
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBEWITHSHAAND256BITAES-CBC-BC");
+        KeySpec keySpec = new PBEKeySpec((APP_ID + DEVICE_ID).toCharArray(), SALT, 1024, 256);
+        SecretKey secret = new SecretKeySpec(factory.generateSecret(keySpec).getEncoded(), "AES");
+        Cipher encryptor = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        encryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(
+                new byte[]{16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74}));
+        String stored = Base64.encodeToString(encryptor.doFinal(
+                ("com.psiphon3.psiphonlibrary.obfuscation.AESObfuscator-1|" + "key" + "value")
+                        .getBytes("UTF-8")), Base64.NO_WRAP);
+
+        assertEquals(stored, mObfuscator.obfuscate("value", "key"));
+        assertEquals("value", mObfuscator.unobfuscate(stored, "key"));
+    }
+
+    @Test
+    public void sharesDerivedKey() throws Exception {
+        AESObfuscator other = new AESObfuscator(SALT.clone(), APP_ID, DEVICE_ID);
+        assertEquals("value", other.unobfuscate(mObfuscator.obfuscate("value", "key"), "key"));
+    }
+
+    @Test(expected = ValidationException.class)
+    public void wrongKeyFails() throws Exception {
+        mObfuscator.unobfuscate(mObfuscator.obfuscate("value", "key"), "otherKey");
+    }
+
+    @Test(expected = ValidationException.class)
+    public void otherDeviceFails() throws Exception {
+        AESObfuscator other = new AESObfuscator(SALT, APP_ID, "other-device");
+        other.unobfuscate(mObfuscator.obfuscate("value", "key"), "key");
+    }
+
+    @Test(expected = ValidationException.class)
+    public void invalidDataFails() throws Exception {
+        mObfuscator.unobfuscate("not obfuscated", "key");
+    }
+
+    @Test
+    public void bulkMatchesSingleValues() throws Exception {
+        Map<String, String> originals = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            originals.put("key" + i, i % 10 == 0 ? null : repeat("v", i));
+        }
+
+        Map<String, String> obfuscated = mObfuscator.obfuscateAll(originals);
+        assertEquals(new ArrayList<>(originals.keySet()), new ArrayList<>(obfuscated.keySet()));
+        for (Map.Entry<String, String> entry : originals.entrySet()) {
+            assertEquals(mObfuscator.obfuscate(entry.getValue(), entry.getKey()),
+                    obfuscated.get(entry.getKey()));
+        }
+        assertEquals(originals, mObfuscator.unobfuscateAll(obfuscated));
+    }
+
+    @Test(expected = ValidationException.class)
+    public void bulkFailsOnInvalidValue() throws Exception {
+        Map<String, String> obfuscated = mObfuscator.obfuscateAll(
+                Collections.singletonMap("key", "value"));
+        obfuscated.put("tampered", obfuscated.get("key"));
+        mObfuscator.unobfuscateAll(obfuscated);
+    }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        final int threads = 8;
+        final int iterations = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < iterations; i++) {
+                            // Differently sized values catch buffers shared between threads
+                            String key = "key" + thread;
+                            String original = repeat(String.valueOf(thread), i % 50) + i;
+                            String obfuscated = mObfuscator.obfuscate(original, key);
+                            assertEquals(original, mObfuscator.unobfuscate(obfuscated, key));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                // Rethrows assertion failures of the worker threads
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package org.zirco.providers;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.zirco.providers.BookmarksProviderWrapper.BookmarkColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times UrlSuggestionEngine lookups, as typed in the address bar, against a history of
+ * HISTORY_SIZE records in a throwaway copy of the bookmarks database. Suggestions are looked up
+ * on every keystroke, so the median lookup must fit in a frame. Results are logged with the tag
+ * below.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UrlSuggestionEngineBenchmark {
+    private static final String TAG = "UrlSuggestionBench";
+    private static final String DATABASE_PREFIX = "url_suggestion_benchmark.";
+    private static final int HISTORY_SIZE = 10000;
+    private static final long FRAME_BUDGET_NS = 16 * 1000 * 1000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final String[] WORDS = {"news", "mail", "wiki", "shop", "video", "maps", "search",
+            "blog", "music", "photo", "travel", "weather", "sport", "games", "books", "forum", "cloud",
+            "health", "food", "bank", "jobs", "learn", "code", "design", "market", "radio", "movie",
+            "science", "space", "local", "world", "daily", "tech", "auto", "home", "garden"};
+
+    // Typed one character at a time, each word after the other
+    private static final String[] TYPED = {"wik", "news daily", "www.shop", "mus", "http://tech",
+            "sp", "cloud code", "zzz", "w"};
+
+    private Context mContext;
+    private ZircoBookmarksContentProvider mProvider;
+    private MockContentResolver mContentResolver;
+
+    @Before
+    public void initialize() throws Exception {
+        Context targetContext = InstrumentationRegistry.getTargetContext();
+        mContext = new RenamingDelegatingContext(targetContext, DATABASE_PREFIX);
+        mContext.deleteDatabase("bookmarks.db");
+
+        mProvider = new ZircoBookmarksContentProvider();
+        mProvider.attachInfo(mContext, null);
+        mContentResolver = new MockContentResolver(mContext);
+        mContentResolver.addProvider(ZircoBookmarksContentProvider.AUTHORITY, mProvider);
+
+        fillHistory();
+    }
+
+    @After
+    public void cleanup() {
+        mProvider.shutdown();
+        mContext.deleteDatabase("bookmarks.db");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        UrlSuggestionEngine engine = new UrlSuggestionEngine(mContentResolver);
+        try {
+            // Warm up the database and the code paths once
+            type(engine, TYPED[0], null);
+
+            ArrayList<Long> durations = new ArrayList<>();
+            for (String text : TYPED) {
+                type(engine, text, durations);
+            }
+
+            long[] sorted = new long[durations.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = durations.get(i);
+            }
+            Arrays.sort(sorted);
+            long median = sorted[sorted.length / 2];
+            long p90 = sorted[sorted.length * 9 / 10];
+            long max = sorted[sorted.length - 1];
+
+            Log.i(TAG, String.format("%d records, %d lookups: median %.2f ms, 90th percentile %.2f ms, max %.2f ms",
+                    HISTORY_SIZE, sorted.length, median / 1e6, p90 / 1e6, max / 1e6));
+            assertTrue(String.format("median lookup %.2f ms over the frame budget", median / 1e6),
+                    median < FRAME_BUDGET_NS);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void suggestionsMatchEveryTerm() throws Exception {
+        UrlSuggestionEngine engine = new UrlSuggestionEngine(mContentResolver);
+        try {
+            Cursor cursor = engine.getSuggestions("news da", false);
+            try {
+                assertEquals(UrlSuggestionEngine.MAX_SUGGESTIONS, cursor.getCount());
+                while (cursor.moveToNext()) {
+                    String title = cursor.getString(1);
+                    String url = cursor.getString(2);
+                    String text = (title + " " + url).toLowerCase();
+                    assertTrue(text, text.contains("news") && text.contains("da"));
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            engine.close();
+        }
+    }
+
+    // Looks up the suggestions for every prefix of text, like the address bar does while typing
+    private static void type(UrlSuggestionEngine engine, String text, ArrayList<Long> durations) {
+        for (int i = 1; i <= text.length(); i++) {
+            long start = System.nanoTime();
+            Cursor cursor = engine.getSuggestions(text.substring(0, i), false);
+            long duration = System.nanoTime() - start;
+            cursor.close();
+            if (durations != null) {
+                durations.add(duration);
+            }
+        }
+    }
+
+    // Synthetic history: urls and titles made of common words, visits and ages spread
+    // like a browsing history, one record in ten bookmarked. Inserted in a single transaction.
+    private void fillHistory() throws Exception {
+        Random random = new Random(HISTORY_SIZE);
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(HISTORY_SIZE);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            String host = word(random) + word(random) + ".com";
+            String path = word(random) + "/" + word(random) + "-" + i;
+            String title = capitalize(word(random)) + " " + word(random) + " " + word(random) + " - " + host;
+            boolean bookmark = random.nextInt(10) == 0;
+            operations.add(ContentProviderOperation.newInsert(ZircoBookmarksContentProvider.CONTENT_URI)
+                    .withValue(BookmarkColumns.TITLE, title)
+                    .withValue(BookmarkColumns.URL, (random.nextBoolean() ? "https://www." : "http://") + host + "/" + path)
+                    .withValue(BookmarkColumns.VISITS, 1 + random.nextInt(random.nextInt(50) + 1))
+                    .withValue(BookmarkColumns.DATE, now - (long) (random.nextDouble() * random.nextDouble() * 120 * DAY))
+                    .withValue(BookmarkColumns.CREATED, bookmark ? now : null)
+                    .withValue(BookmarkColumns.BOOKMARK, bookmark ? 1 : 0)
+                    .build());
+        }
+        mProvider.applyBatch(operations);
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
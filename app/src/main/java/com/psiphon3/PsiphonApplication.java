@@ -28,6 +28,7 @@ import android.support.multidex.MultiDex;
 
 import com.psiphon3.psiphonlibrary.LocaleManager;
 import com.psiphon3.psiphonlibrary.PsiphonConstants;
+import com.psiphon3.psiphonlibrary.StartupTrace;
 import com.psiphon3.psiphonlibrary.Utils;
 
 public class PsiphonApplication extends Application {
@@ -64,23 +65,33 @@ public class PsiphonApplication extends Application {
         // ApplicationInfo is returned upon calling getApplicationInfo() on this object and then use it
         // as MultiDex.install() argument.
 
+        StartupTrace.begin("PsiphonApplication.attachBaseContext");
+        StartupTrace.begin("MultiDex.install");
         ContextWrapper wrappedContext = new ContextWrapper(base);
         MultiDex.install(wrappedContext);
+        StartupTrace.end();
 
         // Do not set locale in the base context if we detected system language should be used
         // because it will prevent locale change when it is triggered via onConfigurationChanged
         // callback when user changes locale in the OS settings.
+        // The language is read from a small mirror file, the multi-process preferences are only
+        // queried when that file is missing.
+        StartupTrace.begin("LocaleManager.setLocale");
         LocaleManager localeManager = LocaleManager.getInstance(base);
         if (localeManager.isSetToSystemLocale()) {
             super.attachBaseContext(base);
         } else {
             super.attachBaseContext(localeManager.setLocale(base));
         }
+        StartupTrace.end();
+        StartupTrace.end();
     }
 
     @Override
     public void onCreate() {
+        StartupTrace.begin("PsiphonApplication.onCreate");
         super.onCreate();
         PsiphonConstants.DEBUG = Utils.isDebugMode(this);
+        StartupTrace.end();
     }
 }
\ No newline at end of file
@@ -19,28 +19,29 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.graphics.drawable.Drawable;
-
-import io.reactivex.Single;
-
 public class AppEntry implements Comparable<AppEntry> {
     private final String name;
     private final String packageId;
-    private final Single<Drawable> iconLoader;
+    private final String versionKey;
     private final String comparableName;
 
-    public AppEntry(String name, String packageId, Single<Drawable> iconLoader) {
+    public AppEntry(String name, String packageId, String versionKey) {
+        this(name, packageId, versionKey, getComparableName(name));
+    }
+
+    // The comparable name as computed by getComparableName, e.g. stored in InstalledAppsCatalog
+    AppEntry(String name, String packageId, String versionKey, String comparableName) {
         this.name = name;
         this.packageId = packageId;
-        this.iconLoader = iconLoader;
-        comparableName = getComparableName();
+        this.versionKey = versionKey;
+        this.comparableName = comparableName;
     }
 
     public int compareTo(AppEntry other) {
         return this.comparableName.compareTo(other.comparableName);
     }
 
-    private String getComparableName() {
+    static String getComparableName(String name) {
         return name.toLowerCase().replaceAll(" ", "");
     }
 
@@ -50,5 +51,6 @@ public class AppEntry implements Comparable<AppEntry> {
     public String getPackageId() {
         return packageId;
     }
-    public Single<Drawable> getIconLoader() { return iconLoader; }
+    // Changes whenever the package is updated, see AppIconLoader
+    public String getVersionKey() { return versionKey; }
 }
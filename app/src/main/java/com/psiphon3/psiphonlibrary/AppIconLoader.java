@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
+import android.util.TypedValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
+
+// Loads app icons for the app picker rows, scaled down to the row icon size.
+// Icons are looked up in a size-bounded memory LRU, then in a disk cache of pre-scaled PNGs
+// keyed by package and version, and only then loaded from the PackageManager. Loads run on a
+// small fixed pool so a fast scroll can't start dozens of decodes at once; disposing a load
+// that hasn't started yet removes it from the pool queue.
+class AppIconLoader {
+    // Matches the icon size in preference_widget_applist_row
+    private static final int ICON_SIZE_DP = 48;
+    private static final int DECODE_THREADS = 2;
+    private static final int MAX_MEMORY_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final String DISK_CACHE_DIR = "app_icons";
+
+    private static AppIconLoader instance;
+
+    private final PackageManager packageManager;
+    private final int iconSizePx;
+    private final File diskCacheDir;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final Scheduler decodeScheduler;
+    // Names of the disk cache files by package, read from the directory on the first write
+    // so that a write doesn't need to list it. Guarded by diskCacheDir.
+    private Map<String, List<String>> diskCacheFiles = null;
+
+    static synchronized AppIconLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppIconLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AppIconLoader(Context context) {
+        packageManager = context.getPackageManager();
+        iconSizePx = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                ICON_SIZE_DP, context.getResources().getDisplayMetrics()));
+        diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+
+        int cacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_MEMORY_CACHE_BYTES);
+        memoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        decodeScheduler = Schedulers.from(Executors.newFixedThreadPool(DECODE_THREADS));
+    }
+
+    // Returns the icon if it is in the memory cache, without blocking.
+    Bitmap getCached(AppEntry appEntry) {
+        return memoryCache.get(getKey(appEntry));
+    }
+
+    // Loads the icon on the decode pool, emits on the main thread.
+    Single<Bitmap> load(final AppEntry appEntry) {
+        return Single.fromCallable(() -> loadBlocking(appEntry))
+                .subscribeOn(decodeScheduler)
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    private Bitmap loadBlocking(AppEntry appEntry) {
+        String packageId = appEntry.getPackageId();
+        String key = getKey(appEntry);
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        File diskCacheFile = new File(diskCacheDir, key + ".png");
+        if (diskCacheFile.exists()) {
+            bitmap = BitmapFactory.decodeFile(diskCacheFile.getPath());
+        }
+
+        if (bitmap == null) {
+            Drawable icon;
+            try {
+                icon = packageManager.getApplicationIcon(packageId);
+            } catch (PackageManager.NameNotFoundException e) {
+                // The package was removed since the app list was read
+                icon = packageManager.getDefaultActivityIcon();
+            }
+            bitmap = render(icon);
+            writeDiskCache(packageId, diskCacheFile, bitmap);
+        }
+
+        memoryCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    // '@' can't appear in package names
+    private static String getKey(AppEntry appEntry) {
+        return appEntry.getPackageId() + "@" + appEntry.getVersionKey();
+    }
+
+    // Draws the icon at row size, which also flattens adaptive icons.
+    private Bitmap render(Drawable icon) {
+        Bitmap bitmap = Bitmap.createBitmap(iconSizePx, iconSizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, iconSizePx, iconSizePx);
+        icon.draw(canvas);
+        return bitmap;
+    }
+
+    private void writeDiskCache(String packageId, File diskCacheFile, Bitmap bitmap) {
+        synchronized (diskCacheDir) {
+            if (!diskCacheDir.exists() && !diskCacheDir.mkdirs()) {
+                return;
+            }
+            if (diskCacheFiles == null) {
+                diskCacheFiles = readDiskCacheFiles();
+            }
+
+            // Drop icons of previous versions of the package
+            List<String> names = diskCacheFiles.get(packageId);
+            if (names == null) {
+                names = new ArrayList<>(1);
+                diskCacheFiles.put(packageId, names);
+            }
+            for (String name : names) {
+                if (!name.equals(diskCacheFile.getName())) {
+                    new File(diskCacheDir, name).delete();
+                }
+            }
+            names.clear();
+            names.add(diskCacheFile.getName());
+        }
+
+        File tempFile = new File(diskCacheFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(diskCacheFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private Map<String, List<String>> readDiskCacheFiles() {
+        Map<String, List<String>> files = new HashMap<>();
+        String[] names = diskCacheDir.list();
+        if (names == null) {
+            return files;
+        }
+        for (String name : names) {
+            int separator = name.indexOf('@');
+            if (separator <= 0 || !name.endsWith(".png")) {
+                // Left over by an interrupted write
+                new File(diskCacheDir, name).delete();
+                continue;
+            }
+            String packageId = name.substring(0, separator);
+            List<String> packageFiles = files.get(packageId);
+            if (packageFiles == null) {
+                packageFiles = new ArrayList<>(1);
+                files.put(packageId, packageFiles);
+            }
+            packageFiles.add(name);
+        }
+        return files;
+    }
+}
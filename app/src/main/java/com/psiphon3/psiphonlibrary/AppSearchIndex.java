@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// In-memory search over app labels and package ids for the app picker.
+// An app matches when the normalized query is a substring of its normalized label or
+// package id. Every 1, 2 and 3 character n-gram of those strings is indexed with the sorted
+// list of apps containing it, so a query only needs to check the apps in its rarest n-gram.
+// Queries that extend the previous query (the usual case when typing) only recheck the
+// previous results.
+class AppSearchIndex {
+    private static final int MAX_GRAM = 3;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    private final String[] haystacks;
+    private final Map<String, int[]> postings;
+
+    private String lastQuery = "";
+    private int[] lastResults;
+
+    AppSearchIndex(List<AppEntry> apps) {
+        haystacks = new String[apps.size()];
+        Map<String, List<Integer>> grams = new HashMap<>();
+        for (int i = 0; i < apps.size(); i++) {
+            AppEntry app = apps.get(i);
+            // '\n' can't be typed in the search box, so no match spans both parts
+            haystacks[i] = normalize(app.getName()) + "\n" + normalize(app.getPackageId());
+            String haystack = haystacks[i];
+            for (int start = 0; start < haystack.length(); start++) {
+                for (int n = 1; n <= MAX_GRAM && start + n <= haystack.length(); n++) {
+                    String gram = haystack.substring(start, start + n);
+                    List<Integer> list = grams.get(gram);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        grams.put(gram, list);
+                    }
+                    // Apps are added in order, so each list stays sorted and only needs
+                    // checking against its last element for duplicates
+                    if (list.isEmpty() || list.get(list.size() - 1) != i) {
+                        list.add(i);
+                    }
+                }
+            }
+        }
+
+        postings = new HashMap<>(grams.size());
+        for (Map.Entry<String, List<Integer>> entry : grams.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i);
+            }
+            postings.put(entry.getKey(), array);
+        }
+
+        lastResults = all();
+    }
+
+    static String normalize(String s) {
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    // Returns the positions, in ascending order, of the apps matching query.
+    int[] search(String query) {
+        String q = normalize(query).trim();
+        int[] results;
+        if (q.isEmpty()) {
+            results = all();
+        } else if (!lastQuery.isEmpty() && q.contains(lastQuery)) {
+            // Narrowing: anything matching q also matched the previous query
+            results = filter(lastResults, q);
+        } else {
+            results = filter(candidates(q), q);
+        }
+        lastQuery = q;
+        lastResults = results;
+        return results;
+    }
+
+    // Apps containing the query's rarest n-gram
+    private int[] candidates(String q) {
+        int[] best = null;
+        int n = Math.min(MAX_GRAM, q.length());
+        for (int start = 0; start + n <= q.length(); start++) {
+            int[] list = postings.get(q.substring(start, start + n));
+            if (list == null) {
+                return new int[0];
+            }
+            if (best == null || list.length < best.length) {
+                best = list;
+            }
+        }
+        return best;
+    }
+
+    private int[] filter(int[] positions, String q) {
+        int[] matches = new int[positions.length];
+        int count = 0;
+        for (int position : positions) {
+            if (haystacks[position].contains(q)) {
+                matches[count++] = position;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(matches, 0, result, 0, count);
+        return result;
+    }
+
+    private int[] all() {
+        int[] positions = new int[haystacks.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        return positions;
+    }
+}
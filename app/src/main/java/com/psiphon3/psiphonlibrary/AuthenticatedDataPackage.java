@@ -35,9 +35,9 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
-
-import android.util.Base64;
-import android.util.Base64OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonFactory;
@@ -45,10 +45,15 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.psiphon3.R;
 import com.psiphon3.psiphonlibrary.Utils.MyLog;
+import com.psiphon3.psiphonlibrary.codec.Codec;
 
 
 public class AuthenticatedDataPackage
 {
+    // Below this package size, starting the stage threads of PipelinedVerifyingOutputStream
+    // costs more than it saves (see AuthenticatedDataPackageBenchmark)
+    static final long PIPELINE_MIN_PACKAGE_SIZE = 4 * 1024 * 1024;
+
     public static class AuthenticatedDataPackageException extends Exception
     {
         private static final long serialVersionUID = 1L;
@@ -153,7 +158,7 @@ public class AuthenticatedDataPackage
                 // stream the encoded data to the signature stream, hence the re-encode.
                 // TODO: Avoid this redundant computation.
                 
-                this.verifyOutputStream = new Base64OutputStream(this.verifyOutputStream, Base64.NO_WRAP);
+                this.verifyOutputStream = Codec.BASE64.encodingStream(this.verifyOutputStream);
             }
         }
 
@@ -183,12 +188,283 @@ public class AuthenticatedDataPackage
         }
     }
 
+    /**
+     * Same as VerifyingOutputStream, but the signature update (including the Base64
+     * re-encode) and the writes to the destination each run on their own thread, so
+     * Base64 decoding in the parser, signature hashing and disk writes overlap.
+     * Decoded data is gathered into CHUNK_SIZE buffers taken from a bounded ring of
+     * CHUNK_COUNT reusable buffers; a buffer goes back to the ring once both stages
+     * are done with it. When the ring is empty the parser blocks, which bounds memory
+     * use regardless of the payload size.
+     */
+    private static class PipelinedVerifyingOutputStream extends OutputStream
+    {
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private static final int CHUNK_COUNT = 4;
+
+        private static class Chunk
+        {
+            final byte[] data;
+            int length = 0;
+            final AtomicInteger pendingStages = new AtomicInteger();
+
+            Chunk(int size)
+            {
+                this.data = new byte[size];
+            }
+        }
+
+        // Marks the end of the data for the stages
+        private static final Chunk END = new Chunk(0);
+
+        private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+        private final BlockingQueue<Chunk> signatureQueue = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+        private final BlockingQueue<Chunk> writeQueue = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+
+        private final Thread signatureStage;
+        private final Thread writeStage;
+
+        private volatile Throwable stageError = null;
+        private Chunk current;
+        private boolean closed = false;
+
+        public PipelinedVerifyingOutputStream(boolean dataIsBase64, OutputStream out, Signature signature)
+        {
+            for (int i = 0; i < CHUNK_COUNT; i++)
+            {
+                this.freeChunks.add(new Chunk(CHUNK_SIZE));
+            }
+            this.current = this.freeChunks.poll();
+
+            OutputStream verifyOutputStream = new VerifyingOutputStream.SignatureOutputStream(signature);
+            if (dataIsBase64)
+            {
+                // See VerifyingOutputStream for why the data is re-encoded.
+                verifyOutputStream = Codec.BASE64.encodingStream(verifyOutputStream);
+            }
+
+            this.signatureStage = startStage("AuthenticatedDataPackage-signature", this.signatureQueue, verifyOutputStream);
+            this.writeStage = startStage("AuthenticatedDataPackage-write", this.writeQueue, out);
+        }
+
+        private Thread startStage(String name, final BlockingQueue<Chunk> queue, final OutputStream sink)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    boolean interrupted = false;
+                    try
+                    {
+                        // After a failure or an interrupt, keep draining and releasing the chunks
+                        // until END so the producer never blocks on freeChunks
+                        while (true)
+                        {
+                            Chunk chunk;
+                            try
+                            {
+                                chunk = queue.take();
+                            }
+                            catch (InterruptedException e)
+                            {
+                                interrupted = true;
+                                if (stageError == null)
+                                {
+                                    stageError = e;
+                                }
+                                continue;
+                            }
+                            if (chunk == END)
+                            {
+                                break;
+                            }
+                            try
+                            {
+                                if (stageError == null)
+                                {
+                                    sink.write(chunk.data, 0, chunk.length);
+                                }
+                            }
+                            catch (Throwable e)
+                            {
+                                stageError = e;
+                            }
+                            finally
+                            {
+                                release(chunk);
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            sink.close();
+                        }
+                        catch (Throwable e)
+                        {
+                            if (stageError == null)
+                            {
+                                stageError = e;
+                            }
+                        }
+                        if (interrupted)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, name);
+            thread.start();
+            return thread;
+        }
+
+        private void release(Chunk chunk)
+        {
+            if (chunk.pendingStages.decrementAndGet() == 0)
+            {
+                chunk.length = 0;
+                this.freeChunks.offer(chunk);
+            }
+        }
+
+        private void dispatch() throws IOException
+        {
+            checkStageError();
+            if (this.current.length == 0)
+            {
+                return;
+            }
+            try
+            {
+                this.current.pendingStages.set(2);
+                this.signatureQueue.put(this.current);
+                this.writeQueue.put(this.current);
+                this.current = this.freeChunks.take();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+        }
+
+        private void checkStageError() throws IOException
+        {
+            Throwable e = this.stageError;
+            if (e instanceof IOException)
+            {
+                throw (IOException) e;
+            }
+            else if (e != null)
+            {
+                throw new IOException(e);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (this.closed)
+            {
+                throw new IOException("stream closed");
+            }
+            while (len > 0)
+            {
+                int count = Math.min(len, this.current.data.length - this.current.length);
+                System.arraycopy(b, off, this.current.data, this.current.length, count);
+                this.current.length += count;
+                off += count;
+                len -= count;
+                if (this.current.length == this.current.data.length)
+                {
+                    dispatch();
+                }
+            }
+        }
+
+        public void write(int b) throws IOException
+        {
+            if (this.closed)
+            {
+                throw new IOException("stream closed");
+            }
+            this.current.data[this.current.length++] = (byte) b;
+            if (this.current.length == this.current.data.length)
+            {
+                dispatch();
+            }
+        }
+
+        public void close() throws IOException
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            try
+            {
+                try
+                {
+                    dispatch();
+                }
+                finally
+                {
+                    // The stages finish the queued chunks, flush and close their sinks, then exit.
+                    // At most CHUNK_COUNT chunks are queued, so there is always room for END.
+                    this.signatureQueue.offer(END);
+                    this.writeQueue.offer(END);
+                    this.signatureStage.join();
+                    this.writeStage.join();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+            checkStageError();
+        }
+    }
+
     static public void extractAndVerifyData(
             String signaturePublicKey,
             InputStream dataPackage,
             boolean dataIsBase64,
             OutputStream dataDestination)
         throws AuthenticatedDataPackageException
+    {
+        extractAndVerifyData(signaturePublicKey, dataPackage, dataIsBase64, dataDestination, false);
+    }
+
+    /**
+     * Same as above, using PipelinedVerifyingOutputStream when the package is large enough
+     * for the stage threads to pay off.
+     * @param dataPackageSize size of the package, or a lower bound of it (e.g. the size of
+     *                        a compressed package); 0 if unknown.
+     */
+    static public void extractAndVerifyData(
+            String signaturePublicKey,
+            InputStream dataPackage,
+            boolean dataIsBase64,
+            OutputStream dataDestination,
+            long dataPackageSize)
+        throws AuthenticatedDataPackageException
+    {
+        extractAndVerifyData(signaturePublicKey, dataPackage, dataIsBase64, dataDestination,
+                dataPackageSize >= PIPELINE_MIN_PACKAGE_SIZE);
+    }
+
+    /**
+     * @param pipelined whether to use PipelinedVerifyingOutputStream or the single threaded
+     *                  VerifyingOutputStream.
+     */
+    static void extractAndVerifyData(
+            String signaturePublicKey,
+            InputStream dataPackage,
+            boolean dataIsBase64,
+            OutputStream dataDestination,
+            boolean pipelined)
+        throws AuthenticatedDataPackageException
     {
         // Authenticate remote server list as per scheme described in
         // Psiphon/Automation/psi_ops_server_entry_auth.py
@@ -197,7 +473,7 @@ public class AuthenticatedDataPackage
         // and dataDestination output stream.
 
         JsonParser parser = null;
-        VerifyingOutputStream verifyingOutputStream = null;
+        OutputStream verifyingOutputStream = null;
         
         try
         {
@@ -208,14 +484,16 @@ public class AuthenticatedDataPackage
             // Initialize a verifier using the expected public key; this will
             // be used while streaming the "data" value when parsing the JSON.
             
-            byte[] publicKeyBytes = Base64.decode(signaturePublicKey, Base64.NO_WRAP);
+            byte[] publicKeyBytes = Codec.BASE64.decode(signaturePublicKey);
             java.security.spec.X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
             java.security.KeyFactory keyFactory = KeyFactory.getInstance("RSA");
             PublicKey publicKey = keyFactory.generatePublic(spec);
 
             Signature verifier = java.security.Signature.getInstance("SHA256withRSA");
             verifier.initVerify(publicKey);
-            verifyingOutputStream = new VerifyingOutputStream(dataIsBase64, dataDestination, verifier);
+            verifyingOutputStream = pipelined ?
+                    new PipelinedVerifyingOutputStream(dataIsBase64, dataDestination, verifier) :
+                    new VerifyingOutputStream(dataIsBase64, dataDestination, verifier);
             
             // JSON parsing - using a streaming API as the "data" value is too large
             // to be loaded into memory.
@@ -286,7 +564,8 @@ public class AuthenticatedDataPackage
                     
                     // This explicit close() ensures that the Base64OutputStream in 
                     // Base64OutputStream has flushed and output final padding *before*
-                    // the verifier.verify() call.
+                    // the verifier.verify() call. With the pipelined stream it also waits
+                    // for all queued data to reach the verifier and the destination.
                     verifyingOutputStream.close();
 
                     dataValueRead = true;
@@ -317,7 +596,7 @@ public class AuthenticatedDataPackage
             
             MessageDigest sha2;
             sha2 = MessageDigest.getInstance("SHA256");
-            String publicKeyDigest = Base64.encodeToString(sha2.digest(signaturePublicKey.getBytes()), Base64.NO_WRAP);
+            String publicKeyDigest = Codec.BASE64.encodeToString(sha2.digest(signaturePublicKey.getBytes()));
             if (0 != publicKeyDigest.compareTo(signingPublicKeyDigest))
             {
                 MyLog.w(R.string.AuthenticatedDataPackage_WrongPublicKey, MyLog.Sensitivity.NOT_SENSITIVE);
@@ -327,7 +606,7 @@ public class AuthenticatedDataPackage
             // Now that we've checked the signing public key and have read the signature,
             // we can complete the verification process.
 
-            if (!verifier.verify(Base64.decode(signature, Base64.NO_WRAP)))
+            if (!verifier.verify(Codec.BASE64.decode(signature)))
             {            
                 MyLog.w(R.string.AuthenticatedDataPackage_InvalidSignature, MyLog.Sensitivity.NOT_SENSITIVE);
                 throw new AuthenticatedDataPackageException();
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
+/**
+ * Applies delta upgrade patches.
+ *
+ * A delta upgrade package is an ordinary authenticated upgrade package (see
+ * AuthenticatedDataPackage) whose data is a bsdiff-style patch against the
+ * currently installed APK instead of the full upgrade APK. The patch layout is:
+ *
+ *   8 bytes   MAGIC
+ *   32 bytes  SHA-256 of the source APK
+ *   8 bytes   source APK length
+ *   32 bytes  SHA-256 of the target APK
+ *   8 bytes   target APK length
+ *   gzip stream of control blocks, each:
+ *     8 bytes   diffLength
+ *     8 bytes   extraLength
+ *     8 bytes   seekAdjustment
+ *     diffLength bytes, added byte-wise to the source bytes at the current source position
+ *     extraLength bytes, copied as-is
+ *
+ * All integers are big-endian. Unlike classic bsdiff, which keeps control, diff and extra
+ * data in three separate bzip2 streams, the blocks are interleaved in a single gzip stream
+ * so the patch can be applied in one pass without seeking in the patch.
+ */
+public class DeltaUpgradePatch
+{
+    public static final byte[] MAGIC = {'P', 's', 'i', 'D', 'l', 't', '0', '1'};
+
+    public static final int DIGEST_LENGTH = 32;
+
+    public static class DeltaUpgradePatchException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        public DeltaUpgradePatchException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * @return true if file starts with the delta patch magic.
+     */
+    public static boolean isPatch(File file) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(file);
+        try
+        {
+            byte[] magic = new byte[MAGIC.length];
+            int offset = 0;
+            while (offset < magic.length)
+            {
+                int count = fis.read(magic, offset, magic.length - offset);
+                if (count < 0)
+                {
+                    return false;
+                }
+                offset += count;
+            }
+            return Arrays.equals(magic, MAGIC);
+        }
+        finally
+        {
+            try { fis.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Apply patch to source, streaming the result into target.
+     * The source APK digest is checked before anything is written and the target digest
+     * and length are checked once the patch has been applied.
+     * @param source the APK the patch was made against, normally the installed APK
+     * @param patch the patch data, positioned at MAGIC
+     * @param target receives the patched APK; it's closed by this method
+     * @throws DeltaUpgradePatchException if the patch doesn't apply to source or doesn't produce the expected target
+     */
+    public static void apply(File source, InputStream patch, UpgradeManager.DigestingChannelOutputStream target)
+            throws IOException, DeltaUpgradePatchException, NoSuchAlgorithmException
+    {
+        FileInputStream sourceStream = null;
+        try
+        {
+            DataInputStream header = new DataInputStream(patch);
+
+            byte[] magic = new byte[MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+            {
+                throw new DeltaUpgradePatchException("not a delta upgrade patch");
+            }
+
+            byte[] sourceDigest = new byte[DIGEST_LENGTH];
+            header.readFully(sourceDigest);
+            long sourceLength = header.readLong();
+            byte[] targetDigest = new byte[DIGEST_LENGTH];
+            header.readFully(targetDigest);
+            long targetLength = header.readLong();
+
+            if (source.length() != sourceLength
+                    || !Codec.HEX_UPPER.encodeToString(sourceDigest).equalsIgnoreCase(
+                            UpgradeManager.DigestingChannelOutputStream.digestFile(source)))
+            {
+                throw new DeltaUpgradePatchException("source mismatch");
+            }
+
+            sourceStream = new FileInputStream(source);
+            FileChannel sourceChannel = sourceStream.getChannel();
+
+            DataInputStream blocks = new DataInputStream(
+                    new GZIPInputStream(patch, UpgradeManager.UPGRADE_FILE_BUFFER_SIZE));
+
+            byte[] buffer = new byte[UpgradeManager.UPGRADE_FILE_BUFFER_SIZE];
+            ByteBuffer sourceBuffer = ByteBuffer.wrap(new byte[UpgradeManager.UPGRADE_FILE_BUFFER_SIZE]);
+
+            long sourcePosition = 0;
+            long targetPosition = 0;
+
+            while (targetPosition < targetLength)
+            {
+                long diffLength;
+                long extraLength;
+                long seekAdjustment;
+                try
+                {
+                    diffLength = blocks.readLong();
+                    extraLength = blocks.readLong();
+                    seekAdjustment = blocks.readLong();
+                }
+                catch (EOFException e)
+                {
+                    throw new DeltaUpgradePatchException("truncated patch");
+                }
+
+                if (diffLength < 0 || extraLength < 0
+                        || diffLength > targetLength - targetPosition
+                        || extraLength > targetLength - targetPosition - diffLength
+                        || sourcePosition < 0
+                        || diffLength > sourceLength - sourcePosition)
+                {
+                    throw new DeltaUpgradePatchException("corrupt control block");
+                }
+
+                // Diff: target bytes are patch bytes plus source bytes
+                long remaining = diffLength;
+                while (remaining > 0)
+                {
+                    int count = (int) Math.min(remaining, buffer.length);
+                    blocks.readFully(buffer, 0, count);
+
+                    sourceBuffer.clear();
+                    sourceBuffer.limit(count);
+                    while (sourceBuffer.hasRemaining())
+                    {
+                        if (sourceChannel.read(sourceBuffer, sourcePosition + sourceBuffer.position()) < 0)
+                        {
+                            throw new DeltaUpgradePatchException("source truncated");
+                        }
+                    }
+                    byte[] sourceBytes = sourceBuffer.array();
+                    for (int i = 0; i < count; i++)
+                    {
+                        buffer[i] += sourceBytes[i];
+                    }
+
+                    target.write(buffer, 0, count);
+                    sourcePosition += count;
+                    remaining -= count;
+                }
+
+                // Extra: target bytes copied from the patch
+                remaining = extraLength;
+                while (remaining > 0)
+                {
+                    int count = (int) Math.min(remaining, buffer.length);
+                    blocks.readFully(buffer, 0, count);
+                    target.write(buffer, 0, count);
+                    remaining -= count;
+                }
+
+                targetPosition += diffLength + extraLength;
+                sourcePosition += seekAdjustment;
+            }
+
+            target.close();
+
+            if (!Codec.HEX_UPPER.encodeToString(targetDigest).equalsIgnoreCase(target.getHexDigest()))
+            {
+                throw new DeltaUpgradePatchException("target mismatch");
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new DeltaUpgradePatchException("truncated patch");
+        }
+        finally
+        {
+            try { target.close(); } catch (IOException e) {}
+            if (sourceStream != null)
+            {
+                try { sourceStream.close(); } catch (IOException e) {}
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import android.os.Build;
 import android.util.Log;
 
 import com.psiphon3.psiphonlibrary.Utils.MyLog;
+import com.psiphon3.psiphonlibrary.codec.Codec;
 
 import com.psiphon3.R;
 
@@ -78,7 +79,7 @@ public class Diagnostics
             SecureRandom rnd = new SecureRandom();
             byte[] id = new byte[8];
             rnd.nextBytes(id);
-            metadata.put("id", Utils.byteArrayToHexString(id));
+            metadata.put("id", Codec.HEX_UPPER.encodeToString(id));
 
             /*
              * System Information
@@ -240,11 +241,11 @@ public class Diagnostics
         {
             StringBuilder encryptedContent = new StringBuilder();
             encryptedContent.append("{\n");
-            encryptedContent.append("  \"contentCiphertext\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mContentCiphertext)).append("\",\n");
-            encryptedContent.append("  \"iv\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mIv)).append("\",\n");
-            encryptedContent.append("  \"wrappedEncryptionKey\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mWrappedEncryptionKey)).append("\",\n");
-            encryptedContent.append("  \"contentMac\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mContentMac)).append("\",\n");
-            encryptedContent.append("  \"wrappedMacKey\": \"").append(Utils.Base64.encode(rsaEncryptOutput.mWrappedMacKey)).append("\"\n");
+            encryptedContent.append("  \"contentCiphertext\": \"").append(Codec.BASE64.encodeToString(rsaEncryptOutput.mContentCiphertext)).append("\",\n");
+            encryptedContent.append("  \"iv\": \"").append(Codec.BASE64.encodeToString(rsaEncryptOutput.mIv)).append("\",\n");
+            encryptedContent.append("  \"wrappedEncryptionKey\": \"").append(Codec.BASE64.encodeToString(rsaEncryptOutput.mWrappedEncryptionKey)).append("\",\n");
+            encryptedContent.append("  \"contentMac\": \"").append(Codec.BASE64.encodeToString(rsaEncryptOutput.mContentMac)).append("\",\n");
+            encryptedContent.append("  \"wrappedMacKey\": \"").append(Codec.BASE64.encodeToString(rsaEncryptOutput.mWrappedMacKey)).append("\"\n");
             encryptedContent.append("}");
 
             result = encryptedContent.toString();
@@ -368,7 +369,7 @@ public class Diagnostics
         url.append("https://");
         url.append(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_SERVER);
         url.append(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_PATH);
-        url.append(Utils.byteArrayToHexString(uploadId));
+        url.append(Codec.HEX_UPPER.encodeToString(uploadId));
 
         HttpsURLConnection httpsConn = null;
         boolean success = false;
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// On-disk catalog of installed packages for the VPN include/exclude app picker.
+// Loading labels of hundreds of packages takes seconds, so the label, sort key and INTERNET
+// permission flag of every package are stored keyed by package name, together with the
+// lastUpdateTime, versionCode and system locale they were read at. The picker renders from the
+// catalog right away and then calls refresh(), which only loads packages that were added or
+// updated since, and the labels of all packages after a change of the system locale.
+class InstalledAppsCatalog {
+    private static final String CATALOG_FILENAME = "installed_apps_catalog.json";
+
+    static class Entry {
+        final String packageName;
+        final long lastUpdateTime;
+        final int versionCode;
+        final String label;
+        final String sortKey;
+        final boolean usesInternet;
+        // System locale the label was loaded in
+        final String locale;
+
+        Entry(String packageName, long lastUpdateTime, int versionCode, String label, String sortKey, boolean usesInternet, String locale) {
+            this.packageName = packageName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+            this.label = label;
+            this.sortKey = sortKey;
+            this.usesInternet = usesInternet;
+            this.locale = locale;
+        }
+
+        boolean isCurrent(PackageInfo packageInfo, String locale) {
+            // Packages that don't use the internet are stored without their label
+            return lastUpdateTime == packageInfo.lastUpdateTime && versionCode == packageInfo.versionCode
+                    && (!usesInternet || this.locale.equals(locale));
+        }
+    }
+
+    private static InstalledAppsCatalog instance;
+
+    private final Context context;
+    // Package name to entry, null until loaded from disk
+    private Map<String, Entry> entries;
+
+    static synchronized InstalledAppsCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new InstalledAppsCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private InstalledAppsCatalog(Context context) {
+        this.context = context;
+    }
+
+    // Returns the catalog entries of apps that use the internet, as last stored.
+    // Reads the catalog file on first use, so must not be called on the main thread.
+    synchronized List<Entry> getCachedApps() {
+        load();
+        return internetApps();
+    }
+
+    // Brings the catalog up to date with the installed packages and returns the entries
+    // of apps that use the internet, or null if nothing changed since the last call.
+    // Slow for new and updated packages only. Must not be called on the main thread.
+    synchronized List<Entry> refresh() {
+        load();
+
+        PackageManager pm = context.getPackageManager();
+        // Without GET_PERMISSIONS this is a cheap call that still has the version info
+        List<PackageInfo> packages = pm.getInstalledPackages(0);
+        String selfPackageName = context.getPackageName();
+        // PackageManager loads the labels in the system locale, not the app's own
+        String locale = Resources.getSystem().getConfiguration().locale.toString();
+
+        boolean changed = false;
+        Set<String> installed = new HashSet<>();
+        Set<String> outdated = new HashSet<>();
+
+        for (PackageInfo p : packages) {
+            if (p.packageName.equals(selfPackageName)) {
+                continue;
+            }
+            installed.add(p.packageName);
+
+            Entry entry = entries.get(p.packageName);
+            if (entry == null || !entry.isCurrent(p, locale)) {
+                outdated.add(p.packageName);
+            }
+        }
+
+        if (!outdated.isEmpty()) {
+            // One call for the permissions of all packages rather than one call per package
+            for (PackageInfo p : pm.getInstalledPackages(PackageManager.GET_PERMISSIONS)) {
+                if (outdated.remove(p.packageName)) {
+                    entries.put(p.packageName, loadEntry(pm, p, locale));
+                    changed = true;
+                }
+            }
+            // Uninstalled in the meantime
+            installed.removeAll(outdated);
+        }
+
+        if (entries.keySet().retainAll(installed)) {
+            changed = true;
+        }
+
+        if (!changed) {
+            return null;
+        }
+        save();
+        return internetApps();
+    }
+
+    // The package info must have been read with GET_PERMISSIONS
+    private Entry loadEntry(PackageManager pm, PackageInfo p, String locale) {
+        boolean usesInternet = false;
+        if (p.requestedPermissions != null) {
+            for (String permission : p.requestedPermissions) {
+                if (Manifest.permission.INTERNET.equals(permission)) {
+                    usesInternet = true;
+                    break;
+                }
+            }
+        }
+        // Labels of apps that don't show in the picker are never needed
+        String label = usesInternet ? p.applicationInfo.loadLabel(pm).toString() : p.packageName;
+        return new Entry(p.packageName, p.lastUpdateTime, p.versionCode, label,
+                AppEntry.getComparableName(label), usesInternet, locale);
+    }
+
+    private List<Entry> internetApps() {
+        List<Entry> apps = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.usesInternet) {
+                apps.add(entry);
+            }
+        }
+        return apps;
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+
+        File file = new File(context.getFilesDir(), CATALOG_FILENAME);
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int count = in.read(buffer, offset, buffer.length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+            JSONArray array = new JSONArray(new String(buffer, 0, offset, "UTF-8"));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                String label = json.getString("label");
+                // Catalogs stored before the sort key was recorded compute it once here
+                String sortKey = json.has("sortKey") ? json.getString("sortKey") : AppEntry.getComparableName(label);
+                Entry entry = new Entry(
+                        json.getString("packageName"),
+                        json.getLong("lastUpdateTime"),
+                        json.getInt("versionCode"),
+                        label,
+                        sortKey,
+                        json.getBoolean("usesInternet"),
+                        // Catalogs stored before the locale was recorded are reloaded
+                        json.optString("locale", ""));
+                entries.put(entry.packageName, entry);
+            }
+        } catch (IOException | JSONException e) {
+            // Start over with an empty catalog
+            Utils.MyLog.g("InstalledAppsCatalog: failed to load catalog", "error", e.getMessage());
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void save() {
+        File file = new File(context.getFilesDir(), CATALOG_FILENAME);
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries.values()) {
+                JSONObject json = new JSONObject();
+                json.put("packageName", entry.packageName);
+                json.put("lastUpdateTime", entry.lastUpdateTime);
+                json.put("versionCode", entry.versionCode);
+                json.put("label", entry.label);
+                json.put("sortKey", entry.sortKey);
+                json.put("usesInternet", entry.usesInternet);
+                json.put("locale", entry.locale);
+                array.put(json);
+            }
+            out = new FileOutputStream(tempFile);
+            out.write(array.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Utils.MyLog.g("InstalledAppsCatalog: failed to rename catalog file");
+            }
+        } catch (IOException | JSONException e) {
+            Utils.MyLog.g("InstalledAppsCatalog: failed to save catalog", "error", e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -19,19 +19,17 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.Manifest;
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.EditText;
 
 import com.psiphon3.R;
 
@@ -41,7 +39,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
-import io.reactivex.Single;
+import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.schedulers.Schedulers;
 
@@ -76,19 +74,38 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder {
 
     public int getInstalledAppsCount() {
         Objects.requireNonNull(adapter);
-       return adapter.getItemCount();
+        return adapter.getAllItemCount();
     }
 
     private void loadInstalledAppsView(Context context) {
-        Single.<List<AppEntry>>create(emitter -> {
+        // Emits the apps from the catalog first, if there are any, then again only if
+        // reconciling the catalog with the installed packages changed something.
+        Observable.<List<AppEntry>>create(emitter -> {
+            InstalledAppsCatalog catalog = InstalledAppsCatalog.getInstance(context);
+            List<InstalledAppsCatalog.Entry> cachedApps = catalog.getCachedApps();
+            if (!cachedApps.isEmpty() && !emitter.isDisposed()) {
+                emitter.onNext(getInstalledApps(cachedApps));
+            }
+            List<InstalledAppsCatalog.Entry> refreshedApps = catalog.refresh();
+            if (refreshedApps != null && !emitter.isDisposed()) {
+                emitter.onNext(getInstalledApps(refreshedApps));
+            } else if (cachedApps.isEmpty() && !emitter.isDisposed()) {
+                // No apps at all
+                emitter.onNext(new ArrayList<>());
+            }
             if (!emitter.isDisposed()) {
-                emitter.onSuccess(getInstalledApps(context));
+                emitter.onComplete();
             }
-
         })
                 .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
-                .doOnSuccess(dataSet -> {
+                .doOnNext(dataSet -> {
+                    if (adapter != null) {
+                        // Reconciled with the installed packages, selection is kept
+                        adapter.setData(dataSet);
+                        return;
+                    }
+
                     final Set<String> selectedApps = whitelist ?
                             VpnAppsUtils.getPendingAppsIncludedInVpn(context) :
                             VpnAppsUtils.getPendingAppsExcludedFromVpn(context);
@@ -112,6 +129,23 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder {
                     recyclerView.setLayoutManager(new LinearLayoutManager(context));
                     recyclerView.setAdapter(adapter);
 
+                    EditText searchApps = (EditText) view.findViewById(R.id.search_apps);
+                    searchApps.addTextChangedListener(new TextWatcher() {
+                        @Override
+                        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                        }
+
+                        @Override
+                        public void onTextChanged(CharSequence s, int start, int before, int count) {
+                        }
+
+                        @Override
+                        public void afterTextChanged(Editable s) {
+                            adapter.setFilter(s.toString());
+                        }
+                    });
+                    searchApps.setVisibility(View.VISIBLE);
+
                     view.findViewById(R.id.recycler_view).setVisibility(View.VISIBLE);
                     view.findViewById(R.id.progress_overlay).setVisibility(View.GONE);
                 })
@@ -122,71 +156,18 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder {
         return whitelist ? R.string.preference_routing_include_apps_title : R.string.preference_routing_exclude_apps_title;
     }
 
-    private List<AppEntry> getInstalledApps(Context context) {
-        PackageManager pm = context.getPackageManager();
-
+    // The catalog only holds apps that require internet access and excludes Psiphon itself.
+    private List<AppEntry> getInstalledApps(List<InstalledAppsCatalog.Entry> catalogEntries) {
         List<AppEntry> apps = new ArrayList<>();
-        List<PackageInfo> packages = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS);
-
-
-        String selfPackageName = context.getPackageName();
-        boolean checkSelf = true;
-
-        for (int i = 0; i < packages.size(); i++) {
-            PackageInfo p = packages.get(i);
-
-            // The returned app list excludes:
-            //  - Apps that don't require internet access
-            //  - Psiphon itself
-            if (checkSelf && p.packageName.equals(selfPackageName)) {
-                // Skip the check next time once we got a match.
-                checkSelf = false;
-                continue;
-            }
-            if (isInternetPermissionGranted(p)) {
-                // This takes a bit of time, but since we want the apps sorted by displayed name
-                // its best to do synchronously
-                String appName = p.applicationInfo.loadLabel(pm).toString();
-                String packageId = p.packageName;
-                Single<Drawable> iconLoader = getIconLoader(p.applicationInfo, pm);
-                apps.add(new AppEntry(appName, packageId, iconLoader));
-            }
+        for (InstalledAppsCatalog.Entry entry : catalogEntries) {
+            String versionKey = entry.versionCode + "_" + entry.lastUpdateTime;
+            apps.add(new AppEntry(entry.label, entry.packageName, versionKey, entry.sortKey));
         }
 
         Collections.sort(apps);
         return apps;
     }
 
-    private boolean isSystemPackage(PackageInfo pkgInfo) {
-        return ((pkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
-    }
-
-    private boolean isInternetPermissionGranted(PackageInfo pkgInfo) {
-        if (pkgInfo.requestedPermissions != null) {
-            for (String permission : pkgInfo.requestedPermissions) {
-                if (Manifest.permission.INTERNET.equals(permission)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private Single<Drawable> getIconLoader(final ApplicationInfo applicationInfo, final PackageManager packageManager) {
-        return Single.<Drawable>create(emitter -> {
-            Drawable icon = applicationInfo.loadIcon(packageManager);
-            if (!emitter.isDisposed()) {
-                emitter.onSuccess(icon);
-            }
-        })
-                // shouldn't ever get an error but handle it just in case
-                .doOnError(e -> Utils.MyLog.g("failed to load icon for " + applicationInfo.packageName + " " + e))
-                // run on io as we're reading off disk
-                .subscribeOn(Schedulers.io())
-                // observe on ui
-                .observeOn(AndroidSchedulers.mainThread());
-    }
-
     public boolean isLoaded() {
         return adapter != null;
     }
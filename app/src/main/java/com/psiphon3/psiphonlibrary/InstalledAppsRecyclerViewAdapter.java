@@ -20,7 +20,10 @@
 package com.psiphon3.psiphonlibrary;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,9 +36,28 @@ import com.psiphon3.R;
 import java.util.List;
 import java.util.Set;
 
+import io.reactivex.disposables.Disposable;
+
 public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<InstalledAppsRecyclerViewAdapter.ViewHolder> {
+    // Number of rows past either end of the viewport to prefetch icons for
+    private static final int PREFETCH_DISTANCE = 8;
+
     private final LayoutInflater inflater;
-    private final List<AppEntry> data;
+    private final AppIconLoader iconLoader;
+    private List<AppEntry> data;
+    private AppSearchIndex searchIndex;
+    private String filter = "";
+    // Positions in data of the rows currently shown
+    private int[] visible;
+
+    // Icon loads for rows outside the viewport, by adapter position
+    private final SparseArray<Disposable> prefetches = new SparseArray<>();
+    private final RecyclerView.OnScrollListener prefetchScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            updatePrefetches(recyclerView, dy);
+        }
+    };
 
     public Set<String> getSelectedApps() {
         return selectedApps;
@@ -47,8 +69,86 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
 
     InstalledAppsRecyclerViewAdapter(Context context, List<AppEntry> data, Set<String> selectedApps) {
         this.inflater = LayoutInflater.from(context);
-        this.data = data;
+        this.iconLoader = AppIconLoader.getInstance(context);
         this.selectedApps = selectedApps;
+        setDataInternal(data);
+    }
+
+    // Replaces the app list, keeping the selection
+    void setData(List<AppEntry> data) {
+        cancelPrefetches();
+        setDataInternal(data);
+        notifyDataSetChanged();
+    }
+
+    private void setDataInternal(List<AppEntry> data) {
+        this.data = data;
+        this.searchIndex = new AppSearchIndex(data);
+        this.visible = searchIndex.search(filter);
+    }
+
+    // Shows only the apps whose label or package id contains filter. The selection
+    // includes apps that are filtered out.
+    void setFilter(String filter) {
+        this.filter = filter;
+        cancelPrefetches();
+        visible = searchIndex.search(filter);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(prefetchScrollListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(prefetchScrollListener);
+        cancelPrefetches();
+    }
+
+    // Loads icons for the rows just past the viewport in the scroll direction into the icon
+    // cache and cancels prefetches for rows that are now too far away.
+    private void updatePrefetches(RecyclerView recyclerView, int dy) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int windowStart = Math.max(0, first - PREFETCH_DISTANCE);
+        int windowEnd = Math.min(visible.length - 1, last + PREFETCH_DISTANCE);
+
+        for (int i = prefetches.size() - 1; i >= 0; i--) {
+            int position = prefetches.keyAt(i);
+            if (position < windowStart || position > windowEnd) {
+                prefetches.valueAt(i).dispose();
+                prefetches.removeAt(i);
+            }
+        }
+
+        int from = dy >= 0 ? last + 1 : windowStart;
+        int to = dy >= 0 ? windowEnd : first - 1;
+        for (int position = from; position <= to; position++) {
+            final AppEntry appEntry = getItem(position);
+            if (prefetches.get(position) != null || iconLoader.getCached(appEntry) != null) {
+                continue;
+            }
+            final int prefetchPosition = position;
+            prefetches.put(position, iconLoader.load(appEntry)
+                    .subscribe(icon -> prefetches.remove(prefetchPosition),
+                            e -> prefetches.remove(prefetchPosition)));
+        }
+    }
+
+    private void cancelPrefetches() {
+        for (int i = 0; i < prefetches.size(); i++) {
+            prefetches.valueAt(i).dispose();
+        }
+        prefetches.clear();
     }
 
     @Override
@@ -59,28 +159,41 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
 
     @Override
     public void onBindViewHolder(final ViewHolder holder, final int position) {
-        final AppEntry appEntry = data.get(position);
-
-        appEntry.getIconLoader()
-                .doOnSuccess(icon -> {
-                    // check to see if the adapter position matches the position of the holder
-                    // if it does then set the picture
-                    if (position == holder.getAdapterPosition()) {
-                        holder.appIcon.setImageDrawable(icon);
-                    }
-                })
-                .subscribe();
+        final AppEntry appEntry = getItem(position);
+
+        holder.cancelIconLoad();
+        Bitmap icon = iconLoader.getCached(appEntry);
+        if (icon != null) {
+            holder.appIcon.setImageBitmap(icon);
+        } else {
+            holder.appIcon.setImageDrawable(null);
+            // The load is cancelled if the holder is recycled or rebound first
+            holder.iconLoad = iconLoader.load(appEntry)
+                    .subscribe(holder.appIcon::setImageBitmap,
+                            e -> Utils.MyLog.g("failed to load icon for " + appEntry.getPackageId() + " " + e));
+        }
         holder.appName.setText(appEntry.getName());
         holder.isSelected.setChecked(selectedApps.contains(appEntry.getPackageId()));
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // The row scrolled away
+        holder.cancelIconLoad();
+    }
+
     @Override
     public int getItemCount() {
+        return visible.length;
+    }
+
+    // Number of apps, including ones hidden by the filter
+    int getAllItemCount() {
         return data.size();
     }
 
     AppEntry getItem(int id) {
-        return data.get(id);
+        return data.get(visible[id]);
     }
 
     void setClickListener(ItemClickListener itemClickListener) {
@@ -95,6 +208,7 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
         final ImageView appIcon;
         final TextView appName;
         final CheckBox isSelected;
+        Disposable iconLoad;
 
         ViewHolder(View itemView) {
             super(itemView);
@@ -109,6 +223,13 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
             isSelected.setOnClickListener(this);
         }
 
+        void cancelIconLoad() {
+            if (iconLoad != null) {
+                iconLoad.dispose();
+                iconLoad = null;
+            }
+        }
+
         @Override
         public void onClick(View view) {
             if (clickListener != null) {
@@ -6,11 +6,15 @@ import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.Build;
-import android.preference.Preference;
+import android.os.Process;
 import android.preference.PreferenceManager;
 
 import net.grandcentrix.tray.AppPreferences;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Locale;
 
 import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
@@ -45,29 +49,42 @@ import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
 public class LocaleManager {
     private static final String USE_SYSTEM_LANGUAGE_VAL = "system";
     private static final String LANGUAGE_KEY = "language_key";
+    // Mirror of the language preference, read at process start-up instead of the
+    // multi-process preferences
+    private static final String LANGUAGE_FILE = "language";
+    // Language codes are short, anything longer is a damaged file
+    private static final int MAX_LANGUAGE_FILE_LENGTH = 64;
 
     private static LocaleManager m_instance = null;
 
-    private final AppPreferences m_preferences;
+    private final Context m_context;
+    private final File m_languageFile;
+    // The multi-process preferences stay the source of truth for the language but are only
+    // opened when the mirror file is missing or the language changes. Opening them queries the
+    // Tray content provider, which can mean waiting for another process to create it.
+    private AppPreferences m_preferences;
 
     private LocaleManager(Context context) {
-        Context wrappedCtx = new ApplicationContextWrapper(context);
-        m_preferences = new AppPreferences(wrappedCtx);
+        m_context = new ApplicationContextWrapper(context);
+        m_languageFile = new File(context.getFilesDir(), LANGUAGE_FILE);
 
         // Migrate old shared preference language pref to multi-process preferences
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         if(sharedPrefs.contains(LANGUAGE_KEY)) {
             String oldLanguagePref = sharedPrefs.getString(LANGUAGE_KEY, null);
             if (oldLanguagePref != null && !oldLanguagePref.equals("")) {
-                m_preferences.put(LANGUAGE_KEY, oldLanguagePref);
+                getPreferences().put(LANGUAGE_KEY, oldLanguagePref);
+                writeLanguageFile(oldLanguagePref);
                 sharedPrefs.edit().remove(LANGUAGE_KEY).apply();
             }
         }
     }
 
-    public static LocaleManager getInstance(Context context) {
+    public static synchronized LocaleManager getInstance(Context context) {
         if (m_instance == null) {
+            StartupTrace.begin("LocaleManager.init");
             m_instance = new LocaleManager(context);
+            StartupTrace.end();
         }
 
         return m_instance;
@@ -86,8 +103,18 @@ public class LocaleManager {
         return setNewLocale(context, USE_SYSTEM_LANGUAGE_VAL);
     }
 
-    public String getLanguage() {
-        return m_preferences.getString(LANGUAGE_KEY, USE_SYSTEM_LANGUAGE_VAL);
+    // Not cached, the language may be changed by another process. Reading the mirror file is
+    // much cheaper than a provider query.
+    public synchronized String getLanguage() {
+        String language = readLanguageFile();
+        if (language == null) {
+            // First start with the mirror or the file got lost, restore it from the source of truth
+            StartupTrace.begin("LocaleManager.restoreLanguageFile");
+            language = getPreferences().getString(LANGUAGE_KEY, USE_SYSTEM_LANGUAGE_VAL);
+            writeLanguageFile(language);
+            StartupTrace.end();
+        }
+        return language;
     }
 
     public boolean isSetToSystemLocale() {
@@ -98,8 +125,78 @@ public class LocaleManager {
         return USE_SYSTEM_LANGUAGE_VAL.equals(languageCode);
     }
 
-    private void persistLanguage(String language) {
-        m_preferences.put(LANGUAGE_KEY, language);
+    private synchronized void persistLanguage(String language) {
+        if (language.equals(readLanguageFile())) {
+            return;
+        }
+        writeLanguageFile(language);
+        // Stored right away, the activity exits the process to apply the new language
+        getPreferences().put(LANGUAGE_KEY, language);
+    }
+
+    private AppPreferences getPreferences() {
+        if (m_preferences == null) {
+            m_preferences = new AppPreferences(m_context);
+        }
+        return m_preferences;
+    }
+
+    // Returns null if the file doesn't exist or can't be read
+    private String readLanguageFile() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(m_languageFile);
+            byte[] buffer = new byte[MAX_LANGUAGE_FILE_LENGTH];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+            if (length == 0 || length == buffer.length) {
+                return null;
+            }
+            return new String(buffer, 0, length, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    // Replaces the file atomically so a concurrent reader in another process never sees a
+    // partial write
+    private void writeLanguageFile(String language) {
+        File tempFile = new File(m_languageFile.getPath() + "." + Process.myPid() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(language.getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(m_languageFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            // Don't leave an outdated mirror behind, the preferences still have the language and
+            // the file is restored from them
+            tempFile.delete();
+            m_languageFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     private static Locale fromLanguageCode(String languageCode) {
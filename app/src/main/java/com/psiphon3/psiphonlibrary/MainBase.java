@@ -92,6 +92,7 @@ import org.achartengine.renderer.XYMultipleSeriesRenderer;
 import org.achartengine.renderer.XYSeriesRenderer;
 
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
@@ -312,7 +313,7 @@ public abstract class MainBase {
             m_previousView = m_currentView;
             m_currentTab = m_tabHost.getCurrentTab();
 
-            m_multiProcessPreferences.put(CURRENT_TAB, m_currentTab);
+            m_multiProcessPreferences.putAsync(CURRENT_TAB, m_currentTab);
 
             // Also scroll to the corresponding tab label if it is not fully in view
             View tabView = m_tabHost.getTabWidget().getChildTabViewAt(m_tabHost.getCurrentTab());
@@ -396,7 +397,7 @@ public abstract class MainBase {
             // The name of the DefaultSharedPreferences is this.getPackageName() + "_preferences"
             // http://stackoverflow.com/questions/5946135/difference-between-getdefaultsharedpreferences-and-getsharedpreferences
             String prefName = this.getPackageName() + "_preferences";
-            m_multiProcessPreferences.migrate(
+            m_multiProcessPreferences.edit().migrate(
                     // Top level  preferences
                     new SharedPreferencesImport(this, prefName, CURRENT_TAB, CURRENT_TAB),
                     new SharedPreferencesImport(this, prefName, getString(R.string.egressRegionPreference), getString(R.string.egressRegionPreference)),
@@ -408,9 +409,7 @@ public abstract class MainBase {
                     new SharedPreferencesImport(this, prefName, getString(R.string.preferenceNotificationsWithVibrate), getString(R.string.preferenceNotificationsWithVibrate)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAllAppsInVpn), getString(R.string.preferenceIncludeAllAppsInVpn)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAppsInVpn), getString(R.string.preferenceIncludeAppsInVpn)),
-                    new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAppsInVpnString), getString(R.string.preferenceIncludeAppsInVpnString)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.preferenceExcludeAppsFromVpn), getString(R.string.preferenceExcludeAppsFromVpn)),
-                    new SharedPreferencesImport(this, prefName, getString(R.string.preferenceExcludeAppsFromVpnString), getString(R.string.preferenceExcludeAppsFromVpnString)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.useProxySettingsPreference), getString(R.string.useProxySettingsPreference)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.useSystemProxySettingsPreference), getString(R.string.useSystemProxySettingsPreference)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.useCustomProxySettingsPreference), getString(R.string.useCustomProxySettingsPreference)),
@@ -421,7 +420,8 @@ public abstract class MainBase {
                     new SharedPreferencesImport(this, prefName, getString(R.string.useProxyPasswordPreference), getString(R.string.useProxyPasswordPreference)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.useProxyDomainPreference), getString(R.string.useProxyDomainPreference)),
                     new SharedPreferencesImport(this, prefName, getString(R.string.preferenceLanguageSelection), getString(R.string.preferenceLanguageSelection))
-            );
+            ).commit();
+            VpnAppsUtils.importAppsFromSharedPreferences(this, prefName);
 
             EmbeddedValues.initialize(this);
 
@@ -613,8 +613,11 @@ public abstract class MainBase {
                             .subscribe(),
 
                     tunnelServiceInteractor.knownRegionsFlowable()
-                            .doOnNext(__ -> m_regionAdapter.updateRegionsFromPreferences())
-                            .subscribe(),
+                            // keep listening for region updates when reading the preference failed
+                            .switchMapSingle(__ -> m_regionAdapter.updateRegionsFromPreferencesAsync()
+                                    .doOnError(e -> MyLog.g("MainBase: updating the regions failed: " + e))
+                                    .onErrorReturnItem(""))
+                            .subscribe(__ -> {}, e -> MyLog.g("MainBase: known regions failed: " + e)),
 
                     tunnelServiceInteractor.nfcExchangeFlowable()
                     .doOnNext(nfcExchange -> {
@@ -874,6 +877,9 @@ public abstract class MainBase {
             super.onPause();
             getContentResolver().unregisterContentObserver(m_loggingObserver);
             cancelInvalidProxySettingsToast();
+            // Store the values written with putAsync while the process is still in the foreground
+            TrayRx.flush(m_multiProcessPreferences)
+                    .subscribe(() -> {}, e -> MyLog.g("MainBase: storing the preferences failed: " + e));
         }
 
         protected void doToggle() {
@@ -1014,7 +1020,7 @@ public abstract class MainBase {
             // There is no need to restart the service if the value of downloadWifiOnly
             // has changed because upgrade downloads happen in a different, temp tunnel
 
-            m_multiProcessPreferences.put(getString(R.string.downloadWifiOnlyPreference), downloadWifiOnly);
+            m_multiProcessPreferences.putAsync(getString(R.string.downloadWifiOnlyPreference), downloadWifiOnly);
         }
 
         // Basic check of proxy settings values
@@ -1267,9 +1273,9 @@ public abstract class MainBase {
 
             // check if the selected apps changed
             if (tunnelSelected) {
-                String tunnelSelectedString = prefs.getString(getString(R.string.preferenceIncludeAppsInVpnString), "");
-                String tunnelSelectedStringNew = m_multiProcessPreferences.getString(getString(R.string.preferenceIncludeAppsInVpnString), "");
-                if (!tunnelSelectedString.equals(tunnelSelectedStringNew)) {
+                Set<String> tunnelSelectedApps = VpnAppsUtils.getPendingAppsIncludedInVpn(this);
+                Set<String> tunnelSelectedAppsNew = VpnAppsUtils.getCurrentAppsIncludedInVpn(this);
+                if (!tunnelSelectedApps.equals(tunnelSelectedAppsNew)) {
                     return true;
                 }
             }
@@ -1282,9 +1288,9 @@ public abstract class MainBase {
 
             // check if the selected apps changed
             if (tunnelNotSelected) {
-                String tunnelNotSelectedString = prefs.getString(getString(R.string.preferenceExcludeAppsFromVpnString), "");
-                String tunnelNotSelectedStringNew = m_multiProcessPreferences.getString(getString(R.string.preferenceExcludeAppsFromVpnString), "");
-                if (!tunnelNotSelectedString.equals(tunnelNotSelectedStringNew)) {
+                Set<String> tunnelNotSelectedApps = VpnAppsUtils.getPendingAppsExcludedFromVpn(this);
+                Set<String> tunnelNotSelectedAppsNew = VpnAppsUtils.getCurrentAppsExcludedFromVpn(this);
+                if (!tunnelNotSelectedApps.equals(tunnelNotSelectedAppsNew)) {
                     return true;
                 }
             }
@@ -1363,14 +1369,12 @@ public abstract class MainBase {
 
                 // Import 'More Options' values to tray preferences
                 String prefName = getString(R.string.moreOptionsPreferencesName);
-                m_multiProcessPreferences.migrate(
+                m_multiProcessPreferences.edit().migrate(
                         new SharedPreferencesImport(this, prefName, getString(R.string.preferenceNotificationsWithSound), getString(R.string.preferenceNotificationsWithSound)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.preferenceNotificationsWithVibrate), getString(R.string.preferenceNotificationsWithVibrate)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAllAppsInVpn), getString(R.string.preferenceIncludeAllAppsInVpn)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAppsInVpn), getString(R.string.preferenceIncludeAppsInVpn)),
-                        new SharedPreferencesImport(this, prefName, getString(R.string.preferenceIncludeAppsInVpnString), getString(R.string.preferenceIncludeAppsInVpnString)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.preferenceExcludeAppsFromVpn), getString(R.string.preferenceExcludeAppsFromVpn)),
-                        new SharedPreferencesImport(this, prefName, getString(R.string.preferenceExcludeAppsFromVpnString), getString(R.string.preferenceExcludeAppsFromVpnString)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.downloadWifiOnlyPreference), getString(R.string.downloadWifiOnlyPreference)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.disableTimeoutsPreference), getString(R.string.disableTimeoutsPreference)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.useProxySettingsPreference), getString(R.string.useProxySettingsPreference)),
@@ -1382,7 +1386,8 @@ public abstract class MainBase {
                         new SharedPreferencesImport(this, prefName, getString(R.string.useProxyUsernamePreference), getString(R.string.useProxyUsernamePreference)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.useProxyPasswordPreference), getString(R.string.useProxyPasswordPreference)),
                         new SharedPreferencesImport(this, prefName, getString(R.string.useProxyDomainPreference), getString(R.string.useProxyDomainPreference))
-                );
+                ).commit();
+                VpnAppsUtils.importAppsFromSharedPreferences(this, prefName);
 
                 if (bRestartRequired) {
                     tunnelServiceInteractor.scheduleRunningTunnelServiceRestart(getApplicationContext(), this::startTunnel);
@@ -483,10 +483,8 @@ public class MoreOptionsPreferenceActivity extends AppCompatPreferenceActivity i
         // logic when we return back to main activity from this screen will compare the preferences
         // set in this screen with currently stored preferences in order to make decision if the
         // preferences change needs to trigger a tunnel restart.
-        String currentIncludeAppsString = preferenceGetter.getString(getString(R.string.preferenceIncludeAppsInVpnString), "");
-        preferences.getEditor().putString(getString(R.string.preferenceIncludeAppsInVpnString), currentIncludeAppsString).apply();
-        String currentExcludeAppsString = preferenceGetter.getString(getString(R.string.preferenceExcludeAppsFromVpnString), "");
-        preferences.getEditor().putString(getString(R.string.preferenceExcludeAppsFromVpnString), currentExcludeAppsString).apply();
+        VpnAppsUtils.setPendingAppsToIncludeInVpn(getApplicationContext(), VpnAppsUtils.getCurrentAppsIncludedInVpn(getApplicationContext()));
+        VpnAppsUtils.setPendingAppsToExcludeFromVpn(getApplicationContext(), VpnAppsUtils.getCurrentAppsExcludedFromVpn(getApplicationContext()));
 
         if (preferenceGetter.getBoolean(getString(R.string.preferenceIncludeAllAppsInVpn), false)) {
             tunnelAllApps();
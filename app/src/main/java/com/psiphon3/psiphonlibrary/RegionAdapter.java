@@ -33,6 +33,9 @@ import net.grandcentrix.tray.AppPreferences;
 
 import java.util.HashMap;
 
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+
 public class RegionAdapter extends ArrayAdapter<String>
 {
     public static final String KNOWN_REGIONS_PREFERENCE = "knownRegionsPreference";
@@ -95,8 +98,18 @@ public class RegionAdapter extends ArrayAdapter<String>
     }
     
     public void updateRegionsFromPreferences() {
-        String knownRegions = new AppPreferences(m_context).getString(KNOWN_REGIONS_PREFERENCE, "");
+        updateRegions(new AppPreferences(m_context).getString(KNOWN_REGIONS_PREFERENCE, ""));
+    }
+
+    // Reads the known regions off the main thread, the returned Single emits once they are
+    // applied to the adapter on the main thread.
+    public Single<String> updateRegionsFromPreferencesAsync() {
+        return TrayRx.getString(new AppPreferences(m_context), KNOWN_REGIONS_PREFERENCE, "")
+                .observeOn(AndroidSchedulers.mainThread())
+                .doOnSuccess(this::updateRegions);
+    }
 
+    private void updateRegions(String knownRegions) {
         // Only change/redraw if the existing region set has changed.
         if (knownRegions.length() > 0 && knownRegions.equals(m_lastKnownRegionsPreference)) {
             return;
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import net.grandcentrix.tray.core.AbstractTrayPreference;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+// Rx wrappers around the blocking Tray reads, so preferences can be read off the main thread.
+// Writes which don't need to be stored right away should use AbstractTrayPreference.putAsync,
+// which coalesces them in Tray's write-behind queue; flush() saves that queue.
+final class TrayRx {
+    private TrayRx() {
+    }
+
+    // Reads the string on the io scheduler, emits the default value if nothing or null is stored.
+    static Single<String> getString(final AbstractTrayPreference<?> preferences, final String key,
+                                    final String defaultValue) {
+        return Single.fromCallable(() -> {
+            String value = preferences.getString(key, defaultValue);
+            return value == null ? defaultValue : value;
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    // Saves all values queued with putAsync on the io scheduler.
+    static Completable flush(final AbstractTrayPreference<?> preferences) {
+        return Completable.fromAction(preferences::flush)
+                .subscribeOn(Schedulers.io());
+    }
+}
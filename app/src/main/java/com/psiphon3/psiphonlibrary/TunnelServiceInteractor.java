@@ -19,7 +19,6 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -29,9 +28,9 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.jakewharton.rxrelay2.BehaviorRelay;
@@ -43,7 +42,8 @@ import com.psiphon3.TunnelState;
 import net.grandcentrix.tray.AppPreferences;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
@@ -52,8 +52,6 @@ import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.disposables.Disposable;
 
-import static android.content.Context.ACTIVITY_SERVICE;
-
 public class TunnelServiceInteractor {
     private static final String SERVICE_STARTING_BROADCAST_INTENT = "SERVICE_STARTING_BROADCAST_INTENT";
     private final BroadcastReceiver broadcastReceiver;
@@ -62,12 +60,29 @@ public class TunnelServiceInteractor {
     private Relay<Boolean> knownRegionsRelay = PublishRelay.<Boolean>create().toSerialized();
     private Relay<NfcExchange> nfcExchangeRelay = PublishRelay.<NfcExchange>create().toSerialized();
 
-    private final Messenger incomingMessenger = new Messenger(new IncomingMessageHandler(this));
+    private final TunnelClientBinder tunnelClient = new TunnelClientBinder(this);
+    // Last tunnel state received from the service, kept across bindings so that
+    // re-registering only needs the changes since this version.
+    private TunnelStateParcel lastTunnelState = null;
+    // Set while waiting for the answer to a resync request, so the deltas that don't apply
+    // in the meantime don't request one each.
+    private boolean isTunnelStateResyncPending = false;
     private Disposable restartServiceDisposable = null;
 
     private Rx2ServiceBindingFactory serviceBindingFactory;
     private boolean isStopped = true;
-    private Disposable serviceMessengerDisposable;
+    private Disposable serviceBinderDisposable;
+    // Service binder of the current binding, null while binding or unbound.
+    private ITunnelService boundService = null;
+    private final ServiceCommandQueue serviceCommandQueue = new ServiceCommandQueue();
+    // Set between startTunnelService and the connection (or disconnection) of the binding
+    // so commands issued in between are queued instead of dropped, and the service counts
+    // as running before it is created and has set its TunnelServiceRunningFlag.
+    private boolean isServiceStarting = false;
+    // Time of the last startTunnelService call, used to measure how long it takes
+    // for the first running state and the first data stats to arrive.
+    private long serviceStartRequestedAt = 0;
+    private boolean firstTunnelStateReceived = false;
 
     public TunnelServiceInteractor(Context context) {
         // Listen to SERVICE_STARTING_BROADCAST_INTENT broadcast that may be sent by another instance
@@ -105,12 +120,24 @@ public class TunnelServiceInteractor {
     }
 
     public void onStop(Context context) {
-        isStopped = true;
-        tunnelStateRelay.accept(TunnelState.unknown());
         if (serviceBindingFactory != null) {
-            sendServiceMessage(TunnelManager.ClientToServiceMessage.UNREGISTER.ordinal(), null);
+            sendServiceCommand(ServiceCommandType.UNREGISTER, service -> service.unregisterClient(tunnelClient));
             serviceBindingFactory.unbind(context);
         }
+        // Otherwise the subscription outlives the binding: it keeps the connection observable
+        // alive and sendServiceCommand would still see a binding in progress.
+        if (serviceBinderDisposable != null) {
+            serviceBinderDisposable.dispose();
+            serviceBinderDisposable = null;
+        }
+        isStopped = true;
+        tunnelStateRelay.accept(TunnelState.unknown());
+        // Nothing left in the queue may be sent once unbound, a REGISTER
+        // will be queued again by the next binding.
+        boundService = null;
+        isServiceStarting = false;
+        isTunnelStateResyncPending = false;
+        serviceCommandQueue.clear();
     }
 
     public void onDestroy(Context context) {
@@ -121,7 +148,10 @@ public class TunnelServiceInteractor {
         tunnelStateRelay.accept(TunnelState.unknown());
         Intent intent = getServiceIntent(context, wantVPN);
         try {
+            serviceStartRequestedAt = SystemClock.elapsedRealtime();
+            firstTunnelStateReceived = false;
             context.startService(intent);
+            isServiceStarting = true;
             // Send tunnel starting service broadcast to all instances so they all bind
             LocalBroadcastManager.getInstance(context).sendBroadcast(intent.setAction(SERVICE_STARTING_BROADCAST_INTENT));
         } catch (SecurityException | IllegalStateException e) {
@@ -132,7 +162,7 @@ public class TunnelServiceInteractor {
 
     public void stopTunnelService() {
         tunnelStateRelay.accept(TunnelState.unknown());
-        sendServiceMessage(TunnelManager.ClientToServiceMessage.STOP_SERVICE.ordinal(), null);
+        sendServiceCommand(ServiceCommandType.STOP_SERVICE, ITunnelService::stopService);
     }
 
     public void scheduleRunningTunnelServiceRestart(Context context, Runnable startServiceRunnable) {
@@ -179,6 +209,13 @@ public class TunnelServiceInteractor {
     }
 
     public boolean isServiceRunning(Context context) {
+        // If we are bound a binder ping is enough to tell if the service is alive
+        if (boundService != null && boundService.asBinder().pingBinder()) {
+            return true;
+        }
+        if (isServiceStarting) {
+            return true;
+        }
         return getRunningService(context) != null;
     }
 
@@ -187,16 +224,9 @@ public class TunnelServiceInteractor {
     }
 
     private String getRunningService(Context context) {
-        ActivityManager manager = (ActivityManager) context.getSystemService(ACTIVITY_SERVICE);
-        if (manager == null) {
-            return null;
-        }
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (service.uid == android.os.Process.myUid() &&
-                    (TunnelService.class.getName().equals(service.service.getClassName())
-                            || isVpnService(service.service.getClassName()))) {
-                return service.service.getClassName();
-            }
+        String serviceName = TunnelServiceRunningFlag.getRunningServiceName(context);
+        if (TunnelService.class.getName().equals(serviceName) || isVpnService(serviceName)) {
+            return serviceName;
         }
         return null;
     }
@@ -206,7 +236,7 @@ public class TunnelServiceInteractor {
     }
 
     private void commandTunnelRestart() {
-        sendServiceMessage(TunnelManager.ClientToServiceMessage.RESTART_SERVICE.ordinal(), null);
+        sendServiceCommand(ServiceCommandType.RESTART_SERVICE, ITunnelService::restartService);
     }
 
     private void scheduleCompleteServiceRestart(Runnable startServiceRunnable) {
@@ -215,19 +245,40 @@ public class TunnelServiceInteractor {
             return;
         }
         // Start observing service connection for disconnected message then command service stop.
-        restartServiceDisposable = serviceBindingFactory.getMessengerObservable()
+        restartServiceDisposable = serviceBindingFactory.getServiceObservable()
                 .doOnComplete(startServiceRunnable::run)
                 .subscribe();
         stopTunnelService();
     }
 
     private void bindTunnelService(Context context, Intent intent) {
-        serviceBindingFactory = new Rx2ServiceBindingFactory(context, intent);
-        serviceMessengerDisposable = serviceBindingFactory.getMessengerObservable()
+        final Rx2ServiceBindingFactory bindingFactory = new Rx2ServiceBindingFactory(context, intent);
+        serviceBindingFactory = bindingFactory;
+        boundService = null;
+        serviceBinderDisposable = bindingFactory.getServiceObservable()
+                .doOnNext(service -> {
+                    if (bindingFactory == serviceBindingFactory) {
+                        boundService = service;
+                        isServiceStarting = false;
+                        flushServiceCommands();
+                    }
+                })
+                .doOnComplete(() -> {
+                    if (bindingFactory == serviceBindingFactory) {
+                        boundService = null;
+                        isServiceStarting = false;
+                        isTunnelStateResyncPending = false;
+                        // Commands queued for a service that is gone are meaningless for the next one.
+                        serviceCommandQueue.clear();
+                    }
+                })
                 .doOnComplete(() -> tunnelStateRelay.accept(TunnelState.stopped()))
                 .doOnComplete(() -> dataStatsRelay.accept(Boolean.FALSE))
                 .subscribe();
-        sendServiceMessage(TunnelManager.ClientToServiceMessage.REGISTER.ordinal(), null);
+        // The version is read when the command is sent so a REGISTER queued while
+        // binding always asks for the changes since the latest state we have.
+        sendServiceCommand(ServiceCommandType.REGISTER, service -> service.registerClient(tunnelClient,
+                lastTunnelState == null ? 0 : lastTunnelState.version));
     }
 
     private Intent getServiceIntent(Context context, boolean wantVPN) {
@@ -236,45 +287,150 @@ public class TunnelServiceInteractor {
         return intent;
     }
 
-    private void sendServiceMessage(int what, Bundle data) {
-        if (serviceMessengerDisposable == null || serviceMessengerDisposable.isDisposed()) {
+    private interface ServiceCommand {
+        void send(ITunnelService service) throws RemoteException;
+    }
+
+    // Commands which are idempotent are mergeable: sending one of them twice has the same
+    // effect as sending it once with the latest arguments.
+    enum ServiceCommandType {
+        REGISTER(true),
+        UNREGISTER(false),
+        STOP_SERVICE(true),
+        RESTART_SERVICE(true),
+        RESYNC_TUNNEL_STATE(true),
+        NFC_CONNECTION_INFO_EXCHANGE_EXPORT(false),
+        // Each import carries its own payload
+        NFC_CONNECTION_INFO_EXCHANGE_IMPORT(false);
+
+        final boolean mergeable;
+
+        ServiceCommandType(boolean mergeable) {
+            this.mergeable = mergeable;
+        }
+    }
+
+    // Commands are queued while the service is binding and sent in order once connected.
+    private void sendServiceCommand(ServiceCommandType type, ServiceCommand command) {
+        boolean isBinding = serviceBinderDisposable != null && !serviceBinderDisposable.isDisposed();
+        if (isStopped || (!isBinding && !isServiceStarting)) {
+            // No service to send the command to.
             return;
         }
-        serviceBindingFactory.getMessengerObservable()
-                .firstOrError()
-                .doOnSuccess(messenger -> {
-                    try {
-                        Message msg = Message.obtain(null, what);
-                        msg.replyTo = incomingMessenger;
-                        if (data != null) {
-                            msg.setData(data);
-                        }
-                        messenger.send(msg);
-                    } catch (RemoteException e) {
-                        Utils.MyLog.g(String.format("sendServiceMessage failed: %s", e.getMessage()));
-                    }
-                })
-                .subscribe();
+        serviceCommandQueue.add(type, command);
+        if (boundService == null) {
+            serviceCommandQueue.markQueued();
+            return;
+        }
+        flushServiceCommands();
     }
 
-    private static TunnelManager.State getTunnelStateFromBundle(Bundle data) {
-        TunnelManager.State tunnelState = new TunnelManager.State();
-        if (data == null) {
-            return tunnelState;
+    private void flushServiceCommands() {
+        if (boundService == null) {
+            return;
         }
-        tunnelState.isRunning = data.getBoolean(TunnelManager.DATA_TUNNEL_STATE_IS_RUNNING);
-        tunnelState.isVPN = data.getBoolean(TunnelManager.DATA_TUNNEL_STATE_IS_VPN);
-        tunnelState.isConnected = data.getBoolean(TunnelManager.DATA_TUNNEL_STATE_IS_CONNECTED);
-        tunnelState.listeningLocalSocksProxyPort = data.getInt(TunnelManager.DATA_TUNNEL_STATE_LISTENING_LOCAL_SOCKS_PROXY_PORT);
-        tunnelState.listeningLocalHttpProxyPort = data.getInt(TunnelManager.DATA_TUNNEL_STATE_LISTENING_LOCAL_HTTP_PROXY_PORT);
-        tunnelState.clientRegion = data.getString(TunnelManager.DATA_TUNNEL_STATE_CLIENT_REGION);
-        tunnelState.sponsorId = data.getString(TunnelManager.DATA_TUNNEL_STATE_SPONSOR_ID);
-        tunnelState.needsHelpConnecting = data.getBoolean(TunnelManager.DATA_TUNNEL_STATE_NEEDS_HELP_CONNECTING);
-        ArrayList<String> homePages = data.getStringArrayList(TunnelManager.DATA_TUNNEL_STATE_HOME_PAGES);
-        if (homePages != null && tunnelState.isConnected) {
-            tunnelState.homePages = homePages;
+        ServiceCommandQueue.PendingCommand pendingCommand;
+        while ((pendingCommand = serviceCommandQueue.poll()) != null) {
+            try {
+                pendingCommand.command.send(boundService);
+            } catch (RemoteException e) {
+                Utils.MyLog.g(String.format("sendServiceCommand failed: %s", e.getMessage()));
+            }
+            if (pendingCommand.wasQueued) {
+                Utils.MyLog.g("TunnelServiceInteractor: sent queued service command",
+                        "command", pendingCommand.type.name(),
+                        "latencyMs", SystemClock.elapsedRealtime() - pendingCommand.queuedAt);
+            }
         }
-        return tunnelState;
+    }
+
+    // Outbound command queue, only accessed from the main thread.
+    static class ServiceCommandQueue {
+        static class PendingCommand {
+            final ServiceCommandType type;
+            ServiceCommand command;
+            final long queuedAt;
+            boolean wasQueued = false;
+
+            PendingCommand(ServiceCommandType type, ServiceCommand command, long queuedAt) {
+                this.type = type;
+                this.command = command;
+                this.queuedAt = queuedAt;
+            }
+        }
+
+        private final LinkedList<PendingCommand> pendingCommands = new LinkedList<>();
+
+        void add(ServiceCommandType type, ServiceCommand command) {
+            // A stop makes any pending restart pointless, and a restart of a
+            // service that is about to stop is dropped too.
+            if (type == ServiceCommandType.STOP_SERVICE) {
+                remove(ServiceCommandType.RESTART_SERVICE);
+            } else if (type == ServiceCommandType.RESTART_SERVICE && find(ServiceCommandType.STOP_SERVICE) != null) {
+                return;
+            }
+            // Merge with a pending command of the same type, keep its position in the queue
+            // but send the latest arguments. Other commands are all sent, in order.
+            if (type.mergeable) {
+                PendingCommand pending = find(type);
+                if (pending != null) {
+                    pending.command = command;
+                    return;
+                }
+            }
+            pendingCommands.add(new PendingCommand(type, command, SystemClock.elapsedRealtime()));
+        }
+
+        PendingCommand poll() {
+            return pendingCommands.poll();
+        }
+
+        void clear() {
+            pendingCommands.clear();
+        }
+
+        // Marks all pending commands as waiting for the service binding.
+        void markQueued() {
+            for (PendingCommand pendingCommand : pendingCommands) {
+                pendingCommand.wasQueued = true;
+            }
+        }
+
+        private PendingCommand find(ServiceCommandType type) {
+            for (PendingCommand pendingCommand : pendingCommands) {
+                if (pendingCommand.type == type) {
+                    return pendingCommand;
+                }
+            }
+            return null;
+        }
+
+        private void remove(ServiceCommandType type) {
+            Iterator<PendingCommand> iterator = pendingCommands.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().type == type) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static TunnelState tunnelStateFromParcel(TunnelStateParcel state) {
+        if (!state.isRunning) {
+            return TunnelState.stopped();
+        }
+        TunnelState.ConnectionData connectionData = TunnelState.ConnectionData.builder()
+                .setIsConnected(state.isConnected)
+                .setClientRegion(state.clientRegion)
+                .setClientVersion(EmbeddedValues.CLIENT_VERSION)
+                .setPropagationChannelId(EmbeddedValues.PROPAGATION_CHANNEL_ID)
+                .setSponsorId(state.sponsorId)
+                .setHttpPort(state.listeningLocalHttpProxyPort)
+                .setVpnMode(state.isVPN)
+                .setHomePages(state.isConnected ? state.homePages : null)
+                .setNeedsHelpConnecting(state.needsHelpConnecting)
+                .build();
+        return TunnelState.running(connectionData);
     }
 
     private static void getDataTransferStatsFromBundle(Bundle data) {
@@ -292,84 +448,128 @@ public class TunnelServiceInteractor {
     }
 
     public void importConnectionInfo(String connectionInfoPayload) {
-        Bundle data = new Bundle();
-        data.putString(TunnelManager.DATA_NFC_CONNECTION_INFO_EXCHANGE_IMPORT, connectionInfoPayload);
-        sendServiceMessage(TunnelManager.ClientToServiceMessage.NFC_CONNECTION_INFO_EXCHANGE_IMPORT.ordinal(), data);
+        sendServiceCommand(ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_IMPORT,
+                service -> service.nfcConnectionInfoExchangeImport(connectionInfoPayload));
     }
 
     public void nfcExportConnectionInfo() {
-        sendServiceMessage(TunnelManager.ClientToServiceMessage.NFC_CONNECTION_INFO_EXCHANGE_EXPORT.ordinal(), null);
+        sendServiceCommand(ServiceCommandType.NFC_CONNECTION_INFO_EXCHANGE_EXPORT,
+                ITunnelService::nfcConnectionInfoExchangeExport);
     }
 
-    private static class IncomingMessageHandler extends Handler {
+    // Service callbacks arrive on binder threads, they are posted to the main thread
+    // in the order they were received.
+    private static class TunnelClientBinder extends ITunnelClient.Stub {
         private final WeakReference<TunnelServiceInteractor> weakServiceInteractor;
-        private final TunnelManager.ServiceToClientMessage[] scm = TunnelManager.ServiceToClientMessage.values();
-        private TunnelManager.State state;
-
+        private final Handler handler = new Handler(Looper.getMainLooper());
 
-        IncomingMessageHandler(TunnelServiceInteractor serviceInteractor) {
+        TunnelClientBinder(TunnelServiceInteractor serviceInteractor) {
             this.weakServiceInteractor = new WeakReference<>(serviceInteractor);
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
-            if (tunnelServiceInteractor == null) {
-                return;
-            }
-            if (msg.what > scm.length) {
-                super.handleMessage(msg);
-                return;
-            }
-            Bundle data = msg.getData();
-            switch (scm[msg.what]) {
-                case KNOWN_SERVER_REGIONS:
-                    tunnelServiceInteractor.knownRegionsRelay.accept(Boolean.TRUE);
-                    break;
-                case TUNNEL_CONNECTION_STATE:
-                    state = getTunnelStateFromBundle(data);
-                    TunnelState tunnelState;
-                    if (state.isRunning) {
-                        TunnelState.ConnectionData connectionData = TunnelState.ConnectionData.builder()
-                                .setIsConnected(state.isConnected)
-                                .setClientRegion(state.clientRegion)
-                                .setClientVersion(EmbeddedValues.CLIENT_VERSION)
-                                .setPropagationChannelId(EmbeddedValues.PROPAGATION_CHANNEL_ID)
-                                .setSponsorId(state.sponsorId)
-                                .setHttpPort(state.listeningLocalHttpProxyPort)
-                                .setVpnMode(state.isVPN)
-                                .setHomePages(state.homePages)
-                                .setNeedsHelpConnecting(state.needsHelpConnecting)
-                                .build();
-                        tunnelState = TunnelState.running(connectionData);
-                    } else {
-                        tunnelState = TunnelState.stopped();
+        public void onTunnelStateChanged(TunnelStateParcel state) {
+            handler.post(() -> {
+                TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
+                if (tunnelServiceInteractor == null) {
+                    return;
+                }
+                TunnelStateParcel newState = state.applyTo(tunnelServiceInteractor.lastTunnelState);
+                if (newState == null) {
+                    // We missed an update, request the changes since the last version we have seen.
+                    if (!tunnelServiceInteractor.isTunnelStateResyncPending) {
+                        tunnelServiceInteractor.isTunnelStateResyncPending = true;
+                        tunnelServiceInteractor.resyncTunnelState();
                     }
-                    tunnelServiceInteractor.tunnelStateRelay.accept(tunnelState);
-                    break;
-                case DATA_TRANSFER_STATS:
-                    getDataTransferStatsFromBundle(data);
-                    tunnelServiceInteractor.dataStatsRelay.accept(state.isConnected);
-                    break;
-                case NFC_CONNECTION_INFO_EXCHANGE_RESPONSE_EXPORT:
-                    tunnelServiceInteractor.nfcExchangeRelay.accept(NfcExchange.exported(data.getString(TunnelManager.DATA_NFC_CONNECTION_INFO_EXCHANGE_RESPONSE_EXPORT)));
-                    break;
-                case NFC_CONNECTION_INFO_EXCHANGE_RESPONSE_IMPORT:
-                    tunnelServiceInteractor.nfcExchangeRelay.accept(NfcExchange.imported(data.getBoolean(TunnelManager.DATA_NFC_CONNECTION_INFO_EXCHANGE_RESPONSE_IMPORT, false)));
-                    break;
-                default:
-                    super.handleMessage(msg);
-            }
+                    return;
+                }
+                tunnelServiceInteractor.isTunnelStateResyncPending = false;
+                tunnelServiceInteractor.setTunnelState(newState);
+            });
         }
+
+        @Override
+        public void onDataTransferStats(Bundle stats) {
+            handler.post(() -> {
+                TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
+                if (tunnelServiceInteractor == null) {
+                    return;
+                }
+                getDataTransferStatsFromBundle(stats);
+                tunnelServiceInteractor.onFirstDataStatsReceived();
+                TunnelStateParcel state = tunnelServiceInteractor.lastTunnelState;
+                tunnelServiceInteractor.dataStatsRelay.accept(state != null && state.isConnected);
+            });
+        }
+
+        @Override
+        public void onKnownServerRegions() {
+            handler.post(() -> {
+                TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
+                if (tunnelServiceInteractor == null) {
+                    return;
+                }
+                tunnelServiceInteractor.knownRegionsRelay.accept(Boolean.TRUE);
+            });
+        }
+
+        @Override
+        public void onNfcConnectionInfoExchangeExported(String connectionInfo) {
+            handler.post(() -> {
+                TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
+                if (tunnelServiceInteractor == null) {
+                    return;
+                }
+                tunnelServiceInteractor.nfcExchangeRelay.accept(NfcExchange.exported(connectionInfo));
+            });
+        }
+
+        @Override
+        public void onNfcConnectionInfoExchangeImported(boolean success) {
+            handler.post(() -> {
+                TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
+                if (tunnelServiceInteractor == null) {
+                    return;
+                }
+                tunnelServiceInteractor.nfcExchangeRelay.accept(NfcExchange.imported(success));
+            });
+        }
+    }
+
+    private void setTunnelState(TunnelStateParcel state) {
+        lastTunnelState = state;
+        if (serviceStartRequestedAt != 0 && !firstTunnelStateReceived && state.isRunning) {
+            firstTunnelStateReceived = true;
+            Utils.MyLog.g("TunnelServiceInteractor: first tunnel state after service start",
+                    "latencyMs", SystemClock.elapsedRealtime() - serviceStartRequestedAt);
+        }
+        tunnelStateRelay.accept(tunnelStateFromParcel(state));
+    }
+
+    private void onFirstDataStatsReceived() {
+        if (serviceStartRequestedAt != 0 && firstTunnelStateReceived) {
+            Utils.MyLog.g("TunnelServiceInteractor: first data stats after service start",
+                    "latencyMs", SystemClock.elapsedRealtime() - serviceStartRequestedAt);
+            serviceStartRequestedAt = 0;
+        }
+    }
+
+    // One way, the service answers with onTunnelStateChanged so the main thread never
+    // waits on the service. The answer always applies: the service falls back to a full
+    // snapshot if it can't provide the changes since our version.
+    private void resyncTunnelState() {
+        // The version is read when the command is sent, like for REGISTER
+        sendServiceCommand(ServiceCommandType.RESYNC_TUNNEL_STATE, service -> service.requestTunnelState(tunnelClient,
+                lastTunnelState == null ? 0 : lastTunnelState.version));
     }
 
     private static class Rx2ServiceBindingFactory {
-        private final Observable<Messenger> messengerObservable;
+        private final Observable<ITunnelService> serviceObservable;
         private ServiceConnection serviceConnection;
 
         Rx2ServiceBindingFactory(Context context, Intent intent) {
-            this.messengerObservable = Observable.using(Connection::new,
-                    (final Connection<Messenger> con) -> {
+            this.serviceObservable = Observable.using(Connection::new,
+                    (final Connection con) -> {
                         serviceConnection = con;
                         context.bindService(intent, con, 0);
                         return Observable.create(con);
@@ -379,8 +579,8 @@ public class TunnelServiceInteractor {
                     .refCount();
         }
 
-        Observable<Messenger> getMessengerObservable() {
-            return messengerObservable;
+        Observable<ITunnelService> getServiceObservable() {
+            return serviceObservable;
         }
 
         void unbind(Context context) {
@@ -395,14 +595,13 @@ public class TunnelServiceInteractor {
             }
         }
 
-        private static class Connection<B extends Messenger> implements ServiceConnection, ObservableOnSubscribe<B> {
-            private ObservableEmitter<? super B> subscriber;
+        private static class Connection implements ServiceConnection, ObservableOnSubscribe<ITunnelService> {
+            private ObservableEmitter<? super ITunnelService> subscriber;
 
             @Override
             public void onServiceConnected(ComponentName name, IBinder service) {
                 if (subscriber != null && !subscriber.isDisposed() && service != null) {
-                    //noinspection unchecked - we trust this one
-                    subscriber.onNext((B) new Messenger(service));
+                    subscriber.onNext(ITunnelService.Stub.asInterface(service));
                 }
             }
 
@@ -414,7 +613,7 @@ public class TunnelServiceInteractor {
             }
 
             @Override
-            public void subscribe(ObservableEmitter<B> observableEmitter) throws Exception {
+            public void subscribe(ObservableEmitter<ITunnelService> observableEmitter) throws Exception {
                 this.subscriber = observableEmitter;
             }
         }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+// App owned cross-process "tunnel service is running" flag, used instead of scanning
+// ActivityManager.getRunningServices().
+// The tunnel service writes its pid and class name to a small file when it is created
+// and deletes the file when it is destroyed. Readers check the pid against /proc, so a
+// file left behind by a killed service process is ignored.
+// Writes and deletes of the file hold a file lock shared by all processes (and the class
+// lock, as a file lock is held by the whole process), so a stale flag is never deleted after
+// a new service replaced it.
+// Note that a service which was started but is not created yet has no flag; see
+// TunnelServiceInteractor.isServiceRunning for how the app covers its own start requests.
+public class TunnelServiceRunningFlag {
+    private static final String FLAG_FILENAME = "tunnel_service_running";
+    private static final String LOCK_FILENAME = "tunnel_service_running.lock";
+    // Must match the android:process attribute of the tunnel services in the manifest
+    private static final String SERVICE_PROCESS_SUFFIX = ":TunnelService";
+
+    static synchronized void set(Context context, Class<?> serviceClass) {
+        FileLock lock = lock(context);
+        try {
+            write(context, serviceClass);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private static void write(Context context, Class<?> serviceClass) {
+        File flagFile = getFlagFile(context);
+        File tempFile = new File(flagFile.getPath() + ".tmp");
+        String content = android.os.Process.myPid() + "\n" + serviceClass.getName() + "\n";
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(content.getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(flagFile)) {
+                Utils.MyLog.g("TunnelServiceRunningFlag: failed to rename flag file");
+            }
+        } catch (IOException e) {
+            Utils.MyLog.g("TunnelServiceRunningFlag: failed to write flag file", "error", e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    static void clear(Context context, Class<?> serviceClass) {
+        // Only remove the flag if it is ours
+        deleteFlagIfUnchanged(context, Integer.toString(android.os.Process.myPid()), serviceClass.getName());
+    }
+
+    // Returns the class name of the running tunnel service, or null if none is running.
+    public static String getRunningServiceName(Context context) {
+        String[] flag = readFlag(context);
+        if (flag == null) {
+            return null;
+        }
+        if (!isServiceProcessAlive(context, flag[0])) {
+            // The service process died without cleaning up. A new service may have
+            // replaced the flag since it was read, only delete it if it is still the stale one.
+            deleteFlagIfUnchanged(context, flag[0], flag[1]);
+            return null;
+        }
+        return flag[1];
+    }
+
+    private static synchronized void deleteFlagIfUnchanged(Context context, String pid, String className) {
+        FileLock lock = lock(context);
+        try {
+            String[] flag = readFlag(context);
+            if (flag != null && pid.equals(flag[0]) && className.equals(flag[1])) {
+                getFlagFile(context).delete();
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    private static File getFlagFile(Context context) {
+        return new File(context.getFilesDir(), FLAG_FILENAME);
+    }
+
+    // Returns the held lock, or null if it could not be taken; the flag is then
+    // accessed without it rather than not at all.
+    private static FileLock lock(Context context) {
+        RandomAccessFile lockFile = null;
+        try {
+            lockFile = new RandomAccessFile(new File(context.getFilesDir(), LOCK_FILENAME), "rw");
+            FileLock lock = lockFile.getChannel().lock();
+            lockFile = null;
+            return lock;
+        } catch (IOException e) {
+            Utils.MyLog.g("TunnelServiceRunningFlag: failed to lock flag file", "error", e.getMessage());
+            return null;
+        } finally {
+            if (lockFile != null) {
+                try {
+                    lockFile.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            // Closing the channel releases the lock
+            lock.channel().close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Returns {pid, className} or null.
+    private static String[] readFlag(Context context) {
+        File flagFile = getFlagFile(context);
+        if (!flagFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(flagFile));
+            String pid = reader.readLine();
+            String className = reader.readLine();
+            if (pid == null || className == null) {
+                return null;
+            }
+            return new String[]{pid.trim(), className.trim()};
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static boolean isServiceProcessAlive(Context context, String pid) {
+        // /proc/<pid>/cmdline holds the process name followed by a NUL byte.
+        // A recycled pid will belong to a process with a different name.
+        String expectedProcessName = context.getPackageName() + SERVICE_PROCESS_SUFFIX;
+        InputStream in = null;
+        try {
+            in = new FileInputStream("/proc/" + pid + "/cmdline");
+            byte[] buffer = new byte[256];
+            int length = in.read(buffer);
+            if (length <= 0) {
+                return false;
+            }
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return expectedProcessName.equals(new String(buffer, 0, end, "UTF-8"));
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
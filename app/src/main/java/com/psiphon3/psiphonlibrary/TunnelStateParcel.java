@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+// Versioned tunnel state sent over ITunnelService / ITunnelClient.
+// A parcel is either a full snapshot (baseVersion == 0) or a delta that
+// only carries the fields that changed between baseVersion and version.
+public class TunnelStateParcel implements Parcelable {
+    static final int FIELD_IS_RUNNING = 1;
+    static final int FIELD_IS_VPN = 1 << 1;
+    static final int FIELD_IS_CONNECTED = 1 << 2;
+    static final int FIELD_NEEDS_HELP_CONNECTING = 1 << 3;
+    static final int FIELD_LISTENING_LOCAL_SOCKS_PROXY_PORT = 1 << 4;
+    static final int FIELD_LISTENING_LOCAL_HTTP_PROXY_PORT = 1 << 5;
+    static final int FIELD_CLIENT_REGION = 1 << 6;
+    static final int FIELD_SPONSOR_ID = 1 << 7;
+    static final int FIELD_HOME_PAGES = 1 << 8;
+    static final int ALL_FIELDS = (1 << 9) - 1;
+
+    long version = 0;
+    long baseVersion = 0;
+    int changedFields = ALL_FIELDS;
+
+    boolean isRunning = false;
+    boolean isVPN = false;
+    boolean isConnected = false;
+    boolean needsHelpConnecting = false;
+    int listeningLocalSocksProxyPort = 0;
+    int listeningLocalHttpProxyPort = 0;
+    String clientRegion = "";
+    String sponsorId = "";
+    ArrayList<String> homePages = new ArrayList<>();
+
+    TunnelStateParcel() {
+    }
+
+    private TunnelStateParcel(TunnelManager.State state) {
+        this.isRunning = state.isRunning;
+        this.isVPN = state.isVPN;
+        this.isConnected = state.isConnected;
+        this.needsHelpConnecting = state.needsHelpConnecting;
+        this.listeningLocalSocksProxyPort = state.listeningLocalSocksProxyPort;
+        this.listeningLocalHttpProxyPort = state.listeningLocalHttpProxyPort;
+        this.clientRegion = state.clientRegion;
+        this.sponsorId = state.sponsorId;
+        this.homePages = state.homePages == null ? null : new ArrayList<>(state.homePages);
+    }
+
+    boolean isSnapshot() {
+        return baseVersion == 0;
+    }
+
+    // Returns a new full state with this parcel's changed fields applied on top of base,
+    // or null if this is a delta that doesn't apply to base.
+    TunnelStateParcel applyTo(TunnelStateParcel base) {
+        if (!isSnapshot() && (base == null || base.version != baseVersion)) {
+            return null;
+        }
+        TunnelStateParcel result = new TunnelStateParcel();
+        if (base != null) {
+            result.copyFields(base, ALL_FIELDS);
+        }
+        result.copyFields(this, changedFields);
+        result.version = version;
+        return result;
+    }
+
+    private TunnelStateParcel deltaFrom(TunnelStateParcel previous) {
+        int changed = 0;
+        if (isRunning != previous.isRunning) {
+            changed |= FIELD_IS_RUNNING;
+        }
+        if (isVPN != previous.isVPN) {
+            changed |= FIELD_IS_VPN;
+        }
+        if (isConnected != previous.isConnected) {
+            changed |= FIELD_IS_CONNECTED;
+        }
+        if (needsHelpConnecting != previous.needsHelpConnecting) {
+            changed |= FIELD_NEEDS_HELP_CONNECTING;
+        }
+        if (listeningLocalSocksProxyPort != previous.listeningLocalSocksProxyPort) {
+            changed |= FIELD_LISTENING_LOCAL_SOCKS_PROXY_PORT;
+        }
+        if (listeningLocalHttpProxyPort != previous.listeningLocalHttpProxyPort) {
+            changed |= FIELD_LISTENING_LOCAL_HTTP_PROXY_PORT;
+        }
+        if (!equals(clientRegion, previous.clientRegion)) {
+            changed |= FIELD_CLIENT_REGION;
+        }
+        if (!equals(sponsorId, previous.sponsorId)) {
+            changed |= FIELD_SPONSOR_ID;
+        }
+        if (!equals(homePages, previous.homePages)) {
+            changed |= FIELD_HOME_PAGES;
+        }
+        TunnelStateParcel delta = new TunnelStateParcel();
+        delta.copyFields(this, changed);
+        delta.changedFields = changed;
+        delta.baseVersion = previous.version;
+        delta.version = changed == 0 ? previous.version : previous.version + 1;
+        return delta;
+    }
+
+    private void copyFields(TunnelStateParcel from, int fields) {
+        if ((fields & FIELD_IS_RUNNING) != 0) {
+            isRunning = from.isRunning;
+        }
+        if ((fields & FIELD_IS_VPN) != 0) {
+            isVPN = from.isVPN;
+        }
+        if ((fields & FIELD_IS_CONNECTED) != 0) {
+            isConnected = from.isConnected;
+        }
+        if ((fields & FIELD_NEEDS_HELP_CONNECTING) != 0) {
+            needsHelpConnecting = from.needsHelpConnecting;
+        }
+        if ((fields & FIELD_LISTENING_LOCAL_SOCKS_PROXY_PORT) != 0) {
+            listeningLocalSocksProxyPort = from.listeningLocalSocksProxyPort;
+        }
+        if ((fields & FIELD_LISTENING_LOCAL_HTTP_PROXY_PORT) != 0) {
+            listeningLocalHttpProxyPort = from.listeningLocalHttpProxyPort;
+        }
+        if ((fields & FIELD_CLIENT_REGION) != 0) {
+            clientRegion = from.clientRegion;
+        }
+        if ((fields & FIELD_SPONSOR_ID) != 0) {
+            sponsorId = from.sponsorId;
+        }
+        if ((fields & FIELD_HOME_PAGES) != 0) {
+            homePages = from.homePages;
+        }
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    protected TunnelStateParcel(Parcel in) {
+        version = in.readLong();
+        baseVersion = in.readLong();
+        changedFields = in.readInt();
+        if ((changedFields & FIELD_IS_RUNNING) != 0) {
+            isRunning = in.readInt() != 0;
+        }
+        if ((changedFields & FIELD_IS_VPN) != 0) {
+            isVPN = in.readInt() != 0;
+        }
+        if ((changedFields & FIELD_IS_CONNECTED) != 0) {
+            isConnected = in.readInt() != 0;
+        }
+        if ((changedFields & FIELD_NEEDS_HELP_CONNECTING) != 0) {
+            needsHelpConnecting = in.readInt() != 0;
+        }
+        if ((changedFields & FIELD_LISTENING_LOCAL_SOCKS_PROXY_PORT) != 0) {
+            listeningLocalSocksProxyPort = in.readInt();
+        }
+        if ((changedFields & FIELD_LISTENING_LOCAL_HTTP_PROXY_PORT) != 0) {
+            listeningLocalHttpProxyPort = in.readInt();
+        }
+        if ((changedFields & FIELD_CLIENT_REGION) != 0) {
+            clientRegion = in.readString();
+        }
+        if ((changedFields & FIELD_SPONSOR_ID) != 0) {
+            sponsorId = in.readString();
+        }
+        if ((changedFields & FIELD_HOME_PAGES) != 0) {
+            homePages = in.createStringArrayList();
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(version);
+        dest.writeLong(baseVersion);
+        dest.writeInt(changedFields);
+        if ((changedFields & FIELD_IS_RUNNING) != 0) {
+            dest.writeInt(isRunning ? 1 : 0);
+        }
+        if ((changedFields & FIELD_IS_VPN) != 0) {
+            dest.writeInt(isVPN ? 1 : 0);
+        }
+        if ((changedFields & FIELD_IS_CONNECTED) != 0) {
+            dest.writeInt(isConnected ? 1 : 0);
+        }
+        if ((changedFields & FIELD_NEEDS_HELP_CONNECTING) != 0) {
+            dest.writeInt(needsHelpConnecting ? 1 : 0);
+        }
+        if ((changedFields & FIELD_LISTENING_LOCAL_SOCKS_PROXY_PORT) != 0) {
+            dest.writeInt(listeningLocalSocksProxyPort);
+        }
+        if ((changedFields & FIELD_LISTENING_LOCAL_HTTP_PROXY_PORT) != 0) {
+            dest.writeInt(listeningLocalHttpProxyPort);
+        }
+        if ((changedFields & FIELD_CLIENT_REGION) != 0) {
+            dest.writeString(clientRegion);
+        }
+        if ((changedFields & FIELD_SPONSOR_ID) != 0) {
+            dest.writeString(sponsorId);
+        }
+        if ((changedFields & FIELD_HOME_PAGES) != 0) {
+            dest.writeStringList(homePages);
+        }
+    }
+
+    public static final Creator<TunnelStateParcel> CREATOR = new Creator<TunnelStateParcel>() {
+        @Override
+        public TunnelStateParcel createFromParcel(Parcel in) {
+            return new TunnelStateParcel(in);
+        }
+
+        @Override
+        public TunnelStateParcel[] newArray(int size) {
+            return new TunnelStateParcel[size];
+        }
+    };
+
+    // Service side history of published states.
+    static class History {
+        private TunnelStateParcel current;
+        private TunnelStateParcel lastDelta;
+
+        // Versions start at the time of creation of the service so they keep increasing
+        // across service restarts and a client holding a version from a previous service
+        // instance will never mistake it for a current one.
+        History() {
+            current = new TunnelStateParcel();
+            current.version = SystemClock.elapsedRealtime();
+            lastDelta = null;
+        }
+
+        // Records the new state, returns the delta to publish or null if nothing changed.
+        synchronized TunnelStateParcel update(TunnelManager.State state) {
+            TunnelStateParcel delta = new TunnelStateParcel(state).deltaFrom(current);
+            if (delta.changedFields == 0) {
+                return null;
+            }
+            current = delta.applyTo(current);
+            lastDelta = delta;
+            return delta;
+        }
+
+        synchronized TunnelStateParcel since(long version) {
+            if (version == current.version) {
+                TunnelStateParcel unchanged = new TunnelStateParcel();
+                unchanged.changedFields = 0;
+                unchanged.baseVersion = version;
+                unchanged.version = version;
+                return unchanged;
+            }
+            if (lastDelta != null && version != 0 && version == lastDelta.baseVersion) {
+                return lastDelta;
+            }
+            TunnelStateParcel snapshot = new TunnelStateParcel();
+            snapshot.copyFields(current, ALL_FIELDS);
+            snapshot.version = current.version;
+            return snapshot;
+        }
+    }
+}
@@ -130,6 +130,18 @@ public class UpgradeChecker extends WakefulBroadcastReceiver {
      * @return true if upgrade check is needed.
      */
     public static boolean upgradeCheckNeeded(Context context) {
+        return upgradeCheckNeeded(context, false);
+    }
+
+    /**
+     * Same as upgradeCheckNeeded(Context), but when checkPastPendingUpgrade is true an upgrade file
+     * that is already downloaded doesn't prevent the check. The caller must then report
+     * getUpgradeCheckClientVersion() as its client version so only a newer upgrade is downloaded.
+     * @param context the context
+     * @param checkPastPendingUpgrade whether to look for an upgrade newer than the pending one
+     * @return true if upgrade check is needed.
+     */
+    public static boolean upgradeCheckNeeded(Context context, boolean checkPastPendingUpgrade) {
         Context appContext = context.getApplicationContext();
 
         // The main process will call this when it tries to connect, so we will use this opportunity
@@ -148,9 +160,16 @@ public class UpgradeChecker extends WakefulBroadcastReceiver {
         // and then download the next upgrade.
         // Note: depends on getAvailableCompleteUpgradeFile deleting VerifiedUpgradeFile
         // after upgrade is complete. Otherwise, no further upgrades would download.
-        // TODO: implement version tracking for the verified upgrade file so that
-        // we can proceed with downloading a newer upgrade when an outdated upgrade exists
-        // on disk.
+        // To avoid that, the version of the verified upgrade file is recorded when it is
+        // verified. The upgrade checker tunnel, which is used for nothing else, passes
+        // checkPastPendingUpgrade and reports that version as its client version. The
+        // server then only offers a strictly newer upgrade, and tunnel-core checks the
+        // x-amz-meta-psiphon-client-version header of the download against the offered
+        // version, so the pending upgrade is never downloaded again. A newer upgrade
+        // replaces the verified file once extracted, and a verified file that is not newer
+        // than the installed app is dropped based on the recorded version alone.
+        // The main tunnel keeps reporting the real client version and so skips the
+        // download while an upgrade is pending.
 
         if (!allowedToSelfUpgrade(context)) {
             log(context, R.string.upgrade_checker_no_upgrading, MyLog.Sensitivity.NOT_SENSITIVE, Log.WARN);
@@ -159,14 +178,19 @@ public class UpgradeChecker extends WakefulBroadcastReceiver {
 
         File downloadedUpgradeFile = new File(PsiphonTunnel.getDefaultUpgradeDownloadFilePath(appContext));
 
-        if (UpgradeManager.UpgradeInstaller.upgradeFileAvailable(appContext, downloadedUpgradeFile)) {
+        int pendingUpgradeVersionCode = UpgradeManager.UpgradeInstaller.getPendingUpgradeVersionCode(appContext, downloadedUpgradeFile);
+        if (pendingUpgradeVersionCode >= 0) {
             log(context, R.string.upgrade_checker_upgrade_file_exists, MyLog.Sensitivity.NOT_SENSITIVE, Log.WARN);
             // We know there's an upgrade file available, so send an intent about it.
             Intent intent = new Intent(appContext, UpgradeChecker.class);
             intent.setAction(UPGRADE_FILE_AVAILABLE_INTENT_ACTION);
             intent.putExtra(UPGRADE_FILE_AVAILABLE_INTENT_EXTRA_FILENAME, downloadedUpgradeFile.getName());
             appContext.sendBroadcast(intent);
-            return false;
+            if (!checkPastPendingUpgrade) {
+                return false;
+            }
+            MyLog.g("UpgradeChecker: checking for an upgrade newer than the pending one",
+                    "pendingUpgradeVersionCode", pendingUpgradeVersionCode);
         }
 
         // Verify if 'Download upgrades on WiFi only' user preference is on
@@ -184,6 +208,27 @@ public class UpgradeChecker extends WakefulBroadcastReceiver {
         return true;
     }
 
+    /**
+     * Returns the client version to report when checking for upgrades with
+     * checkPastPendingUpgrade: the higher of the installed version and the version of the
+     * verified upgrade file awaiting installation.
+     * @param context the context
+     * @return the client version string
+     */
+    public static String getUpgradeCheckClientVersion(Context context) {
+        Context appContext = context.getApplicationContext();
+        File downloadedUpgradeFile = new File(PsiphonTunnel.getDefaultUpgradeDownloadFilePath(appContext));
+        int pendingUpgradeVersionCode = UpgradeManager.UpgradeInstaller.getPendingUpgradeVersionCode(appContext, downloadedUpgradeFile);
+        try {
+            if (pendingUpgradeVersionCode > Integer.parseInt(EmbeddedValues.CLIENT_VERSION)) {
+                return Integer.toString(pendingUpgradeVersionCode);
+            }
+        } catch (NumberFormatException e) {
+            // Fall through and report the embedded version
+        }
+        return EmbeddedValues.CLIENT_VERSION;
+    }
+
     /**
      * Checks if the current app installation is allowed to upgrade itself.
      * @param appContext The application context.
@@ -214,7 +259,7 @@ public class UpgradeChecker extends WakefulBroadcastReceiver {
 
         if (action.equals(ALARM_INTENT_ACTION)) {
             log(context, R.string.upgrade_checker_alarm_intent_received, MyLog.Sensitivity.NOT_SENSITIVE, Log.WARN);
-            if (!upgradeCheckNeeded(context)) {
+            if (!upgradeCheckNeeded(context, true)) {
                 return;
             }
             checkForUpgrade(context);
@@ -34,7 +34,13 @@ import android.support.v4.content.FileProvider;
 
 import com.psiphon3.R;
 import com.psiphon3.psiphonlibrary.AuthenticatedDataPackage.AuthenticatedDataPackageException;
+import com.psiphon3.psiphonlibrary.DeltaUpgradePatch.DeltaUpgradePatchException;
 import com.psiphon3.psiphonlibrary.Utils.MyLog;
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -44,6 +50,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -51,6 +61,12 @@ import java.util.zip.GZIPInputStream;
  */
 public interface UpgradeManager
 {
+    /**
+     * Buffer size used for reading and writing upgrade files. Upgrade APKs are
+     * tens of MB, so large buffers save a lot of small reads and writes.
+     */
+    int UPGRADE_FILE_BUFFER_SIZE = 256 * 1024;
+
     /**
      * To be used by other UpgradeManager classes only.
      */
@@ -77,16 +93,7 @@ public interface UpgradeManager
 
         public boolean exists()
         {
-            try
-            {
-                this.context.openFileInput(getFilename());
-            }
-            catch (FileNotFoundException e)
-            {
-                return false;
-            }
-
-            return true;
+            return getFile().exists();
         }
 
         public boolean delete()
@@ -185,6 +192,234 @@ public interface UpgradeManager
             // Making the APK world readable so Installer component can access it
             return true;
         }
+
+        @Override
+        public boolean delete()
+        {
+            UpgradeFileReceipt.delete(this.context);
+            return super.delete();
+        }
+    }
+
+    /**
+     * Small record stored next to the verified upgrade file, written once the file
+     * has been extracted and verified. As long as the file size and modification
+     * time still match, the version of the upgrade can be read from here instead
+     * of parsing the APK again.
+     */
+    class UpgradeFileReceipt
+    {
+        private static final String FILENAME = "PsiphonAndroid.apk.receipt";
+
+        public final String sha256Digest;
+        public final long size;
+        public final long lastModified;
+        public final int versionCode;
+
+        public UpgradeFileReceipt(String sha256Digest, long size, long lastModified, int versionCode)
+        {
+            this.sha256Digest = sha256Digest;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.versionCode = versionCode;
+        }
+
+        /**
+         * @return true if the receipt describes file, based on file metadata only.
+         */
+        public boolean matches(File file)
+        {
+            return file.length() == this.size && file.lastModified() == this.lastModified;
+        }
+
+        public boolean write(Context context)
+        {
+            FileOutputStream fos = null;
+            try
+            {
+                JSONObject json = new JSONObject();
+                json.put("sha256Digest", this.sha256Digest);
+                json.put("size", this.size);
+                json.put("lastModified", this.lastModified);
+                json.put("versionCode", this.versionCode);
+
+                fos = context.openFileOutput(FILENAME, 0);
+                fos.write(json.toString().getBytes("UTF-8"));
+            }
+            catch (JSONException | IOException e)
+            {
+                MyLog.g("UpgradeFileReceipt: failed to write receipt", "error", e.getMessage());
+                return false;
+            }
+            finally
+            {
+                if (fos != null)
+                {
+                    try { fos.close(); } catch (IOException e) {}
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the stored receipt or null if there is none or it is unreadable.
+         */
+        public static UpgradeFileReceipt read(Context context)
+        {
+            File file = context.getFileStreamPath(FILENAME);
+            if (!file.exists())
+            {
+                return null;
+            }
+
+            FileInputStream fis = null;
+            try
+            {
+                fis = new FileInputStream(file);
+                byte[] buffer = new byte[(int) file.length()];
+                int offset = 0;
+                while (offset < buffer.length)
+                {
+                    int count = fis.read(buffer, offset, buffer.length - offset);
+                    if (count < 0)
+                    {
+                        break;
+                    }
+                    offset += count;
+                }
+                JSONObject json = new JSONObject(new String(buffer, 0, offset, "UTF-8"));
+                return new UpgradeFileReceipt(
+                        json.getString("sha256Digest"),
+                        json.getLong("size"),
+                        json.getLong("lastModified"),
+                        json.getInt("versionCode"));
+            }
+            catch (JSONException | IOException e)
+            {
+                return null;
+            }
+            finally
+            {
+                if (fis != null)
+                {
+                    try { fis.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        public static void delete(Context context)
+        {
+            context.deleteFile(FILENAME);
+        }
+    }
+
+    /**
+     * Writes to a FileChannel through a large direct buffer and computes the
+     * SHA-256 digest of everything written along the way.
+     */
+    class DigestingChannelOutputStream extends OutputStream
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final MessageDigest digest;
+        private byte[] digestBytes = null;
+
+        public DigestingChannelOutputStream(FileChannel channel) throws NoSuchAlgorithmException
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(UPGRADE_FILE_BUFFER_SIZE);
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (!this.buffer.hasRemaining())
+            {
+                flushBuffer();
+            }
+            this.buffer.put((byte) b);
+            this.digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            this.digest.update(b, off, len);
+            while (len > 0)
+            {
+                if (!this.buffer.hasRemaining())
+                {
+                    flushBuffer();
+                }
+                int count = Math.min(len, this.buffer.remaining());
+                this.buffer.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void flushBuffer() throws IOException
+        {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining())
+            {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!this.channel.isOpen())
+            {
+                return;
+            }
+            try
+            {
+                flushBuffer();
+                this.channel.force(false);
+            }
+            finally
+            {
+                this.channel.close();
+            }
+            this.digestBytes = this.digest.digest();
+        }
+
+        /**
+         * @return the hex encoded SHA-256 digest of the written data, available after close().
+         */
+        public String getHexDigest()
+        {
+            return this.digestBytes == null ? null : Codec.HEX_UPPER.encodeToString(this.digestBytes);
+        }
+
+        /**
+         * Computes the hex encoded SHA-256 digest of an existing file.
+         */
+        public static String digestFile(File file) throws IOException, NoSuchAlgorithmException
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(UPGRADE_FILE_BUFFER_SIZE);
+            FileInputStream fis = new FileInputStream(file);
+            try
+            {
+                FileChannel channel = fis.getChannel();
+                while (channel.read(buffer) >= 0)
+                {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            finally
+            {
+                try { fis.close(); } catch (IOException e) {}
+            }
+            return Codec.HEX_UPPER.encodeToString(digest.digest());
+        }
     }
 
     class UnverifiedUpgradeFile extends UpgradeFile
@@ -206,6 +441,190 @@ public interface UpgradeManager
         }
     }
 
+    /**
+     * The upgrade APK rebuilt from a verified delta upgrade patch.
+     */
+    class PatchedUpgradeFile extends UpgradeFile
+    {
+        public PatchedUpgradeFile(Context context)
+        {
+            super(context);
+        }
+
+        public String getFilename()
+        {
+            return "PsiphonAndroid.apk.patched";
+        }
+
+        public boolean isWorldReadable()
+        {
+            // Making the APK world readable so Installer component can access it
+            return true;
+        }
+    }
+
+    /**
+     * Delta upgrade support. Delta upgrade packages (see DeltaUpgradePatch) are published
+     * next to each full upgrade package, at the full package URL followed by
+     * DELTA_URL_SUFFIX and the version code of the APK they patch. tunnel-core is given
+     * both: the delta URLs first and the full package URLs from the next download attempt
+     * on, so a missing delta only costs one attempt.
+     * If a delta can't be applied, delta downloads are disabled for the installed version
+     * and the next download is the full package.
+     */
+    class DeltaUpgrade
+    {
+        static final String FAILED_FILENAME = "PsiphonAndroid.apk.delta_failed";
+
+        static final String DELTA_URL_SUFFIX = ".delta-from-";
+
+        /**
+         * @return the UpgradeDownloadURLs tunnel-core config value.
+         */
+        public static JSONArray getUpgradeDownloadURLs(Context context) throws JSONException
+        {
+            JSONArray fullPackageURLs = new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON);
+
+            int installedVersionCode = getInstalledVersionCode(context);
+            if (installedVersionCode < 0 || installedVersionCode == getFailedVersionCode(context))
+            {
+                return fullPackageURLs;
+            }
+
+            JSONArray deltaURLs = new JSONArray();
+            JSONArray fallbackURLs = new JSONArray();
+            String suffix = DELTA_URL_SUFFIX + installedVersionCode;
+
+            for (int i = 0; i < fullPackageURLs.length(); i++)
+            {
+                Object entry = fullPackageURLs.get(i);
+                if (entry instanceof JSONObject)
+                {
+                    // {"URL": <base64 URL>, "SkipVerify": ..., "OnlyAfterAttempts": ...}
+                    JSONObject fullPackageURL = (JSONObject) entry;
+                    String url = new String(Codec.BASE64.decode(fullPackageURL.getString("URL")));
+
+                    JSONObject deltaURL = new JSONObject(fullPackageURL.toString());
+                    deltaURL.put("URL", Codec.BASE64.encodeToString((url + suffix).getBytes()));
+                    deltaURLs.put(deltaURL);
+
+                    JSONObject fallbackURL = new JSONObject(fullPackageURL.toString());
+                    fallbackURL.put("OnlyAfterAttempts", fullPackageURL.optInt("OnlyAfterAttempts", 0) + 1);
+                    fallbackURLs.put(fallbackURL);
+                }
+                else
+                {
+                    // Legacy plain URL list, which has no attempt ordering; keep full packages only
+                    return fullPackageURLs;
+                }
+            }
+
+            for (int i = 0; i < fallbackURLs.length(); i++)
+            {
+                deltaURLs.put(fallbackURLs.get(i));
+            }
+            return deltaURLs;
+        }
+
+        /**
+         * Disables delta downloads until a different version is installed.
+         */
+        public static void recordFailure(Context context)
+        {
+            int installedVersionCode = getInstalledVersionCode(context);
+            if (installedVersionCode >= 0)
+            {
+                FileOutputStream fos = null;
+                try
+                {
+                    fos = context.openFileOutput(FAILED_FILENAME, 0);
+                    fos.write(Integer.toString(installedVersionCode).getBytes("UTF-8"));
+                }
+                catch (IOException e)
+                {
+                    // Ignore, the same delta may be downloaded again
+                }
+                finally
+                {
+                    if (fos != null)
+                    {
+                        try { fos.close(); } catch (IOException e) {}
+                    }
+                }
+            }
+        }
+
+        private static int getFailedVersionCode(Context context)
+        {
+            FileInputStream fis = null;
+            try
+            {
+                fis = context.openFileInput(FAILED_FILENAME);
+                byte[] buffer = new byte[16];
+                int length = fis.read(buffer);
+                return length > 0 ? Integer.parseInt(new String(buffer, 0, length, "UTF-8").trim()) : -1;
+            }
+            catch (IOException | NumberFormatException e)
+            {
+                return -1;
+            }
+            finally
+            {
+                if (fis != null)
+                {
+                    try { fis.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        private static int getInstalledVersionCode(Context context)
+        {
+            try
+            {
+                return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+            }
+            catch (NameNotFoundException e)
+            {
+                return -1;
+            }
+        }
+
+        /**
+         * Rebuilds the upgrade APK from a verified delta patch against the installed APK.
+         * Any mismatch, or a patch that can't be read, disables delta downloads for the
+         * installed version.
+         * @return the digesting stream the APK was written through, or null on failure
+         */
+        static DigestingChannelOutputStream applyPatch(Context context, UpgradeFile patchFile, UpgradeFile patchedFile)
+                throws IOException, NoSuchAlgorithmException
+        {
+            File installedApk = new File(context.getApplicationInfo().sourceDir);
+            DigestingChannelOutputStream patchedDestination =
+                    new DigestingChannelOutputStream(patchedFile.createForWriting().getChannel());
+            InputStream patchStream = new BufferedInputStream(
+                    new FileInputStream(patchFile.getFile()), UPGRADE_FILE_BUFFER_SIZE);
+            try
+            {
+                DeltaUpgradePatch.apply(installedApk, patchStream, patchedDestination);
+                return patchedDestination;
+            }
+            catch (DeltaUpgradePatchException | IOException e)
+            {
+                // An IOException is most likely a corrupt compressed patch stream
+                MyLog.g("DeltaUpgrade: failed to apply patch, falling back to full upgrade package",
+                        "error", e.getMessage());
+                patchedFile.delete();
+                recordFailure(context);
+                return null;
+            }
+            finally
+            {
+                try { patchStream.close(); } catch (IOException e) {}
+                patchFile.delete();
+            }
+        }
+    }
+
     /**
      * Used for migrating old downloaded upgrade files from legacy location.
      */
@@ -254,7 +673,9 @@ public interface UpgradeManager
 
         private InputStream openUnzipStream() throws IOException, FileNotFoundException
         {
-            return new GZIPInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            // GZIPInputStream reads its input in chunks of the given size, no need
+            // for an additional BufferedInputStream.
+            return new GZIPInputStream(new FileInputStream(this.file), UPGRADE_FILE_BUFFER_SIZE);
         }
 
         public boolean extractAndVerify()
@@ -271,15 +692,56 @@ public interface UpgradeManager
                 unzipStream = openUnzipStream();
 
                 UnverifiedUpgradeFile unverifiedFile = new UnverifiedUpgradeFile(this.context);
-                OutputStream dataDestination = unverifiedFile.createForWriting();
+                // The SHA-256 of the extracted APK is computed while it is written,
+                // so the file never needs to be read back.
+                DigestingChannelOutputStream dataDestination =
+                        new DigestingChannelOutputStream(unverifiedFile.createForWriting().getChannel());
 
                 AuthenticatedDataPackage.extractAndVerifyData(
                         EmbeddedValues.UPGRADE_SIGNATURE_PUBLIC_KEY,
                         unzipStream,
                         true, // "data" is Base64 (and is a large value to be streamed)
-                        dataDestination);
+                        dataDestination,
+                        this.file.length()); // The compressed size, a lower bound of the package size
+
+                UpgradeFile extractedFile = unverifiedFile;
+                if (DeltaUpgradePatch.isPatch(unverifiedFile.getFile()))
+                {
+                    // The package is authentic, but it's a patch against the installed APK
+                    // rather than the APK itself.
+                    extractedFile = new PatchedUpgradeFile(this.context);
+                    dataDestination = DeltaUpgrade.applyPatch(this.context, unverifiedFile, extractedFile);
+                    if (dataDestination == null)
+                    {
+                        return false;
+                    }
+                }
 
-                return unverifiedFile.rename(new VerifiedUpgradeFile(this.context).getFilename());
+                VerifiedUpgradeFile verifiedFile = new VerifiedUpgradeFile(this.context);
+                UpgradeFileReceipt.delete(this.context);
+                if (!extractedFile.rename(verifiedFile.getFilename()))
+                {
+                    return false;
+                }
+
+                // Parse the APK once here and record its version in the receipt;
+                // later checks will only need to stat the file.
+                PackageInfo upgradePackageInfo = this.context.getPackageManager().getPackageArchiveInfo(
+                        verifiedFile.getFullPath(), 0);
+                if (upgradePackageInfo == null)
+                {
+                    verifiedFile.delete();
+                    MyLog.w(R.string.UpgradeManager_CannotExtractUpgradePackageInfo, MyLog.Sensitivity.NOT_SENSITIVE);
+                    return false;
+                }
+                File file = verifiedFile.getFile();
+                new UpgradeFileReceipt(
+                        dataDestination.getHexDigest(),
+                        file.length(),
+                        file.lastModified(),
+                        upgradePackageInfo.versionCode).write(this.context);
+
+                return true;
             }
             catch (FileNotFoundException e)
             {
@@ -296,6 +758,11 @@ public interface UpgradeManager
                 MyLog.w(R.string.UpgradeManager_UpgradeFileAuthenticateFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
                 return false;
             }
+            catch (NoSuchAlgorithmException e)
+            {
+                MyLog.w(R.string.UpgradeManager_UpgradeFileWriteFailed, MyLog.Sensitivity.NOT_SENSITIVE, e);
+                return false;
+            }
             finally
             {
                 if (unzipStream != null)
@@ -353,16 +820,9 @@ public interface UpgradeManager
 
             // Is it a higher version than the current app?
 
-            final PackageManager pm = context.getPackageManager();
-
-            // Info about the potential upgrade file
-            PackageInfo upgradePackageInfo = pm.getPackageArchiveInfo(file.getFullPath(), 0);
-
-            if (upgradePackageInfo == null)
+            int upgradeVersionCode = getVerifiedUpgradeVersionCode(context, file);
+            if (upgradeVersionCode < 0)
             {
-                // There's probably something wrong with the upgrade file.
-                file.delete();
-                MyLog.w(R.string.UpgradeManager_CannotExtractUpgradePackageInfo, MyLog.Sensitivity.NOT_SENSITIVE);
                 return null;
             }
 
@@ -383,7 +843,7 @@ public interface UpgradeManager
             }
 
             // Does the upgrade package have a higher version?
-            if (upgradePackageInfo.versionCode <= currentPackageInfo.versionCode)
+            if (upgradeVersionCode <= currentPackageInfo.versionCode)
             {
                 file.delete();
                 return null;
@@ -392,6 +852,65 @@ public interface UpgradeManager
             return file;
         }
 
+        /**
+         * Get the version code of the verified upgrade file. Uses the stored receipt when
+         * it still matches the file, otherwise parses the APK once and stores a new receipt.
+         * Side-effect: Deletes the upgrade file if its package info can't be extracted.
+         * @return the version code, or -1 if the file is not a valid APK
+         */
+        protected static int getVerifiedUpgradeVersionCode(Context context, VerifiedUpgradeFile file)
+        {
+            UpgradeFileReceipt receipt = UpgradeFileReceipt.read(context);
+            if (receipt != null && receipt.matches(file.getFile()))
+            {
+                return receipt.versionCode;
+            }
+
+            // Info about the potential upgrade file
+            PackageInfo upgradePackageInfo = context.getPackageManager().getPackageArchiveInfo(file.getFullPath(), 0);
+
+            if (upgradePackageInfo == null)
+            {
+                // There's probably something wrong with the upgrade file.
+                file.delete();
+                MyLog.w(R.string.UpgradeManager_CannotExtractUpgradePackageInfo, MyLog.Sensitivity.NOT_SENSITIVE);
+                return -1;
+            }
+
+            // The file was verified without a receipt, e.g. by an older app version; record one now.
+            try
+            {
+                File apkFile = file.getFile();
+                new UpgradeFileReceipt(
+                        DigestingChannelOutputStream.digestFile(apkFile),
+                        apkFile.length(),
+                        apkFile.lastModified(),
+                        upgradePackageInfo.versionCode).write(context);
+            }
+            catch (IOException | NoSuchAlgorithmException e)
+            {
+                MyLog.g("UpgradeFileReceipt: failed to digest upgrade file", "error", e.getMessage());
+            }
+
+            return upgradePackageInfo.versionCode;
+        }
+
+        /**
+         * Get the version of the verified upgrade file awaiting installation by the user.
+         * Note that this may extract and verify a freshly downloaded upgrade file.
+         * @return the version code of the pending upgrade, or -1 if there is none
+         */
+        public static int getPendingUpgradeVersionCode(Context context, File file)
+        {
+            VerifiedUpgradeFile verifiedFile = getAvailableCompleteUpgradeFile(context, file);
+            if (verifiedFile == null)
+            {
+                return -1;
+            }
+            // Cheap: getAvailableCompleteUpgradeFile just left a matching receipt
+            return getVerifiedUpgradeVersionCode(context, verifiedFile);
+        }
+
         /**
          * Checks if a valid upgrade file is available for install.
          * Note that this is not a zero-cost function call, as package verification is done.
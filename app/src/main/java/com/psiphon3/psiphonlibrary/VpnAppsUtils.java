@@ -32,7 +32,10 @@ import com.psiphon3.R;
 
 import net.grandcentrix.tray.AppPreferences;
 import net.grandcentrix.tray.core.ItemNotFoundException;
+import net.grandcentrix.tray.core.PreferenceEditor;
+import net.grandcentrix.tray.core.WrongTypeException;
 
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -53,37 +56,64 @@ public class VpnAppsUtils {
 
     static void migrate(Context context) {
         AppPreferences prefs = new AppPreferences(context);
+        PreferenceEditor editor = prefs.edit();
         try {
             prefs.getBoolean(context.getString(R.string.preferenceIncludeAllAppsInVpn));
         } catch (ItemNotFoundException e) {
             if (getCurrentAppsExcludedFromVpn(context).isEmpty()) {
-                prefs.put(context.getString(R.string.preferenceIncludeAllAppsInVpn), true);
+                editor.put(context.getString(R.string.preferenceIncludeAllAppsInVpn), true);
             } else {
-                prefs.put(context.getString(R.string.preferenceExcludeAppsFromVpn), true);
+                editor.put(context.getString(R.string.preferenceExcludeAppsFromVpn), true);
             }
         }
+        editor.commit();
         // Check and prepopulate the include-only set if empty
         PackageManager pm = context.getPackageManager();
         if (getCurrentAppsIncludedInVpn(context).isEmpty()) {
             Set<String> appIds = getInstalledWebBrowserPackageIds(pm);
             // TODO: a better strategy of picking at least one app for VPN include only?
             if(appIds.size() > 0) {
-                String serializedSet = SharedPreferenceUtils.serializeSet(appIds);
-                prefs.put(context.getString(R.string.preferenceIncludeAppsInVpnString), serializedSet);
+                setCurrentAppsToIncludeInVpn(context, appIds);
             }
         }
     }
 
+    // The app sets are stored as string sets in the tray preferences and as serialized strings
+    // in the SharedPreferences the 'More Options' screen works with. Imports both sets from the
+    // SharedPreferences and removes them there, like SharedPreferencesImport does.
+    static void importAppsFromSharedPreferences(Context context, String sharedPreferencesName) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(sharedPreferencesName, Context.MODE_PRIVATE);
+        importApps(context, sharedPreferences, context.getString(R.string.preferenceIncludeAppsInVpnString));
+        importApps(context, sharedPreferences, context.getString(R.string.preferenceExcludeAppsFromVpnString));
+    }
+
+    private static void importApps(Context context, SharedPreferences sharedPreferences, String key) {
+        if (!sharedPreferences.contains(key)) {
+            return;
+        }
+        Set<String> packageIds = SharedPreferenceUtils.deserializeSet(sharedPreferences.getString(key, ""));
+        new AppPreferences(context).putStringSet(key, packageIds);
+        sharedPreferences.edit().remove(key).apply();
+    }
+
     static Set<String> getCurrentAppsIncludedInVpn(Context context) {
-        AppPreferences prefs = new AppPreferences(context);
-        String serializedSet = prefs.getString(context.getString(R.string.preferenceIncludeAppsInVpnString), "");
-        return SharedPreferenceUtils.deserializeSet(serializedSet);
+        return getCurrentApps(context, context.getString(R.string.preferenceIncludeAppsInVpnString));
     }
 
     static Set<String> getCurrentAppsExcludedFromVpn(Context context) {
+        return getCurrentApps(context, context.getString(R.string.preferenceExcludeAppsFromVpnString));
+    }
+
+    private static Set<String> getCurrentApps(Context context, String key) {
         AppPreferences prefs = new AppPreferences(context);
-        String serializedSet = prefs.getString(context.getString(R.string.preferenceExcludeAppsFromVpnString), "");
-        return SharedPreferenceUtils.deserializeSet(serializedSet);
+        try {
+            return prefs.getStringSet(key, new HashSet<String>());
+        } catch (WrongTypeException e) {
+            // Saved as a serialized string by an older version, store it as a set from now on
+            Set<String> packageIds = SharedPreferenceUtils.deserializeSet(prefs.getString(key, ""));
+            prefs.putStringSet(key, packageIds);
+            return packageIds;
+        }
     }
 
     static void setPendingAppsToIncludeInVpn(Context context, Set<String> packageIds) {
@@ -104,14 +134,12 @@ public class VpnAppsUtils {
 
     static void setCurrentAppsToIncludeInVpn(Context context, Set<String> includeApps) {
         AppPreferences prefs = new AppPreferences(context);
-        String serializedSet = SharedPreferenceUtils.serializeSet(includeApps);
-        prefs.put(context.getString(R.string.preferenceIncludeAppsInVpnString), serializedSet);
+        prefs.putStringSet(context.getString(R.string.preferenceIncludeAppsInVpnString), includeApps);
     }
 
     static void setCurrentAppsToExcludeFromVpn(Context context, Set<String> excludeApps) {
         AppPreferences prefs = new AppPreferences(context);
-        String serializedSet = SharedPreferenceUtils.serializeSet(excludeApps);
-        prefs.put(context.getString(R.string.preferenceExcludeAppsFromVpnString), serializedSet);
+        prefs.putStringSet(context.getString(R.string.preferenceExcludeAppsFromVpnString), excludeApps);
     }
 
     static Set<String> getPendingAppsIncludedInVpn(Context context) {
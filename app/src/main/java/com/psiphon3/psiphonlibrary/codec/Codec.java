@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2019, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary.codec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+// Table driven binary-to-text codecs (RFC 4648 Hex, Base32 and Base64).
+//
+// One implementation serves all alphabets: input bits are shifted through an accumulator and
+// every bitsPerChar bits are looked up in the alphabet. Encoding and decoding work on array,
+// buffer and String slices and write into output supplied by the caller, so nothing is
+// allocated besides the output. The convenience methods returning a String or byte[] allocate
+// exactly that result (and for Strings the char[] it is built from).
+//
+// Decoding skips whitespace, accepts padding whether or not the codec writes it and ignores
+// trailing bits of an incomplete character group. Any other character outside the alphabet is
+// rejected with an IllegalArgumentException. Hex and Base32 decode both letter cases.
+//
+// Instances are immutable and thread safe.
+public final class Codec {
+    // Lowercase hex, e.g. for digests compared case insensitively
+    public static final Codec HEX = new Codec("0123456789abcdef", 1, false);
+    // Uppercase hex, the format of ids and digests sent to and compared with Psiphon servers
+    public static final Codec HEX_UPPER = new Codec("0123456789ABCDEF", 1, false);
+    // RFC 4648 Base32 with padding
+    public static final Codec BASE32 = new Codec("ABCDEFGHIJKLMNOPQRSTUVWXYZ234567", 5, true);
+    // Lowercase Base32 without padding, as used by Weave (Firefox Sync 1.1)
+    public static final Codec BASE32_LOWER_UNPADDED = new Codec("abcdefghijklmnopqrstuvwxyz234567", 5, false);
+    // RFC 4648 Base64 with padding and without line breaks
+    public static final Codec BASE64 = new Codec("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/", 3, true);
+
+    private static final char PAD = '=';
+    private static final byte INVALID = -1;
+    private static final byte SKIP = -2;
+    private static final byte PADDING = -3;
+    private static final int STREAM_BUFFER_SIZE = 1024;
+
+    private final char[] alphabet;
+    private final byte[] asciiAlphabet;
+    // Digit value by ASCII character, or one of INVALID, SKIP, PADDING
+    private final byte[] decodeTable = new byte[128];
+    private final int bitsPerChar;
+    private final int mask;
+    private final int bytesPerBlock;
+    private final int charsPerBlock;
+    private final boolean padding;
+
+    private Codec(String alphabet, int bytesPerBlock, boolean padding) {
+        this.alphabet = alphabet.toCharArray();
+        this.bitsPerChar = Integer.numberOfTrailingZeros(alphabet.length());
+        this.mask = alphabet.length() - 1;
+        this.bytesPerBlock = bytesPerBlock;
+        this.charsPerBlock = bytesPerBlock * 8 / bitsPerChar;
+        this.padding = padding;
+
+        asciiAlphabet = new byte[this.alphabet.length];
+        Arrays.fill(decodeTable, INVALID);
+        boolean hasLower = false;
+        boolean hasUpper = false;
+        for (int i = 0; i < this.alphabet.length; i++) {
+            char c = this.alphabet[i];
+            asciiAlphabet[i] = (byte) c;
+            decodeTable[c] = (byte) i;
+            hasLower |= Character.isLowerCase(c);
+            hasUpper |= Character.isUpperCase(c);
+        }
+        if (hasLower != hasUpper) {
+            // Single case alphabet, accept the other case, too
+            for (int i = 0; i < this.alphabet.length; i++) {
+                char c = this.alphabet[i];
+                decodeTable[hasLower ? Character.toUpperCase(c) : Character.toLowerCase(c)] = (byte) i;
+            }
+        }
+        decodeTable[' '] = SKIP;
+        decodeTable['\t'] = SKIP;
+        decodeTable['\n'] = SKIP;
+        decodeTable['\r'] = SKIP;
+        decodeTable[PAD] = PADDING;
+    }
+
+    // Number of characters encode writes for length bytes.
+    public int encodedLength(int length) {
+        if (padding) {
+            return (length + bytesPerBlock - 1) / bytesPerBlock * charsPerBlock;
+        }
+        return (int) (((long) length * 8 + bitsPerChar - 1) / bitsPerChar);
+    }
+
+    // Upper bound of the bytes decode writes for length characters.
+    public int maxDecodedLength(int length) {
+        return (int) ((long) length * bitsPerChar / 8);
+    }
+
+    public String encodeToString(byte[] src) {
+        return encodeToString(src, 0, src.length);
+    }
+
+    public String encodeToString(byte[] src, int off, int len) {
+        char[] chars = new char[encodedLength(len)];
+        encode(src, off, len, chars, 0);
+        return new String(chars);
+    }
+
+    // Encodes src[off, off + len) into dst at dstOff, which must have room for
+    // encodedLength(len) chars. Returns the number of chars written.
+    public int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        int acc = 0;
+        int accBits = 0;
+        int d = dstOff;
+        for (int i = off, end = off + len; i < end; i++) {
+            acc = (acc << 8) | (src[i] & 0xff);
+            accBits += 8;
+            while (accBits >= bitsPerChar) {
+                accBits -= bitsPerChar;
+                dst[d++] = alphabet[(acc >>> accBits) & mask];
+            }
+        }
+        if (accBits > 0) {
+            dst[d++] = alphabet[(acc << (bitsPerChar - accBits)) & mask];
+        }
+        if (padding) {
+            while ((d - dstOff) % charsPerBlock != 0) {
+                dst[d++] = PAD;
+            }
+        }
+        return d - dstOff;
+    }
+
+    // Same as encode(byte[], int, int, char[], int) but writes ASCII bytes.
+    public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int acc = 0;
+        int accBits = 0;
+        int d = dstOff;
+        for (int i = off, end = off + len; i < end; i++) {
+            acc = (acc << 8) | (src[i] & 0xff);
+            accBits += 8;
+            while (accBits >= bitsPerChar) {
+                accBits -= bitsPerChar;
+                dst[d++] = asciiAlphabet[(acc >>> accBits) & mask];
+            }
+        }
+        if (accBits > 0) {
+            dst[d++] = asciiAlphabet[(acc << (bitsPerChar - accBits)) & mask];
+        }
+        if (padding) {
+            while ((d - dstOff) % charsPerBlock != 0) {
+                dst[d++] = (byte) PAD;
+            }
+        }
+        return d - dstOff;
+    }
+
+    // Encodes the remaining bytes of src into dst, advancing both positions. dst must have
+    // room for encodedLength(src.remaining()) chars.
+    public void encode(ByteBuffer src, CharBuffer dst) {
+        int len = src.remaining();
+        if (dst.remaining() < encodedLength(len)) {
+            throw new IllegalArgumentException("dst too small");
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            int written = encode(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + written);
+            return;
+        }
+        int acc = 0;
+        int accBits = 0;
+        int start = dst.position();
+        while (src.hasRemaining()) {
+            acc = (acc << 8) | (src.get() & 0xff);
+            accBits += 8;
+            while (accBits >= bitsPerChar) {
+                accBits -= bitsPerChar;
+                dst.put(alphabet[(acc >>> accBits) & mask]);
+            }
+        }
+        if (accBits > 0) {
+            dst.put(alphabet[(acc << (bitsPerChar - accBits)) & mask]);
+        }
+        if (padding) {
+            while ((dst.position() - start) % charsPerBlock != 0) {
+                dst.put(PAD);
+            }
+        }
+    }
+
+    public byte[] decode(CharSequence src) {
+        // Exact for input without whitespace, which is the common case
+        int end = src.length();
+        while (end > 0 && src.charAt(end - 1) == PAD) {
+            end--;
+        }
+        byte[] bytes = new byte[maxDecodedLength(end)];
+        int written = decode(src, 0, src.length(), bytes, 0);
+        return written == bytes.length ? bytes : Arrays.copyOf(bytes, written);
+    }
+
+    // Decodes src[start, end) into dst at dstOff, which must have room for
+    // maxDecodedLength(end - start) bytes. Returns the number of bytes written.
+    public int decode(CharSequence src, int start, int end, byte[] dst, int dstOff) {
+        int acc = 0;
+        int accBits = 0;
+        int d = dstOff;
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            int value = c < 128 ? decodeTable[c] : INVALID;
+            if (value < 0) {
+                if (value == SKIP) {
+                    continue;
+                }
+                if (value == PADDING) {
+                    checkPadding(src, i, end);
+                    break;
+                }
+                throw invalidCharacter(c, i);
+            }
+            acc = (acc << bitsPerChar) | value;
+            accBits += bitsPerChar;
+            if (accBits >= 8) {
+                accBits -= 8;
+                dst[d++] = (byte) (acc >>> accBits);
+            }
+        }
+        return d - dstOff;
+    }
+
+    // Same as decode(CharSequence, int, int, byte[], int) but reads ASCII bytes.
+    public int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int acc = 0;
+        int accBits = 0;
+        int d = dstOff;
+        for (int i = off, end = off + len; i < end; i++) {
+            int c = src[i] & 0xff;
+            int value = c < 128 ? decodeTable[c] : INVALID;
+            if (value < 0) {
+                if (value == SKIP) {
+                    continue;
+                }
+                if (value == PADDING) {
+                    for (int j = i + 1; j < end; j++) {
+                        int p = src[j] & 0xff;
+                        if (p >= 128 || (decodeTable[p] != PADDING && decodeTable[p] != SKIP)) {
+                            throw invalidCharacter((char) p, j);
+                        }
+                    }
+                    break;
+                }
+                throw invalidCharacter((char) c, i);
+            }
+            acc = (acc << bitsPerChar) | value;
+            accBits += bitsPerChar;
+            if (accBits >= 8) {
+                accBits -= 8;
+                dst[d++] = (byte) (acc >>> accBits);
+            }
+        }
+        return d - dstOff;
+    }
+
+    // Decodes the remaining chars of src into dst, advancing both positions. dst must have room
+    // for maxDecodedLength(src.remaining()) bytes.
+    public void decode(CharBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        if (dst.remaining() < maxDecodedLength(len)) {
+            throw new IllegalArgumentException("dst too small");
+        }
+        if (dst.hasArray()) {
+            // CharBuffer indexes relative to its position
+            int written = decode(src, 0, len, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + written);
+        } else {
+            int acc = 0;
+            int accBits = 0;
+            for (int i = 0; i < len; i++) {
+                char c = src.charAt(i);
+                int value = c < 128 ? decodeTable[c] : INVALID;
+                if (value < 0) {
+                    if (value == SKIP) {
+                        continue;
+                    }
+                    if (value == PADDING) {
+                        checkPadding(src, i, len);
+                        break;
+                    }
+                    throw invalidCharacter(c, i);
+                }
+                acc = (acc << bitsPerChar) | value;
+                accBits += bitsPerChar;
+                if (accBits >= 8) {
+                    accBits -= 8;
+                    dst.put((byte) (acc >>> accBits));
+                }
+            }
+        }
+        src.position(src.limit());
+    }
+
+    // Returns a stream which encodes the bytes written to it and writes the ASCII result to
+    // out. close() writes the last character group and padding, then closes out.
+    public OutputStream encodingStream(OutputStream out) {
+        return new EncodingOutputStream(out);
+    }
+
+    // Returns a stream which decodes the ASCII characters written to it and writes the bytes to
+    // out. Invalid characters fail the write with an IOException.
+    public OutputStream decodingStream(OutputStream out) {
+        return new DecodingOutputStream(out);
+    }
+
+    private void checkPadding(CharSequence src, int padIndex, int end) {
+        for (int j = padIndex + 1; j < end; j++) {
+            char p = src.charAt(j);
+            if (p >= 128 || (decodeTable[p] != PADDING && decodeTable[p] != SKIP)) {
+                throw invalidCharacter(p, j);
+            }
+        }
+    }
+
+    private static IllegalArgumentException invalidCharacter(char c, int index) {
+        return new IllegalArgumentException("invalid character 0x"
+                + Integer.toHexString(c) + " at " + index);
+    }
+
+    private class EncodingOutputStream extends FilterOutputStream {
+        private final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        private int buffered;
+        private int acc;
+        private int accBits;
+        private long charsWritten;
+        private boolean closed;
+
+        EncodingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acc = (acc << 8) | (b & 0xff);
+            accBits += 8;
+            while (accBits >= bitsPerChar) {
+                accBits -= bitsPerChar;
+                put(asciiAlphabet[(acc >>> accBits) & mask]);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off, end = off + len; i < end; i++) {
+                acc = (acc << 8) | (b[i] & 0xff);
+                accBits += 8;
+                while (accBits >= bitsPerChar) {
+                    accBits -= bitsPerChar;
+                    put(asciiAlphabet[(acc >>> accBits) & mask]);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Only complete characters can be written before close
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (accBits > 0) {
+                put(asciiAlphabet[(acc << (bitsPerChar - accBits)) & mask]);
+                accBits = 0;
+            }
+            if (padding) {
+                while (charsWritten % charsPerBlock != 0) {
+                    put((byte) PAD);
+                }
+            }
+            super.close();
+        }
+
+        private void put(byte c) throws IOException {
+            if (buffered == buffer.length) {
+                out.write(buffer, 0, buffered);
+                buffered = 0;
+            }
+            buffer[buffered++] = c;
+            charsWritten++;
+        }
+    }
+
+    private class DecodingOutputStream extends FilterOutputStream {
+        private final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        private int buffered;
+        private int acc;
+        private int accBits;
+        private long index;
+        private boolean padded;
+
+        DecodingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            int c = b & 0xff;
+            int value = c < 128 ? decodeTable[c] : INVALID;
+            long i = index++;
+            if (value == SKIP) {
+                return;
+            }
+            if (value == PADDING) {
+                padded = true;
+                return;
+            }
+            if (value < 0 || padded) {
+                throw new IOException(invalidCharacter((char) c, (int) i).getMessage());
+            }
+            acc = (acc << bitsPerChar) | value;
+            accBits += bitsPerChar;
+            if (accBits >= 8) {
+                accBits -= 8;
+                if (buffered == buffer.length) {
+                    out.write(buffer, 0, buffered);
+                    buffered = 0;
+                }
+                buffer[buffered++] = (byte) (acc >>> accBits);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off, end = off + len; i < end; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+            out.flush();
+        }
+    }
+}
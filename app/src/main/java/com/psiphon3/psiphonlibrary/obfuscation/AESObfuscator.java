@@ -16,9 +16,13 @@
 
 package com.psiphon3.psiphonlibrary.obfuscation;
 
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.spec.KeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -31,6 +35,9 @@ import javax.crypto.spec.SecretKeySpec;
 
 /**
  * An Obfuscator that uses AES to encrypt data.
+ * <p>
+ * Instances are thread safe: every thread gets its own ciphers and buffers. Derived keys are
+ * shared by all instances with the same salt, application id and device id.
  */
 public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Obfuscator {
     private static final String UTF8 = "UTF-8";
@@ -39,9 +46,54 @@ public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Ob
     private static final byte[] IV =
         { 16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74 };
     private static final String header = "com.psiphon3.psiphonlibrary.obfuscation.AESObfuscator-1|";
+    private static final byte[] HEADER_BYTES = getUtf8Bytes(header);
+    private static final int MAX_CACHED_KEYS = 8;
+
+    /**
+     * Derived keys by salt and password. The key derivation is deliberately slow, an app
+     * typically creates obfuscators for very few identities.
+     */
+    private static final Map<String, SecretKey> sKeys =
+            new LinkedHashMap<String, SecretKey>(MAX_CACHED_KEYS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                    return size() > MAX_CACHED_KEYS;
+                }
+            };
+
+    /**
+     * Ciphers and buffers of one thread. A cipher returns to its initialized state after
+     * doFinal, so it is initialized once and then reused for every value.
+     */
+    private static class CipherState {
+        final Cipher encryptor;
+        final Cipher decryptor;
+        byte[] input = new byte[256];
+        byte[] output = new byte[256];
+
+        CipherState(SecretKey secret) throws GeneralSecurityException {
+            encryptor = Cipher.getInstance(CIPHER_ALGORITHM);
+            encryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
+            decryptor = Cipher.getInstance(CIPHER_ALGORITHM);
+            decryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+        }
+
+        byte[] input(int length) {
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            return input;
+        }
+
+        byte[] output(int length) {
+            if (output.length < length) {
+                output = new byte[Math.max(length, output.length * 2)];
+            }
+            return output;
+        }
+    }
 
-    private Cipher mEncryptor;
-    private Cipher mDecryptor;
+    private final ThreadLocal<CipherState> mCipherState;
 
     /**
      * @param salt an array of random bytes to use for each (un)obfuscation
@@ -50,16 +102,41 @@ public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Ob
      *    create this unique identifier.
      */
     public AESObfuscator(byte[] salt, String applicationId, String deviceId) {
+        final SecretKey secret = getKey(salt, applicationId + deviceId);
+        mCipherState = new ThreadLocal<CipherState>() {
+            @Override
+            protected CipherState initialValue() {
+                try {
+                    return new CipherState(secret);
+                } catch (GeneralSecurityException e) {
+                    // This can't happen on a compatible Android device.
+                    throw new RuntimeException("Invalid environment", e);
+                }
+            }
+        };
+        // Fail in the constructor like before if the ciphers aren't available
+        mCipherState.get();
+    }
+
+    private static SecretKey getKey(byte[] salt, String password) {
+        String cacheKey = Codec.BASE64.encodeToString(salt) + ":" + password;
+        synchronized (sKeys) {
+            SecretKey secret = sKeys.get(cacheKey);
+            if (secret != null) {
+                return secret;
+            }
+        }
         try {
             SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
-            KeySpec keySpec =   
-                new PBEKeySpec((applicationId + deviceId).toCharArray(), salt, 1024, 256);
+            KeySpec keySpec =
+                new PBEKeySpec(password.toCharArray(), salt, 1024, 256);
             SecretKey tmp = factory.generateSecret(keySpec);
             SecretKey secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-            mEncryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mEncryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
-            mDecryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mDecryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+            synchronized (sKeys) {
+                // Threads deriving the same key at once get equal keys, keep one of them
+                sKeys.put(cacheKey, secret);
+            }
+            return secret;
         } catch (GeneralSecurityException e) {
             // This can't happen on a compatible Android device.
             throw new RuntimeException("Invalid environment", e);
@@ -70,9 +147,67 @@ public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Ob
         if (original == null) {
             return null;
         }
+        return obfuscate(mCipherState.get(), original, getUtf8Bytes(key));
+    }
+
+    /**
+     * Obfuscates all values in one pass with the ciphers and buffers of the calling thread.
+     *
+     * @param originals the data to obfuscate by the key of each value
+     * @return the obfuscated data by key, in the iteration order of originals. Null values stay
+     *    null.
+     */
+    public Map<String, String> obfuscateAll(Map<String, String> originals) {
+        CipherState state = mCipherState.get();
+        Map<String, String> result = new LinkedHashMap<>(originals.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> entry : originals.entrySet()) {
+            String original = entry.getValue();
+            result.put(entry.getKey(), original == null ? null
+                    : obfuscate(state, original, getUtf8Bytes(entry.getKey())));
+        }
+        return result;
+    }
+
+    public String unobfuscate(String obfuscated, String key) throws ValidationException {
+        if (obfuscated == null) {
+            return null;
+        }
+        return unobfuscate(mCipherState.get(), obfuscated, getUtf8Bytes(key));
+    }
+
+    /**
+     * Unobfuscates all values in one pass with the ciphers and buffers of the calling thread.
+     *
+     * @param obfuscated the data to unobfuscate by the key of each value
+     * @return the original data by key, in the iteration order of obfuscated. Null values stay
+     *    null.
+     * @throws ValidationException if the integrity check of any value fails
+     */
+    public Map<String, String> unobfuscateAll(Map<String, String> obfuscated)
+            throws ValidationException {
+        CipherState state = mCipherState.get();
+        Map<String, String> result = new LinkedHashMap<>(obfuscated.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> entry : obfuscated.entrySet()) {
+            String value = entry.getValue();
+            result.put(entry.getKey(), value == null ? null
+                    : unobfuscate(state, value, getUtf8Bytes(entry.getKey())));
+        }
+        return result;
+    }
+
+    private static String obfuscate(CipherState state, String original, byte[] keyBytes) {
         try {
             // Header is appended as an integrity check
-            return Base64.encode(mEncryptor.doFinal((header + key + original).getBytes(UTF8)));
+            byte[] originalBytes = original.getBytes(UTF8);
+            int length = HEADER_BYTES.length + keyBytes.length + originalBytes.length;
+            byte[] input = state.input(length);
+            System.arraycopy(HEADER_BYTES, 0, input, 0, HEADER_BYTES.length);
+            System.arraycopy(keyBytes, 0, input, HEADER_BYTES.length, keyBytes.length);
+            System.arraycopy(originalBytes, 0, input, HEADER_BYTES.length + keyBytes.length,
+                    originalBytes.length);
+            byte[] output = state.output(state.encryptor.getOutputSize(length));
+            int outputLength = state.encryptor.doFinal(input, 0, length, output);
+            return Codec.BASE64.encodeToString(output, 0, outputLength);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
         } catch (GeneralSecurityException e) {
@@ -80,21 +215,23 @@ public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Ob
         }
     }
 
-    public String unobfuscate(String obfuscated, String key) throws ValidationException {
-        if (obfuscated == null) {
-            return null;
-        }
+    private static String unobfuscate(CipherState state, String obfuscated, byte[] keyBytes)
+            throws ValidationException {
         try {
-            String result = new String(mDecryptor.doFinal(Base64.decode(obfuscated)), UTF8);
+            byte[] encrypted = state.input(Codec.BASE64.maxDecodedLength(obfuscated.length()));
+            int encryptedLength = Codec.BASE64.decode(obfuscated, 0, obfuscated.length(),
+                    encrypted, 0);
+            byte[] output = state.output(state.decryptor.getOutputSize(encryptedLength));
+            int length = state.decryptor.doFinal(encrypted, 0, encryptedLength, output);
             // Check for presence of header. This serves as a final integrity check, for cases
             // where the block size is correct during decryption.
-            int headerIndex = result.indexOf(header+key);
-            if (headerIndex != 0) {
+            if (!startsWith(output, length, HEADER_BYTES, keyBytes)) {
                 throw new ValidationException("Header not found (invalid data or key)" + ":" +
                         obfuscated);
             }
-            return result.substring(header.length()+key.length(), result.length());
-        } catch (Base64DecoderException e) {
+            int prefixLength = HEADER_BYTES.length + keyBytes.length;
+            return new String(output, prefixLength, length - prefixLength, UTF8);
+        } catch (IllegalArgumentException e) {
             throw new ValidationException(e.getMessage() + ":" + obfuscated);
         } catch (IllegalBlockSizeException e) {
             throw new ValidationException(e.getMessage() + ":" + obfuscated);
@@ -102,6 +239,34 @@ public class AESObfuscator implements com.psiphon3.psiphonlibrary.obfuscation.Ob
             throw new ValidationException(e.getMessage() + ":" + obfuscated);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
+        } catch (GeneralSecurityException e) {
+            // The output buffer is sized by the cipher, it can't be too short
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] header, byte[] key) {
+        if (length < header.length + key.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (data[i] != header[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (data[header.length + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] getUtf8Bytes(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
         }
     }
 }
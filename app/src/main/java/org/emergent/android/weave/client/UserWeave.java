@@ -1,5 +1,7 @@
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -193,11 +195,11 @@ public class UserWeave {
       JSONArray jsonArray = ckencPayload.getJSONArray("default");
       String bkey2str = jsonArray.getString(0);
       String bhmac2str = jsonArray.getString(1);
-      byte[] bkey2bytes = Base64.decode(bkey2str);
+      byte[] bkey2bytes = Codec.BASE64.decode(bkey2str);
 
       Key bulkKey2 = new SecretKeySpec(bkey2bytes, "AES");
 
-      byte[] bhmac2bytes = Base64.decode(bhmac2str);
+      byte[] bhmac2bytes = Codec.BASE64.decode(bhmac2str);
 
       Key bulkHmacKey2 = new SecretKeySpec(bhmac2bytes, "AES");
 
@@ -16,14 +16,18 @@
 
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -78,10 +82,31 @@ public class WeaveBasicObject {
     return new JSONObject(m_nodeObj.getString("payload"));
   }
 
+  private static byte[] decodeSyncKey(char[] secret) {
+    // Sync keys are Base32 in groups separated by dashes, with 8 and 9 standing for L and O
+    char[] digits = new char[secret.length];
+    int count = 0;
+    for (char c : secret) {
+      if (c == '8') {
+        c = 'L';
+      } else if (c == '9') {
+        c = 'O';
+      }
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '2' && c <= '7')) {
+        digits[count++] = c;
+      }
+    }
+    // Sized by the whole secret like the old decoder did, so the key bytes don't change
+    byte[] syncKey = new byte[secret.length * 5 / 8];
+    Codec.BASE32.decode(CharBuffer.wrap(digits, 0, count), 0, count, syncKey, 0);
+    Arrays.fill(digits, '\0');
+    return syncKey;
+  }
+
   public JSONObject getEncryptedPayload(UserWeave weave, char[] secret)
       throws JSONException, IOException, GeneralSecurityException, WeaveException {
     WeaveEncryptedObject weo = new WeaveEncryptedObject(getPayload());
-    byte[] syncKey = Base32.decodeModified(new String(secret)); // todo don't convert to string
+    byte[] syncKey = decodeSyncKey(secret);
     BulkKeyCouplet bulkKeyPair = weave.getBulkKeyPair(syncKey);
     return weo.decryptObject(bulkKeyPair);
   }
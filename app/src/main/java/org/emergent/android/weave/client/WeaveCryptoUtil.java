@@ -1,5 +1,7 @@
 package org.emergent.android.weave.client;
 
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
@@ -47,15 +49,14 @@ class WeaveCryptoUtil {
 
       MessageDigest digest = MessageDigest.getInstance("SHA1");
       digest.update(WeaveUtil.toAsciiBytes(friendlyUsername.toLowerCase()));
-      byte[] baseEncodedBytes = Base32.encode(digest.digest());
-      return WeaveUtil.toAsciiString(baseEncodedBytes);
+      return Codec.BASE32_LOWER_UNPADDED.encodeToString(digest.digest());
     } catch (GeneralSecurityException e) {
       throw new Error(e);
     }
   }
 
   public RSAPublicKey readCertificatePubKey(String base64EncodedCert) throws GeneralSecurityException {
-    byte[] certBytes = Base64.decode(base64EncodedCert);
+    byte[] certBytes = Codec.BASE64.decode(base64EncodedCert);
 //    X509EncodedKeySpec keySpec = new X509EncodedKeySpec(certBytes);
 //    KeyFactory certFact = KeyFactory.getInstance("RSA", PROVIDER_NAME);
 //    return (RSAPublicKey)certFact.generatePublic(keySpec);
@@ -70,10 +71,10 @@ class WeaveCryptoUtil {
   public byte[] readPrivateKeyToPKCSBytes(char[] encpass, String salt, String iv, String keyData)
       throws GeneralSecurityException
   {
-    Key key = getKeyDecryptionKey(encpass, Base64.decode(salt));
+    Key key = getKeyDecryptionKey(encpass, Codec.BASE64.decode(salt));
     Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING", PROVIDER_NAME);
-    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(Base64.decode(iv)));
-    return cipher.doFinal(Base64.decode(keyData));
+    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(Codec.BASE64.decode(iv)));
+    return cipher.doFinal(Codec.BASE64.decode(keyData));
   }
 
   public RSAPrivateKey decodePrivateKeyFromPKCSBytes(byte[] keySpecBytes) throws GeneralSecurityException {
@@ -84,8 +85,8 @@ class WeaveCryptoUtil {
 
   public byte[] decrypt(Key secKey, String ciphertext, String iv, String hmac) throws GeneralSecurityException {
 //    checkMac(secKey, ciphertext, hmac);
-    byte[] ciphertextbytes = Base64.decode(ciphertext);
-    byte[] ivBytes = Base64.decode(iv);
+    byte[] ciphertextbytes = Codec.BASE64.decode(ciphertext);
+    byte[] ivBytes = Codec.BASE64.decode(iv);
     Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING", PROVIDER_NAME);
     cipher.init(Cipher.DECRYPT_MODE, secKey, new IvParameterSpec(ivBytes));
     return cipher.doFinal(ciphertextbytes);
@@ -93,15 +94,15 @@ class WeaveCryptoUtil {
 
   public byte[] decrypt(Key secKey, Key hmacKey, String ciphertext, String iv, String hmac) throws GeneralSecurityException {
     checkMac(hmacKey, ciphertext, hmac);
-    byte[] ciphertextbytes = Base64.decode(ciphertext);
-    byte[] ivBytes = Base64.decode(iv);
+    byte[] ciphertextbytes = Codec.BASE64.decode(ciphertext);
+    byte[] ivBytes = Codec.BASE64.decode(iv);
     Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING", PROVIDER_NAME);
     cipher.init(Cipher.DECRYPT_MODE, secKey, new IvParameterSpec(ivBytes));
     return cipher.doFinal(ciphertextbytes);
   }
 
   public Key unwrapSecretKey(RSAPrivateKey privKey, String wrapped) throws GeneralSecurityException {
-    byte[] wrappedBytes = Base64.decode(wrapped);
+    byte[] wrappedBytes = Codec.BASE64.decode(wrapped);
     Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding", PROVIDER_NAME);
     cipher.init(Cipher.UNWRAP_MODE, privKey);
     return cipher.unwrap(wrappedBytes, "AES", Cipher.SECRET_KEY);
@@ -114,13 +115,13 @@ class WeaveCryptoUtil {
 
   @SuppressWarnings("unused")
   private byte[] encrypt(Key secKey, String plaintext, String iv) throws GeneralSecurityException {
-    byte[] plaintextbytes = Base64.decode(plaintext);
+    byte[] plaintextbytes = Codec.BASE64.decode(plaintext);
     return encrypt(secKey, plaintextbytes, iv);
   }
 
   private byte[] encrypt(Key secKey, byte[] plaintext, String iv) throws GeneralSecurityException {
     Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING", PROVIDER_NAME);
-    cipher.init(Cipher.ENCRYPT_MODE, secKey, new IvParameterSpec(Base64.decode(iv)));
+    cipher.init(Cipher.ENCRYPT_MODE, secKey, new IvParameterSpec(Codec.BASE64.decode(iv)));
     return cipher.doFinal(plaintext);
   }
 
@@ -129,7 +130,7 @@ class WeaveCryptoUtil {
 //    mac.init(new SecretKeySpec(Base64.encode(secKey.getEncoded()), "AES"));
     mac.init(secKey);
     byte[] hmacBytes = mac.doFinal(WeaveUtil.toAsciiBytes(ciphertext));
-    return WeaveUtil.toAsciiString(Hex.encode(hmacBytes));
+    return Codec.HEX.encodeToString(hmacBytes);
   }
 
   private void checkMac(Key secKey, String ciphertext, String hmac) throws GeneralSecurityException {
@@ -16,24 +16,23 @@
 package org.zirco.model.adapters;
 
 import com.psiphon3.R;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.SimpleCursorAdapter;
 
 import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.utils.FaviconCache;
 
 /**
  * Cursor adapter for bookmarks.
  */
 public class BookmarksCursorAdapter extends SimpleCursorAdapter {
 	
+	private ContentResolver mContentResolver;
 	private int mFaviconSize;
 	
 	/**
@@ -46,6 +45,7 @@ public class BookmarksCursorAdapter extends SimpleCursorAdapter {
 	 */
 	public BookmarksCursorAdapter(Context context, int layout, Cursor c, String[] from, int[] to, int faviconSize) {
 		super(context, layout, c, from, to);
+		mContentResolver = context.getContentResolver();
 		mFaviconSize = faviconSize;
 	}
 
@@ -55,21 +55,14 @@ public class BookmarksCursorAdapter extends SimpleCursorAdapter {
 
 		ImageView thumbnailView = (ImageView) superView.findViewById(R.id.BookmarkRow_Thumbnail);
 		
-		byte[] favicon = getCursor().getBlob(getCursor().getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.FAVICON));
-		if (favicon != null) {
-			BitmapDrawable icon = new BitmapDrawable(BitmapFactory.decodeByteArray(favicon, 0, favicon.length));
-			
-			Bitmap bm = Bitmap.createBitmap(mFaviconSize, mFaviconSize, Bitmap.Config.ARGB_4444);
-			Canvas canvas = new Canvas(bm);
-			
-			icon.setBounds(0, 0, mFaviconSize, mFaviconSize);
-			icon.draw(canvas);
-			
-			thumbnailView.setImageBitmap(bm);
-		} else {
-			thumbnailView.setImageResource(R.drawable.fav_icn_unknown);
+		Long faviconId = null;
+		int faviconIdIndex = getCursor().getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.FAVICON_ID);
+		if (!getCursor().isNull(faviconIdIndex)) {
+			faviconId = getCursor().getLong(faviconIdIndex);
 		}
 		
+		FaviconCache.getInstance().displayFavicon(mContentResolver, thumbnailView, faviconId, mFaviconSize, R.drawable.fav_icn_unknown);
+		
 		return superView;
 	}	
 
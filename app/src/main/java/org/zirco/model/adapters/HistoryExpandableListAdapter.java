@@ -18,12 +18,11 @@ package org.zirco.model.adapters;
 import com.psiphon3.R;
 import org.zirco.model.items.HistoryItem;
 import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.utils.FaviconCache;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
 import android.provider.BaseColumns;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -209,7 +208,33 @@ public class HistoryExpandableListAdapter extends BaseExpandableListAdapter {
 				mCursor.getString(mCursor.getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.TITLE)),
 				mCursor.getString(mCursor.getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.URL)),
 				mCursor.getInt(mCursor.getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.BOOKMARK)) >= 1 ? true : false,
-				mCursor.getBlob(mCursor.getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.FAVICON)));
+				getCachedFavicon());
+	}
+
+	/**
+	 * Get the favicon id of the current record.
+	 * @return The favicon id, or null if the record has none.
+	 */
+	private Long getFaviconId() {
+		int faviconIdIndex = mCursor.getColumnIndex(BookmarksProviderWrapper.BookmarkColumns.FAVICON_ID);
+		if (mCursor.isNull(faviconIdIndex)) {
+			return null;
+		}
+		
+		return mCursor.getLong(faviconIdIndex);
+	}
+
+	/**
+	 * Get the favicon of the current record if it is in the favicon cache, without loading it.
+	 * @return The favicon, or null if the record has none or it is not loaded yet.
+	 */
+	private Bitmap getCachedFavicon() {
+		Long faviconId = getFaviconId();
+		if (faviconId == null) {
+			return null;
+		}
+		
+		return FaviconCache.getInstance().getCachedFavicon(faviconId, mFaviconSize);
 	}
 
 	@Override
@@ -240,21 +265,9 @@ public class HistoryExpandableListAdapter extends BaseExpandableListAdapter {
 		bookmarkStar.setChecked(item.isBookmark());
 		bookmarkStar.setOnCheckedChangeListener(mBookmarkStarChangeListener);
 		
+		// getChild() left the cursor on the child record.
 		ImageView faviconView = (ImageView) view.findViewById(R.id.HistoryRow_Thumbnail);
-		Bitmap favicon = item.getFavicon();
-		if (favicon != null) {
-			BitmapDrawable icon = new BitmapDrawable(favicon);
-			
-			Bitmap bm = Bitmap.createBitmap(mFaviconSize, mFaviconSize, Bitmap.Config.ARGB_4444);
-			Canvas canvas = new Canvas(bm);
-			
-			icon.setBounds(0, 0, mFaviconSize, mFaviconSize);
-			icon.draw(canvas);
-			
-			faviconView.setImageBitmap(bm);
-		} else {
-			faviconView.setImageResource(R.drawable.fav_icn_unknown);
-		}
+		FaviconCache.getInstance().displayFavicon(mContext.getContentResolver(), faviconView, getFaviconId(), mFaviconSize, R.drawable.fav_icn_unknown);
         
         return view;
 	}
@@ -16,7 +16,6 @@
 package org.zirco.model.items;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 /**
  * Represent an history element.
@@ -35,18 +34,14 @@ public class HistoryItem {
 	 * @param title The title.
 	 * @param url The url.
 	 * @param isBookmark True if this item is also a bookmark.
-	 * @param faviconData The favicon.
+	 * @param favicon The favicon, may be null.
 	 */
-	public HistoryItem(long id, String title, String url, boolean isBookmark, byte[] faviconData) {
+	public HistoryItem(long id, String title, String url, boolean isBookmark, Bitmap favicon) {
 		mId = id;
 		mTitle = title;
 		mUrl = url;
 		mIsBookmark = isBookmark;
-		if (faviconData != null) {
-			mFavicon = BitmapFactory.decodeByteArray(faviconData, 0, faviconData.length);
-		} else {
-			mFavicon = null;
-		}
+		mFavicon = favicon;
 	}
 
 	/**
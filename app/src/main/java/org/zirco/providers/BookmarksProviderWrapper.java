@@ -18,26 +18,23 @@ package org.zirco.providers;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import org.zirco.model.UrlSuggestionItemComparator;
-import org.zirco.model.adapters.UrlSuggestionCursorAdapter;
 import org.zirco.model.items.BookmarkItem;
 import org.zirco.model.items.HistoryItem;
-import org.zirco.model.items.UrlSuggestionItem;
 import org.zirco.model.items.WeaveBookmarkItem;
+import org.zirco.utils.ApplicationUtils;
 import android.app.Activity;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
-import android.os.Build;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -59,6 +56,13 @@ public class BookmarksProviderWrapper {
         public static final String THUMBNAIL = "thumbnail";
         public static final String TOUCH_ICON = "touch_icon";
         public static final String USER_ENTERED = "user_entered";
+        public static final String FAVICON_ID = "favicon_id";
+    }
+    
+    public static class FaviconColumns implements BaseColumns {
+        public static final String HASH = "hash";
+        public static final String HOST = "host";
+        public static final String DATA = "data";
     }
 	
 	private static final Uri INTERNAL_BOOKMARKS_URI = Uri.parse("content://" + ZircoBookmarksContentProvider.AUTHORITY + "/" + ZircoBookmarksContentProvider.BOOKMARKS_TABLE);
@@ -73,7 +77,7 @@ public class BookmarksProviderWrapper {
         BookmarkColumns.DATE,
         BookmarkColumns.CREATED,
         BookmarkColumns.BOOKMARK,
-        BookmarkColumns.FAVICON };
+        BookmarkColumns.FAVICON_ID };
 
 	// PSIPHON: use internal bookmarks only
 	/*
@@ -139,7 +143,7 @@ public class BookmarksProviderWrapper {
 		
 		String whereClause = BookmarkColumns.BOOKMARK + " = 1";
 		String orderClause = BookmarkColumns.VISITS + " DESC";
-		String[] colums = new String[] { BookmarkColumns._ID, BookmarkColumns.TITLE, BookmarkColumns.URL, BookmarkColumns.FAVICON };
+		String[] colums = new String[] { BookmarkColumns._ID, BookmarkColumns.TITLE, BookmarkColumns.URL, BookmarkColumns.FAVICON_ID };
 				
 		Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, orderClause);
 		
@@ -218,9 +222,9 @@ public class BookmarksProviderWrapper {
 	
 	public static BookmarkItem getStockBookmarkById(ContentResolver contentResolver, long id) {
 		BookmarkItem result = null;
-		String whereClause = BookmarkColumns._ID + " = " + id;
+		String whereClause = BookmarkColumns._ID + " = ?";
 		
-		Cursor c = contentResolver.query(BOOKMARKS_URI, sHistoryBookmarksProjection, whereClause, null, null);
+		Cursor c = contentResolver.query(BOOKMARKS_URI, sHistoryBookmarksProjection, whereClause, new String[] { Long.toString(id) }, null);
 		if (c != null) {
 			if (c.moveToFirst()) {
 				String title = c.getString(c.getColumnIndex(BookmarkColumns.TITLE));
@@ -235,30 +239,24 @@ public class BookmarksProviderWrapper {
 	}
 	
 	public static void deleteStockBookmark(ContentResolver contentResolver, long id) {
-		String whereClause = BookmarkColumns._ID + " = " + id;
-        
-		Cursor c = contentResolver.query(BOOKMARKS_URI, sHistoryBookmarksProjection, whereClause, null, null);
-		if (c != null) {
-			if (c.moveToFirst()) {
-				if (c.getInt(c.getColumnIndex(BookmarkColumns.BOOKMARK)) == 1) {
-					if (c.getInt(c.getColumnIndex(BookmarkColumns.VISITS)) > 0) {
-						
-						// If this record has been visited, keep it in history, but remove its bookmark flag.
-                        ContentValues values = new ContentValues();
-                        values.put(BookmarkColumns.BOOKMARK, 0);
-                        values.putNull(BookmarkColumns.CREATED);
-                        
-                        contentResolver.update(BOOKMARKS_URI, values, whereClause, null);
-
-					} else {
-						// never visited, it can be deleted.
-						contentResolver.delete(BOOKMARKS_URI, whereClause, null);
-					}
-				}
-			}
-			
-			c.close();
-		}
+		String[] whereArgs = new String[] { Long.toString(id) };
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+		// If this record has been visited, keep it in history, but remove its bookmark flag.
+		ContentValues values = new ContentValues();
+		values.put(BookmarkColumns.BOOKMARK, 0);
+		values.putNull(BookmarkColumns.CREATED);
+		operations.add(ContentProviderOperation.newUpdate(BOOKMARKS_URI)
+				.withValues(values)
+				.withSelection(BookmarkColumns._ID + " = ? AND " + BookmarkColumns.BOOKMARK + " = 1 AND " + BookmarkColumns.VISITS + " > 0", whereArgs)
+				.build());
+
+		// never visited, it can be deleted.
+		operations.add(ContentProviderOperation.newDelete(BOOKMARKS_URI)
+				.withSelection(BookmarkColumns._ID + " = ? AND " + BookmarkColumns.BOOKMARK + " = 1 AND (" + BookmarkColumns.VISITS + " IS NULL OR " + BookmarkColumns.VISITS + " <= 0)", whereArgs)
+				.build());
+
+		applyBatch(contentResolver, operations);
 	}
 	
 	/**
@@ -271,27 +269,11 @@ public class BookmarksProviderWrapper {
 	 * @param isBookmark If True, the record will be a bookmark.
 	 */
 	public static void setAsBookmark(ContentResolver contentResolver, long id, String title, String url, boolean isBookmark) {
-
-		boolean bookmarkExist = false;
-
+		ContentValues values = new ContentValues();
 		if (id != -1) {
-			String[] colums = new String[] { BookmarkColumns._ID };
-			String whereClause = BookmarkColumns._ID + " = " + id;
-
-			Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, null);
-			bookmarkExist = (cursor != null) && (cursor.moveToFirst());
-		} else {
-			String[] colums = new String[] { BookmarkColumns._ID };
-			String whereClause = BookmarkColumns.URL + " = \"" + url + "\"";
-
-			Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, null);
-			bookmarkExist = (cursor != null) && (cursor.moveToFirst());
-			if (bookmarkExist) {
-				id = cursor.getLong(cursor.getColumnIndex(BookmarkColumns._ID));
-			}
+			values.put(BookmarkColumns._ID, id);
 		}
 
-		ContentValues values = new ContentValues();
 		if (title != null) {
 			values.put(BookmarkColumns.TITLE, title);
 		}
@@ -307,32 +289,22 @@ public class BookmarksProviderWrapper {
 			values.put(BookmarkColumns.BOOKMARK, 0);
 		}
 
-		if (bookmarkExist) {                                    
-			contentResolver.update(BOOKMARKS_URI, values, BookmarkColumns._ID + " = " + id, null);
-		} else {                        
-			contentResolver.insert(BOOKMARKS_URI, values);
-		}
+		// Update the record with this id, or else with this url, or insert it.
+		contentResolver.insert(ZircoBookmarksContentProvider.UPSERT_URI, values);
 	}
 	
 	public static void toggleBookmark(ContentResolver contentResolver, long id, boolean bookmark) {
-		String[] colums = new String[] { BookmarkColumns._ID };
-		String whereClause = BookmarkColumns._ID + " = " + id;
-
-		Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, null);
-		boolean recordExists = (cursor != null) && (cursor.moveToFirst());
+		ContentValues values = new ContentValues();
 		
-		if (recordExists) {
-			ContentValues values = new ContentValues();
-			
-			values.put(BookmarkColumns.BOOKMARK, bookmark);
-			if (bookmark) {
-				values.put(BookmarkColumns.CREATED, new Date().getTime());
-			} else {
-				values.putNull(BookmarkColumns.CREATED);
-			}
-			
-			contentResolver.update(BOOKMARKS_URI, values, whereClause, null);
+		values.put(BookmarkColumns.BOOKMARK, bookmark);
+		if (bookmark) {
+			values.put(BookmarkColumns.CREATED, new Date().getTime());
+		} else {
+			values.putNull(BookmarkColumns.CREATED);
 		}
+		
+		// Updates nothing if the record does not exist.
+		contentResolver.update(BOOKMARKS_URI, values, BookmarkColumns._ID + " = ?", new String[] { Long.toString(id) });
 	}
 	
 	public static Cursor getStockHistory(ContentResolver contentResolver) {
@@ -348,25 +320,52 @@ public class BookmarksProviderWrapper {
 	 * @param id The history id.
 	 */
 	public static void deleteHistoryRecord(ContentResolver contentResolver, long id) {		
-		String whereClause = BookmarkColumns._ID + " = " + id;
+		String[] whereArgs = new String[] { Long.toString(id) };
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-		Cursor cursor = contentResolver.query(BOOKMARKS_URI, sHistoryBookmarksProjection, whereClause, null, null);
-		if (cursor != null) {
-			if (cursor.moveToFirst()) {
-				if (cursor.getInt(cursor.getColumnIndex(BookmarkColumns.BOOKMARK)) == 1) {
-					// The record is a bookmark, so we cannot delete it. Instead, reset its visited count and last visited date.
-					ContentValues values = new ContentValues();
-					values.put(BookmarkColumns.VISITS, 0);
-					values.putNull(BookmarkColumns.DATE);
-
-					contentResolver.update(BOOKMARKS_URI, values, whereClause, null);
-				} else {
-					// The record is not a bookmark, we can delete it.
-					contentResolver.delete(BOOKMARKS_URI, whereClause, null);
-				}
-			}
+		// If the record is a bookmark we cannot delete it. Instead, reset its visited count and last visited date.
+		ContentValues values = new ContentValues();
+		values.put(BookmarkColumns.VISITS, 0);
+		values.putNull(BookmarkColumns.DATE);
+		operations.add(ContentProviderOperation.newUpdate(BOOKMARKS_URI)
+				.withValues(values)
+				.withSelection(BookmarkColumns._ID + " = ? AND " + BookmarkColumns.BOOKMARK + " = 1", whereArgs)
+				.build());
 
-			cursor.close();
+		// If the record is not a bookmark, we can delete it.
+		operations.add(ContentProviderOperation.newDelete(BOOKMARKS_URI)
+				.withSelection(BookmarkColumns._ID + " = ? AND (" + BookmarkColumns.BOOKMARK + " IS NULL OR " + BookmarkColumns.BOOKMARK + " != 1)", whereArgs)
+				.build());
+
+		operations.add(newDeleteUnusedFaviconsOperation());
+
+		applyBatch(contentResolver, operations);
+	}
+	
+	/**
+	 * Build the deletion of the favicons no longer used by any record.
+	 * Favicons store the host of the visited sites, they must not outlive their records.
+	 * @return The operation.
+	 */
+	private static ContentProviderOperation newDeleteUnusedFaviconsOperation() {
+		return ContentProviderOperation.newDelete(ZircoBookmarksContentProvider.FAVICONS_URI)
+				.withSelection(FaviconColumns._ID + " NOT IN (SELECT " + BookmarkColumns.FAVICON_ID + " FROM " + ZircoBookmarksContentProvider.BOOKMARKS_TABLE +
+						" WHERE " + BookmarkColumns.FAVICON_ID + " IS NOT NULL)", null)
+				.build();
+	}
+	
+	/**
+	 * Apply operations on the history/bookmarks database in a single transaction.
+	 * @param contentResolver The content resolver.
+	 * @param operations The operations.
+	 */
+	private static void applyBatch(ContentResolver contentResolver, ArrayList<ContentProviderOperation> operations) {
+		try {
+			contentResolver.applyBatch(ZircoBookmarksContentProvider.AUTHORITY, operations);
+		} catch (RemoteException e) {
+			Log.w("BookmarksProviderWrapper", "Unable to update history/bookmarks: " + e.getMessage());
+		} catch (OperationApplicationException e) {
+			Log.w("BookmarksProviderWrapper", "Unable to update history/bookmarks: " + e.getMessage());
 		}
 	}
 
@@ -379,42 +378,14 @@ public class BookmarksProviderWrapper {
 	 * @param originalUrl The original url 
 	 */
 	public static void updateHistory(ContentResolver contentResolver, String title, String url, String originalUrl) {
-		String[] colums = new String[] { BookmarkColumns._ID, BookmarkColumns.URL, BookmarkColumns.BOOKMARK, BookmarkColumns.VISITS };
-		String whereClause = BookmarkColumns.URL + " = \"" + url + "\" OR " + BookmarkColumns.URL + " = \"" + originalUrl + "\"";
-
-		Cursor cursor = contentResolver.query(BOOKMARKS_URI, colums, whereClause, null, null);
-
-		if (cursor != null) {
-			if (cursor.moveToFirst()) {
-
-				long id = cursor.getLong(cursor.getColumnIndex(BookmarkColumns._ID));
-				int visits = cursor.getInt(cursor.getColumnIndex(BookmarkColumns.VISITS)) + 1;
-
-				ContentValues values = new ContentValues();
-
-				// If its not a bookmark, we can update the title. If we were doing it on bookmarks, we would override the title choosen by the user.
-				if (cursor.getInt(cursor.getColumnIndex(BookmarkColumns.BOOKMARK)) != 1) {
-					values.put(BookmarkColumns.TITLE, title);
-				}
-
-				values.put(BookmarkColumns.DATE, new Date().getTime());
-				values.put(BookmarkColumns.VISITS, visits);
-
-				contentResolver.update(BOOKMARKS_URI, values, BookmarkColumns._ID + " = " + id, null);
-
-			} else {
-				ContentValues values = new ContentValues();
-				values.put(BookmarkColumns.TITLE, title);
-				values.put(BookmarkColumns.URL, url);
-				values.put(BookmarkColumns.DATE, new Date().getTime());
-				values.put(BookmarkColumns.VISITS, 1);
-				values.put(BookmarkColumns.BOOKMARK, 0);
-
-				contentResolver.insert(BOOKMARKS_URI, values);
-			}               
+		ContentValues values = new ContentValues();
+		values.put(BookmarkColumns.TITLE, title);
+		values.put(BookmarkColumns.URL, url);
+		values.put(ZircoBookmarksContentProvider.VISIT_ORIGINAL_URL, originalUrl);
+		values.put(BookmarkColumns.DATE, new Date().getTime());
 
-			cursor.close();
-		}
+		// A single upsert: one more visit for the record of the url or of the original url, or a new record.
+		contentResolver.insert(ZircoBookmarksContentProvider.VISIT_URI, values);
 	}
 	
 	/**
@@ -440,52 +411,82 @@ public class BookmarksProviderWrapper {
 
 		String whereClause = "(" + BookmarkColumns.BOOKMARK + " = 0 OR " + BookmarkColumns.BOOKMARK + " IS NULL) AND " + BookmarkColumns.DATE + " < " + c.getTimeInMillis();
 		
-		try {
-			contentResolver.delete(BOOKMARKS_URI, whereClause, null);
-		} catch (Exception e) {
-			e.printStackTrace();
-			Log.w("BookmarksProviderWrapper", "Unable to truncate history: " + e.getMessage());
-		}
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newDelete(BOOKMARKS_URI)
+				.withSelection(whereClause, null)
+				.build());
+		operations.add(newDeleteUnusedFaviconsOperation());
+
+		applyBatch(contentResolver, operations);
 	}
     
 	/**
 	 * Update the favicon in history/bookmarks database.
+	 * The favicon is scaled to the size of the lists, stored once per content and host,
+	 * and the matching records reference it by id.
 	 * @param currentActivity The current acitivity.
 	 * @param url The url.
 	 * @param originalUrl The original url.
 	 * @param favicon The favicon.
 	 */
 	public static void updateFavicon(Activity currentActivity, String url, String originalUrl, Bitmap favicon) {
-		String whereClause;
-		
-		if (!url.equals(originalUrl)) {
-			whereClause = BookmarkColumns.URL + " = \"" + url + "\" OR " + BookmarkColumns.URL + " = \"" + originalUrl + "\"";
-		} else {
-			whereClause = BookmarkColumns.URL + " = \"" + url + "\"";
+		int size = ApplicationUtils.getFaviconSizeForBookmarks(currentActivity);
+		if ((favicon.getWidth() != size) ||
+				(favicon.getHeight() != size)) {
+			favicon = Bitmap.createScaledBitmap(favicon, size, size, true);
 		}
 
-		//BitmapDrawable icon = ApplicationUtils.getNormalizedFaviconForBookmarks(currentActivity, favicon);
-		BitmapDrawable icon = new BitmapDrawable(favicon);
-
 		ByteArrayOutputStream os = new ByteArrayOutputStream();         
-		icon.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, os);
+		favicon.compress(Bitmap.CompressFormat.PNG, 100, os);
 
-		ContentValues values = new ContentValues();
-		values.put(BookmarkColumns.FAVICON, os.toByteArray());
-		
-		// Hack: Starting from Honeycomb, simple update of the favicon through an error, it need another field to update correctly...
-		if (Build.VERSION.SDK_INT >= 11) {
-			values.put(BookmarkColumns.URL, url);
-		}
+		ContentValues faviconValues = new ContentValues();
+		faviconValues.put(FaviconColumns.HOST, url != null ? Uri.parse(url).getHost() : null);
+		faviconValues.put(FaviconColumns.DATA, os.toByteArray());
 
 		try {
-			currentActivity.getContentResolver().update(BOOKMARKS_URI, values, whereClause, null);
+			ContentResolver contentResolver = currentActivity.getContentResolver();
+			long faviconId = ContentUris.parseId(contentResolver.insert(ZircoBookmarksContentProvider.FAVICONS_URI, faviconValues));
+
+			// The visit of a new page is usually still queued, and has no record to update yet.
+			HistoryRecorder.getInstance(currentActivity).recordFavicon(url, originalUrl, faviconId);
+
+			// Only the records not already referencing this favicon.
+			String whereClause = "(" + BookmarkColumns.URL + " = ? OR " + BookmarkColumns.URL + " = ?) AND " +
+					BookmarkColumns.FAVICON_ID + " IS NOT ?";
+			String[] whereArgs = new String[] { url, originalUrl != null ? originalUrl : url, Long.toString(faviconId) };
+
+			ContentValues values = new ContentValues();
+			values.put(BookmarkColumns.FAVICON_ID, faviconId);
+
+			contentResolver.update(BOOKMARKS_URI, values, whereClause, whereArgs);
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.w("BookmarksProviderWrapper", "Unable to update favicon: " + e.getMessage());
 		}
 	}
 	
+	/**
+	 * Get the image data of a favicon.
+	 * @param contentResolver The content resolver.
+	 * @param faviconId The favicon id.
+	 * @return The favicon image data, or null if there is no such favicon.
+	 */
+	public static byte[] getFavicon(ContentResolver contentResolver, long faviconId) {
+		byte[] result = null;
+		
+		Cursor c = contentResolver.query(ContentUris.withAppendedId(ZircoBookmarksContentProvider.FAVICONS_URI, faviconId),
+				new String[] { FaviconColumns.DATA }, null, null, null);
+		
+		if (c != null) {
+			if (c.moveToFirst()) {
+				result = c.getBlob(0);
+			}
+			c.close();
+		}
+		
+		return result;
+	}
+	
 	/**
 	 * Clear the history/bookmarks table.
 	 * @param contentResolver The content resolver.
@@ -507,7 +508,18 @@ public class BookmarksProviderWrapper {
 			whereClause = BookmarkColumns.BOOKMARK + " = 1";
 		}
 		
-		contentResolver.delete(BOOKMARKS_URI, whereClause, null);		
+		if (clearHistory) {
+			// Queued visits would bring the cleared history back.
+			HistoryRecorder.discardPendingVisits();
+		}
+		
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newDelete(BOOKMARKS_URI)
+				.withSelection(whereClause, null)
+				.build());
+		operations.add(newDeleteUnusedFaviconsOperation());
+
+		applyBatch(contentResolver, operations);
 	}
 	
 	/**
@@ -553,10 +565,10 @@ public class BookmarksProviderWrapper {
 	 */
 	
 	public static Cursor getWeaveBookmarksByParentId(ContentResolver contentResolver, String parentId) {
-		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_PARENT_ID + " = \"" + parentId + "\"";
+		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_PARENT_ID + " = ?";
 		String orderClause = WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " DESC, " + WeaveColumns.WEAVE_BOOKMARKS_TITLE + " COLLATE NOCASE";
 		
-		return contentResolver.query(WeaveColumns.CONTENT_URI, WeaveColumns.WEAVE_BOOKMARKS_PROJECTION, whereClause, null, orderClause);
+		return contentResolver.query(WeaveColumns.CONTENT_URI, WeaveColumns.WEAVE_BOOKMARKS_PROJECTION, whereClause, new String[] { parentId }, orderClause);
 	}
 	
 	public static WeaveBookmarkItem getWeaveBookmarkById(ContentResolver contentResolver, long id) {
@@ -583,9 +595,9 @@ public class BookmarksProviderWrapper {
 	
 	public static long getWeaveBookmarkIdByWeaveId(ContentResolver contentResolver, String weaveId) {
 		long result = -1;
-		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_ID + " = \"" + weaveId + "\"";
+		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_ID + " = ?";
 		
-		Cursor c = contentResolver.query(WeaveColumns.CONTENT_URI, null, whereClause, null, null);
+		Cursor c = contentResolver.query(WeaveColumns.CONTENT_URI, null, whereClause, new String[] { weaveId }, null);
 		if (c != null) {
 			if (c.moveToFirst()) {
 				result = c.getLong(c.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_ID));
@@ -602,116 +614,18 @@ public class BookmarksProviderWrapper {
 	}
 	
 	public static void updateWeaveBookmark(ContentResolver contentResolver, long id, ContentValues values) {
-		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_ID + " = " + id;
-		contentResolver.update(WeaveColumns.CONTENT_URI, values, whereClause, null);
+		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_ID + " = ?";
+		contentResolver.update(WeaveColumns.CONTENT_URI, values, whereClause, new String[] { Long.toString(id) });
 		
 	}
 	
 	public static void deleteWeaveBookmarkByWeaveId(ContentResolver contentResolver, String weaveId) {
-		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_ID + " = \"" + weaveId + "\"";
-		contentResolver.delete(WeaveColumns.CONTENT_URI, whereClause, null);
+		String whereClause = WeaveColumns.WEAVE_BOOKMARKS_WEAVE_ID + " = ?";
+		contentResolver.delete(WeaveColumns.CONTENT_URI, whereClause, new String[] { weaveId });
 	}
 	
 	public static void clearWeaveBookmarks(ContentResolver contentResolver) {
 		contentResolver.delete(WeaveColumns.CONTENT_URI, null, null);
 	}
-	
-	/**
-	 * Suggestions.
-	 */
-	/**
-     * Get a cursor for suggestions, given a search pattern.
-     * Search on history and bookmarks, on title and url.
-     * The result list is sorted based on each result note.
-     * @see UrlSuggestionItem for how a note is computed.
-     * @param contentResolver The content resolver.
-     * @param pattern The pattern to search for.
-     * @param lookInWeaveBookmarks If true, suggestions will include bookmarks from weave.
-     * @return A cursor of suggections.
-     */
-    public static Cursor getUrlSuggestions(ContentResolver contentResolver, String pattern, boolean lookInWeaveBookmarks) {
-    	MatrixCursor cursor = new MatrixCursor(new String[] {UrlSuggestionCursorAdapter.URL_SUGGESTION_ID,
-    			UrlSuggestionCursorAdapter.URL_SUGGESTION_TITLE,
-    			UrlSuggestionCursorAdapter.URL_SUGGESTION_URL,
-    			UrlSuggestionCursorAdapter.URL_SUGGESTION_TYPE});
-    	
-    	if ((pattern != null) &&
-    			(pattern.length() > 0)) {
-    		
-    		String sqlPattern = "%" + pattern + "%";
-    		
-    		List<UrlSuggestionItem> results = new ArrayList<UrlSuggestionItem>();
-    		
-    		Cursor stockCursor = contentResolver.query(BOOKMARKS_URI,
-    				sHistoryBookmarksProjection,
-    				BookmarkColumns.TITLE + " LIKE '" + sqlPattern + "' OR " + BookmarkColumns.URL  + " LIKE '" + sqlPattern + "'",
-    				null,
-    				null);
-    		
-    		if (stockCursor != null) {
-    			if (stockCursor.moveToFirst()) {
-    				int titleId = stockCursor.getColumnIndex(BookmarkColumns.TITLE);
-    				int urlId = stockCursor.getColumnIndex(BookmarkColumns.URL);
-    				int bookmarkId = stockCursor.getColumnIndex(BookmarkColumns.BOOKMARK);
-    				
-    				do {
-    					boolean isFolder = stockCursor.getInt(bookmarkId) > 0 ? true : false;
-    					results.add(new UrlSuggestionItem(pattern,
-    							stockCursor.getString(titleId),
-    							stockCursor.getString(urlId),
-    							isFolder ? 2 : 1));
-    					
-    				} while (stockCursor.moveToNext());
-    			}
-    			
-    			stockCursor.close();
-    		}
-    		
-    		if (lookInWeaveBookmarks) {
-    			Cursor weaveCursor = contentResolver.query(WeaveColumns.CONTENT_URI,
-    					null,
-    					WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " = 0 AND (" +  WeaveColumns.WEAVE_BOOKMARKS_TITLE + " LIKE '" + sqlPattern + "' OR " + WeaveColumns.WEAVE_BOOKMARKS_URL  + " LIKE '" + sqlPattern + "')",
-    					null, null);
-
-    			if (weaveCursor != null) {
-    				if (weaveCursor.moveToFirst()) {
-    					
-    					int weaveTitleId = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_TITLE);
-        				int weaveUrlId = weaveCursor.getColumnIndex(WeaveColumns.WEAVE_BOOKMARKS_URL);
-    					
-    					do {
-    						results.add(new UrlSuggestionItem(pattern,
-    								weaveCursor.getString(weaveTitleId),
-    								weaveCursor.getString(weaveUrlId),
-    								3));
-    					} while (weaveCursor.moveToNext());
-    				}
-
-    				weaveCursor.close();
-    			}
-    		}
-    		
-    		// Sort results.
-    		Collections.sort(results, new UrlSuggestionItemComparator());
-    		
-    		//Log.d("Results", Integer.toString(results.size()));
-    		
-    		// Copy results to the output MatrixCursor.
-    		int idCounter = -1;
-    		for (UrlSuggestionItem item : results) {
-    			idCounter++;
-				
-				String[] row = new String[4];
-				row[0] = Integer.toString(idCounter);
-				row[1] = item.getTitle();
-				row[2] = item.getUrl();
-				row[3] = Integer.toString(item.getType());
-				
-				cursor.addRow(row);
-    		}
-    	}
-    	
-    	return cursor;
-    }
 
 }
@@ -0,0 +1,292 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zirco.providers.BookmarksProviderWrapper.BookmarkColumns;
+import org.zirco.utils.Constants;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Records the visited pages in history without touching the database on page load.
+ * Visits are queued in memory, repeat visits of an url are merged, and the queue is
+ * written in a single transaction a few seconds after the first visit, or when the
+ * browser is paused. The history truncation runs at most once a day, after a flush.
+ * The favicons received for the recently visited urls are kept, so a visit which is not
+ * written yet still gets its favicon.
+ */
+public final class HistoryRecorder {
+
+	private static final String TAG = "HistoryRecorder";
+
+	/**
+	 * Delay between the first queued visit and the flush.
+	 */
+	private static final long FLUSH_DELAY = 5 * 1000;
+
+	/**
+	 * Minimum delay between two history truncations.
+	 */
+	private static final long TRUNCATE_INTERVAL = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Number of urls whose favicon id is kept for the visits recorded after the favicon.
+	 */
+	private static final int MAX_RECENT_FAVICONS = 16;
+
+	private static HistoryRecorder sInstance = null;
+
+	private Context mContext;
+	private Handler mHandler;
+
+	// Held while visits are written, after taking the pending visits.
+	private final Object mWriteLock = new Object();
+
+	// Guarded by this.
+	private LinkedHashMap<String, Visit> mPendingVisits = new LinkedHashMap<String, Visit>();
+	private boolean mFlushScheduled = false;
+	private final LinkedHashMap<String, Long> mRecentFavicons = new LinkedHashMap<String, Long>(MAX_RECENT_FAVICONS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_RECENT_FAVICONS;
+		}
+	};
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flushNow();
+			truncateHistoryIfDue();
+		}
+	};
+
+	/**
+	 * A queued visit, merged with the later visits of the same url.
+	 */
+	private static class Visit {
+		String mTitle;
+		String mUrl;
+		String mOriginalUrl;
+		long mDate;
+		int mCount;
+		Long mFaviconId;
+	}
+
+	/**
+	 * Get the unique instance of the recorder.
+	 * @param context The current context.
+	 * @return The instance.
+	 */
+	public static synchronized HistoryRecorder getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new HistoryRecorder(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Drop the visits not written yet, and wait for the visits being written.
+	 * Must be called before clearing the history, else these visits would be written after.
+	 */
+	public static void discardPendingVisits() {
+		HistoryRecorder recorder;
+		synchronized (HistoryRecorder.class) {
+			recorder = sInstance;
+		}
+
+		// No recorder, no visits.
+		if (recorder != null) {
+			synchronized (recorder.mWriteLock) {
+				synchronized (recorder) {
+					recorder.mPendingVisits.clear();
+					recorder.mRecentFavicons.clear();
+				}
+			}
+		}
+	}
+
+	private HistoryRecorder(Context context) {
+		mContext = context;
+
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Queue a visit. Does not access the database.
+	 * @param title The page title.
+	 * @param url The page url.
+	 * @param originalUrl The original url.
+	 */
+	public synchronized void recordVisit(String title, String url, String originalUrl) {
+		if ((url == null) ||
+				(url.length() == 0)) {
+			return;
+		}
+
+		url = stripMobileView(url);
+
+		Visit visit = mPendingVisits.get(url);
+		if (visit == null) {
+			visit = new Visit();
+			visit.mUrl = url;
+			mPendingVisits.put(url, visit);
+		}
+
+		visit.mTitle = title;
+		visit.mOriginalUrl = originalUrl;
+		visit.mDate = System.currentTimeMillis();
+		visit.mCount++;
+
+		Long faviconId = mRecentFavicons.get(url);
+		if ((faviconId == null) &&
+				(originalUrl != null)) {
+			faviconId = mRecentFavicons.get(originalUrl);
+		}
+		if (faviconId != null) {
+			visit.mFaviconId = faviconId;
+		}
+
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+		}
+	}
+
+	/**
+	 * Keep the favicon of an url for its queued and upcoming visits.
+	 * The records already written are updated by the caller.
+	 * @param url The page url.
+	 * @param originalUrl The original url.
+	 * @param faviconId The id of the stored favicon.
+	 */
+	public synchronized void recordFavicon(String url, String originalUrl, long faviconId) {
+		if (url != null) {
+			url = stripMobileView(url);
+			mRecentFavicons.put(url, faviconId);
+
+			Visit visit = mPendingVisits.get(url);
+			if (visit != null) {
+				visit.mFaviconId = faviconId;
+			}
+		}
+
+		if (originalUrl != null) {
+			mRecentFavicons.put(originalUrl, faviconId);
+
+			Visit visit = mPendingVisits.get(originalUrl);
+			if (visit != null) {
+				visit.mFaviconId = faviconId;
+			}
+		}
+	}
+
+	/**
+	 * Write the queued visits in background now, e.g. when the browser is paused.
+	 */
+	public synchronized void flush() {
+		if (mFlushScheduled) {
+			mHandler.removeCallbacks(mFlushRunnable);
+		} else {
+			mFlushScheduled = true;
+		}
+		mHandler.post(mFlushRunnable);
+	}
+
+	/**
+	 * Write the queued visits in a single transaction.
+	 */
+	private void flushNow() {
+		synchronized (mWriteLock) {
+			LinkedHashMap<String, Visit> visits;
+			synchronized (this) {
+				visits = mPendingVisits;
+				mPendingVisits = new LinkedHashMap<String, Visit>();
+				mFlushScheduled = false;
+			}
+
+			if (!visits.isEmpty()) {
+				writeVisits(visits);
+			}
+		}
+	}
+
+	private void writeVisits(LinkedHashMap<String, Visit> visits) {
+		ContentValues[] values = new ContentValues[visits.size()];
+		int i = 0;
+		for (Visit visit : visits.values()) {
+			ContentValues value = new ContentValues();
+			value.put(BookmarkColumns.TITLE, visit.mTitle);
+			value.put(BookmarkColumns.URL, visit.mUrl);
+			value.put(ZircoBookmarksContentProvider.VISIT_ORIGINAL_URL, visit.mOriginalUrl);
+			value.put(BookmarkColumns.DATE, visit.mDate);
+			value.put(ZircoBookmarksContentProvider.VISIT_COUNT, visit.mCount);
+			if (visit.mFaviconId != null) {
+				value.put(BookmarkColumns.FAVICON_ID, visit.mFaviconId);
+			}
+			values[i++] = value;
+		}
+
+		try {
+			mContext.getContentResolver().bulkInsert(ZircoBookmarksContentProvider.VISIT_URI, values);
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to update history: " + e.getMessage());
+		}
+	}
+
+	private static String stripMobileView(String url) {
+		if (url.startsWith(Constants.URL_GOOGLE_MOBILE_VIEW_NO_FORMAT)) {
+			return url.substring(Constants.URL_GOOGLE_MOBILE_VIEW_NO_FORMAT.length());
+		}
+		return url;
+	}
+
+	/**
+	 * Truncate the history if the last truncation is older than a day.
+	 */
+	private void truncateHistoryIfDue() {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+		long now = System.currentTimeMillis();
+		long lastTruncation = preferences.getLong(Constants.PREFERENCES_LAST_HISTORY_TRUNCATION, 0);
+
+		// A clock set backward must not postpone the truncation forever.
+		if ((now >= lastTruncation) &&
+				(now - lastTruncation < TRUNCATE_INTERVAL)) {
+			return;
+		}
+
+		ContentResolver contentResolver = mContext.getContentResolver();
+		BookmarksProviderWrapper.truncateHistory(contentResolver,
+				preferences.getString(Constants.PREFERENCES_BROWSER_HISTORY_SIZE, "90"));
+
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putLong(Constants.PREFERENCES_LAST_HISTORY_TRUNCATION, now);
+		editor.commit();
+	}
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.providers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.zirco.model.adapters.UrlSuggestionCursorAdapter;
+import org.zirco.providers.BookmarksProviderWrapper.BookmarkColumns;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * Url suggestions for the address bar.
+ *
+ * Candidates are looked up in the full text indexes of the history/bookmarks and weave databases, a pattern
+ * matches a record when each of its words is the start of a word of the title or url. The candidates of the
+ * last pattern are kept, so when the user types one more character they are narrowed in memory instead of
+ * being queried again. Suggestions are ranked by frecency (visits weighted by how recent the last one is),
+ * bookmarks and matches on the host or title rank higher, and only the best ones are returned.
+ *
+ * The kept candidates are dropped when the history, bookmarks or weave bookmarks change.
+ */
+public class UrlSuggestionEngine {
+
+	/**
+	 * Maximum number of suggestions returned.
+	 */
+	public static final int MAX_SUGGESTIONS = 20;
+
+	private static final int TYPE_HISTORY = 1;
+	private static final int TYPE_BOOKMARK = 2;
+	private static final int TYPE_WEAVE = 3;
+
+	private static final float BOOKMARK_COEFFICIENT = 3;
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	private static final String[] BOOKMARKS_PROJECTION = new String[] { BookmarkColumns.TITLE,
+		BookmarkColumns.URL,
+		BookmarkColumns.VISITS,
+		BookmarkColumns.DATE,
+		BookmarkColumns.BOOKMARK };
+
+	private static final String BOOKMARKS_SELECTION = BookmarkColumns._ID + " IN (SELECT docid FROM " +
+		ZircoBookmarksContentProvider.BOOKMARKS_FTS_TABLE + " WHERE " + ZircoBookmarksContentProvider.BOOKMARKS_FTS_TABLE + " MATCH ?)";
+
+	private static final String[] WEAVE_PROJECTION = new String[] { WeaveColumns.WEAVE_BOOKMARKS_TITLE,
+		WeaveColumns.WEAVE_BOOKMARKS_URL };
+
+	private static final String WEAVE_SELECTION = WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " = 0 AND " +
+		WeaveColumns.WEAVE_BOOKMARKS_ID + " IN (SELECT docid FROM " + WeaveContentProvider.WEAVE_BOOKMARKS_FTS_TABLE +
+		" WHERE " + WeaveContentProvider.WEAVE_BOOKMARKS_FTS_TABLE + " MATCH ?)";
+
+	private static final String[] CURSOR_COLUMNS = new String[] { UrlSuggestionCursorAdapter.URL_SUGGESTION_ID,
+		UrlSuggestionCursorAdapter.URL_SUGGESTION_TITLE,
+		UrlSuggestionCursorAdapter.URL_SUGGESTION_URL,
+		UrlSuggestionCursorAdapter.URL_SUGGESTION_TYPE };
+
+	private static final Comparator<Candidate> SCORE_COMPARATOR = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate object1, Candidate object2) {
+			return Float.compare(object1.mScore, object2.mScore);
+		}
+	};
+
+	private final ContentResolver mContentResolver;
+	private final ContentObserver mObserver;
+
+	/**
+	 * Incremented when the indexed data changes, the kept candidates are only valid for the generation they
+	 * were queried in.
+	 */
+	private volatile int mGeneration = 0;
+
+	private String mLastPattern = null;
+	private boolean mLastLookInWeaveBookmarks;
+	private int mLastGeneration;
+	private List<Candidate> mLastCandidates = null;
+
+	/**
+	 * Constructor. Call {@link #close()} when the engine is not used anymore.
+	 * @param contentResolver The content resolver.
+	 */
+	public UrlSuggestionEngine(ContentResolver contentResolver) {
+		mContentResolver = contentResolver;
+		mObserver = new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				mGeneration++;
+			}
+		};
+
+		mContentResolver.registerContentObserver(ZircoBookmarksContentProvider.CONTENT_URI, true, mObserver);
+		mContentResolver.registerContentObserver(WeaveColumns.CONTENT_URI, true, mObserver);
+	}
+
+	/**
+	 * Stop watching the history and bookmarks.
+	 */
+	public void close() {
+		mContentResolver.unregisterContentObserver(mObserver);
+
+		synchronized (this) {
+			mLastPattern = null;
+			mLastCandidates = null;
+		}
+	}
+
+	/**
+	 * Get a cursor for suggestions, given a search pattern.
+	 * @param pattern The pattern to search for, may be null.
+	 * @param lookInWeaveBookmarks If true, suggestions will include bookmarks from weave.
+	 * @return A cursor of at most {@link #MAX_SUGGESTIONS} suggestions, best first.
+	 */
+	public synchronized Cursor getSuggestions(String pattern, boolean lookInWeaveBookmarks) {
+		MatrixCursor cursor = new MatrixCursor(CURSOR_COLUMNS);
+
+		String lowerPattern = pattern != null ? toLowerCase(pattern) : "";
+		String[] terms = tokenize(lowerPattern);
+		if (terms.length == 0) {
+			return cursor;
+		}
+
+		int generation = mGeneration;
+		List<Candidate> candidates;
+		if ((mLastCandidates != null) &&
+				(mLastGeneration == generation) &&
+				(mLastLookInWeaveBookmarks == lookInWeaveBookmarks) &&
+				lowerPattern.startsWith(mLastPattern)) {
+			// Every record matching the longer pattern also matched the previous one.
+			candidates = narrow(mLastCandidates, terms);
+		} else {
+			candidates = query(terms, lookInWeaveBookmarks);
+		}
+
+		mLastPattern = lowerPattern;
+		mLastLookInWeaveBookmarks = lookInWeaveBookmarks;
+		mLastGeneration = generation;
+		mLastCandidates = candidates;
+
+		// Keep the best suggestions in a min-heap, the worst one is evicted first.
+		long now = System.currentTimeMillis();
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(MAX_SUGGESTIONS + 1, SCORE_COMPARATOR);
+		for (Candidate candidate : candidates) {
+			candidate.mScore = score(candidate, terms[0], now);
+			if (best.size() < MAX_SUGGESTIONS) {
+				best.add(candidate);
+			} else if (candidate.mScore > best.peek().mScore) {
+				best.poll();
+				best.add(candidate);
+			}
+		}
+
+		Candidate[] sorted = new Candidate[best.size()];
+		for (int i = sorted.length - 1; i >= 0; i--) {
+			sorted[i] = best.poll();
+		}
+
+		for (int i = 0; i < sorted.length; i++) {
+			cursor.addRow(new Object[] {
+					Integer.toString(i),
+					sorted[i].mTitle,
+					sorted[i].mUrl,
+					Integer.toString(sorted[i].mType) });
+		}
+
+		return cursor;
+	}
+
+	/**
+	 * Look up all records matching the terms.
+	 * @param terms The lower case pattern terms.
+	 * @param lookInWeaveBookmarks If true, look in weave bookmarks too.
+	 * @return The matching records.
+	 */
+	private List<Candidate> query(String[] terms, boolean lookInWeaveBookmarks) {
+		List<Candidate> result = new ArrayList<Candidate>();
+
+		String[] matchArgs = new String[] { toMatchQuery(terms) };
+
+		Cursor stockCursor = mContentResolver.query(ZircoBookmarksContentProvider.CONTENT_URI, BOOKMARKS_PROJECTION, BOOKMARKS_SELECTION, matchArgs, null);
+		if (stockCursor != null) {
+			try {
+				while (stockCursor.moveToNext()) {
+					result.add(new Candidate(stockCursor.getString(0),
+							stockCursor.getString(1),
+							stockCursor.getInt(2),
+							stockCursor.getLong(3),
+							stockCursor.getInt(4) > 0 ? TYPE_BOOKMARK : TYPE_HISTORY));
+				}
+			} finally {
+				stockCursor.close();
+			}
+		}
+
+		if (lookInWeaveBookmarks) {
+			Cursor weaveCursor = mContentResolver.query(WeaveColumns.CONTENT_URI, WEAVE_PROJECTION, WEAVE_SELECTION, matchArgs, null);
+			if (weaveCursor != null) {
+				try {
+					while (weaveCursor.moveToNext()) {
+						result.add(new Candidate(weaveCursor.getString(0),
+								weaveCursor.getString(1),
+								0,
+								0,
+								TYPE_WEAVE));
+					}
+				} finally {
+					weaveCursor.close();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Filter the candidates of a previous pattern.
+	 * @param candidates The candidates of a prefix of the current pattern.
+	 * @param terms The lower case pattern terms.
+	 * @return The candidates still matching.
+	 */
+	private static List<Candidate> narrow(List<Candidate> candidates, String[] terms) {
+		List<Candidate> result = new ArrayList<Candidate>();
+		for (Candidate candidate : candidates) {
+			if (matches(candidate, terms)) {
+				result.add(candidate);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same test as the full text query: each term must start a word of the title or url.
+	 */
+	private static boolean matches(Candidate candidate, String[] terms) {
+		for (String term : terms) {
+			if (!startsWord(candidate.mLowerTitle, term) &&
+					!startsWord(candidate.mLowerUrl, term)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWord(String text, String term) {
+		int index = text.indexOf(term);
+		while (index >= 0) {
+			if ((index == 0) ||
+					!isWordChar(text.charAt(index - 1))) {
+				return true;
+			}
+			index = text.indexOf(term, index + 1);
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the rank of a candidate: its visit count weighted by the age of the last visit, like
+	 * Firefox's frecency. Bookmarks count more, and so do matches on the host or on the title.
+	 */
+	private static float score(Candidate candidate, String firstTerm, long now) {
+		float score = (candidate.mVisits + 1) * recencyWeight(now - candidate.mDate);
+		if (candidate.mType == TYPE_BOOKMARK) {
+			score *= BOOKMARK_COEFFICIENT;
+		}
+
+		float matchWeight = 1;
+		if (hostStartsWith(candidate.mLowerUrl, firstTerm)) {
+			matchWeight += 1;
+		}
+		if (startsWord(candidate.mLowerTitle, firstTerm)) {
+			matchWeight += 0.5f;
+		}
+
+		return score * matchWeight;
+	}
+
+	private static float recencyWeight(long age) {
+		if (age <= 4 * DAY) {
+			return 100;
+		} else if (age <= 14 * DAY) {
+			return 70;
+		} else if (age <= 31 * DAY) {
+			return 50;
+		} else if (age <= 90 * DAY) {
+			return 30;
+		}
+		return 10;
+	}
+
+	private static boolean hostStartsWith(String url, String term) {
+		int start = url.indexOf("://");
+		start = start >= 0 ? start + 3 : 0;
+		if (url.startsWith("www.", start)) {
+			start += 4;
+		}
+		return url.startsWith(term, start);
+	}
+
+	/**
+	 * Build a full text query requiring every term as a word prefix.
+	 */
+	private static String toMatchQuery(String[] terms) {
+		StringBuilder query = new StringBuilder();
+		for (String term : terms) {
+			if (query.length() > 0) {
+				query.append(' ');
+			}
+			query.append(term).append('*');
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Split a lower case pattern in words, the way the full text index "simple" tokenizer does.
+	 */
+	private static String[] tokenize(String text) {
+		List<String> terms = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = (i < text.length()) && isWordChar(text.charAt(i));
+			if (wordChar && (start < 0)) {
+				start = i;
+			} else if (!wordChar && (start >= 0)) {
+				terms.add(text.substring(start, i));
+				start = -1;
+			}
+		}
+		return terms.toArray(new String[terms.size()]);
+	}
+
+	/**
+	 * Word characters of the "simple" tokenizer: ASCII letters and digits, and all non ASCII characters.
+	 */
+	private static boolean isWordChar(char c) {
+		return ((c >= 'a') && (c <= 'z')) ||
+				((c >= '0') && (c <= '9')) ||
+				((c >= 'A') && (c <= 'Z')) ||
+				(c >= 128);
+	}
+
+	/**
+	 * Lower case ASCII letters only, like the "simple" tokenizer.
+	 */
+	private static String toLowerCase(String text) {
+		char[] chars = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c >= 'A') && (c <= 'Z')) {
+				if (chars == null) {
+					chars = text.toCharArray();
+				}
+				chars[i] = (char) (c + ('a' - 'A'));
+			}
+		}
+		return chars != null ? new String(chars) : text;
+	}
+
+	/**
+	 * A record matching a pattern.
+	 */
+	private static class Candidate {
+		final String mTitle;
+		final String mUrl;
+		final String mLowerTitle;
+		final String mLowerUrl;
+		final int mVisits;
+		final long mDate;
+		final int mType;
+
+		float mScore;
+
+		Candidate(String title, String url, int visits, long date, int type) {
+			mTitle = title;
+			mUrl = url;
+			mLowerTitle = title != null ? toLowerCase(title) : "";
+			mLowerUrl = url != null ? toLowerCase(url) : "";
+			mVisits = visits;
+			mDate = date;
+			mType = type;
+		}
+	}
+
+}
@@ -33,7 +33,7 @@ public class WeaveContentProvider extends ContentProvider {
 	
 	public static final String AUTHORITY = "org.zirco.providers.psiphonweavecontentprovider";
 	
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 2;
 	private static final String DATABASE_NAME = "weave.db";
 	
 	public static final String WEAVE_BOOKMARKS_TABLE = "WEAVE_BOOKMARKS";
@@ -46,6 +46,24 @@ public class WeaveContentProvider extends ContentProvider {
 		WeaveColumns.WEAVE_BOOKMARKS_URL + " TEXT, " +
 		WeaveColumns.WEAVE_BOOKMARKS_FOLDER + " BOOLEAN);";
 	
+	/**
+	 * Full text index of titles and urls for the url suggestions, the docid is the bookmark id.
+	 */
+	public static final String WEAVE_BOOKMARKS_FTS_TABLE = "WEAVE_BOOKMARKS_FTS";
+	
+	private static final String WEAVE_BOOKMARKS_FTS_TABLE_CREATE = "CREATE VIRTUAL TABLE " + WEAVE_BOOKMARKS_FTS_TABLE + " USING fts3(" +
+		WeaveColumns.WEAVE_BOOKMARKS_TITLE + ", " +
+		WeaveColumns.WEAVE_BOOKMARKS_URL + ");";
+	
+	private static final String[] WEAVE_BOOKMARKS_FTS_TRIGGERS_CREATE = {
+		"CREATE TRIGGER " + WEAVE_BOOKMARKS_FTS_TABLE + "_insert AFTER INSERT ON " + WEAVE_BOOKMARKS_TABLE + " BEGIN " +
+			"INSERT INTO " + WEAVE_BOOKMARKS_FTS_TABLE + " (docid, title, url) VALUES (new._id, new.title, new.url); END;",
+		"CREATE TRIGGER " + WEAVE_BOOKMARKS_FTS_TABLE + "_update AFTER UPDATE OF title, url ON " + WEAVE_BOOKMARKS_TABLE + " BEGIN " +
+			"UPDATE " + WEAVE_BOOKMARKS_FTS_TABLE + " SET title = new.title, url = new.url WHERE docid = new._id; END;",
+		"CREATE TRIGGER " + WEAVE_BOOKMARKS_FTS_TABLE + "_delete AFTER DELETE ON " + WEAVE_BOOKMARKS_TABLE + " BEGIN " +
+			"DELETE FROM " + WEAVE_BOOKMARKS_FTS_TABLE + " WHERE docid = old._id; END;"
+	};
+	
 	private static final int WEAVE_BOOKMARKS = 1;
 	private static final int WEAVE_BOOKMARKS_BY_ID = 2;
 	
@@ -166,10 +184,23 @@ public class WeaveContentProvider extends ContentProvider {
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(WEAVE_BOOKMARKS_TABLE_CREATE);
+			createFullTextIndex(db);
 		}
 
 		@Override
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }		
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2) {
+				createFullTextIndex(db);
+				db.execSQL("INSERT INTO " + WEAVE_BOOKMARKS_FTS_TABLE + " (docid, title, url) SELECT _id, title, url FROM " + WEAVE_BOOKMARKS_TABLE + ";");
+			}
+		}
+		
+		private static void createFullTextIndex(SQLiteDatabase db) {
+			db.execSQL(WEAVE_BOOKMARKS_FTS_TABLE_CREATE);
+			for (String trigger : WEAVE_BOOKMARKS_FTS_TRIGGERS_CREATE) {
+				db.execSQL(trigger);
+			}
+		}
 	}
 
 }
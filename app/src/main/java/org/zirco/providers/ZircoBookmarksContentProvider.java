@@ -15,16 +15,29 @@
 
 package org.zirco.providers;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import org.zirco.providers.BookmarksProviderWrapper.BookmarkColumns;
+import org.zirco.providers.BookmarksProviderWrapper.FaviconColumns;
+
+import com.psiphon3.psiphonlibrary.codec.Codec;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
 public class ZircoBookmarksContentProvider extends ContentProvider {
@@ -34,11 +47,35 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 	public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.zirco.bookmarks";
 	public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.zirco.bookmarks";
 	
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 4;
 	private static final String DATABASE_NAME = "bookmarks.db";
 	
 	public static final String BOOKMARKS_TABLE = "bookmarks";
 	
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + BOOKMARKS_TABLE);
+	
+	/**
+	 * Insert on this uri records a visit: the record with the url or the original url gets one more
+	 * visit, a new date and the title if it is not a bookmark, else a history record is inserted.
+	 * Expects the TITLE, URL, VISIT_ORIGINAL_URL and DATE values, and optionally VISIT_COUNT and
+	 * FAVICON_ID.
+	 * A bulk insert on this uri records all the visits in a single transaction.
+	 */
+	public static final Uri VISIT_URI = Uri.parse("content://" + AUTHORITY + "/" + BOOKMARKS_TABLE + "/visit");
+	
+	/**
+	 * Insert on this uri updates the record with the given _ID, or if there is no _ID value, the
+	 * record with the given URL. If there is no such record, the values are inserted.
+	 */
+	public static final Uri UPSERT_URI = Uri.parse("content://" + AUTHORITY + "/" + BOOKMARKS_TABLE + "/upsert");
+	
+	public static final String VISIT_ORIGINAL_URL = "original_url";
+	
+	/**
+	 * Number of visits to record, 1 if not set.
+	 */
+	public static final String VISIT_COUNT = "visit_count";
+	
 	private static final String BOOKMARKS_TABLE_CREATE = "CREATE TABLE " + BOOKMARKS_TABLE + " (" + 
 			BookmarksProviderWrapper.BookmarkColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             BookmarksProviderWrapper.BookmarkColumns.TITLE + " TEXT, " +
@@ -47,22 +84,101 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
             BookmarksProviderWrapper.BookmarkColumns.DATE + " LONG, " +
             BookmarksProviderWrapper.BookmarkColumns.CREATED + " LONG, " +
             BookmarksProviderWrapper.BookmarkColumns.BOOKMARK + " INTEGER, " +
-            BookmarksProviderWrapper.BookmarkColumns.FAVICON + " BLOB DEFAULT NULL);";
+            BookmarksProviderWrapper.BookmarkColumns.FAVICON + " BLOB DEFAULT NULL, " +
+            BookmarksProviderWrapper.BookmarkColumns.FAVICON_ID + " INTEGER DEFAULT NULL);";
+	
+	/**
+	 * Favicons, stored once per content hash and host and referenced by the FAVICON_ID of the
+	 * bookmarks. The FAVICON column of the bookmarks is only kept for older databases.
+	 */
+	public static final String FAVICONS_TABLE = "favicons";
+	
+	/**
+	 * Insert on this uri returns the uri of the favicon with the same HOST and DATA, stored first
+	 * if needed. The HASH is computed by the provider.
+	 */
+	public static final Uri FAVICONS_URI = Uri.parse("content://" + AUTHORITY + "/" + FAVICONS_TABLE);
+	
+	private static final String FAVICONS_TABLE_CREATE = "CREATE TABLE " + FAVICONS_TABLE + " (" +
+			FaviconColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			FaviconColumns.HASH + " TEXT NOT NULL, " +
+			FaviconColumns.HOST + " TEXT NOT NULL, " +
+			FaviconColumns.DATA + " BLOB NOT NULL, " +
+			"UNIQUE (" + FaviconColumns.HASH + ", " + FaviconColumns.HOST + "));";
+	
+	/**
+	 * Full text index of titles and urls for the url suggestions, the docid is the bookmark id.
+	 */
+	public static final String BOOKMARKS_FTS_TABLE = "bookmarks_fts";
+	
+	private static final String BOOKMARKS_FTS_TABLE_CREATE = "CREATE VIRTUAL TABLE " + BOOKMARKS_FTS_TABLE + " USING fts3(" +
+			BookmarksProviderWrapper.BookmarkColumns.TITLE + ", " +
+			BookmarksProviderWrapper.BookmarkColumns.URL + ");";
+	
+	private static final String BOOKMARKS_FTS_UPDATE_TRIGGER_CREATE = "CREATE TRIGGER " + BOOKMARKS_FTS_TABLE + "_update AFTER UPDATE OF title, url ON " + BOOKMARKS_TABLE +
+			" WHEN old.title IS NOT new.title OR old.url IS NOT new.url BEGIN " +
+			"UPDATE " + BOOKMARKS_FTS_TABLE + " SET title = new.title, url = new.url WHERE docid = new._id; END;";
+	
+	private static final String[] BOOKMARKS_FTS_TRIGGERS_CREATE = {
+		"CREATE TRIGGER " + BOOKMARKS_FTS_TABLE + "_insert AFTER INSERT ON " + BOOKMARKS_TABLE + " BEGIN " +
+			"INSERT INTO " + BOOKMARKS_FTS_TABLE + " (docid, title, url) VALUES (new._id, new.title, new.url); END;",
+		BOOKMARKS_FTS_UPDATE_TRIGGER_CREATE,
+		"CREATE TRIGGER " + BOOKMARKS_FTS_TABLE + "_delete AFTER DELETE ON " + BOOKMARKS_TABLE + " BEGIN " +
+			"DELETE FROM " + BOOKMARKS_FTS_TABLE + " WHERE docid = old._id; END;"
+	};
+	
+	/**
+	 * Lookups by url, history by date (listing and truncation), bookmarks by visits.
+	 */
+	private static final String[] BOOKMARKS_INDEXES_CREATE = {
+		"CREATE INDEX " + BOOKMARKS_TABLE + "_url ON " + BOOKMARKS_TABLE + " (" + BookmarkColumns.URL + ");",
+		"CREATE INDEX " + BOOKMARKS_TABLE + "_date ON " + BOOKMARKS_TABLE + " (" + BookmarkColumns.DATE + ");",
+		"CREATE INDEX " + BOOKMARKS_TABLE + "_bookmark ON " + BOOKMARKS_TABLE + " (" + BookmarkColumns.BOOKMARK + ", " + BookmarkColumns.VISITS + ");"
+	};
+	
+	private static final String VISIT_UPDATE = "UPDATE " + BOOKMARKS_TABLE + " SET " +
+			BookmarkColumns.TITLE + " = CASE WHEN " + BookmarkColumns.BOOKMARK + " = 1 THEN " + BookmarkColumns.TITLE + " ELSE ? END, " +
+			BookmarkColumns.DATE + " = ?, " +
+			BookmarkColumns.VISITS + " = IFNULL(" + BookmarkColumns.VISITS + ", 0) + ?, " +
+			BookmarkColumns.FAVICON_ID + " = IFNULL(?, " + BookmarkColumns.FAVICON_ID + ") " +
+			"WHERE " + BookmarkColumns._ID + " = (SELECT " + BookmarkColumns._ID + " FROM " + BOOKMARKS_TABLE +
+			" WHERE " + BookmarkColumns.URL + " = ? OR " + BookmarkColumns.URL + " = ? LIMIT 1);";
+	
+	private static final String VISIT_INSERT = "INSERT INTO " + BOOKMARKS_TABLE + " (" +
+			BookmarkColumns.TITLE + ", " +
+			BookmarkColumns.URL + ", " +
+			BookmarkColumns.DATE + ", " +
+			BookmarkColumns.VISITS + ", " +
+			BookmarkColumns.FAVICON_ID + ", " +
+			BookmarkColumns.BOOKMARK + ") VALUES (?, ?, ?, ?, ?, 0);";
 	
 	private static final int BOOKMARKS = 1;
 	private static final int BOOKMARKS_BY_ID = 2;
+	private static final int BOOKMARKS_VISIT = 3;
+	private static final int BOOKMARKS_UPSERT = 4;
+	private static final int FAVICONS = 5;
+	private static final int FAVICONS_BY_ID = 6;
 	
 	private static final UriMatcher sUriMatcher;
 	
 	private SQLiteDatabase mDb;
 	private DatabaseHelper mDbHelper;
 	
+	// Compiled once, guarded by this.
+	private SQLiteStatement mVisitUpdateStatement;
+	private SQLiteStatement mVisitInsertStatement;
+	private SQLiteStatement mChangesStatement;
+	
 	private Context mContext;
 	
 	static {
 		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		sUriMatcher.addURI(AUTHORITY, BOOKMARKS_TABLE, BOOKMARKS);
 		sUriMatcher.addURI(AUTHORITY, BOOKMARKS_TABLE + "/#", BOOKMARKS_BY_ID);
+		sUriMatcher.addURI(AUTHORITY, BOOKMARKS_TABLE + "/visit", BOOKMARKS_VISIT);
+		sUriMatcher.addURI(AUTHORITY, BOOKMARKS_TABLE + "/upsert", BOOKMARKS_UPSERT);
+		sUriMatcher.addURI(AUTHORITY, FAVICONS_TABLE, FAVICONS);
+		sUriMatcher.addURI(AUTHORITY, FAVICONS_TABLE + "/#", FAVICONS_BY_ID);
 	}
 	
 	@Override
@@ -82,6 +198,10 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 			count = mDb.delete(BOOKMARKS_TABLE, whereClause, whereArgs);
 			break;
 			
+		case FAVICONS:
+			count = mDb.delete(FAVICONS_TABLE, whereClause, whereArgs);
+			break;
+			
 		default: throw new IllegalArgumentException("Unknown URI " + uri);
 		}		
 		
@@ -96,9 +216,9 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 	public String getType(Uri uri) {
 		switch (sUriMatcher.match(uri)) {
 		case BOOKMARKS:
-			return WeaveColumns.CONTENT_TYPE;
+			return CONTENT_TYPE;
 		case BOOKMARKS_BY_ID:
-			return WeaveColumns.CONTENT_ITEM_TYPE;
+			return CONTENT_ITEM_TYPE;
 
 		default: throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -110,16 +230,204 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 		case BOOKMARKS:
 			long rowId = mDb.insert(BOOKMARKS_TABLE, null, values);
 			if (rowId > 0) {
-				Uri rowUri = ContentUris.withAppendedId(WeaveColumns.CONTENT_URI, rowId);
+				Uri rowUri = ContentUris.withAppendedId(CONTENT_URI, rowId);
 				mContext.getContentResolver().notifyChange(rowUri, null);
 				return rowUri;
 			}
 			
 			throw new SQLException("Failed to insert row into " + uri);
 			
+		case BOOKMARKS_VISIT:
+			visit(values);
+			mContext.getContentResolver().notifyChange(CONTENT_URI, null);
+			return CONTENT_URI;
+			
+		case BOOKMARKS_UPSERT:
+			upsert(values);
+			mContext.getContentResolver().notifyChange(CONTENT_URI, null);
+			return CONTENT_URI;
+			
+		case FAVICONS:
+			// Favicons never change, no need to notify.
+			return ContentUris.withAppendedId(FAVICONS_URI, insertFavicon(mDb,
+					values.getAsString(FaviconColumns.HOST),
+					values.getAsByteArray(FaviconColumns.DATA)));
+			
 		default: throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 	}
+	
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (sUriMatcher.match(uri) != BOOKMARKS_VISIT) {
+			return super.bulkInsert(uri, values);
+		}
+		
+		mDb.beginTransaction();
+		try {
+			for (ContentValues visit : values) {
+				visit(visit);
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		
+		if (values.length > 0) {
+			mContext.getContentResolver().notifyChange(CONTENT_URI, null);
+		}
+		return values.length;
+	}
+	
+	/**
+	 * Apply the operations in a single transaction.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		mDb.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			mDb.setTransactionSuccessful();
+			return results;
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+	
+	/**
+	 * Update the visited record, or insert it, with bound compiled statements.
+	 */
+	private synchronized void visit(ContentValues values) {
+		if (mVisitUpdateStatement == null) {
+			mVisitUpdateStatement = mDb.compileStatement(VISIT_UPDATE);
+			mVisitInsertStatement = mDb.compileStatement(VISIT_INSERT);
+			mChangesStatement = mDb.compileStatement("SELECT changes();");
+		}
+		
+		String title = values.getAsString(BookmarkColumns.TITLE);
+		String url = values.getAsString(BookmarkColumns.URL);
+		String originalUrl = values.getAsString(VISIT_ORIGINAL_URL);
+		long date = values.getAsLong(BookmarkColumns.DATE);
+		Integer count = values.getAsInteger(VISIT_COUNT);
+		long visits = count != null ? count : 1;
+		Long faviconId = values.getAsLong(BookmarkColumns.FAVICON_ID);
+		
+		mDb.beginTransaction();
+		try {
+			bindStringOrNull(mVisitUpdateStatement, 1, title);
+			mVisitUpdateStatement.bindLong(2, date);
+			mVisitUpdateStatement.bindLong(3, visits);
+			bindLongOrNull(mVisitUpdateStatement, 4, faviconId);
+			bindStringOrNull(mVisitUpdateStatement, 5, url);
+			bindStringOrNull(mVisitUpdateStatement, 6, originalUrl != null ? originalUrl : url);
+			mVisitUpdateStatement.execute();
+			
+			if (mChangesStatement.simpleQueryForLong() == 0) {
+				bindStringOrNull(mVisitInsertStatement, 1, title);
+				bindStringOrNull(mVisitInsertStatement, 2, url);
+				mVisitInsertStatement.bindLong(3, date);
+				mVisitInsertStatement.bindLong(4, visits);
+				bindLongOrNull(mVisitInsertStatement, 5, faviconId);
+				mVisitInsertStatement.executeInsert();
+			}
+			
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+	
+	/**
+	 * Update the record matching the _ID or URL value, or insert the values.
+	 */
+	private void upsert(ContentValues values) {
+		values = new ContentValues(values);
+		Long id = values.getAsLong(BookmarkColumns._ID);
+		values.remove(BookmarkColumns._ID);
+		String url = values.getAsString(BookmarkColumns.URL);
+		
+		mDb.beginTransaction();
+		try {
+			int count = 0;
+			if (id != null) {
+				count = mDb.update(BOOKMARKS_TABLE, values, BookmarkColumns._ID + " = ?", new String[] { Long.toString(id) });
+			} else if (url != null) {
+				count = mDb.update(BOOKMARKS_TABLE, values, BookmarkColumns.URL + " = ?", new String[] { url });
+			}
+			
+			if ((count == 0) &&
+					(mDb.insert(BOOKMARKS_TABLE, null, values) < 0)) {
+				throw new SQLException("Failed to insert row into " + BOOKMARKS_TABLE);
+			}
+			
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+	
+	/**
+	 * Get the id of the favicon with the given host and data, insert it if needed.
+	 * @param db The database.
+	 * @param host The host the favicon was received from, may be null.
+	 * @param data The favicon image data.
+	 * @return The favicon id.
+	 */
+	private static long insertFavicon(SQLiteDatabase db, String host, byte[] data) {
+		String hash = hashFavicon(data);
+		if (host == null) {
+			host = "";
+		}
+		
+		db.beginTransaction();
+		try {
+			long id;
+			Cursor c = db.query(FAVICONS_TABLE, new String[] { FaviconColumns._ID },
+					FaviconColumns.HASH + " = ? AND " + FaviconColumns.HOST + " = ?", new String[] { hash, host }, null, null, null);
+			try {
+				if (c.moveToFirst()) {
+					id = c.getLong(0);
+				} else {
+					ContentValues values = new ContentValues();
+					values.put(FaviconColumns.HASH, hash);
+					values.put(FaviconColumns.HOST, host);
+					values.put(FaviconColumns.DATA, data);
+					id = db.insertOrThrow(FAVICONS_TABLE, null, values);
+				}
+			} finally {
+				c.close();
+			}
+			
+			db.setTransactionSuccessful();
+			return id;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	private static String hashFavicon(byte[] data) {
+		try {
+			return Codec.HEX.encodeToString(MessageDigest.getInstance("SHA-1").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static void bindLongOrNull(SQLiteStatement statement, int index, Long value) {
+		if (value != null) {
+			statement.bindLong(index, value);
+		} else {
+			statement.bindNull(index);
+		}
+	}
+	
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value != null) {
+			statement.bindString(index, value);
+		} else {
+			statement.bindNull(index);
+		}
+	}
 
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
@@ -133,6 +441,13 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 			qb.setTables(BOOKMARKS_TABLE);
 			qb.appendWhere(WeaveColumns.WEAVE_BOOKMARKS_ID + " = " + uri.getPathSegments().get(1));
 			break;		
+		case FAVICONS:
+			qb.setTables(FAVICONS_TABLE);
+			break;
+		case FAVICONS_BY_ID:
+			qb.setTables(FAVICONS_TABLE);
+			qb.appendWhere(FaviconColumns._ID + " = " + ContentUris.parseId(uri));
+			break;
 		default: throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 		
@@ -169,10 +484,63 @@ public class ZircoBookmarksContentProvider extends ContentProvider {
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(BOOKMARKS_TABLE_CREATE);
+			db.execSQL(FAVICONS_TABLE_CREATE);
+			createFullTextIndex(db);
+			createIndexes(db);
 		}
 
 		@Override
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }		
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2) {
+				createFullTextIndex(db);
+				db.execSQL("INSERT INTO " + BOOKMARKS_FTS_TABLE + " (docid, title, url) SELECT _id, title, url FROM " + BOOKMARKS_TABLE + ";");
+			}
+			if (oldVersion < 3) {
+				createIndexes(db);
+				// The update trigger only runs on actual changes since version 3.
+				db.execSQL("DROP TRIGGER IF EXISTS " + BOOKMARKS_FTS_TABLE + "_update;");
+				db.execSQL(BOOKMARKS_FTS_UPDATE_TRIGGER_CREATE);
+			}
+			if (oldVersion < 4) {
+				db.execSQL("ALTER TABLE " + BOOKMARKS_TABLE + " ADD COLUMN " + BookmarkColumns.FAVICON_ID + " INTEGER DEFAULT NULL;");
+				db.execSQL(FAVICONS_TABLE_CREATE);
+				moveFavicons(db);
+			}
+		}
+		
+		/**
+		 * Move the favicons stored in each bookmark row to the favicons table.
+		 */
+		private static void moveFavicons(SQLiteDatabase db) {
+			Cursor c = db.query(BOOKMARKS_TABLE, new String[] { BookmarkColumns._ID, BookmarkColumns.URL, BookmarkColumns.FAVICON },
+					BookmarkColumns.FAVICON + " IS NOT NULL", null, null, null, null);
+			try {
+				ContentValues values = new ContentValues();
+				while (c.moveToNext()) {
+					String url = c.getString(1);
+					long id = insertFavicon(db, url != null ? Uri.parse(url).getHost() : null, c.getBlob(2));
+					values.put(BookmarkColumns.FAVICON_ID, id);
+					db.update(BOOKMARKS_TABLE, values, BookmarkColumns._ID + " = " + c.getLong(0), null);
+				}
+			} finally {
+				c.close();
+			}
+			
+			db.execSQL("UPDATE " + BOOKMARKS_TABLE + " SET " + BookmarkColumns.FAVICON + " = NULL;");
+		}
+		
+		private static void createIndexes(SQLiteDatabase db) {
+			for (String index : BOOKMARKS_INDEXES_CREATE) {
+				db.execSQL(index);
+			}
+		}
+		
+		private static void createFullTextIndex(SQLiteDatabase db) {
+			db.execSQL(BOOKMARKS_FTS_TABLE_CREATE);
+			for (String trigger : BOOKMARKS_FTS_TRIGGERS_CREATE) {
+				db.execSQL(trigger);
+			}
+		}
 	}
 
 }
@@ -17,8 +17,6 @@ package org.zirco.ui.activities;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningServiceInfo;
 import android.app.AlarmManager;
 import android.app.AlertDialog;
 import android.app.PendingIntent;
@@ -86,6 +84,7 @@ import com.psiphon3.R;
 import com.psiphon3.StatusActivity;
 import com.psiphon3.psiphonlibrary.LocalizedActivities;
 import com.psiphon3.psiphonlibrary.TunnelService;
+import com.psiphon3.psiphonlibrary.TunnelServiceRunningFlag;
 
 import net.grandcentrix.tray.AppPreferences;
 
@@ -113,12 +112,13 @@ import org.zirco.events.IDownloadEventsListener;
 import org.zirco.model.adapters.UrlSuggestionCursorAdapter;
 import org.zirco.model.items.DownloadItem;
 import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.providers.HistoryRecorder;
+import org.zirco.providers.UrlSuggestionEngine;
 import org.zirco.ui.activities.preferences.PreferencesActivity;
 import org.zirco.ui.components.CustomWebView;
 import org.zirco.ui.components.CustomWebViewClient;
 import org.zirco.ui.runnables.FaviconUpdaterRunnable;
 import org.zirco.ui.runnables.HideToolbarsRunnable;
-import org.zirco.ui.runnables.HistoryUpdater;
 import org.zirco.utils.AnimationManager;
 import org.zirco.utils.ApplicationUtils;
 import org.zirco.utils.Constants;
@@ -207,6 +207,8 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 	
 	private TextWatcher mUrlTextWatcher;
 	
+	private UrlSuggestionEngine mUrlSuggestionEngine;
+	
 	private HideToolbarsRunnable mHideToolbarsRunnable;
 	
 	private ViewFlipper mViewFlipper;
@@ -436,13 +438,9 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
      */
     private boolean ensurePsiphonRunning()
     {
-        // See com.psiphon3.StatusActivity#isServiceRunning() for details.
-        ActivityManager manager = (ActivityManager)getSystemService(ACTIVITY_SERVICE);
-        for (RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (service.uid == android.os.Process.myUid() &&
-                    TunnelService.class.getName().equals(service.service.getClassName())) {
-                return true;
-            }
+        // See com.psiphon3.psiphonlibrary.TunnelServiceRunningFlag for details.
+        if (TunnelService.class.getName().equals(TunnelServiceRunningFlag.getRunningServiceName(this))) {
+            return true;
         }
 
 
@@ -480,6 +478,10 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 		EventController.getInstance().removeDownloadListener(this);
 		
 		PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+		
+		if (mUrlSuggestionEngine != null) {
+			mUrlSuggestionEngine.close();
+		}
 
 		super.onDestroy();
 	}
@@ -648,19 +650,13 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 			}
 		});
     	
+    	mUrlSuggestionEngine = new UrlSuggestionEngine(getContentResolver());
+    	
     	adapter.setFilterQueryProvider(new FilterQueryProvider() {		
 			@Override
 			public Cursor runQuery(CharSequence constraint) {
-				if ((constraint != null) &&
-						(constraint.length() > 0)) {
-					return BookmarksProviderWrapper.getUrlSuggestions(getContentResolver(),
-							constraint.toString(),
-							PreferenceManager.getDefaultSharedPreferences(MainActivity.this).getBoolean(Constants.PREFERENCE_USE_WEAVE, false));
-				} else {
-					return BookmarksProviderWrapper.getUrlSuggestions(getContentResolver(),
-							null,
-							PreferenceManager.getDefaultSharedPreferences(MainActivity.this).getBoolean(Constants.PREFERENCE_USE_WEAVE, false));
-				}
+				return mUrlSuggestionEngine.getSuggestions(constraint != null ? constraint.toString() : null,
+						PreferenceManager.getDefaultSharedPreferences(MainActivity.this).getBoolean(Constants.PREFERENCE_USE_WEAVE, false));
 			}
 		});
     	
@@ -1128,7 +1124,7 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 			public void onReceivedTitle(WebView view, String title) {
 				setTitle(String.format(getResources().getString(R.string.ApplicationNameUrl), title)); 
 				
-				startHistoryUpdaterRunnable(title, mCurrentWebView.getUrl(), mCurrentWebView.getOriginalUrl());
+				HistoryRecorder.getInstance(MainActivity.this).recordVisit(title, mCurrentWebView.getUrl(), mCurrentWebView.getOriginalUrl());
 				
 				super.onReceivedTitle(view, title);
 			}
@@ -1563,18 +1559,6 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 		mHideToolbarsRunnable = null;
 	}
     
-    /**
-     * Start a runnable to update history.
-     * @param title The page title.
-     * @param url The page url.
-     */
-    private void startHistoryUpdaterRunnable(String title, String url, String originalUrl) {
-    	if ((url != null) &&
-    			(url.length() > 0)) {
-    		new Thread(new HistoryUpdater(this, title, url, originalUrl)).start();
-    	}
-    }
-    
     /**
      * Navigate to the given url.
      * @param url The url.
@@ -2011,6 +1995,8 @@ public class MainActivity extends LocalizedActivities.Activity implements IToolb
 	    }	    
 	    // end Psiphon changes
 	    
+		HistoryRecorder.getInstance(this).flush();
+		
 		mCurrentWebView.doOnPause();
 		super.onPause();
 	}
@@ -19,12 +19,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.List;
 
 import com.psiphon3.R;
-import org.zirco.model.items.BookmarkItem;
-import org.zirco.model.items.HistoryItem;
-import org.zirco.providers.BookmarksProviderWrapper;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -52,13 +48,6 @@ public class ApplicationUtils {
 	
 	private static String mAdSweepString = null;
 	
-	private static String mRawStartPage = null;
-	private static String mRawStartPageStyles = null;
-	private static String mRawStartPageBookmarks = null;
-	private static String mRawStartPageHistory = null;
-	
-	private static String mRawStartPageSearch = null;
-	
 	private static int mFaviconSize = -1;	
 	private static int mImageButtonSize = -1;
 	private static int mFaviconSizeForBookmarks = -1;
@@ -426,7 +415,7 @@ public class ApplicationUtils {
 	 * @param resourceId The resource id.
 	 * @return The loaded string.
 	 */
-	private static String getStringFromRawResource(Context context, int resourceId) {
+	static String getStringFromRawResource(Context context, int resourceId) {
 		String result = null;
 		
 		InputStream is = context.getResources().openRawResource(resourceId);
@@ -502,109 +491,13 @@ public class ApplicationUtils {
 		return getStringFromRawResource(context, R.raw.changelog);
 	}
 	
-	/**
-	 * Build the html result of the most recent bookmarks.
-	 * @param context The current context.
-	 * @return The html result of the most recent bookmarks.
-	 */
-	private static String getBookmarksHtml(Context context) {
-		String result = "";
-		StringBuilder bookmarksSb = new StringBuilder();
-		
-		if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_BOOKMARKS, true)) {
-			
-			int limit;
-			try {
-				limit = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context).getString(Constants.PREFERENCES_START_PAGE_BOOKMARKS_LIMIT, "5"));
-			} catch (Exception e) {
-				limit = 5;
-			}
-
-			List<BookmarkItem> results = BookmarksProviderWrapper.getStockBookmarksWithLimit(context.getContentResolver(), limit);
-			
-			for (BookmarkItem item : results) {
-				bookmarksSb.append(String.format("<li><a href=\"%s\">%s</a></li>",
-						item.getUrl(),
-						item.getTitle()));
-			}
-		}
-		
-		result = String.format(mRawStartPageBookmarks,
-				context.getResources().getString(R.string.StartPage_Bookmarks),
-				bookmarksSb.toString());
-		
-		return result;
-	}
-	
-	/**
-	 * Build the html result of the most recent history.
-	 * @param context The current context.
-	 * @return The html result of the most recent history.
-	 */
-	private static String getHistoryHtml(Context context) {
-		String result = "";
-		StringBuilder historySb = new StringBuilder();
-		
-		if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_HISTORY, true)) {			
-
-			int limit;
-			try {
-				limit = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context).getString(Constants.PREFERENCES_START_PAGE_HISTORY_LIMIT, "5"));
-			} catch (Exception e) {
-				limit = 5;
-			}
-			
-			List<HistoryItem> results = BookmarksProviderWrapper.getStockHistoryWithLimit(context.getContentResolver(), limit);
-			
-			for (HistoryItem item : results) {
-				historySb.append(String.format("<li><a href=\"%s\">%s</a></li>",
-						item.getUrl(),
-						item.getTitle()));
-			}
-		}
-		
-		result = String.format(mRawStartPageHistory,
-				context.getResources().getString(R.string.StartPage_History),
-				historySb.toString());
-		
-		return result;
-	}
-	
 	/**
 	 * Load the start page html.
 	 * @param context The current context.
 	 * @return The start page html.
 	 */
 	public static String getStartPage(Context context) {
-		
-		if (mRawStartPage == null) {
-			
-			mRawStartPage = getStringFromRawResource(context, R.raw.start);
-			mRawStartPageStyles = getStringFromRawResource(context, R.raw.start_style);
-			mRawStartPageBookmarks = getStringFromRawResource(context, R.raw.start_bookmarks);
-			mRawStartPageHistory = getStringFromRawResource(context, R.raw.start_history);
-			
-			mRawStartPageSearch = getStringFromRawResource(context, R.raw.start_search);
-		}
-		
-		String result = mRawStartPage;
-	
-		String bookmarksHtml = getBookmarksHtml(context);
-		String historyHtml = getHistoryHtml(context);
-		
-		String searchHtml = "";
-		if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_SEARCH, false)) {
-			searchHtml = String.format(mRawStartPageSearch, context.getResources().getString(R.string.StartPage_Search), context.getResources().getString(R.string.StartPage_SearchButton));
-		}
-		
-		String bodyHtml = searchHtml + bookmarksHtml + historyHtml;
-		
-		result = String.format(mRawStartPage,
-				mRawStartPageStyles,
-				context.getResources().getString(R.string.StartPage_Welcome),
-				bodyHtml);		
-		
-		return result;
+		return StartPageRenderer.getInstance(context).getStartPage();
 	}
 	
 	/**
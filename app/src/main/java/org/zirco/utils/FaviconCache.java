@@ -0,0 +1,194 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.utils;
+
+import org.zirco.providers.BookmarksProviderWrapper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Memory cache of the decoded favicons of the history/bookmarks lists.
+ * Favicons are keyed by their id in the favicons table and their displayed size: a stored
+ * favicon never changes, so a cached bitmap never needs to be invalidated.
+ * Favicons missing from the cache are loaded and decoded on a background thread, the list rows
+ * are bound on the UI thread.
+ */
+public final class FaviconCache {
+
+	/**
+	 * Size of the cache, in bytes.
+	 */
+	private static final int CACHE_SIZE = 512 * 1024;
+
+	private static FaviconCache sInstance = null;
+
+	private LruCache<Key, Bitmap> mCache;
+	
+	private ExecutorService mLoader;
+	private Handler mMainHandler;
+
+	/**
+	 * Cache key, a favicon scaled to a given size.
+	 */
+	private static final class Key {
+
+		private final long mFaviconId;
+		private final int mSize;
+
+		Key(long faviconId, int size) {
+			mFaviconId = faviconId;
+			mSize = size;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return (mFaviconId == other.mFaviconId) &&
+					(mSize == other.mSize);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (int) (mFaviconId ^ (mFaviconId >>> 32)) + mSize;
+		}
+	}
+
+	/**
+	 * Get the unique instance of the cache.
+	 * @return The instance.
+	 */
+	public static synchronized FaviconCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new FaviconCache();
+		}
+		return sInstance;
+	}
+
+	private FaviconCache() {
+		mCache = new LruCache<Key, Bitmap>(CACHE_SIZE) {
+			@Override
+			protected int sizeOf(Key key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		mLoader = Executors.newSingleThreadExecutor();
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+	
+	/**
+	 * Display a favicon in an image view. A cached favicon is displayed right away, otherwise
+	 * the default icon is displayed until the favicon is loaded.
+	 * The view tag is used to drop a loaded favicon if the view has been recycled for another row meanwhile.
+	 * @param contentResolver The content resolver.
+	 * @param view The image view.
+	 * @param faviconId The favicon id, or null if the record has no favicon.
+	 * @param size The displayed size of the favicon, in pixels.
+	 * @param defaultResId The resource id of the default icon.
+	 */
+	public void displayFavicon(final ContentResolver contentResolver, final ImageView view, Long faviconId, int size, int defaultResId) {
+		if (faviconId == null) {
+			view.setTag(null);
+			view.setImageResource(defaultResId);
+			return;
+		}
+		
+		final Key key = new Key(faviconId, size);
+		Bitmap favicon = mCache.get(key);
+		if (favicon != null) {
+			view.setTag(null);
+			view.setImageBitmap(favicon);
+			return;
+		}
+		
+		view.setTag(key);
+		view.setImageResource(defaultResId);
+		mLoader.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Bitmap loadedFavicon = getFavicon(contentResolver, key.mFaviconId, key.mSize);
+				if (loadedFavicon == null) {
+					return;
+				}
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (key.equals(view.getTag())) {
+							view.setImageBitmap(loadedFavicon);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Get a favicon if it is in the cache, without loading it.
+	 * @param faviconId The favicon id.
+	 * @param size The displayed size of the favicon, in pixels.
+	 * @return The favicon, or null if it is not in the cache.
+	 */
+	public Bitmap getCachedFavicon(long faviconId, int size) {
+		return mCache.get(new Key(faviconId, size));
+	}
+
+	/**
+	 * Get a favicon, loaded and decoded from the database if it is not in the cache yet.
+	 * Must not be called on the UI thread.
+	 * @param contentResolver The content resolver.
+	 * @param faviconId The favicon id.
+	 * @param size The displayed size of the favicon, in pixels.
+	 * @return The favicon, or null if there is no such favicon.
+	 */
+	public Bitmap getFavicon(ContentResolver contentResolver, long faviconId, int size) {
+		Key key = new Key(faviconId, size);
+		Bitmap favicon = mCache.get(key);
+		if (favicon != null) {
+			return favicon;
+		}
+
+		byte[] data = BookmarksProviderWrapper.getFavicon(contentResolver, faviconId);
+		if (data == null) {
+			return null;
+		}
+
+		favicon = BitmapFactory.decodeByteArray(data, 0, data.length);
+		if (favicon == null) {
+			return null;
+		}
+
+		// Favicons stored by older versions are not normalized yet.
+		if ((favicon.getWidth() != size) ||
+				(favicon.getHeight() != size)) {
+			favicon = Bitmap.createScaledBitmap(favicon, size, size, true);
+		}
+
+		mCache.put(key, favicon);
+		return favicon;
+	}
+
+}
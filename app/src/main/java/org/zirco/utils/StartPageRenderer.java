@@ -0,0 +1,263 @@
+/*
+ * Zirco Browser for Android
+ *
+ * Copyright (C) 2010 - 2011 J. Devauchelle and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 3 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package org.zirco.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.psiphon3.R;
+import org.zirco.model.items.BookmarkItem;
+import org.zirco.model.items.HistoryItem;
+import org.zirco.providers.BookmarksProviderWrapper;
+import org.zirco.providers.ZircoBookmarksContentProvider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.ContentObserver;
+import android.preference.PreferenceManager;
+
+/**
+ * Renders the start page and caches the result.
+ * The templates are parsed once, and each part of the page is rebuilt only when the
+ * bookmarks/history or the start page preferences it depends on change.
+ */
+public final class StartPageRenderer {
+
+	private static StartPageRenderer sInstance = null;
+
+	private Context mContext;
+	private SharedPreferences mPreferences;
+
+	private Template mPageTemplate;
+	private String mStyles;
+	private Template mBookmarksTemplate;
+	private Template mHistoryTemplate;
+	private Template mSearchTemplate;
+
+	// Guarded by this, null when invalidated.
+	private Locale mLocale = null;
+	private String mBookmarksHtml = null;
+	private String mHistoryHtml = null;
+	private String mSearchHtml = null;
+	private String mStartPage = null;
+
+	/**
+	 * Invalidate the bookmarks and history on any change of the history/bookmarks database.
+	 */
+	private final ContentObserver mBookmarksObserver = new ContentObserver(null) {
+		@Override
+		public void onChange(boolean selfChange) {
+			synchronized (StartPageRenderer.this) {
+				mBookmarksHtml = null;
+				mHistoryHtml = null;
+				mStartPage = null;
+			}
+		}
+	};
+
+	// Kept here, the preferences only keep a weak reference to their listeners.
+	private final OnSharedPreferenceChangeListener mPreferenceChangeListener = new OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			synchronized (StartPageRenderer.this) {
+				if (Constants.PREFERENCES_START_PAGE_SHOW_BOOKMARKS.equals(key) ||
+						Constants.PREFERENCES_START_PAGE_BOOKMARKS_LIMIT.equals(key)) {
+					mBookmarksHtml = null;
+				} else if (Constants.PREFERENCES_START_PAGE_SHOW_HISTORY.equals(key) ||
+						Constants.PREFERENCES_START_PAGE_HISTORY_LIMIT.equals(key)) {
+					mHistoryHtml = null;
+				} else if (Constants.PREFERENCES_START_PAGE_SHOW_SEARCH.equals(key)) {
+					mSearchHtml = null;
+				} else {
+					return;
+				}
+				mStartPage = null;
+			}
+		}
+	};
+
+	/**
+	 * A template with "%s" placeholders, split once into its constant parts.
+	 */
+	private static final class Template {
+
+		private final String[] mParts;
+
+		Template(String template) {
+			List<String> parts = new ArrayList<String>();
+			StringBuilder part = new StringBuilder();
+			int length = template.length();
+			for (int i = 0; i < length; i++) {
+				char c = template.charAt(i);
+				if ((c == '%') &&
+						(i + 1 < length)) {
+					char next = template.charAt(i + 1);
+					if (next == 's') {
+						parts.add(part.toString());
+						part.setLength(0);
+						i++;
+						continue;
+					} else if (next == '%') {
+						i++;
+					}
+				}
+				part.append(c);
+			}
+			parts.add(part.toString());
+			mParts = parts.toArray(new String[parts.size()]);
+		}
+
+		String render(String... args) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < mParts.length; i++) {
+				sb.append(mParts[i]);
+				if ((i < args.length) &&
+						(i < mParts.length - 1)) {
+					sb.append(args[i]);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Get the unique instance of the renderer.
+	 * @param context The current context.
+	 * @return The instance.
+	 */
+	public static synchronized StartPageRenderer getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new StartPageRenderer(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private StartPageRenderer(Context context) {
+		mContext = context;
+
+		mPageTemplate = new Template(ApplicationUtils.getStringFromRawResource(context, R.raw.start));
+		mStyles = ApplicationUtils.getStringFromRawResource(context, R.raw.start_style);
+		mBookmarksTemplate = new Template(ApplicationUtils.getStringFromRawResource(context, R.raw.start_bookmarks));
+		mHistoryTemplate = new Template(ApplicationUtils.getStringFromRawResource(context, R.raw.start_history));
+		mSearchTemplate = new Template(ApplicationUtils.getStringFromRawResource(context, R.raw.start_search));
+
+		mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+		mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+		context.getContentResolver().registerContentObserver(ZircoBookmarksContentProvider.CONTENT_URI, true, mBookmarksObserver);
+	}
+
+	/**
+	 * Get the start page html, rebuilt if needed.
+	 * @return The start page html.
+	 */
+	public synchronized String getStartPage() {
+		// The texts of the page depend on the locale.
+		Locale locale = mContext.getResources().getConfiguration().locale;
+		if (!locale.equals(mLocale)) {
+			mLocale = locale;
+			mBookmarksHtml = null;
+			mHistoryHtml = null;
+			mSearchHtml = null;
+			mStartPage = null;
+		}
+
+		if (mStartPage == null) {
+			if (mSearchHtml == null) {
+				mSearchHtml = getSearchHtml();
+			}
+			if (mBookmarksHtml == null) {
+				mBookmarksHtml = getBookmarksHtml();
+			}
+			if (mHistoryHtml == null) {
+				mHistoryHtml = getHistoryHtml();
+			}
+
+			mStartPage = mPageTemplate.render(mStyles,
+					mContext.getString(R.string.StartPage_Welcome),
+					mSearchHtml + mBookmarksHtml + mHistoryHtml);
+		}
+
+		return mStartPage;
+	}
+
+	/**
+	 * Build the html result of the search box.
+	 * @return The html result of the search box, empty if it is disabled.
+	 */
+	private String getSearchHtml() {
+		if (!mPreferences.getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_SEARCH, false)) {
+			return "";
+		}
+
+		return mSearchTemplate.render(mContext.getString(R.string.StartPage_Search),
+				mContext.getString(R.string.StartPage_SearchButton));
+	}
+
+	/**
+	 * Build the html result of the most visited bookmarks.
+	 * @return The html result of the most visited bookmarks.
+	 */
+	private String getBookmarksHtml() {
+		StringBuilder bookmarksSb = new StringBuilder();
+
+		if (mPreferences.getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_BOOKMARKS, true)) {
+			int limit = getLimit(Constants.PREFERENCES_START_PAGE_BOOKMARKS_LIMIT);
+
+			List<BookmarkItem> results = BookmarksProviderWrapper.getStockBookmarksWithLimit(mContext.getContentResolver(), limit);
+			for (BookmarkItem item : results) {
+				appendListItem(bookmarksSb, item.getUrl(), item.getTitle());
+			}
+		}
+
+		return mBookmarksTemplate.render(mContext.getString(R.string.StartPage_Bookmarks),
+				bookmarksSb.toString());
+	}
+
+	/**
+	 * Build the html result of the most recent history.
+	 * @return The html result of the most recent history.
+	 */
+	private String getHistoryHtml() {
+		StringBuilder historySb = new StringBuilder();
+
+		if (mPreferences.getBoolean(Constants.PREFERENCES_START_PAGE_SHOW_HISTORY, true)) {
+			int limit = getLimit(Constants.PREFERENCES_START_PAGE_HISTORY_LIMIT);
+
+			List<HistoryItem> results = BookmarksProviderWrapper.getStockHistoryWithLimit(mContext.getContentResolver(), limit);
+			for (HistoryItem item : results) {
+				appendListItem(historySb, item.getUrl(), item.getTitle());
+			}
+		}
+
+		return mHistoryTemplate.render(mContext.getString(R.string.StartPage_History),
+				historySb.toString());
+	}
+
+	private int getLimit(String key) {
+		try {
+			return Integer.parseInt(mPreferences.getString(key, "5"));
+		} catch (Exception e) {
+			return 5;
+		}
+	}
+
+	private static void appendListItem(StringBuilder sb, String url, String title) {
+		sb.append("<li><a href=\"").append(url).append("\">").append(title).append("</a></li>");
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import net.grandcentrix.tray.mock.MockTrayModulePreferences;
+import net.grandcentrix.tray.provider.ContentProviderStorage;
+import net.grandcentrix.tray.provider.MockProvider;
+import net.grandcentrix.tray.provider.TrayProviderTestCase;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.Collections;
+
+@SuppressLint("CommitPrefEdits")
+public class PreferenceEditorTest extends TrayProviderTestCase {
+
+    public static final String SHARED_PREF_NAME = "editorTest";
+
+    private MockTrayModulePreferences mPreferences;
+
+    private SharedPreferences mSharedPrefs;
+
+    public void testCommit() throws Exception {
+        mPreferences.edit()
+                .put("string", "value")
+                .put("int", 1)
+                .put("long", 2L)
+                .put("float", 3.5f)
+                .put("boolean", true)
+                .put("null", (String) null)
+                .commit();
+
+        assertEquals(6, mPreferences.getAll().size());
+        assertEquals("value", mPreferences.getString("string"));
+        assertEquals(1, mPreferences.getInt("int"));
+        assertEquals(2L, mPreferences.getLong("long"));
+        assertEquals(3.5f, mPreferences.getFloat("float"));
+        assertTrue(mPreferences.getBoolean("boolean"));
+        assertNull(mPreferences.getString("null"));
+    }
+
+    public void testCommitEmpty() throws Exception {
+        mPreferences.edit().commit();
+        assertEquals(0, mPreferences.getAll().size());
+    }
+
+    public void testCommitUpdatesAndKeepsCreated() throws Exception {
+        mPreferences.put("key", "old");
+        final TrayItem before = mPreferences.getPref("key");
+        assertNotNull(before);
+
+        mPreferences.edit()
+                .put("key", "new")
+                .put("other", "value")
+                .commit();
+
+        final TrayItem after = mPreferences.getPref("key");
+        assertNotNull(after);
+        assertEquals("new", after.value());
+        assertEquals(before.created(), after.created());
+        assertEquals(2, mPreferences.getAll().size());
+    }
+
+    public void testLastPutWins() throws Exception {
+        mPreferences.edit()
+                .put("key", "first")
+                .put("key", "second")
+                .commit();
+        assertEquals(1, mPreferences.getAll().size());
+        assertEquals("second", mPreferences.getString("key"));
+    }
+
+    public void testMigrate() throws Exception {
+        mSharedPrefs.edit()
+                .putString("a", "valueA")
+                .putInt("b", 2)
+                .commit();
+
+        mPreferences.edit()
+                .migrate(new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "a", "trayA"),
+                        new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "b", "trayB"),
+                        new SharedPreferencesImport(getContext(), SHARED_PREF_NAME, "c", "trayC"))
+                .put("plain", "value")
+                .commit();
+
+        assertEquals("valueA", mPreferences.getString("trayA"));
+        assertEquals(2, mPreferences.getInt("trayB"));
+        assertEquals("a", mPreferences.getPref("trayA").migratedKey());
+        assertNull(mPreferences.getPref("trayC"));
+        assertEquals("value", mPreferences.getString("plain"));
+
+        // migrated keys are removed from the SharedPreferences after the commit
+        assertFalse(mSharedPrefs.contains("a"));
+        assertFalse(mSharedPrefs.contains("b"));
+    }
+
+    public void testNotificationUriSelectsChangedKeys() throws Exception {
+        mPreferences.put("unchanged", "value");
+        mPreferences.edit()
+                .put("a", "1")
+                .put("b", "2")
+                .commit();
+
+        // the uri bulkInsert notifies with
+        final Uri uri = MockProvider.getUserContentUri().buildUpon()
+                .appendPath(mPreferences.getName())
+                .appendQueryParameter("key", "a")
+                .appendQueryParameter("key", "b")
+                .build();
+        final Cursor cursor = getMockContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testUndefinedStorageThrows() throws Exception {
+        final TrayStorage storage = new ContentProviderStorage(getProviderMockContext(),
+                "editorUndefined", TrayStorage.Type.UNDEFINED);
+        try {
+            storage.putAll(Collections.<TrayItem>emptyList());
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPreferences = new MockTrayModulePreferences(getProviderMockContext(), "editorModule");
+        mSharedPrefs = getContext()
+                .getSharedPreferences(SHARED_PREF_NAME, Context.MODE_PRIVATE);
+        mSharedPrefs.edit().clear().commit();
+    }
+}
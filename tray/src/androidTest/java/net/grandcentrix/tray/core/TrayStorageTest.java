@@ -20,10 +20,43 @@ import junit.framework.TestCase;
 
 import net.grandcentrix.tray.mock.MockTrayStorage;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
 public class TrayStorageTest extends TestCase {
 
     public void testGetModule() throws Exception {
         final MockTrayStorage storage = new MockTrayStorage("test");
         assertEquals("test", storage.getModuleName());
     }
+
+    public void testStringSet() throws Exception {
+        final MockTrayStorage storage = new MockTrayStorage("test");
+        assertNull(storage.getStringSet("key"));
+        assertFalse(storage.stringSetContains("key", "a"));
+
+        storage.addToStringSet("key", Arrays.asList("b", "a"));
+        storage.addToStringSet("key", Arrays.asList("a", "c"));
+        assertEquals(Arrays.asList("b", "a", "c"), new ArrayList<>(storage.getStringSet("key")));
+        assertTrue(storage.stringSetContains("key", "c"));
+
+        storage.removeFromStringSet("key", Arrays.asList("b", "unknown"));
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<>(storage.getStringSet("key")));
+
+        storage.putStringSet("key", Collections.singletonList("d"));
+        assertEquals(Collections.singleton("d"), storage.getStringSet("key"));
+
+        storage.put("key", "string");
+        try {
+            storage.removeFromStringSet("key", Collections.singletonList("d"));
+            fail();
+        } catch (WrongTypeException e) {
+            assertTrue(e.getMessage().contains("key"));
+        }
+
+        // replaces the item of another type
+        storage.addToStringSet("key", Collections.singletonList("e"));
+        assertEquals(Collections.singleton("e"), storage.getStringSet("key"));
+    }
 }
\ No newline at end of file
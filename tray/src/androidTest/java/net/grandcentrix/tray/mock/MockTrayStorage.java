@@ -19,6 +19,8 @@ package net.grandcentrix.tray.mock;
 import net.grandcentrix.tray.core.OnTrayPreferenceChangeListener;
 import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.ValueType;
+import net.grandcentrix.tray.core.WrongTypeException;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -27,6 +29,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Created by pascalwelsch on 11/21/14.
@@ -37,16 +41,36 @@ public class MockTrayStorage extends TrayStorage {
 
     private HashMap<String, TrayItem> mData = new HashMap<>();
 
+    private HashMap<String, LinkedHashSet<String>> mSets = new HashMap<>();
+
     private int mVersion = 0;
 
     public MockTrayStorage(final String module) {
         super(module, Type.USER);
     }
 
+    @Override
+    public void addToStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        final TrayItem saved = mData.get(key);
+        if (saved == null || saved.type() != ValueType.STRING_SET) {
+            putStringSet(key, elements);
+            return;
+        }
+        mSets.get(key).addAll(elements);
+    }
+
     @Override
     public void annex(final TrayStorage oldStorage) {
         for (final TrayItem trayItem : oldStorage.getAll()) {
             mData.put(trayItem.key(), trayItem);
+            if (trayItem.type() == ValueType.STRING_SET) {
+                final Set<String> elements = oldStorage.getStringSet(trayItem.key());
+                mSets.put(trayItem.key(), elements == null
+                        ? new LinkedHashSet<String>() : new LinkedHashSet<>(elements));
+            } else {
+                mSets.remove(trayItem.key());
+            }
         }
         oldStorage.wipe();
     }
@@ -54,6 +78,7 @@ public class MockTrayStorage extends TrayStorage {
     @Override
     public void clear() {
         mData.clear();
+        mSets.clear();
     }
 
     @Override
@@ -67,6 +92,13 @@ public class MockTrayStorage extends TrayStorage {
         return mData.values();
     }
 
+    @Nullable
+    @Override
+    public Set<String> getStringSet(@NonNull final String key) {
+        final LinkedHashSet<String> elements = getSet(key);
+        return elements == null ? null : new LinkedHashSet<>(elements);
+    }
+
     @Override
     public int getVersion() {
         return mVersion;
@@ -74,23 +106,13 @@ public class MockTrayStorage extends TrayStorage {
 
     @Override
     public void put(final TrayItem item) {
-        put(item.key(), item.value());
+        save(item.key(), item.migratedKey(), item.value(), item.type());
     }
 
     @Override
     public void put(@NonNull final String key, @Nullable final String migrationKey,
             final Object data) {
-        final TrayItem saved = this.mData.get(key);
-        final String value = String.valueOf(data);
-        final Date now = new Date();
-        final TrayItem item;
-        if (saved == null) {
-            item = new TrayItem(getModuleName(), key, migrationKey, value, now, now);
-        } else {
-            final Date created = saved.created();
-            item = new TrayItem(getModuleName(), key, migrationKey, value, created, now);
-        }
-        this.mData.put(key, item);
+        save(key, migrationKey, String.valueOf(data), null);
     }
 
     @Override
@@ -98,6 +120,17 @@ public class MockTrayStorage extends TrayStorage {
         put(key, null, data);
     }
 
+    @Override
+    public void putStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        final TrayItem saved = mData.get(key);
+        final Date now = new Date();
+        final Date created = saved == null ? now : saved.created();
+        mData.put(key, new TrayItem(getModuleName(), key, null, null, ValueType.STRING_SET,
+                created, now));
+        mSets.put(key, new LinkedHashSet<>(elements));
+    }
+
     @Override
     public void registerOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
@@ -107,6 +140,16 @@ public class MockTrayStorage extends TrayStorage {
     @Override
     public void remove(@NonNull final String key) {
         mData.remove(key);
+        mSets.remove(key);
+    }
+
+    @Override
+    public void removeFromStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        final LinkedHashSet<String> set = getSet(key);
+        if (set != null) {
+            set.removeAll(elements);
+        }
     }
 
     @Override
@@ -114,6 +157,12 @@ public class MockTrayStorage extends TrayStorage {
         this.mVersion = version;
     }
 
+    @Override
+    public boolean stringSetContains(@NonNull final String key, @NonNull final String element) {
+        final LinkedHashSet<String> elements = getSet(key);
+        return elements != null && elements.contains(element);
+    }
+
     @Override
     public void unregisterOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
@@ -123,6 +172,35 @@ public class MockTrayStorage extends TrayStorage {
     @Override
     public void wipe() {
         mData.clear();
+        mSets.clear();
         mVersion = 0;
     }
+
+    private void save(@NonNull final String key, @Nullable final String migrationKey,
+            @Nullable final String value, @Nullable final ValueType type) {
+        final TrayItem saved = this.mData.get(key);
+        final Date now = new Date();
+        final Date created = saved == null ? now : saved.created();
+        this.mData.put(key, new TrayItem(getModuleName(), key, migrationKey, value, type,
+                created, now));
+        if (type != ValueType.STRING_SET) {
+            this.mSets.remove(key);
+        } else if (!this.mSets.containsKey(key)) {
+            // the elements of a set saved before are kept, as the ContentProviderStorage does
+            this.mSets.put(key, new LinkedHashSet<String>());
+        }
+    }
+
+    @Nullable
+    private LinkedHashSet<String> getSet(@NonNull final String key) {
+        final TrayItem saved = mData.get(key);
+        if (saved == null) {
+            return null;
+        }
+        if (saved.type() != ValueType.STRING_SET) {
+            throw new WrongTypeException("The item for key <" + key + "> is no set but "
+                    + saved.type());
+        }
+        return mSets.get(key);
+    }
 }
@@ -10,6 +10,7 @@ import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -18,6 +19,11 @@ import java.util.concurrent.TimeUnit;
  */
 public class ChangedListenerTest extends TrayProviderTestCase {
 
+    /**
+     * strong reference, the storage only keeps weak references to its listeners
+     */
+    private OnTrayPreferenceChangeListener mListener;
+
     public void testApiLevel15OnChange() throws Exception {
         final CountDownLatch latch = new CountDownLatch(
                 2); // first time called in checkChangeListener() second time in this test
@@ -44,7 +50,65 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         }.start();
 
         latch.await(3000, TimeUnit.MILLISECONDS);
-        assertEquals(2, changed.size());
+        // "the" from checkChangeListener(), then both items put here with a single call
+        assertEquals(3, changed.size());
+    }
+
+    public void testListenerGetsMergedChanges() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testMerged", TrayStorage.Type.USER);
+        final List<Collection<TrayItem>> calls = registerWithoutLooper(storage);
+
+        storage.put("a", "1");
+        storage.put("b", "2");
+        storage.put("a", "3");
+        storage.put("removed", "4");
+        storage.remove("removed");
+        new ContentProviderStorage(getProviderMockContext(), "otherModule",
+                TrayStorage.Type.USER).put("a", "other");
+
+        // two notifications for the same changes
+        storage.mObserver.onChange(false, null);
+        storage.mObserver.onChange(false, null);
+
+        assertEquals(1, calls.size());
+        final List<TrayItem> items = new ArrayList<>(calls.get(0));
+        assertEquals(2, items.size());
+        assertEquals("b", items.get(0).key());
+        assertEquals("2", items.get(0).value());
+        assertEquals("a", items.get(1).key());
+        assertEquals("3", items.get(1).value());
+
+        // only removed, the listener still gets notified
+        storage.remove("a");
+        storage.mObserver.onChange(false, null);
+        assertEquals(2, calls.size());
+        assertEquals(0, calls.get(1).size());
+    }
+
+    public void testListenerGetsModuleWhenChangesAreTrimmed() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testTrimmed", TrayStorage.Type.USER);
+        storage.put("old", "value");
+        final List<Collection<TrayItem>> calls = registerWithoutLooper(storage);
+
+        storage.put("a", "1");
+        storage.put("b", "2");
+        // simulate the trimming of changes the observer has not seen yet
+        getProvider().mUserDbHelper.getWritableDatabase().delete(
+                TrayDBHelper.CHANGES_TABLE_NAME, TrayDBHelper.SEQUENCE + " < (SELECT MAX("
+                        + TrayDBHelper.SEQUENCE + ") FROM " + TrayDBHelper.CHANGES_TABLE_NAME
+                        + ")", null);
+
+        storage.mObserver.onChange(false, null);
+        assertEquals(1, calls.size());
+        assertEquals(3, calls.get(0).size());
+
+        // back in sync
+        storage.put("c", "3");
+        storage.mObserver.onChange(false, null);
+        assertEquals(2, calls.size());
+        assertEquals(1, calls.get(1).size());
     }
 
     public void testListenerRegisteredFromLooperThread() throws Exception {
@@ -152,11 +216,11 @@ public class ChangedListenerTest extends TrayProviderTestCase {
                     // to get the change from the content provider.
                     //
                     // tl;dr the ContentObserver does not work in a ProviderTestCase2 so I call the
-                    // listener myself instead of changing data.
+                    // observer myself after changing data.
                     //
                     // wasted hours so far: 12
 
-                    // userStorage.put("the", "change");
+                    userStorage.put("the", "change");
                     userStorage.mObserver.onChange(false, uri);
                 }
             }.start();
@@ -166,7 +230,7 @@ public class ChangedListenerTest extends TrayProviderTestCase {
                 public void run() {
                     // see explanation above
 
-                    // userStorage.put("the", "change");
+                    userStorage.put("the", "change");
                     userStorage.mObserver.onChange(false, uri);
                 }
             }).start();
@@ -180,4 +244,30 @@ public class ChangedListenerTest extends TrayProviderTestCase {
 
         return userStorage;
     }
+
+    /**
+     * registers a listener from a thread without a looper, the listener gets called on the
+     * thread calling {@link ContentProviderStorage.TrayContentObserver#onChange(boolean, Uri)}
+     *
+     * @return the items of every listener call
+     */
+    private List<Collection<TrayItem>> registerWithoutLooper(
+            final ContentProviderStorage storage) throws Exception {
+        final List<Collection<TrayItem>> calls = new ArrayList<>();
+        mListener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                calls.add(items);
+            }
+        };
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storage.registerOnTrayPreferenceChangeListener(mListener);
+            }
+        });
+        thread.start();
+        thread.join();
+        return calls;
+    }
 }
@@ -21,8 +21,13 @@ import junit.framework.Assert;
 import net.grandcentrix.tray.core.TrayItem;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.ValueType;
+import net.grandcentrix.tray.core.WrongTypeException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Created by pascalwelsch on 11/21/14.
@@ -292,6 +297,24 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
         assertDeviceDatabaseSize(1);
     }
 
+    public void testPutSavesType() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testPutSavesType", TrayStorage.Type.USER);
+        storage.put("string", TEST_STRING);
+        storage.put("null", null);
+        storage.put("int", 1);
+        storage.put("long", 1L);
+        storage.put("float", 1f);
+        storage.put("boolean", true);
+
+        assertEquals(ValueType.STRING, storage.get("string").type());
+        assertEquals(ValueType.STRING, storage.get("null").type());
+        assertEquals(ValueType.INT, storage.get("int").type());
+        assertEquals(ValueType.LONG, storage.get("long").type());
+        assertEquals(ValueType.FLOAT, storage.get("float").type());
+        assertEquals(ValueType.BOOLEAN, storage.get("boolean").type());
+    }
+
     public void testPutUser() throws Exception {
         final ContentProviderStorage storage =
                 new ContentProviderStorage(getProviderMockContext(), "testPut_User", TrayStorage.Type.USER);
@@ -406,6 +429,121 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
     }
 
     // not really necessary but required for 100% test coverage
+    public void testStringSet() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testStringSet", TrayStorage.Type.USER);
+        assertNull(storage.getStringSet(TEST_KEY));
+        assertFalse(storage.stringSetContains(TEST_KEY, "a"));
+
+        storage.putStringSet(TEST_KEY, Arrays.asList("c", "a", "b"));
+        assertEquals(ValueType.STRING_SET, storage.get(TEST_KEY).type());
+        assertEquals(Arrays.asList("c", "a", "b"),
+                new ArrayList<>(storage.getStringSet(TEST_KEY)));
+        assertTrue(storage.stringSetContains(TEST_KEY, "a"));
+        assertFalse(storage.stringSetContains(TEST_KEY, "d"));
+
+        storage.addToStringSet(TEST_KEY, Arrays.asList("a", "d"));
+        assertEquals(Arrays.asList("c", "a", "b", "d"),
+                new ArrayList<>(storage.getStringSet(TEST_KEY)));
+
+        storage.removeFromStringSet(TEST_KEY, Arrays.asList("a", "c", "unknown"));
+        assertEquals(Arrays.asList("b", "d"), new ArrayList<>(storage.getStringSet(TEST_KEY)));
+
+        storage.putStringSet(TEST_KEY, Collections.singletonList("e"));
+        assertEquals(Collections.singleton("e"), storage.getStringSet(TEST_KEY));
+
+        storage.putStringSet(TEST_KEY, Collections.<String>emptyList());
+        assertEquals(0, storage.getStringSet(TEST_KEY).size());
+        assertNotNull(storage.get(TEST_KEY));
+
+        // the undefined storage finds the set in the user database
+        storage.addToStringSet(TEST_KEY, Collections.singletonList("f"));
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), "testStringSet", TrayStorage.Type.UNDEFINED);
+        assertTrue(undefined.stringSetContains(TEST_KEY, "f"));
+    }
+
+    public void testAnnexStringSet() throws Exception {
+        final ContentProviderStorage oldStorage = new ContentProviderStorage(
+                getProviderMockContext(), "testAnnexStringSetOld", TrayStorage.Type.USER);
+        oldStorage.putStringSet(TEST_KEY, Arrays.asList("b", "a"));
+        oldStorage.put(TEST_KEY2, 42);
+
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testAnnexStringSet", TrayStorage.Type.USER);
+        storage.annex(oldStorage);
+
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<>(storage.getStringSet(TEST_KEY)));
+        assertEquals(ValueType.STRING_SET, storage.get(TEST_KEY).type());
+        assertEquals(ValueType.INT, storage.get(TEST_KEY2).type());
+        assertEquals("42", storage.get(TEST_KEY2).value());
+        assertEquals(0, oldStorage.getAll().size());
+    }
+
+    public void testPutItemKeepsType() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testPutItemKeepsType", TrayStorage.Type.USER);
+        storage.putStringSet(TEST_KEY, Arrays.asList("a", "b"));
+        storage.put(TEST_KEY2, 42);
+
+        // saving the items again keeps their type and the elements of the set
+        for (final TrayItem item : new ArrayList<>(storage.getAll())) {
+            storage.put(item);
+        }
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(storage.getStringSet(TEST_KEY)));
+        assertEquals(ValueType.INT, storage.get(TEST_KEY2).type());
+    }
+
+    public void testStringSetElementsDeletedWithItem() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testStringSetDeleted", TrayStorage.Type.DEVICE);
+        storage.putStringSet(TEST_KEY, Arrays.asList("a", "b"));
+        storage.putStringSet(TEST_KEY2, Arrays.asList("a", "b"));
+
+        storage.remove(TEST_KEY);
+        assertNull(storage.getStringSet(TEST_KEY));
+
+        // saving another type replaces the set
+        storage.put(TEST_KEY2, TEST_STRING);
+        assertEquals(TEST_STRING, storage.get(TEST_KEY2).value());
+        storage.addToStringSet(TEST_KEY2, Collections.singletonList("c"));
+        assertEquals(Collections.singleton("c"), storage.getStringSet(TEST_KEY2));
+
+        storage.clear();
+        assertEquals(0, SqliteHelper.queryNumEntries(
+                getProvider().mDeviceDbHelper.getReadableDatabase(),
+                TrayDBHelper.SETS_TABLE_NAME, null, null));
+    }
+
+    public void testStringSetWrongType() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testStringSetWrongType", TrayStorage.Type.USER);
+        storage.put(TEST_KEY, TEST_STRING);
+        try {
+            storage.getStringSet(TEST_KEY);
+            fail();
+        } catch (WrongTypeException e) {
+            assertTrue(e.getMessage().contains(TEST_KEY));
+        }
+        try {
+            storage.stringSetContains(TEST_KEY, TEST_STRING);
+            fail();
+        } catch (WrongTypeException e) {
+            assertTrue(e.getMessage().contains(TEST_KEY));
+        }
+        try {
+            storage.removeFromStringSet(TEST_KEY, Collections.singletonList(TEST_STRING));
+            fail();
+        } catch (WrongTypeException e) {
+            assertTrue(e.getMessage().contains(TEST_KEY));
+        }
+        assertEquals(TEST_STRING, storage.get(TEST_KEY).value());
+
+        // nothing saved, nothing to remove
+        storage.removeFromStringSet(TEST_KEY2, Collections.singletonList(TEST_STRING));
+        assertNull(storage.get(TEST_KEY2));
+    }
+
     public void testStorageType() throws Exception {
         final TrayStorage.Type[] values = TrayStorage.Type.values();
         assertEquals(3, values.length);
@@ -450,6 +588,20 @@ public class ContentProviderStorageTest extends TrayProviderTestCase {
             assertTrue(e.getMessage().contains("UNDEFINED"));
         }
 
+        // sets
+        try {
+            storage.putStringSet(TEST_KEY2, Collections.singletonList(TEST_STRING));
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+        try {
+            storage.addToStringSet(TEST_KEY2, Collections.singletonList(TEST_STRING));
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+
         // setVersion
         try {
             storage.setVersion(10);
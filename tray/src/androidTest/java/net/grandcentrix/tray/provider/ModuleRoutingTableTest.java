@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import static net.grandcentrix.tray.provider.ModuleRoutingTable.DEVICE;
+import static net.grandcentrix.tray.provider.ModuleRoutingTable.USER;
+
+public class ModuleRoutingTableTest extends TrayProviderTestCase {
+
+    public void testLoadsExistingModules() throws Exception {
+        put("userModule", TrayStorage.Type.USER);
+        put("deviceModule", TrayStorage.Type.DEVICE);
+        put("bothModule", TrayStorage.Type.USER);
+        put("bothModule", TrayStorage.Type.DEVICE);
+
+        final ModuleRoutingTable routingTable = newRoutingTable();
+        assertEquals(USER, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "userModule"));
+        assertEquals(DEVICE, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "deviceModule"));
+        assertEquals(USER | DEVICE,
+                routingTable.getLocations(TrayDBHelper.TABLE_NAME, "bothModule"));
+        assertEquals(0, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "unknown"));
+        // only the version is stored in the internal table
+        assertEquals(USER,
+                routingTable.getLocations(TrayDBHelper.INTERNAL_TABLE_NAME, "userModule"));
+    }
+
+    public void testAddLocationAfterLoad() throws Exception {
+        final ModuleRoutingTable routingTable = newRoutingTable();
+        assertEquals(0, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "module"));
+
+        routingTable.addLocation(TrayDBHelper.TABLE_NAME, "module", DEVICE);
+        assertEquals(DEVICE, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "module"));
+
+        routingTable.addLocation(TrayDBHelper.TABLE_NAME, "module", USER);
+        assertEquals(USER | DEVICE, routingTable.getLocations(TrayDBHelper.TABLE_NAME, "module"));
+    }
+
+    public void testUndefinedQueryFindsDataOfEitherDatabase() throws Exception {
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), "routed", TrayStorage.Type.UNDEFINED);
+        assertNull(undefined.get("key"));
+
+        put("routed", TrayStorage.Type.DEVICE);
+        assertEquals("value", undefined.get("key").value());
+        assertEquals(1, undefined.getAll().size());
+
+        new ContentProviderStorage(getProviderMockContext(), "routed", TrayStorage.Type.USER)
+                .put("other", "value");
+        assertEquals(2, undefined.getAll().size());
+    }
+
+    private ModuleRoutingTable newRoutingTable() {
+        // the dbs of the provider under test
+        return new ModuleRoutingTable(getProvider().mUserDbHelper,
+                getProvider().mDeviceDbHelper);
+    }
+
+    private void put(final String module, final TrayStorage.Type type) {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), module, type);
+        storage.put("key", "value");
+        storage.setVersion(1);
+    }
+}
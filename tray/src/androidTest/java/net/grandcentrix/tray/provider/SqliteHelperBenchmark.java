@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares the put throughput of {@link SqliteHelper#insertOrUpdate} (count query followed by
+ * an insert or update) with {@link SqliteHelper#upsert}. Results are logged with the tag below.
+ */
+@LargeTest
+public class SqliteHelperBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "SqliteHelperBenchmark";
+
+    private static final int KEYS = 100;
+
+    private static final int PUTS = 2000;
+
+    private SQLiteDatabase mDatabase;
+
+    private TrayDBHelper mDbHelper;
+
+    public void testPutThroughput() throws Exception {
+        // warm up both paths
+        putAll(false, false, KEYS);
+        putAll(true, false, KEYS);
+
+        for (final boolean inTransaction : new boolean[]{false, true}) {
+            final long insertOrUpdateMs = putAll(false, inTransaction, PUTS);
+            final long upsertMs = putAll(true, inTransaction, PUTS);
+            Log.i(TAG, String.format("%d puts (%s): insertOrUpdate %.0f puts/s, "
+                            + "upsert %.0f puts/s (%.2fx)",
+                    PUTS, inTransaction ? "one transaction" : "autocommit",
+                    PUTS * 1000.0 / Math.max(1, insertOrUpdateMs),
+                    PUTS * 1000.0 / Math.max(1, upsertMs),
+                    (double) insertOrUpdateMs / Math.max(1, upsertMs)));
+        }
+        assertEquals(KEYS, SqliteHelper.queryNumEntries(mDatabase, TrayDBHelper.TABLE_NAME,
+                null, null));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new TrayDBHelper(getContext(), "sqlitehelperbenchmark", true,
+                TrayDBHelper.DATABASE_VERSION);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.delete(TrayDBHelper.TABLE_NAME, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        getContext().deleteDatabase("sqlitehelperbenchmark");
+        super.tearDown();
+    }
+
+    /**
+     * puts values for {@link #KEYS} keys round robin, the first round inserts, all others update
+     *
+     * @return the elapsed time in ms
+     */
+    private long putAll(final boolean upsert, final boolean inTransaction, final int puts) {
+        final String selection = TrayDBHelper.MODULE + " = ?AND " + TrayDBHelper.KEY + " = ?";
+        final String[] excludeForUpdate = {TrayDBHelper.CREATED};
+
+        final long start = SystemClock.elapsedRealtime();
+        if (inTransaction) {
+            mDatabase.beginTransaction();
+        }
+        try {
+            for (int i = 0; i < puts; i++) {
+                final String key = "key" + (i % KEYS);
+                final long now = System.currentTimeMillis();
+                final ContentValues values = new ContentValues();
+                values.put(TrayDBHelper.MODULE, "benchmark");
+                values.put(TrayDBHelper.KEY, key);
+                values.put(TrayDBHelper.VALUE, "value" + i);
+                values.put(TrayDBHelper.CREATED, now);
+                values.put(TrayDBHelper.UPDATED, now);
+                if (upsert) {
+                    assertTrue(SqliteHelper.upsert(mDatabase, TrayDBHelper.TABLE_NAME, values) >= 0);
+                } else {
+                    assertTrue(SqliteHelper.insertOrUpdate(mDatabase, TrayDBHelper.TABLE_NAME,
+                            selection, new String[]{"benchmark", key}, values, excludeForUpdate) >= 0);
+                }
+            }
+            if (inTransaction) {
+                mDatabase.setTransactionSuccessful();
+            }
+        } finally {
+            if (inTransaction) {
+                mDatabase.endTransaction();
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -18,6 +18,7 @@ package net.grandcentrix.tray.provider;
 
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.test.AndroidTestCase;
@@ -120,8 +121,55 @@ public class SqliteHelperTest extends AndroidTestCase {
         assertEquals(0, result);
     }
 
+    public void testUpsert() throws Exception {
+        final SQLiteDatabase db = new TrayDBHelper(getContext(), "sqlitehelpertest_upsert", true,
+                TrayDBHelper.DATABASE_VERSION).getWritableDatabase();
+        db.delete(TrayDBHelper.TABLE_NAME, null, null);
+
+        final long insertedRow = SqliteHelper
+                .upsert(db, TrayDBHelper.TABLE_NAME, preferenceValues("a", 1000));
+        assertTrue(insertedRow >= 0);
+
+        final long updatedRow = SqliteHelper
+                .upsert(db, TrayDBHelper.TABLE_NAME, preferenceValues("b", 2000));
+        assertEquals(insertedRow, updatedRow);
+
+        final Cursor cursor = db.query(TrayDBHelper.TABLE_NAME, null, null, null, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("b", cursor.getString(cursor.getColumnIndex(TrayDBHelper.VALUE)));
+        assertEquals(1000, cursor.getLong(cursor.getColumnIndex(TrayDBHelper.CREATED)));
+        assertEquals(2000, cursor.getLong(cursor.getColumnIndex(TrayDBHelper.UPDATED)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(TrayDBHelper.MIGRATED_KEY)));
+        cursor.close();
+    }
+
+    public void testUpsertFails() throws Exception {
+        final SQLiteDatabase db = new TrayDBHelper(getContext(), "sqlitehelpertest_upsert", true,
+                TrayDBHelper.DATABASE_VERSION).getWritableDatabase();
+        final ContentValues values = preferenceValues("a", 1000);
+        // KEY is NOT NULL
+        values.putNull(TrayDBHelper.KEY);
+        assertEquals(-1, SqliteHelper.upsert(db, TrayDBHelper.TABLE_NAME, values));
+    }
+
+    public void testUpsertWithNullDb() throws Exception {
+        assertEquals(-1, SqliteHelper.upsert(null, TrayDBHelper.TABLE_NAME, new ContentValues()));
+    }
+
     public void testUselessConstructorCall() throws Exception {
         // make sure the test coverage is at 100%
         new SqliteHelper();
     }
-}
\ No newline at end of file
+
+    private static ContentValues preferenceValues(final String value, final long date) {
+        final ContentValues values = new ContentValues();
+        values.put(TrayDBHelper.MODULE, "module");
+        values.put(TrayDBHelper.KEY, "key");
+        values.put(TrayDBHelper.VALUE, value);
+        values.put(TrayDBHelper.CREATED, date);
+        values.put(TrayDBHelper.UPDATED, date);
+        return values;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+public class TrayCacheTest extends TrayProviderTestCase {
+
+    /**
+     * counts the queries and optionally runs an action before returning the result
+     */
+    private static class CountingProviderHelper extends TrayProviderHelper {
+
+        Runnable mBeforeReturn;
+
+        int mQueries = 0;
+
+        public CountingProviderHelper(@NonNull final Context context) {
+            super(context);
+        }
+
+        @NonNull
+        @Override
+        public List<TrayItem> queryProvider(@NonNull final Uri uri) {
+            mQueries++;
+            final List<TrayItem> items = super.queryProvider(uri);
+            if (mBeforeReturn != null) {
+                mBeforeReturn.run();
+            }
+            return items;
+        }
+    }
+
+    private static final String MODULE = "cacheModule";
+
+    private CountingProviderHelper mProviderHelper;
+
+    private ContentProviderStorage mStorage;
+
+    private TrayUri mTrayUri;
+
+    public void testGetLoadsModuleOnce() throws Exception {
+        mStorage.put("a", "1");
+        mStorage.put("b", "2");
+        final TrayCache cache = getCache(TrayStorage.Type.USER);
+
+        assertEquals("1", cache.get("a", mProviderHelper).value());
+        assertEquals("2", cache.get("b", mProviderHelper).value());
+        assertNull(cache.get("c", mProviderHelper));
+        assertEquals(1, mProviderHelper.mQueries);
+    }
+
+    public void testLoadRacingInvalidationIsNotKept() throws Exception {
+        mStorage.put("a", "1");
+        final TrayCache cache = getCache(TrayStorage.Type.USER);
+        mProviderHelper.mBeforeReturn = new Runnable() {
+            @Override
+            public void run() {
+                TrayCache.invalidate(mTrayUri.builder().setModule(MODULE).setKey("a").build());
+            }
+        };
+
+        assertEquals("1", cache.get("a", mProviderHelper).value());
+        assertFalse(cache.isLoaded());
+
+        mProviderHelper.mBeforeReturn = null;
+        cache.get("a", mProviderHelper);
+        assertTrue(cache.isLoaded());
+        assertEquals(2, mProviderHelper.mQueries);
+    }
+
+    public void testWriteOfOtherProcessIsReadWithoutDelay() throws Exception {
+        mStorage.put("a", "1");
+        // the cache of another process, the writes of this one don't invalidate it
+        final TrayCache otherProcessCache = new TrayCache(mTrayUri.builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .build(), MODULE);
+        assertEquals("1", otherProcessCache.get("a", mProviderHelper).value());
+
+        mStorage.put("a", "2");
+        assertEquals("2", otherProcessCache.get("a", mProviderHelper).value());
+        assertEquals("2", otherProcessCache.get("a", mProviderHelper).value());
+        assertEquals(2, mProviderHelper.mQueries);
+    }
+
+    public void testReadThroughOtherStorageWithoutDelay() throws Exception {
+        final ContentProviderStorage reader = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        mStorage.put("a", "1");
+        assertEquals("1", reader.get("a").value());
+
+        mStorage.put("a", "2");
+        assertEquals("2", reader.get("a").value());
+    }
+
+    public void testQueriedDataVersionChangesWithWrites() throws Exception {
+        final long version = mProviderHelper.queryDataVersion();
+        assertEquals(version, mProviderHelper.getDataVersion());
+
+        mStorage.put("a", "1");
+        assertFalse(version == mProviderHelper.queryDataVersion());
+        assertEquals(mProviderHelper.queryDataVersion(), mProviderHelper.getDataVersion());
+    }
+
+    public void testPublishedDataVersionChangesWithWrites() throws Exception {
+        // reads the file of the provider, as the processes without the provider do
+        final TrayProviderHelper otherProcessHelper = new TrayProviderHelper(
+                getProvider().getContext());
+        final Long version = otherProcessHelper.readPublishedDataVersion();
+        assertNotNull(version);
+        assertEquals(version.longValue(), mProviderHelper.queryDataVersion());
+
+        mStorage.put("a", "1");
+        assertFalse(version.equals(otherProcessHelper.readPublishedDataVersion()));
+        assertEquals(mProviderHelper.queryDataVersion(),
+                otherProcessHelper.readPublishedDataVersion().longValue());
+    }
+
+    public void testWriteInvalidatesModuleOnly() throws Exception {
+        final ContentProviderStorage other = new ContentProviderStorage(
+                getProviderMockContext(), MODULE + "Other", TrayStorage.Type.USER);
+        mStorage.put("a", "1");
+        other.put("a", "1");
+        assertEquals("1", mStorage.get("a").value());
+        assertEquals("1", other.get("a").value());
+
+        mStorage.put("a", "2");
+        assertFalse(getCache(TrayStorage.Type.USER).isLoaded());
+        assertTrue(TrayCache.forModule(getProviderMockContext(), mTrayUri, MODULE + "Other",
+                TrayStorage.Type.USER).isLoaded());
+        assertEquals("2", mStorage.get("a").value());
+
+        mStorage.remove("a");
+        assertNull(mStorage.get("a"));
+    }
+
+    public void testWriteInvalidatesUndefinedType() throws Exception {
+        final ContentProviderStorage undefined = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.UNDEFINED);
+        mStorage.put("a", "1");
+        assertEquals("1", undefined.get("a").value());
+
+        mStorage.put("a", "2");
+        assertEquals("2", undefined.get("a").value());
+    }
+
+    public void testWriteByProviderHelperInvalidates() throws Exception {
+        mStorage.put("a", "1");
+        assertEquals("1", mStorage.get("a").value());
+
+        new TrayProviderHelper(getProviderMockContext()).clear();
+        assertNull(mStorage.get("a"));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderHelper = new CountingProviderHelper(getProviderMockContext());
+        mTrayUri = new TrayUri(getProviderMockContext());
+        mStorage = new ContentProviderStorage(getProviderMockContext(), MODULE,
+                TrayStorage.Type.USER);
+    }
+
+    private TrayCache getCache(final TrayStorage.Type type) {
+        return TrayCache.forModule(getProviderMockContext(), mTrayUri, MODULE, type);
+    }
+}
@@ -16,6 +16,9 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.ValueType;
+
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.BaseColumns;
@@ -38,6 +41,100 @@ public class TrayDBHelperTest extends AndroidTestCase {
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testCreateVersion3() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV2Integrity(trayDBHelper);
+        assertV3Integrity(trayDBHelper);
+    }
+
+    public void testCreateVersion4() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(4, false);
+        assertV4Integrity(trayDBHelper);
+    }
+
+    public void testSetElementsFollowTheirItem() throws Exception {
+        final SQLiteDatabase db = initDb(4, false).getWritableDatabase();
+        final ContentValues values = new ContentValues();
+        values.put(TrayDBHelper.MODULE, "module");
+        values.put(TrayDBHelper.KEY, "key");
+        values.put(TrayDBHelper.TYPE, ValueType.STRING_SET.tag());
+        db.insert(TrayDBHelper.TABLE_NAME, null, values);
+        final ContentValues element = new ContentValues();
+        element.put(TrayDBHelper.MODULE, "module");
+        element.put(TrayDBHelper.KEY, "key");
+        element.put(TrayDBHelper.ELEMENT, "element");
+        db.insert(TrayDBHelper.SETS_TABLE_NAME, null, element);
+
+        // still a set
+        db.replace(TrayDBHelper.TABLE_NAME, null, values);
+        assertEquals(1, SqliteHelper.queryNumEntries(db, TrayDBHelper.SETS_TABLE_NAME, null,
+                null));
+
+        // saved as string
+        values.put(TrayDBHelper.TYPE, ValueType.STRING.tag());
+        db.replace(TrayDBHelper.TABLE_NAME, null, values);
+        assertEquals(0, SqliteHelper.queryNumEntries(db, TrayDBHelper.SETS_TABLE_NAME, null,
+                null));
+
+        // deleted
+        values.put(TrayDBHelper.TYPE, ValueType.STRING_SET.tag());
+        db.replace(TrayDBHelper.TABLE_NAME, null, values);
+        db.insert(TrayDBHelper.SETS_TABLE_NAME, null, element);
+        db.delete(TrayDBHelper.TABLE_NAME, null, null);
+        assertEquals(0, SqliteHelper.queryNumEntries(db, TrayDBHelper.SETS_TABLE_NAME, null,
+                null));
+        db.close();
+    }
+
+    public void testChangeLog() throws Exception {
+        final SQLiteDatabase db = initDb(3, false).getWritableDatabase();
+        final ContentValues values = new ContentValues();
+        values.put(TrayDBHelper.MODULE, "module");
+        values.put(TrayDBHelper.KEY, "key");
+        values.put(TrayDBHelper.VALUE, "value");
+        final long id = db.insert(TrayDBHelper.TABLE_NAME, null, values);
+
+        values.put(TrayDBHelper.VALUE, "updated");
+        db.update(TrayDBHelper.TABLE_NAME, values, BaseColumns._ID + " = " + id, null);
+        db.delete(TrayDBHelper.TABLE_NAME, null, null);
+
+        final Cursor cursor = db.query(TrayDBHelper.CHANGES_TABLE_NAME,
+                new String[]{TrayDBHelper.SEQUENCE, TrayDBHelper.VALUE, TrayDBHelper.DELETED},
+                null, null, null, null, TrayDBHelper.SEQUENCE);
+        assertEquals(3, cursor.getCount());
+        long sequence = 0;
+        final String[] expectedValues = {"value", "updated", null};
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cursor.moveToNext());
+            assertTrue(cursor.getLong(0) > sequence);
+            sequence = cursor.getLong(0);
+            assertEquals(expectedValues[i], cursor.getString(1));
+            assertEquals(i == 2 ? 1 : 0, cursor.getInt(2));
+        }
+        cursor.close();
+        db.close();
+    }
+
+    public void testChangeLogIsTrimmed() throws Exception {
+        final SQLiteDatabase db = initDb(3, false).getWritableDatabase();
+        final ContentValues values = new ContentValues();
+        values.put(TrayDBHelper.MODULE, "module");
+        values.put(TrayDBHelper.KEY, "key");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < TrayDBHelper.MAX_CHANGES + 10; i++) {
+                values.put(TrayDBHelper.VALUE, i);
+                db.replace(TrayDBHelper.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals(TrayDBHelper.MAX_CHANGES, SqliteHelper.queryNumEntries(db,
+                TrayDBHelper.CHANGES_TABLE_NAME, null, null));
+        db.close();
+    }
+
     public void testInstantiation() throws Exception {
         new TrayDBHelper(getContext());
     }
@@ -48,6 +145,18 @@ public class TrayDBHelperTest extends AndroidTestCase {
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testUpgradeFrom2to3() throws Exception {
+        initDb(2);
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV3Integrity(trayDBHelper);
+    }
+
+    public void testUpgradeFrom3to4() throws Exception {
+        initDb(3);
+        final TrayDBHelper trayDBHelper = initDb(4, false);
+        assertV4Integrity(trayDBHelper);
+    }
+
     public void testUpgradeNotImplemented() throws Exception {
         final TrayDBHelper trayDBHelper = initDb(1, false);
         try {
@@ -131,6 +240,77 @@ public class TrayDBHelperTest extends AndroidTestCase {
         db.close();
     }
 
+    private void assertV3Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        {// check added change log table
+            final Cursor cursor = db
+                    .query(TrayDBHelper.CHANGES_TABLE_NAME, null, null, null, null, null, null);
+            assertNotNull(cursor);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(8, columnNames.size());
+            assertTrue(columnNames.contains(TrayDBHelper.SEQUENCE));
+            assertTrue(columnNames.contains(TrayDBHelper.MODULE));
+            assertTrue(columnNames.contains(TrayDBHelper.KEY));
+            assertTrue(columnNames.contains(TrayDBHelper.VALUE));
+            assertTrue(columnNames.contains(TrayDBHelper.CREATED));
+            assertTrue(columnNames.contains(TrayDBHelper.UPDATED));
+            assertTrue(columnNames.contains(TrayDBHelper.MIGRATED_KEY));
+            assertTrue(columnNames.contains(TrayDBHelper.DELETED));
+        }
+
+        {// check the triggers filling the change log
+            final Cursor cursor = db.query("sqlite_master", null, "type = 'trigger'", null,
+                    null, null, null);
+            assertEquals(4, cursor.getCount());
+            cursor.close();
+        }
+        db.close();
+    }
+
+    private void assertV4Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        {// check added type columns
+            for (final String table : new String[]{TrayDBHelper.TABLE_NAME,
+                    TrayDBHelper.INTERNAL_TABLE_NAME, TrayDBHelper.CHANGES_TABLE_NAME}) {
+                final Cursor cursor = db.query(table, null, null, null, null, null, null);
+                assertNotNull(cursor);
+                final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+                cursor.close();
+                assertTrue(columnNames.contains(TrayDBHelper.TYPE));
+            }
+        }
+
+        {// check added sets table
+            final Cursor cursor = db
+                    .query(TrayDBHelper.SETS_TABLE_NAME, null, null, null, null, null, null);
+            assertNotNull(cursor);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(4, columnNames.size());
+            assertTrue(columnNames.contains(BaseColumns._ID));
+            assertTrue(columnNames.contains(TrayDBHelper.MODULE));
+            assertTrue(columnNames.contains(TrayDBHelper.KEY));
+            assertTrue(columnNames.contains(TrayDBHelper.ELEMENT));
+        }
+
+        {// check the change log triggers log the type
+            final Cursor cursor = db.query("sqlite_master", new String[]{"sql"},
+                    "type = 'trigger'", null, null, null, null);
+            assertEquals(7, cursor.getCount());
+            int withType = 0;
+            while (cursor.moveToNext()) {
+                if (cursor.getString(0).contains("INSERT INTO " + TrayDBHelper.CHANGES_TABLE_NAME)
+                        && cursor.getString(0).contains(TrayDBHelper.TYPE)) {
+                    withType++;
+                }
+            }
+            cursor.close();
+            assertEquals(3, withType);
+        }
+        db.close();
+    }
+
     private void initDb(final int version) {
         initDb(version, true);
     }
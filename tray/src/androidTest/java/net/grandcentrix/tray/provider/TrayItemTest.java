@@ -19,6 +19,7 @@ package net.grandcentrix.tray.provider;
 import junit.framework.TestCase;
 
 import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.ValueType;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -34,6 +35,14 @@ public class TrayItemTest extends TestCase {
         assertEquals(null, item.module());
         assertEquals(null, item.updateTime());
         assertEquals(null, item.created());
+        assertEquals(null, item.type());
+    }
+
+    public void testType() throws Exception {
+        final Date now = new Date();
+        final TrayItem item = new TrayItem("module", "key", null, "1", ValueType.INT, now, now);
+        assertEquals(ValueType.INT, item.type());
+        assertTrue(item.toString().contains("INT"));
     }
 
     public void testToString() throws Exception {
@@ -239,7 +239,7 @@ public class TrayProviderTest extends TrayProviderTestCase {
         mTrayUri = new TrayUri(getProviderMockContext());
     }
 
-    void assertInsertUriEqualsNullForUpdateOrInsertError(final int errorCode) {
+    void assertInsertUriEqualsNullForUpdateOrInsertError(final long errorCode) {
         final TrayContentProvider trayContentProvider = new TrayContentProvider();
         final TrayContentProvider spy = spy(trayContentProvider);
 
@@ -247,8 +247,7 @@ public class TrayProviderTest extends TrayProviderTestCase {
         doReturn(null).when(spy).getWritableDatabase(mockInsertUri);
 
         doReturn(errorCode).when(spy)
-                .insertOrUpdate(any(SQLiteDatabase.class), anyString(), anyString(),
-                        any(String[].class), any(ContentValues.class), any(String[].class));
+                .upsert(any(SQLiteDatabase.class), anyString(), any(ContentValues.class));
         final Uri insert = spy.insert(mockInsertUri, new ContentValues());
         assertNull(insert);
     }
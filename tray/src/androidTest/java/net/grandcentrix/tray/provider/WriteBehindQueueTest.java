@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayRuntimeException;
+import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.ValueType;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.Collection;
+
+public class WriteBehindQueueTest extends TrayProviderTestCase {
+
+    public void testCoalescesWritesOfAKey() throws Exception {
+        final ContentProviderStorage storage = newStorage("coalesce");
+        storage.putAsync("key", "first");
+        storage.putAsync("key", "second");
+        storage.putAsync("other", 1);
+        assertUserDatabaseSize(0);
+
+        storage.flush();
+        assertUserDatabaseSize(2);
+        assertEquals("second", storage.get("key").value());
+        // one change per key, the first value was never written
+        assertEquals(2, SqliteHelper.queryNumEntries(
+                getProvider().mUserDbHelper.getReadableDatabase(),
+                TrayDBHelper.CHANGES_TABLE_NAME, TrayDBHelper.MODULE + " = ?",
+                new String[]{"writeBehind_coalesce"}));
+    }
+
+    public void testFlushesAfterDelay() throws Exception {
+        final ContentProviderStorage storage = newStorage("delay");
+        storage.putAsync("key", "value");
+
+        final long timeout = SystemClock.elapsedRealtime()
+                + WriteBehindQueue.FLUSH_DELAY_MS * 50;
+        // getAll() would flush, read the database directly
+        while (SqliteHelper.queryNumEntries(getProvider().mUserDbHelper.getReadableDatabase(),
+                TrayDBHelper.TABLE_NAME, null, null) == 0
+                && SystemClock.elapsedRealtime() < timeout) {
+            Thread.sleep(WriteBehindQueue.FLUSH_DELAY_MS);
+        }
+        assertUserDatabaseSize(1);
+    }
+
+    public void testRetriesFailedFlush() throws Exception {
+        final int[] failures = {2};
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "writeBehind_retry", TrayStorage.Type.USER) {
+            @Override
+            void writeAll(@NonNull final Collection<TrayItem> items) {
+                if (failures[0]-- > 0) {
+                    throw new IllegalStateException("failing write");
+                }
+                super.writeAll(items);
+            }
+        };
+        storage.putAsync("key", "value");
+
+        // no other write, the failed flushes are retried on their own
+        final long timeout = SystemClock.elapsedRealtime()
+                + WriteBehindQueue.FLUSH_DELAY_MS * 50;
+        while (SqliteHelper.queryNumEntries(getProvider().mUserDbHelper.getReadableDatabase(),
+                TrayDBHelper.TABLE_NAME, null, null) == 0
+                && SystemClock.elapsedRealtime() < timeout) {
+            Thread.sleep(WriteBehindQueue.FLUSH_DELAY_MS);
+        }
+        assertUserDatabaseSize(1);
+        assertEquals("value", storage.get("key").value());
+    }
+
+    public void testReadsQueuedWrites() throws Exception {
+        final ContentProviderStorage storage = newStorage("read");
+        storage.put("key", "stored");
+        storage.putAsync("key", true);
+
+        final TrayItem item = storage.get("key");
+        assertEquals("true", item.value());
+        assertEquals(ValueType.BOOLEAN, item.type());
+        // other storages of the module share the queue
+        assertEquals("true", newStorage("read").get("key").value());
+        storage.flush();
+    }
+
+    public void testSyncWritesSaveQueueFirst() throws Exception {
+        final ContentProviderStorage storage = newStorage("sync");
+        storage.putAsync("key", "async");
+        storage.put("key", "sync");
+        assertEquals("sync", storage.get("key").value());
+
+        storage.putAsync("removed", "value");
+        storage.remove("removed");
+        assertNull(storage.get("removed"));
+        assertEquals(1, storage.getAll().size());
+    }
+
+    public void testUndefinedThrows() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "undefined", TrayStorage.Type.UNDEFINED);
+        try {
+            storage.putAsync("key", "value");
+            fail();
+        } catch (TrayRuntimeException e) {
+            assertTrue(e.getMessage().contains("UNDEFINED"));
+        }
+    }
+
+    private ContentProviderStorage newStorage(final String module) {
+        return new ContentProviderStorage(getProviderMockContext(), "writeBehind_" + module,
+                TrayStorage.Type.USER);
+    }
+}
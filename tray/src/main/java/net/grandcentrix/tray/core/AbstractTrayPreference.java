@@ -19,6 +19,12 @@ package net.grandcentrix.tray.core;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+import static net.grandcentrix.tray.core.TrayLog.v;
+
 /**
  * Modular implementation of a {@link Preferences} which allows access to a {@link TrayStorage}.
  *
@@ -31,6 +37,34 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         super(storage, version);
     }
 
+    /**
+     * adds elements to the set saved for the key without rewriting the whole set
+     *
+     * @see TrayStorage#addToStringSet(String, Collection)
+     */
+    public void addToStringSet(@NonNull final String key, @NonNull final String... elements) {
+        getStorage().addToStringSet(key, Arrays.asList(elements));
+        v("added " + Arrays.toString(elements) + " to set '" + key + "' in " + this);
+    }
+
+    /**
+     * @return an editor to save multiple changes at once
+     * @see PreferenceEditor
+     */
+    public PreferenceEditor edit() {
+        return new PreferenceEditor(this);
+    }
+
+    /**
+     * saves all values written with one of the {@code putAsync} methods and returns when they are
+     * stored
+     *
+     * @see TrayStorage#flush()
+     */
+    public void flush() {
+        getStorage().flush();
+    }
+
     @Override
     public boolean getBoolean(@NonNull final String key, final boolean defaultValue) {
         try {
@@ -106,6 +140,34 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         }
     }
 
+    /**
+     * @return the elements of the set saved for the key
+     * @throws ItemNotFoundException if nothing is saved for the key
+     * @throws WrongTypeException    if the saved item is no set
+     */
+    @NonNull
+    public Set<String> getStringSet(@NonNull final String key) throws ItemNotFoundException {
+        final Set<String> elements = getStorage().getStringSet(key);
+        if (elements == null) {
+            throw new ItemNotFoundException("Value for Key <%s> not found", key);
+        }
+        return elements;
+    }
+
+    /**
+     * @return the elements of the set saved for the key or the default value if nothing is saved
+     * @throws WrongTypeException if the saved item is no set
+     */
+    @Nullable
+    public Set<String> getStringSet(@NonNull final String key,
+            @Nullable final Set<String> defaultValue) {
+        try {
+            return getStringSet(key);
+        } catch (ItemNotFoundException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * @return the module name of this preference
      */
@@ -132,6 +194,59 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         }
     }
 
+    /**
+     * same as {@link #put(String, String)} but returns without waiting for the value to be
+     * stored. The value can be read right away, repeated writes of a key are saved once.
+     *
+     * @see TrayStorage#putAsync(String, Object)
+     */
+    public void putAsync(@NonNull final String key, @Nullable final String value) {
+        getStorage().putAsync(key, value);
+        v("queued '" + key + "=\"" + value + "\"' for " + this);
+    }
+
+    /**
+     * @see #putAsync(String, String)
+     */
+    public void putAsync(@NonNull final String key, final int value) {
+        getStorage().putAsync(key, value);
+        v("queued '" + key + "=" + value + "' for " + this);
+    }
+
+    /**
+     * @see #putAsync(String, String)
+     */
+    public void putAsync(@NonNull final String key, final float value) {
+        getStorage().putAsync(key, value);
+        v("queued '" + key + "=" + value + "' for " + this);
+    }
+
+    /**
+     * @see #putAsync(String, String)
+     */
+    public void putAsync(@NonNull final String key, final long value) {
+        getStorage().putAsync(key, value);
+        v("queued '" + key + "=" + value + "' for " + this);
+    }
+
+    /**
+     * @see #putAsync(String, String)
+     */
+    public void putAsync(@NonNull final String key, final boolean value) {
+        getStorage().putAsync(key, value);
+        v("queued '" + key + "=" + value + "' for " + this);
+    }
+
+    /**
+     * saves a set for the key, the elements are stored one by one
+     *
+     * @see TrayStorage#putStringSet(String, Collection)
+     */
+    public void putStringSet(@NonNull final String key, @NonNull final Set<String> elements) {
+        getStorage().putStringSet(key, elements);
+        v("put set '" + key + "=" + elements + "' into " + this);
+    }
+
     /**
      * registers a listener which gets called when a tray preference is changed, added, or removed.
      * This may be called even if a preference is set to its existing value.
@@ -155,6 +270,27 @@ public abstract class AbstractTrayPreference<T extends TrayStorage> extends
         getStorage().registerOnTrayPreferenceChangeListener(listener);
     }
 
+    /**
+     * removes elements from the set saved for the key without rewriting the whole set
+     *
+     * @see TrayStorage#removeFromStringSet(String, Collection)
+     */
+    public void removeFromStringSet(@NonNull final String key,
+            @NonNull final String... elements) {
+        getStorage().removeFromStringSet(key, Arrays.asList(elements));
+        v("removed " + Arrays.toString(elements) + " from set '" + key + "' in " + this);
+    }
+
+    /**
+     * checks a single element of the set saved for the key without reading the whole set
+     *
+     * @return false if the set doesn't contain the element or nothing is saved for the key
+     * @throws WrongTypeException if the saved item is no set
+     */
+    public boolean stringSetContains(@NonNull final String key, @NonNull final String element) {
+        return getStorage().stringSetContains(key, element);
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "(@" + Integer.toHexString(hashCode()) + "){"
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static net.grandcentrix.tray.core.TrayLog.v;
+import static net.grandcentrix.tray.core.TrayLog.w;
+
+/**
+ * Collects multiple changes of a preference and saves them together with {@link #commit()}.
+ * With a {@link net.grandcentrix.tray.provider.ContentProviderStorage} all changes are written
+ * in a single transaction and the listeners are notified only once.
+ * <pre><code>
+ * preferences.edit()
+ *         .put("key", "value")
+ *         .put("other", 42)
+ *         .commit();
+ * </code></pre>
+ * The last put for a key wins. An editor is not thread safe.
+ */
+public class PreferenceEditor {
+
+    private final LinkedHashMap<String, TrayItem> mItems = new LinkedHashMap<>();
+
+    private final List<TrayMigration> mMigrations = new ArrayList<>();
+
+    private final AbstractTrayPreference<?> mPreference;
+
+    /*package*/ PreferenceEditor(@NonNull final AbstractTrayPreference<?> preference) {
+        mPreference = preference;
+    }
+
+    /**
+     * saves all changes and clears this editor. Migrations get their {@link
+     * Migration#onPostMigrate(Object)} call after the changes were saved.
+     */
+    public void commit() {
+        if (mItems.isEmpty()) {
+            return;
+        }
+        final TrayStorage storage = mPreference.getStorage();
+        storage.putAll(mItems.values());
+        v("committed " + mItems.size() + " items into " + mPreference);
+        mItems.clear();
+
+        for (final TrayMigration migration : mMigrations) {
+            migration.onPostMigrate(storage.get(migration.getTrayKey()));
+        }
+        mMigrations.clear();
+    }
+
+    /**
+     * same as {@link Preferences#migrate(Migration[])} but saves the migrated data with the other
+     * changes of this editor on {@link #commit()}
+     *
+     * @param migrations migrations will be migrated into the preference
+     * @return this editor
+     */
+    public PreferenceEditor migrate(@NonNull final TrayMigration... migrations) {
+        for (final TrayMigration migration : migrations) {
+            if (!migration.shouldMigrate()) {
+                v("not migrating " + migration + " into " + mPreference);
+                continue;
+            }
+
+            final Object data = migration.getData();
+            if (!Preferences.isDataTypeSupported(data)) {
+                w("could not migrate '" + migration.getPreviousKey() + "' into " + mPreference
+                        + " because the data type " + data.getClass().getSimpleName()
+                        + " is invalid");
+                migration.onPostMigrate(null);
+                continue;
+            }
+            put(migration.getTrayKey(), migration.getPreviousKey(), data);
+            mMigrations.add(migration);
+        }
+        return this;
+    }
+
+    public PreferenceEditor put(@NonNull final String key, @Nullable final String value) {
+        return put(key, null, value);
+    }
+
+    public PreferenceEditor put(@NonNull final String key, final int value) {
+        return put(key, null, value);
+    }
+
+    public PreferenceEditor put(@NonNull final String key, final float value) {
+        return put(key, null, value);
+    }
+
+    public PreferenceEditor put(@NonNull final String key, final long value) {
+        return put(key, null, value);
+    }
+
+    public PreferenceEditor put(@NonNull final String key, final boolean value) {
+        return put(key, null, value);
+    }
+
+    private PreferenceEditor put(@NonNull final String key, @Nullable final String migrationKey,
+            @Nullable final Object data) {
+        final String value = data == null ? null : String.valueOf(data);
+        final Date now = new Date();
+        // re-putting a key moves it to the end, like separate puts would have ordered it
+        mItems.remove(key);
+        mItems.put(key, new TrayItem(mPreference.getName(), key, migrationKey, value,
+                ValueType.of(data), now, now));
+        return this;
+    }
+}
@@ -37,18 +37,27 @@ public class TrayItem {
 
     private final String mModule;
 
+    private final ValueType mType;
+
     private final Date mUpdated;
 
     private final String mValue;
 
     public TrayItem(final String module, final String key, final String migratedKey,
             final String value, final Date created, final Date updated) {
+        this(module, key, migratedKey, value, null, created, updated);
+    }
+
+    public TrayItem(final String module, final String key, final String migratedKey,
+            final String value, @Nullable final ValueType type, final Date created,
+            final Date updated) {
         mCreated = created;
         mKey = key;
         mModule = module;
         mUpdated = updated;
         mValue = value;
         mMigratedKey = migratedKey;
+        mType = type;
     }
 
     public Date created() {
@@ -78,6 +87,8 @@ public class TrayItem {
                 .append(mKey)
                 .append(", value: ")
                 .append(mValue)
+                .append(", type: ")
+                .append(mType)
                 .append(", module: ")
                 .append(mModule)
                 .append(", created: ")
@@ -90,6 +101,14 @@ public class TrayItem {
                 .toString();
     }
 
+    /**
+     * @return the type of the value, null for items saved before types were recorded
+     */
+    @Nullable
+    public ValueType type() {
+        return mType;
+    }
+
     public Date updateTime() {
         return mUpdated;
     }
@@ -19,6 +19,10 @@ package net.grandcentrix.tray.core;
 import net.grandcentrix.tray.TrayPreferences;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Set;
 
 /**
  * Created by pascalwelsch on 11/20/14.
@@ -75,10 +79,113 @@ public abstract class TrayStorage implements PreferenceStorage<TrayItem> {
      */
     public abstract void annex(final TrayStorage oldStorage);
 
+    /**
+     * adds elements to the set saved for the key. Creates the set if nothing is saved for the
+     * key, replaces an item of another type.
+     *
+     * @param key      where the set is saved
+     * @param elements what to add, already contained elements are ignored
+     */
+    public abstract void addToStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements);
+
+    /**
+     * saves all data written with {@link #putAsync(String, Object)} and returns when it is
+     * stored. The default has nothing to save because {@link #putAsync(String, Object)} saves
+     * right away.
+     */
+    public void flush() {
+    }
+
     public String getModuleName() {
         return mModuleName;
     }
 
+    /**
+     * @param key where the set is saved
+     * @return all elements of the set saved for the key, null if nothing is saved for the key
+     * @throws WrongTypeException if the item of the key is no {@link ValueType#STRING_SET}
+     */
+    @Nullable
+    public abstract Set<String> getStringSet(@NonNull final String key);
+
+    /**
+     * saves a set with the given elements for the key
+     *
+     * @param key      where to save
+     * @param elements all elements of the set
+     */
+    public abstract void putStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements);
+
+    /**
+     * saves the data without waiting for it to be stored. Storages which can delay and combine
+     * writes should override this, the default saves the data right away.
+     *
+     * @param key  where to save
+     * @param data what to save
+     * @see #flush()
+     */
+    public void putAsync(@NonNull final String key, @Nullable final Object data) {
+        put(key, data);
+    }
+
+    /**
+     * saves multiple items at once. Storages which can write all items in one transaction
+     * should override this, the default saves the items one by one.
+     *
+     * @param items what to save, by key, value, type and migrated key. The elements saved for
+     *              the key of a {@link ValueType#STRING_SET} item in this storage are kept
+     * @see PreferenceEditor
+     * @see #putAllFrom(TrayStorage, Collection)
+     */
+    public void putAll(@NonNull final Collection<TrayItem> items) {
+        for (final TrayItem item : items) {
+            put(item);
+        }
+    }
+
+    /**
+     * saves items read from another storage with {@link #putAll(Collection)}, including the
+     * elements of the sets which are not part of the items. Used to annex a storage
+     *
+     * @param storage the storage the items were read from
+     * @param items   what to save
+     */
+    protected void putAllFrom(@NonNull final TrayStorage storage,
+            @NonNull final Collection<TrayItem> items) {
+        putAll(items);
+        for (final TrayItem item : items) {
+            if (item.type() == ValueType.STRING_SET) {
+                final Set<String> elements = storage.getStringSet(item.key());
+                if (elements != null) {
+                    putStringSet(item.key(), elements);
+                }
+            }
+        }
+    }
+
+    /**
+     * removes elements from the set saved for the key
+     *
+     * @param key      where the set is saved
+     * @param elements what to remove
+     * @throws WrongTypeException if the item of the key is no {@link ValueType#STRING_SET}
+     */
+    public abstract void removeFromStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements);
+
+    /**
+     * checks a single element without reading the whole set
+     *
+     * @param key     where the set is saved
+     * @param element the element to look for
+     * @return true if the set saved for the key contains the element
+     * @throws WrongTypeException if the item of the key is no {@link ValueType#STRING_SET}
+     */
+    public abstract boolean stringSetContains(@NonNull final String key,
+            @NonNull final String element);
+
     /**
      * Indicates where the data internally gets stored and how the backup is handled for the data
      *
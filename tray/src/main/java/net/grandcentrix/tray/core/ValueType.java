@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.core;
+
+import android.support.annotation.Nullable;
+
+/**
+ * The type of the value of a {@link TrayItem}, saved as tag next to the value. Items saved
+ * before types were recorded have no type.
+ */
+public enum ValueType {
+
+    STRING(1),
+
+    INT(2),
+
+    LONG(3),
+
+    FLOAT(4),
+
+    BOOLEAN(5),
+
+    /**
+     * the elements are saved separately, the item has no value
+     */
+    STRING_SET(6);
+
+    private final int mTag;
+
+    ValueType(final int tag) {
+        mTag = tag;
+    }
+
+    /**
+     * @return the type for the tag or null for unknown tags
+     */
+    @Nullable
+    public static ValueType fromTag(final int tag) {
+        for (final ValueType type : values()) {
+            if (type.mTag == tag) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param data one of the data types supported by {@link Preferences}, null counts as {@link
+     *             #STRING}
+     * @return the type of the data or null if the data type is not supported
+     */
+    @Nullable
+    public static ValueType of(@Nullable final Object data) {
+        if (data == null || data instanceof String) {
+            return STRING;
+        } else if (data instanceof Integer) {
+            return INT;
+        } else if (data instanceof Long) {
+            return LONG;
+        } else if (data instanceof Float) {
+            return FLOAT;
+        } else if (data instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return null;
+    }
+
+    /**
+     * @return the tag saved in the database
+     */
+    public int tag() {
+        return mTag;
+    }
+}
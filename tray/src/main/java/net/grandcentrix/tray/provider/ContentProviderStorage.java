@@ -19,13 +19,16 @@ package net.grandcentrix.tray.provider;
 import net.grandcentrix.tray.TrayPreferences;
 import net.grandcentrix.tray.core.OnTrayPreferenceChangeListener;
 import net.grandcentrix.tray.core.TrayItem;
-import net.grandcentrix.tray.core.TrayLog;
 import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
+import net.grandcentrix.tray.core.ValueType;
+import net.grandcentrix.tray.core.WrongTypeException;
 
 import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -35,8 +38,13 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,11 +65,18 @@ import java.util.WeakHashMap;
 public class ContentProviderStorage extends TrayStorage {
 
     /**
-     * Forwards changes of this storage to the registered listeners
+     * Forwards changes of this storage to the registered listeners. Reads the change log of the
+     * {@link TrayContentProvider} after the last seen sequence number so every change is delivered
+     * once, no matter how many notifications arrive for it.
      */
     @VisibleForTesting
     class TrayContentObserver extends ContentObserver {
 
+        /**
+         * last seen sequence number of the change log of each observed database
+         */
+        private final HashMap<Type, Long> mLastSequences = new HashMap<>();
+
         /**
          * Creates a content observer.
          *
@@ -69,6 +84,9 @@ public class ContentProviderStorage extends TrayStorage {
          */
         public TrayContentObserver(@NonNull final Handler handler) {
             super(handler);
+            for (final Type type : getObservedTypes()) {
+                mLastSequences.put(type, queryLatestSequence(type));
+            }
         }
 
         @Override
@@ -76,25 +94,59 @@ public class ContentProviderStorage extends TrayStorage {
             onChange(selfChange, null);
         }
 
+        /**
+         * the uri is ignored, the change log knows what has changed. Works the same on sdk
+         * version 15 and below where the uri is always null
+         */
         @Override
-        public void onChange(final boolean selfChange, Uri uri) {
-            if (uri == null) {
-                // for sdk version 15 and below we cannot detect which exact data was changed. This will
-                // return all data for this module
-                uri = mTrayUri.builder().setModule(getModuleName()).build();
+        public synchronized void onChange(final boolean selfChange, final Uri uri) {
+            // by key, null for removed items
+            final LinkedHashMap<String, TrayItem> changes = new LinkedHashMap<>();
+            boolean complete = true;
+            for (final Type type : getObservedTypes()) {
+                complete &= readChanges(type, changes);
+            }
+
+            final List<TrayItem> trayItems;
+            if (complete) {
+                if (changes.isEmpty()) {
+                    // already delivered with a previous notification
+                    return;
+                }
+                trayItems = new ArrayList<>(changes.size());
+                for (final TrayItem item : changes.values()) {
+                    if (item != null) {
+                        trayItems.add(item);
+                    }
+                }
+            } else {
+                // the log was trimmed before it was read, report the whole module as changed
+                trayItems = new ArrayList<>(getAll());
             }
+            notifyListeners(Collections.unmodifiableList(trayItems));
+        }
 
-            // query only the changed items
-            final List<TrayItem> trayItems = mProviderHelper.queryProvider(uri);
+        @NonNull
+        private Type[] getObservedTypes() {
+            return getType() == Type.UNDEFINED
+                    ? new Type[]{Type.USER, Type.DEVICE} : new Type[]{getType()};
+        }
 
+        private void notifyListeners(@NonNull final List<TrayItem> trayItems) {
             // clone to get around ConcurrentModificationException
-            final Set<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries
-                    = new HashSet<>(mListeners.entrySet());
+            final List<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries;
+            synchronized (ContentProviderStorage.this) {
+                entries = new ArrayList<>(mListeners.entrySet());
+            }
 
             // notify all registered listeners
             for (final Map.Entry<OnTrayPreferenceChangeListener, Handler> entry : entries) {
                 final OnTrayPreferenceChangeListener listener = entry.getKey();
                 final Handler handler = entry.getValue();
+                if (listener == null) {
+                    // garbage collected
+                    continue;
+                }
                 if (handler != null) {
                     // call the listener on the thread where the listener was registered
                     handler.post(new Runnable() {
@@ -108,6 +160,77 @@ public class ContentProviderStorage extends TrayStorage {
                 }
             }
         }
+
+        private long queryLatestSequence(@NonNull final Type type) {
+            final Cursor cursor = mContext.getContentResolver().query(
+                    mTrayUri.getChanges(type, -1),
+                    new String[]{"MAX(" + TrayContract.Changes.Columns.SEQUENCE + ")"},
+                    null, null, null);
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * merges the changes of this module after the last seen sequence number into the map and
+         * moves the last seen sequence number to the end of the log
+         *
+         * @return false if the log was trimmed and changes are missing
+         */
+        private boolean readChanges(@NonNull final Type type,
+                @NonNull final LinkedHashMap<String, TrayItem> changes) {
+            final long lastSequence = mLastSequences.get(type);
+            // the entry following the last seen one and the latest entry show if the log is
+            // complete, even if they belong to other modules
+            final String selection = TrayContract.Changes.Columns.MODULE + " = ? OR "
+                    + TrayContract.Changes.Columns.SEQUENCE + " = ? OR "
+                    + TrayContract.Changes.Columns.SEQUENCE + " = (SELECT MAX("
+                    + TrayContract.Changes.Columns.SEQUENCE + ") FROM "
+                    + TrayDBHelper.CHANGES_TABLE_NAME + ")";
+            final Cursor cursor = mContext.getContentResolver().query(
+                    mTrayUri.getChanges(type, lastSequence), null, selection,
+                    new String[]{getModuleName(), String.valueOf(lastSequence + 1)}, null);
+            if (cursor == null) {
+                return true;
+            }
+
+            long sequence = lastSequence;
+            try {
+                final int sequenceColumn = cursor
+                        .getColumnIndexOrThrow(TrayContract.Changes.Columns.SEQUENCE);
+                final int moduleColumn = cursor
+                        .getColumnIndexOrThrow(TrayContract.Changes.Columns.MODULE);
+                final int keyColumn = cursor
+                        .getColumnIndexOrThrow(TrayContract.Changes.Columns.KEY);
+                final int deletedColumn = cursor
+                        .getColumnIndexOrThrow(TrayContract.Changes.Columns.DELETED);
+                while (cursor.moveToNext()) {
+                    if (sequence == lastSequence
+                            && cursor.getLong(sequenceColumn) != lastSequence + 1) {
+                        mLastSequences.put(type, queryLatestSequence(type));
+                        return false;
+                    }
+                    sequence = cursor.getLong(sequenceColumn);
+                    if (!getModuleName().equals(cursor.getString(moduleColumn))) {
+                        continue;
+                    }
+                    final String key = cursor.getString(keyColumn);
+                    // the latest change of a key wins and moves it to the end
+                    changes.remove(key);
+                    changes.put(key, cursor.getInt(deletedColumn) != 0
+                            ? null : TrayProviderHelper.cursorToTrayItem(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            mLastSequences.put(type, sequence);
+            return true;
+        }
     }
 
     public static final String VERSION = "version";
@@ -134,10 +257,14 @@ public class ContentProviderStorage extends TrayStorage {
 
     private final TrayProviderHelper mProviderHelper;
 
+    private volatile TrayCache mCache;
+
     private volatile boolean mRegisteredContentObserver = false;
 
     private final TrayUri mTrayUri;
 
+    private volatile WriteBehindQueue mWriteBehindQueue;
+
     public ContentProviderStorage(@NonNull final Context context, @NonNull final String module,
             @NonNull final Type type) {
         super(module, type);
@@ -146,48 +273,77 @@ public class ContentProviderStorage extends TrayStorage {
         mProviderHelper = new TrayProviderHelper(mContext);
     }
 
+    @Override
+    public void addToStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        insertElements(key, elements, false);
+    }
+
     @Override
     public void annex(final TrayStorage oldStorage) {
-        for (final TrayItem trayItem : oldStorage.getAll()) {
-            put(trayItem);
-        }
+        putAllFrom(oldStorage, oldStorage.getAll());
         oldStorage.wipe();
     }
 
     @Override
     public void clear() {
+        flush();
         final Uri uri = mTrayUri.builder()
                 .setModule(getModuleName())
                 .setType(getType())
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        TrayCache.invalidate(uri);
     }
 
     @Override
     @Nullable
     public TrayItem get(@NonNull final String key) {
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
-        final List<TrayItem> prefs = mProviderHelper.queryProvider(uri);
-        final int size = prefs.size();
-        if (size > 1) {
-            TrayLog.w("found more than one item for key '" + key
-                    + "' in module " + getModuleName() + ". "
-                    + "This can be caused by using the same name for a device and user specific preference.");
-            for (int i = 0; i < prefs.size(); i++) {
-                final TrayItem pref = prefs.get(i);
-                TrayLog.d("item #" + i + " " + pref);
+        final TrayItem queued = getWriteBehindQueue().get(key);
+        if (queued != null) {
+            return queued;
+        }
+        return getCache().get(key, mProviderHelper);
+    }
+
+    /**
+     * saves all data written with {@link #putAsync(String, Object)} and returns when it is
+     * stored. Data of the same module written by other storages of this process is saved, too.
+     */
+    @Override
+    public void flush() {
+        getWriteBehindQueue().flush();
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(@NonNull final String key) {
+        if (!isStringSet(key)) {
+            return null;
+        }
+        final Cursor cursor = mContext.getContentResolver().query(getElementsUri(key).build(),
+                new String[]{TrayContract.Preferences.Columns.ELEMENT}, null, null,
+                TrayContract.Preferences.Columns.ID);
+        if (cursor == null) {
+            throw new IllegalStateException("could not access stored data with uri "
+                    + getElementsUri(key).build());
+        }
+        try {
+            // in the order the elements were added
+            final Set<String> elements = new LinkedHashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                elements.add(cursor.getString(0));
             }
+            return elements;
+        } finally {
+            cursor.close();
         }
-        return size > 0 ? prefs.get(0) : null;
     }
 
     @NonNull
     @Override
     public Collection<TrayItem> getAll() {
+        flush();
         final Uri uri = mTrayUri.builder()
                 .setType(getType())
                 .setModule(getModuleName())
@@ -203,6 +359,29 @@ public class ContentProviderStorage extends TrayStorage {
         return mContext;
     }
 
+    /**
+     * @return the per process cache for this module, created on first use
+     */
+    @NonNull
+    private TrayCache getCache() {
+        if (mCache == null) {
+            mCache = TrayCache.forModule(mContext, mTrayUri, getModuleName(), getType());
+        }
+        return mCache;
+    }
+
+    /**
+     * @return the per process queue of the asynchronous writes for this module, created on first
+     * use
+     */
+    @NonNull
+    private WriteBehindQueue getWriteBehindQueue() {
+        if (mWriteBehindQueue == null) {
+            mWriteBehindQueue = WriteBehindQueue.forModule(mTrayUri, this);
+        }
+        return mWriteBehindQueue;
+    }
+
     @Override
     public int getVersion() {
         final Uri internalUri = mTrayUri.builder()
@@ -219,9 +398,19 @@ public class ContentProviderStorage extends TrayStorage {
         return Integer.valueOf(trayItems.get(0).value());
     }
 
+    @Override
+    public void putStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        insertElements(key, elements, true);
+    }
+
+    /**
+     * saves the item with its type. The elements of a {@link ValueType#STRING_SET} item are not
+     * part of the item, the elements saved for its key in this storage are kept
+     */
     @Override
     public void put(final TrayItem item) {
-        put(item.key(), item.migratedKey(), item.value());
+        persist(item.key(), item.migratedKey(), item.value(), item.type());
     }
 
     @Override
@@ -242,28 +431,77 @@ public class ContentProviderStorage extends TrayStorage {
     @Override
     public void put(@NonNull final String key, @Nullable final String migrationKey,
             @Nullable final Object data) {
+        persist(key, migrationKey, data == null ? null : String.valueOf(data), ValueType.of(data));
+    }
+
+    /**
+     * queues the data and returns immediately. The data is saved in a single transaction with
+     * all other data queued for this module within {@link WriteBehindQueue#FLUSH_DELAY_MS}, a key
+     * written multiple times is saved once with its latest value. Until then {@link
+     * #get(String)} returns the queued data, with the time of the write as created date.
+     * <p>
+     * Every synchronous write and {@link #getAll()} saves the queued data first. Call {@link
+     * #flush()} when the data has to be stored, e.g. before the process could be killed.
+     */
+    @Override
+    public void putAsync(@NonNull final String key, @Nullable final Object data) {
         if (getType() == Type.UNDEFINED) {
             throw new TrayRuntimeException(
                     "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
         }
-
         final String value = data == null ? null : String.valueOf(data);
+        final Date now = new Date();
+        getWriteBehindQueue().put(this, new TrayItem(getModuleName(), key, null, value,
+                ValueType.of(data), now, now));
+    }
+
+    /**
+     * saves all items in a single transaction. Listeners get notified once, with all items.
+     *
+     * @param items what to save, by key, value and migrated key
+     */
+    @Override
+    public void putAll(@NonNull final Collection<TrayItem> items) {
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+        flush();
+        writeAll(items);
+    }
+
+    /**
+     * {@link #putAll(Collection)} without saving the queued data first, used by the {@link
+     * WriteBehindQueue} to save it
+     */
+    void writeAll(@NonNull final Collection<TrayItem> items) {
+        final ContentValues[] values = new ContentValues[items.size()];
+        int i = 0;
+        for (final TrayItem item : items) {
+            final ContentValues itemValues = new ContentValues();
+            itemValues.put(TrayContract.Preferences.Columns.KEY, item.key());
+            itemValues.put(TrayContract.Preferences.Columns.VALUE, item.value());
+            itemValues.put(TrayContract.Preferences.Columns.MIGRATED_KEY, item.migratedKey());
+            if (item.type() != null) {
+                itemValues.put(TrayContract.Preferences.Columns.TYPE, item.type().tag());
+            }
+            values[i++] = itemValues;
+        }
 
         final Uri uri = mTrayUri.builder()
                 .setType(getType())
                 .setModule(getModuleName())
-                .setKey(key)
                 .build();
-        mProviderHelper.persist(uri, value, migrationKey);
+        mProviderHelper.persistAll(uri, values);
     }
 
     /**
      * registers a listener for changed data which gets called asynchronously when a change from
      * the {@link TrayContentProvider} was detected
      * <p>
-     * sdk version 15 is only partially supported. the listener will provide all data for this
-     * module and not only the changed ones because {@link ContentObserver#onChange(boolean, Uri)}
-     * was introduced in sdk version 16
+     * the listener gets the items changed since its last call, in the order of their latest
+     * change. Removed items are not part of the collection. If the listener fell too far behind
+     * the change log it gets all items of this module.
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public synchronized void registerOnTrayPreferenceChangeListener(
@@ -324,12 +562,33 @@ public class ContentProviderStorage extends TrayStorage {
             throw new IllegalArgumentException(
                     "null is not valid. use clear or wipe to delete all preferences");
         }
+        flush();
         final Uri uri = mTrayUri.builder()
                 .setType(getType())
                 .setModule(getModuleName())
                 .setKey(key)
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        TrayCache.invalidate(uri);
+    }
+
+    @Override
+    public void removeFromStringSet(@NonNull final String key,
+            @NonNull final Collection<String> elements) {
+        if (elements.isEmpty() || !isStringSet(key)) {
+            return;
+        }
+        flush();
+        final StringBuilder selection = new StringBuilder(TrayContract.Preferences.Columns.ELEMENT)
+                .append(" IN (");
+        for (int i = 0; i < elements.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(")");
+        final Uri uri = getElementsUri(key).build();
+        mContext.getContentResolver().delete(uri, selection.toString(),
+                elements.toArray(new String[elements.size()]));
+        TrayCache.invalidate(uri);
     }
 
     @Override
@@ -347,6 +606,25 @@ public class ContentProviderStorage extends TrayStorage {
         mProviderHelper.persist(uri, String.valueOf(version));
     }
 
+    @Override
+    public boolean stringSetContains(@NonNull final String key, @NonNull final String element) {
+        if (!isStringSet(key)) {
+            return false;
+        }
+        final Cursor cursor = mContext.getContentResolver().query(getElementsUri(key)
+                        .appendQueryParameter(TrayContract.Preferences.QUERY_PARAM_ELEMENT, element)
+                        .build(),
+                new String[]{TrayContract.Preferences.Columns.ELEMENT}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     public void unregisterOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
         // noinspection ConstantConditions
@@ -364,6 +642,76 @@ public class ContentProviderStorage extends TrayStorage {
         }
     }
 
+    /**
+     * @return builder of the uri of the elements of the set saved for the key
+     */
+    @NonNull
+    private Uri.Builder getElementsUri(@NonNull final String key) {
+        return mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .setKey(key)
+                .setElements(true)
+                .build()
+                .buildUpon();
+    }
+
+    private void persist(@NonNull final String key, @Nullable final String migrationKey,
+            @Nullable final String value, @Nullable final ValueType type) {
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+        flush();
+
+        final Uri uri = mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .setKey(key)
+                .build();
+        mProviderHelper.persist(uri, value, migrationKey, type);
+    }
+
+    private void insertElements(@NonNull final String key,
+            @NonNull final Collection<String> elements, final boolean replace) {
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+        flush();
+
+        final ContentValues[] values = new ContentValues[elements.size()];
+        int i = 0;
+        for (final String element : elements) {
+            final ContentValues elementValues = new ContentValues();
+            elementValues.put(TrayContract.Preferences.Columns.ELEMENT, element);
+            values[i++] = elementValues;
+        }
+
+        final Uri.Builder uri = getElementsUri(key);
+        if (replace) {
+            uri.appendQueryParameter(TrayContract.Preferences.QUERY_PARAM_REPLACE, "true");
+        }
+        mContext.getContentResolver().bulkInsert(uri.build(), values);
+        TrayCache.invalidate(uri.build());
+    }
+
+    /**
+     * @return true if a set is saved for the key, false if nothing is saved
+     * @throws WrongTypeException if an item of another type is saved for the key
+     */
+    private boolean isStringSet(@NonNull final String key) {
+        final TrayItem item = get(key);
+        if (item == null) {
+            return false;
+        }
+        if (item.type() != ValueType.STRING_SET) {
+            throw new WrongTypeException("The item for key <" + key + "> is no set but "
+                    + item.type());
+        }
+        return true;
+    }
+
     /**
      * clear the data inside the preference and all evidence this preference has ever existed
      * <p>
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayLog;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * The data version of the {@link TrayContentProvider}, published in a small memory mapped file.
+ * All processes of the app map the same file, so the processes which don't host the provider
+ * read the version without IPC.
+ * <p>
+ * Only the provider writes the file. It writes a new version after every write to the
+ * database, before the write returns to its caller, and a random one when it starts so a
+ * restarted provider doesn't repeat the versions of the previous one.
+ */
+class DataVersionFile {
+
+    private static final String FILENAME = "tray_data_version";
+
+    private static final int SIZE = 8;
+
+    /**
+     * the files opened for reading, by path
+     */
+    private static final HashMap<String, DataVersionFile> sReaders = new HashMap<>();
+
+    private final MappedByteBuffer mBuffer;
+
+    private DataVersionFile(@NonNull final MappedByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return the file of the provider, mapped for reading. Null when the provider didn't
+     * publish its version yet
+     */
+    @Nullable
+    static DataVersionFile openForReading(@NonNull final Context context) {
+        final File file = getFile(context);
+        synchronized (sReaders) {
+            DataVersionFile versionFile = sReaders.get(file.getPath());
+            if (versionFile == null) {
+                // the provider sizes the file before writing the first version
+                if (file.length() < SIZE) {
+                    return null;
+                }
+                try {
+                    versionFile = new DataVersionFile(map(file, "r",
+                            FileChannel.MapMode.READ_ONLY));
+                } catch (IOException e) {
+                    TrayLog.w("could not map the data version file: " + e.getMessage());
+                    return null;
+                }
+                sReaders.put(file.getPath(), versionFile);
+            }
+            return versionFile;
+        }
+    }
+
+    /**
+     * maps the file for the provider. When that fails the file is deleted, so no other process
+     * reads a version which doesn't change anymore
+     *
+     * @return the file mapped for writing, null if it can't be written
+     */
+    @Nullable
+    static DataVersionFile openForWriting(@NonNull final Context context) {
+        final File file = getFile(context);
+        try {
+            return new DataVersionFile(map(file, "rw", FileChannel.MapMode.READ_WRITE));
+        } catch (IOException e) {
+            TrayLog.w("could not map the data version file: " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    long read() {
+        return mBuffer.getLong(0);
+    }
+
+    void write(final long version) {
+        mBuffer.putLong(0, version);
+    }
+
+    @NonNull
+    private static File getFile(@NonNull final Context context) {
+        return new File(context.getFilesDir(), FILENAME);
+    }
+
+    @NonNull
+    private static MappedByteBuffer map(@NonNull final File file, @NonNull final String mode,
+            @NonNull final FileChannel.MapMode mapMode) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, mode);
+        try {
+            // the file is never replaced, the mappings of other processes stay valid
+            if (mapMode == FileChannel.MapMode.READ_WRITE && randomAccessFile.length() < SIZE) {
+                randomAccessFile.setLength(SIZE);
+            }
+            // the mapping stays valid after closing the file
+            return randomAccessFile.getChannel().map(mapMode, 0, SIZE);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+
+/**
+ * Remembers which of the two databases of the {@link TrayContentProvider} contain data of a
+ * module, so a query without the backup parameter only has to read the databases which can
+ * have results.
+ * <p>
+ * The table is loaded with the distinct modules of both databases on first use and extended
+ * with every write. Locations are never removed when data gets deleted: an unneeded location
+ * only costs a query of an empty module while a missing one would hide data.
+ */
+class ModuleRoutingTable {
+
+    /**
+     * data is stored in the database with backup
+     */
+    static final int USER = 1;
+
+    /**
+     * data is stored in the database without backup
+     */
+    static final int DEVICE = 2;
+
+    private final TrayDBHelper mDeviceDbHelper;
+
+    /**
+     * bitmask of {@link #USER} and {@link #DEVICE} by table and module, null until loaded
+     */
+    private HashMap<String, Integer> mLocations;
+
+    private final TrayDBHelper mUserDbHelper;
+
+    ModuleRoutingTable(@NonNull final TrayDBHelper userDbHelper,
+            @NonNull final TrayDBHelper deviceDbHelper) {
+        mUserDbHelper = userDbHelper;
+        mDeviceDbHelper = deviceDbHelper;
+    }
+
+    /**
+     * records that a database contains data of a module
+     *
+     * @param location {@link #USER} or {@link #DEVICE}
+     */
+    synchronized void addLocation(@NonNull final String table, @NonNull final String module,
+            final int location) {
+        if (mLocations == null) {
+            // the data is already written, loading will find it
+            return;
+        }
+        final String key = key(table, module);
+        final Integer locations = mLocations.get(key);
+        mLocations.put(key, locations == null ? location : locations | location);
+    }
+
+    /**
+     * @return bitmask of {@link #USER} and {@link #DEVICE}, 0 if the module has no data
+     */
+    synchronized int getLocations(@NonNull final String table, @NonNull final String module) {
+        if (mLocations == null) {
+            mLocations = new HashMap<>();
+            load(mUserDbHelper.getReadableDatabase(), USER);
+            load(mDeviceDbHelper.getReadableDatabase(), DEVICE);
+        }
+        final Integer locations = mLocations.get(key(table, module));
+        return locations == null ? 0 : locations;
+    }
+
+    private void load(@NonNull final SQLiteDatabase database, final int location) {
+        for (final String table : new String[]{
+                TrayDBHelper.TABLE_NAME, TrayDBHelper.INTERNAL_TABLE_NAME}) {
+            final Cursor cursor = database.query(true, table,
+                    new String[]{TrayContract.Preferences.Columns.MODULE},
+                    null, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final String key = key(table, cursor.getString(0));
+                    final Integer locations = mLocations.get(key);
+                    mLocations.put(key, locations == null ? location : locations | location);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    @NonNull
+    private static String key(@NonNull final String table, final String module) {
+        return table + "/" + module;
+    }
+}
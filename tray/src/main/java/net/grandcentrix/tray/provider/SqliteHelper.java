@@ -16,9 +16,13 @@
 
 package net.grandcentrix.tray.provider;
 
+import net.grandcentrix.tray.core.TrayLog;
+
 import android.content.ContentValues;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -26,6 +30,8 @@ import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -36,6 +42,13 @@ import java.util.List;
  */
 public class SqliteHelper {
 
+    /**
+     * compiled upsert statements by database and table. Statements hold a reference to their
+     * database, entries of closed databases are dropped on the next lookup
+     */
+    private static final HashMap<SQLiteDatabase, HashMap<String, SQLiteStatement>>
+            sUpsertStatements = new HashMap<>();
+
     /**
      * combines selection a and selection b to (a) AND (b). handles all cases if a or b are
      * <code>null</code> or <code>""</code>
@@ -170,6 +183,108 @@ public class SqliteHelper {
         }
     }
 
+    /**
+     * Inserts or updates a preference with a single statement. An existing row for the module and
+     * key keeps its {@link TrayContract.Preferences.Columns#ID} and {@link
+     * TrayContract.Preferences.Columns#CREATED} date, all other columns are replaced.
+     * <p>
+     * The statement is compiled once per database and table and reused with bound arguments.
+     * {@code ON CONFLICT ... DO UPDATE} would need SQLite 3.24 which is not available on most
+     * supported Android versions, an {@code INSERT OR REPLACE} reading the preserved columns in
+     * sub-selects is atomic as well.
+     *
+     * @param sqlDb  database to work with. has to be writable
+     * @param table  a table with the preferences columns
+     * @param values key, value, module, created, updated, migrated key and type of the
+     *               preference
+     * @return the row id or -1 if something goes wrong
+     */
+    public static long upsert(@Nullable final SQLiteDatabase sqlDb, @NonNull final String table,
+            @NonNull final ContentValues values) {
+        if (sqlDb == null) {
+            return -1;
+        }
+
+        final SQLiteStatement statement = getUpsertStatement(sqlDb, table);
+        synchronized (statement) {
+            statement.clearBindings();
+            bindStringOrNull(statement, 1,
+                    values.getAsString(TrayContract.Preferences.Columns.KEY));
+            bindStringOrNull(statement, 2,
+                    values.getAsString(TrayContract.Preferences.Columns.VALUE));
+            bindStringOrNull(statement, 3,
+                    values.getAsString(TrayContract.Preferences.Columns.MODULE));
+            statement.bindLong(4, values.getAsLong(TrayContract.Preferences.Columns.CREATED));
+            statement.bindLong(5, values.getAsLong(TrayContract.Preferences.Columns.UPDATED));
+            bindStringOrNull(statement, 6,
+                    values.getAsString(TrayContract.Preferences.Columns.MIGRATED_KEY));
+            final Integer type = values.getAsInteger(TrayContract.Preferences.Columns.TYPE);
+            if (type == null) {
+                statement.bindNull(7);
+            } else {
+                statement.bindLong(7, type);
+            }
+            try {
+                return statement.executeInsert();
+            } catch (SQLException e) {
+                TrayLog.w("upsert into " + table + " failed: " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    private static void bindStringOrNull(@NonNull final SQLiteStatement statement,
+            final int index, @Nullable final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    @NonNull
+    private static SQLiteStatement getUpsertStatement(@NonNull final SQLiteDatabase sqlDb,
+            @NonNull final String table) {
+        synchronized (sUpsertStatements) {
+            final Iterator<SQLiteDatabase> databases = sUpsertStatements.keySet().iterator();
+            while (databases.hasNext()) {
+                if (!databases.next().isOpen()) {
+                    databases.remove();
+                }
+            }
+
+            HashMap<String, SQLiteStatement> statements = sUpsertStatements.get(sqlDb);
+            if (statements == null) {
+                statements = new HashMap<>();
+                sUpsertStatements.put(sqlDb, statements);
+            }
+            SQLiteStatement statement = statements.get(table);
+            if (statement == null) {
+                // ?1 key, ?2 value, ?3 module, ?4 created, ?5 updated, ?6 migrated key, ?7 type
+                final String existingRow = " FROM " + table + " WHERE "
+                        + TrayContract.Preferences.Columns.MODULE + " = ?3 AND "
+                        + TrayContract.Preferences.Columns.KEY + " = ?1)";
+                statement = sqlDb.compileStatement("INSERT OR REPLACE INTO " + table + " ("
+                        + TrayContract.Preferences.Columns.ID + ", "
+                        + TrayContract.Preferences.Columns.KEY + ", "
+                        + TrayContract.Preferences.Columns.VALUE + ", "
+                        + TrayContract.Preferences.Columns.MODULE + ", "
+                        + TrayContract.Preferences.Columns.CREATED + ", "
+                        + TrayContract.Preferences.Columns.UPDATED + ", "
+                        + TrayContract.Preferences.Columns.MIGRATED_KEY + ", "
+                        + TrayContract.Preferences.Columns.TYPE
+                        + ") VALUES ("
+                        + "(SELECT " + TrayContract.Preferences.Columns.ID + existingRow + ", "
+                        + "?1, ?2, ?3, "
+                        + "COALESCE((SELECT " + TrayContract.Preferences.Columns.CREATED
+                        + existingRow + ", ?4), "
+                        + "?5, ?6, ?7)");
+                statements.put(table, statement);
+            }
+            return statement;
+        }
+    }
+
     // From https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/database/DatabaseUtils.java
     /**
      * Query the table for the number of rows in the table.
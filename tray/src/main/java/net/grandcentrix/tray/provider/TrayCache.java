@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayLog;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per process read-through cache for the items of one module and {@link TrayStorage.Type}.
+ * <p>
+ * The items are loaded with a single query on the first read and served from memory until the
+ * cache gets invalidated. Writes through Tray invalidate the cache of their process directly,
+ * writes from other processes when their change notification arrives at the {@link
+ * ContentObserver} registered for the module. Every invalidation increments a version stamp; a
+ * load which raced with an invalidation is returned to its caller but not kept.
+ * <p>
+ * The change notification arrives asynchronously, so the loaded items are also stamped with the
+ * data version of the {@link TrayContentProvider} and only served while it is unchanged. The
+ * provider invalidates the caches of its own process before a write returns, there the version
+ * is a field read. Other processes read it from the {@link DataVersionFile} the provider
+ * publishes it in, so a cached get needs no IPC in any process.
+ */
+class TrayCache {
+
+    /**
+     * all caches of this process, by module uri
+     */
+    private static final HashMap<String, TrayCache> sCaches = new HashMap<>();
+
+    private final String mAuthority;
+
+    private Map<String, TrayItem> mItems;
+
+    private final String mModule;
+
+    private final Uri mModuleUri;
+
+    private long mVersion = 0;
+
+    /**
+     * the data version of the provider when {@link #mItems} were loaded
+     */
+    private long mDataVersion;
+
+    @VisibleForTesting
+    TrayCache(@NonNull final Uri moduleUri, @NonNull final String module) {
+        mModuleUri = moduleUri;
+        mModule = module;
+        mAuthority = moduleUri.getAuthority();
+    }
+
+    /**
+     * @return the cache for the given module and type, created on first use
+     */
+    @NonNull
+    static TrayCache forModule(@NonNull final Context context, @NonNull final TrayUri trayUri,
+            @NonNull final String module, @NonNull final TrayStorage.Type type) {
+        final Uri moduleUri = trayUri.builder()
+                .setType(type)
+                .setModule(module)
+                .build();
+        final String cacheKey = moduleUri.toString();
+        synchronized (sCaches) {
+            TrayCache cache = sCaches.get(cacheKey);
+            if (cache == null) {
+                cache = new TrayCache(moduleUri, module);
+                sCaches.put(cacheKey, cache);
+
+                // the observer lives as long as the process, like the cache. Without a handler
+                // onChange is called directly on the binder thread
+                final Uri observingUri = trayUri.builder().setModule(module).build();
+                final TrayCache observedCache = cache;
+                context.getContentResolver().registerContentObserver(observingUri, true,
+                        new ContentObserver(null) {
+                            @Override
+                            public void onChange(final boolean selfChange) {
+                                observedCache.invalidate();
+                            }
+                        });
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * invalidates all caches which could contain data changed at the given uri. Must be called
+     * after every write to the {@link TrayContentProvider}
+     *
+     * @param uri the uri the data was written to
+     */
+    static void invalidate(@NonNull final Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()
+                || !TrayContract.Preferences.BASE_PATH.equals(segments.get(0))) {
+            // internal preferences are not cached
+            return;
+        }
+        final String module = segments.size() > 1 ? segments.get(1) : null;
+
+        final List<TrayCache> caches;
+        synchronized (sCaches) {
+            caches = new ArrayList<>(sCaches.values());
+        }
+        for (final TrayCache cache : caches) {
+            if (cache.mAuthority.equals(uri.getAuthority())
+                    && (module == null || module.equals(cache.mModule))) {
+                cache.invalidate();
+            }
+        }
+    }
+
+    /**
+     * @param key            the key of the item
+     * @param providerHelper used to load the module when it isn't cached
+     * @return the cached item or null if the module has no item for this key
+     */
+    @Nullable
+    TrayItem get(@NonNull final String key, @NonNull final TrayProviderHelper providerHelper) {
+        // read before loading, a write racing with the load changes it again
+        final long dataVersion = providerHelper.getDataVersion();
+        final long version;
+        synchronized (this) {
+            if (mItems != null && mDataVersion == dataVersion) {
+                return mItems.get(key);
+            }
+            version = mVersion;
+        }
+
+        // query without holding the lock, invalidations must not wait for the provider
+        final Map<String, TrayItem> items = load(providerHelper);
+
+        synchronized (this) {
+            if (mVersion == version) {
+                mItems = items;
+                mDataVersion = dataVersion;
+            }
+        }
+        return items.get(key);
+    }
+
+    synchronized void invalidate() {
+        mVersion++;
+        mItems = null;
+    }
+
+    @VisibleForTesting
+    synchronized boolean isLoaded() {
+        return mItems != null;
+    }
+
+    @NonNull
+    private Map<String, TrayItem> load(@NonNull final TrayProviderHelper providerHelper) {
+        final List<TrayItem> list = providerHelper.queryProvider(mModuleUri);
+        final HashMap<String, TrayItem> items = new HashMap<>(list.size() * 2);
+        for (final TrayItem item : list) {
+            final TrayItem previous = items.get(item.key());
+            if (previous != null) {
+                // keep the first one, as the uncached query did
+                TrayLog.w("found more than one item for key '" + item.key()
+                        + "' in module " + mModule + ". "
+                        + "This can be caused by using the same name for a device and user specific preference.");
+                TrayLog.d("item #0 " + previous);
+                TrayLog.d("item #1 " + item);
+                continue;
+            }
+            items.put(item.key(), item);
+        }
+        return items;
+    }
+}
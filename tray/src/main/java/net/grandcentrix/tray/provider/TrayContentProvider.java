@@ -18,19 +18,25 @@ package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.R;
 import net.grandcentrix.tray.core.TrayLog;
+import net.grandcentrix.tray.core.ValueType;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The ContentProvider which stores all data for Tray. It accesses two databases {@link
@@ -43,6 +49,9 @@ import java.util.Date;
  * TrayContract.Preferences.Columns#MODULE} overrides the already
  * existing data. So <code>insert</code> works as <code>insertOrUpdate</code>.
  * <p>
+ * Every change of the preferences is recorded in a change log per database which can be read
+ * with {@link TrayUri#getChanges(net.grandcentrix.tray.core.TrayStorage.Type, long)}.
+ * <p>
  * Created by jannisveerkamp on 16.09.14.
  */
 public class TrayContentProvider extends ContentProvider {
@@ -53,23 +62,115 @@ public class TrayContentProvider extends ContentProvider {
 
     private static final int ALL_PREFERENCE = 30;
 
+    private static final int SET_ELEMENTS = 40;
+
     private static final int INTERNAL_SINGLE_PREFERENCE = 110;
 
     private static final int INTERNAL_MODULE_PREFERENCE = 120;
 
     private static final int INTERNAL_ALL_PREFERENCE = 130;
 
+    private static final int CHANGES = 200;
+
+    private static final int VERSION = 300;
+
+    /**
+     * selects the rows of a module and key, in the preferences and the elements table
+     */
+    private static final String ELEMENTS_SELECTION = TrayContract.Preferences.Columns.MODULE
+            + " = ? AND " + TrayContract.Preferences.Columns.KEY + " = ?";
+
     private static UriMatcher sURIMatcher;
 
+    /**
+     * the provider running in this process, null when it runs in another one
+     */
+    private static volatile TrayContentProvider sLocalProvider;
+
     TrayDBHelper mDeviceDbHelper;
 
     TrayDBHelper mUserDbHelper;
 
+    private ModuleRoutingTable mRoutingTable;
+
+    /**
+     * changed by every write, starts at a random value so a restarted provider doesn't repeat the
+     * versions of the previous one
+     */
+    private final AtomicLong mVersion = new AtomicLong(new Random().nextLong());
+
+    /**
+     * publishes {@link #mVersion} to the other processes, null if that failed. Guarded by
+     * {@link #mVersion}, so the versions are written in order
+     */
+    private DataVersionFile mVersionFile;
+
+    /**
+     * inserts or updates multiple items of a single module in one transaction. Works like {@link
+     * #insert(Uri, ContentValues)} for each item but notifies the observers only once, with the
+     * module uri restricted to the changed keys by {@link TrayContract.Preferences#QUERY_PARAM_KEY}
+     * parameters.
+     * <p>
+     * For an uri of the {@link TrayContract.Preferences#ELEMENTS_PATH} of a key the values are
+     * elements of a set, see {@link #bulkInsertElements(Uri, ContentValues[])}.
+     *
+     * @param uri    the uri of the module
+     * @param values values of the items, including the {@link TrayContract.Preferences.Columns#KEY}
+     * @return the number of inserted or updated items
+     */
+    @Override
+    public int bulkInsert(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        final int match = sURIMatcher.match(uri);
+        if (match == SET_ELEMENTS) {
+            return bulkInsertElements(uri, values);
+        }
+        if (match != MODULE_PREFERENCE) {
+            throw new IllegalArgumentException("Bulk insert is not supported for Uri: " + uri);
+        }
+
+        final Date date = new Date();
+        final String module = uri.getPathSegments().get(1);
+
+        final Uri.Builder changedUri = uri.buildUpon();
+        int rows = 0;
+        final SQLiteDatabase database = getWritableDatabase(uri);
+        database.beginTransaction();
+        try {
+            for (final ContentValues itemValues : values) {
+                final String key = itemValues.getAsString(TrayContract.Preferences.Columns.KEY);
+                itemValues.put(TrayContract.Preferences.Columns.CREATED, date.getTime());
+                itemValues.put(TrayContract.Preferences.Columns.UPDATED, date.getTime());
+                itemValues.put(TrayContract.Preferences.Columns.MODULE, module);
+
+                if (upsert(database, getTable(uri), itemValues) >= 0) {
+                    changedUri.appendQueryParameter(TrayContract.Preferences.QUERY_PARAM_KEY, key);
+                    rows++;
+                } else {
+                    TrayLog.w("Couldn't update or insert data. Uri: " + uri + ", key: " + key);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // one notification for all items
+        if (rows > 0) {
+            addRoutingLocation(uri);
+            getContext().getContentResolver().notifyChange(changedUri.build(), null);
+            onDataChanged(uri);
+        }
+
+        return rows;
+    }
+
     @Override
     public int delete(final Uri uri, String selection, String[] selectionArgs) {
 
         final int match = sURIMatcher.match(uri);
         switch (match) {
+            case SET_ELEMENTS:
+                return deleteElements(uri, selection, selectionArgs);
             case SINGLE_PREFERENCE:
             case INTERNAL_SINGLE_PREFERENCE:
                 selection = SqliteHelper.extendSelection(selection,
@@ -107,6 +208,7 @@ public class TrayContentProvider extends ContentProvider {
         // Don't force an UI refresh if nothing has changed
         if (rows > 0) {
             getContext().getContentResolver().notifyChange(uri, null);
+            onDataChanged(uri);
         }
 
         return rows;
@@ -132,7 +234,23 @@ public class TrayContentProvider extends ContentProvider {
             case INTERNAL_MODULE_PREFERENCE:
             case INTERNAL_ALL_PREFERENCE:
                 return TrayDBHelper.INTERNAL_TABLE_NAME;
+
+            case CHANGES:
+                return TrayDBHelper.CHANGES_TABLE_NAME;
+
+            case SET_ELEMENTS:
+                return TrayDBHelper.SETS_TABLE_NAME;
+        }
+    }
+
+    /**
+     * @return the routing table for the current db helpers, created on first use
+     */
+    synchronized ModuleRoutingTable getRoutingTable() {
+        if (mRoutingTable == null) {
+            mRoutingTable = new ModuleRoutingTable(mUserDbHelper, mDeviceDbHelper);
         }
+        return mRoutingTable;
     }
 
     @Override
@@ -166,40 +284,27 @@ public class TrayContentProvider extends ContentProvider {
                 throw new IllegalArgumentException("Insert is not supported for Uri: " + uri);
         }
 
-        final String prefSelection =
-                TrayContract.Preferences.Columns.MODULE + " = ?"
-                        + "AND " + TrayContract.Preferences.Columns.KEY + " = ?";
-        final String[] prefSelectionArgs = {
-                values.getAsString(TrayContract.Preferences.Columns.MODULE),
-                values.getAsString(TrayContract.Preferences.Columns.KEY)
-        };
+        final long rowId = upsert(getWritableDatabase(uri), getTable(uri), values);
 
-        final String[] excludeForUpdate = {TrayContract.Preferences.Columns.CREATED};
-
-        final int status = insertOrUpdate(getWritableDatabase(uri), getTable(uri),
-                prefSelection, prefSelectionArgs, values, excludeForUpdate);
-
-        if (status >= 0) {
+        if (rowId >= 0) {
+            addRoutingLocation(uri);
             getContext().getContentResolver().notifyChange(uri, null);
+            onDataChanged(uri);
             return uri;
-
-        } else if (status == -1) {
-            //throw new SQLiteException("An error occurred while saving preference.");
-            TrayLog.w("Couldn't update or insert data. Uri: " + uri);
-        } else if (status == -2) {
-            TrayLog.w("Data is already inserted, no need to insert here");
-        } else {
-            TrayLog.w("unknown SQLite error");
         }
+
+        //throw new SQLiteException("An error occurred while saving preference.");
+        TrayLog.w("Couldn't update or insert data. Uri: " + uri);
         return null;
     }
 
-    public int insertOrUpdate(final SQLiteDatabase writableDatabase, final String table,
-            final String prefSelection, final String[] prefSelectionArgs,
-            final ContentValues values, final String[] excludeForUpdate) {
-        return SqliteHelper
-                .insertOrUpdate(writableDatabase, table, prefSelection, prefSelectionArgs, values,
-                        excludeForUpdate);
+    /**
+     * @return the row id or -1 if something goes wrong
+     * @see SqliteHelper#upsert(SQLiteDatabase, String, ContentValues)
+     */
+    public long upsert(final SQLiteDatabase writableDatabase, final String table,
+            final ContentValues values) {
+        return SqliteHelper.upsert(writableDatabase, table, values);
     }
 
     @Override
@@ -208,6 +313,13 @@ public class TrayContentProvider extends ContentProvider {
 
         mUserDbHelper = new TrayDBHelper(getContext(), true);
         mDeviceDbHelper = new TrayDBHelper(getContext(), false);
+        synchronized (mVersion) {
+            mVersionFile = DataVersionFile.openForWriting(getContext());
+            if (mVersionFile != null) {
+                mVersionFile.write(mVersion.get());
+            }
+        }
+        sLocalProvider = this;
         return true;
     }
 
@@ -233,11 +345,32 @@ public class TrayContentProvider extends ContentProvider {
                 builder.appendWhere(
                         TrayContract.Preferences.Columns.MODULE + " = " +
                                 DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)));
+                if (match == MODULE_PREFERENCE) {
+                    appendInWhere(builder, TrayContract.Preferences.Columns.KEY,
+                            uri.getQueryParameters(TrayContract.Preferences.QUERY_PARAM_KEY));
+                }
                 // no break
             case ALL_PREFERENCE:
             case INTERNAL_ALL_PREFERENCE:
                 builder.setTables(getTable(uri));
                 break;
+            case SET_ELEMENTS:
+                builder.setTables(getTable(uri));
+                builder.appendWhere(TrayContract.Preferences.Columns.MODULE + " = "
+                        + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1))
+                        + " AND " + TrayContract.Preferences.Columns.KEY + " = "
+                        + DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(2)));
+                appendInWhere(builder, TrayContract.Preferences.Columns.ELEMENT,
+                        uri.getQueryParameters(TrayContract.Preferences.QUERY_PARAM_ELEMENT));
+                break;
+            case CHANGES:
+                return queryChanges(uri, builder, projection, selection, selectionArgs,
+                        sortOrder);
+            case VERSION:
+                final MatrixCursor version = new MatrixCursor(
+                        new String[]{TrayContract.Version.Columns.VERSION}, 1);
+                version.addRow(new Object[]{mVersion.get()});
+                return version;
             default:
                 throw new IllegalArgumentException("Query is not supported for Uri: " + uri);
         }
@@ -245,15 +378,30 @@ public class TrayContentProvider extends ContentProvider {
         final Cursor cursor;
         final String backup = uri.getQueryParameter("backup");
         if (backup == null) {
-            // backup not set, query both dbs
-            Cursor cursor1 = builder
-                    .query(mUserDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
-            Cursor cursor2 = builder
-                    .query(mDeviceDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
-
-            cursor = new MergeCursor(new Cursor[]{cursor1, cursor2});
+            // backup not set, query the dbs which have data of the module
+            int locations = ModuleRoutingTable.USER | ModuleRoutingTable.DEVICE;
+            if (match != ALL_PREFERENCE && match != INTERNAL_ALL_PREFERENCE) {
+                locations = getRoutingTable()
+                        .getLocations(getRoutedTable(uri), uri.getPathSegments().get(1));
+            }
+
+            if (locations == ModuleRoutingTable.DEVICE) {
+                cursor = builder.query(mDeviceDbHelper.getReadableDatabase(), projection,
+                        selection, selectionArgs, null, null, sortOrder);
+            } else if (locations != (ModuleRoutingTable.USER | ModuleRoutingTable.DEVICE)) {
+                // only user data or no data at all, an empty cursor from either db will do
+                cursor = builder.query(mUserDbHelper.getReadableDatabase(), projection,
+                        selection, selectionArgs, null, null, sortOrder);
+            } else {
+                Cursor cursor1 = builder
+                        .query(mUserDbHelper.getReadableDatabase(), projection, selection,
+                                selectionArgs, null, null, sortOrder);
+                Cursor cursor2 = builder
+                        .query(mDeviceDbHelper.getReadableDatabase(), projection, selection,
+                                selectionArgs, null, null, sortOrder);
+
+                cursor = new MergeCursor(new Cursor[]{cursor1, cursor2});
+            }
         } else {
             // Query
             cursor = builder.query(getWritableDatabase(uri), projection, selection,
@@ -280,7 +428,7 @@ public class TrayContentProvider extends ContentProvider {
         // this is a standard implementation (but untested at the moment).
         // Perhaps useful in the future. The current implementation doesn't require a an
         // update mechanism other than multiple calls to {@link #insert} which results
-        // in an {@link #insertOrUpdate} call
+        // in an {@link #upsert} call
 
         /*final int match = sURIMatcher.match(uri);
         switch (match) {
@@ -304,6 +452,175 @@ public class TrayContentProvider extends ContentProvider {
         return rows;*/
     }
 
+    /**
+     * records the db written by an insert into the uri in the routing table
+     */
+    private void addRoutingLocation(@NonNull final Uri uri) {
+        getRoutingTable().addLocation(getRoutedTable(uri), uri.getPathSegments().get(1),
+                shouldBackup(uri) ? ModuleRoutingTable.USER : ModuleRoutingTable.DEVICE);
+    }
+
+    /**
+     * adds elements to the set of a key in one transaction. The item of the key is saved as
+     * {@link ValueType#STRING_SET} first, which logs the change and notifies the observers once.
+     * With the {@link TrayContract.Preferences#QUERY_PARAM_REPLACE} parameter the existing
+     * elements are removed.
+     *
+     * @param uri    the elements uri of a key
+     * @param values values with the {@link TrayContract.Preferences.Columns#ELEMENT}
+     * @return the number of given elements
+     */
+    private int bulkInsertElements(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        final String module = uri.getPathSegments().get(1);
+        final String key = uri.getPathSegments().get(2);
+        final long now = new Date().getTime();
+
+        final SQLiteDatabase database = getWritableDatabase(uri);
+        database.beginTransaction();
+        try {
+            final ContentValues item = new ContentValues();
+            item.put(TrayContract.Preferences.Columns.KEY, key);
+            item.putNull(TrayContract.Preferences.Columns.VALUE);
+            item.put(TrayContract.Preferences.Columns.MODULE, module);
+            item.put(TrayContract.Preferences.Columns.CREATED, now);
+            item.put(TrayContract.Preferences.Columns.UPDATED, now);
+            item.put(TrayContract.Preferences.Columns.TYPE, ValueType.STRING_SET.tag());
+            if (upsert(database, TrayDBHelper.TABLE_NAME, item) < 0) {
+                TrayLog.w("Couldn't update or insert set. Uri: " + uri);
+                return 0;
+            }
+
+            if (Boolean.parseBoolean(
+                    uri.getQueryParameter(TrayContract.Preferences.QUERY_PARAM_REPLACE))) {
+                database.delete(getTable(uri), ELEMENTS_SELECTION, new String[]{module, key});
+            }
+            for (final ContentValues element : values) {
+                element.put(TrayContract.Preferences.Columns.MODULE, module);
+                element.put(TrayContract.Preferences.Columns.KEY, key);
+                // already contained elements are kept
+                database.insertWithOnConflict(getTable(uri), null, element,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        addRoutingLocation(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+        onDataChanged(uri);
+        return values.length;
+    }
+
+    /**
+     * removes elements from the set of a key. The updated date of the item changes when elements
+     * were removed, which logs the change.
+     */
+    private int deleteElements(@NonNull final Uri uri, final String selection,
+            final String[] selectionArgs) {
+        final String module = uri.getPathSegments().get(1);
+        final String key = uri.getPathSegments().get(2);
+
+        final int rows;
+        final SQLiteDatabase database = getWritableDatabase(uri);
+        database.beginTransaction();
+        try {
+            rows = database.delete(getTable(uri),
+                    SqliteHelper.extendSelection(selection, ELEMENTS_SELECTION),
+                    SqliteHelper.extendSelectionArgs(selectionArgs, new String[]{module, key}));
+            if (rows > 0) {
+                final ContentValues item = new ContentValues();
+                item.put(TrayContract.Preferences.Columns.UPDATED, new Date().getTime());
+                database.update(TrayDBHelper.TABLE_NAME, item, ELEMENTS_SELECTION,
+                        new String[]{module, key});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rows > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            onDataChanged(uri);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the table whose modules are recorded in the routing table for the uri. Set
+     * elements are stored in the database of their item.
+     */
+    private String getRoutedTable(@NonNull final Uri uri) {
+        return sURIMatcher.match(uri) == SET_ELEMENTS ? TrayDBHelper.TABLE_NAME : getTable(uri);
+    }
+
+    /**
+     * queries the change log of the database selected by the backup parameter, ordered by the
+     * sequence number
+     */
+    private Cursor queryChanges(@NonNull final Uri uri, @NonNull final SQLiteQueryBuilder builder,
+            final String[] projection, final String selection, final String[] selectionArgs,
+            final String sortOrder) {
+        if (uri.getQueryParameter("backup") == null) {
+            // the sequence numbers of both databases are independent
+            throw new IllegalArgumentException("Changes require the backup parameter: " + uri);
+        }
+        builder.setTables(getTable(uri));
+        final String after = uri.getQueryParameter(TrayContract.Changes.QUERY_PARAM_AFTER);
+        if (after != null) {
+            builder.appendWhere(TrayContract.Changes.Columns.SEQUENCE + " > "
+                    + Long.parseLong(after));
+        }
+        return builder.query(getWritableDatabase(uri), projection, selection, selectionArgs,
+                null, null, sortOrder != null ? sortOrder : TrayContract.Changes.Columns.SEQUENCE);
+    }
+
+    /**
+     * restricts the query to the given values of a column, used for the key parameters of the
+     * uris notified by {@link #bulkInsert(Uri, ContentValues[])} and the element parameters of
+     * set element uris
+     */
+    private static void appendInWhere(@NonNull final SQLiteQueryBuilder builder,
+            @NonNull final String column, @NonNull final List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        final StringBuilder where = new StringBuilder(" AND ")
+                .append(column)
+                .append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                where.append(", ");
+            }
+            where.append(DatabaseUtils.sqlEscapeString(values.get(i)));
+        }
+        builder.appendWhere(where.append(")"));
+    }
+
+    /**
+     * @return the data version of the provider running in this process, null if it runs in
+     * another process
+     */
+    @Nullable
+    static Long getLocalVersion() {
+        final TrayContentProvider provider = sLocalProvider;
+        return provider == null ? null : provider.mVersion.get();
+    }
+
+    /**
+     * changes and publishes the data version and invalidates the caches of this process. Must be
+     * called after every write, before it returns to the caller
+     */
+    private void onDataChanged(@NonNull final Uri uri) {
+        synchronized (mVersion) {
+            final long version = mVersion.incrementAndGet();
+            if (mVersionFile != null) {
+                mVersionFile.write(version);
+            }
+        }
+        TrayCache.invalidate(uri);
+    }
+
     /**
      * checks the uri for the backup param. default is that
      *
@@ -335,6 +652,12 @@ public class TrayContentProvider extends ContentProvider {
                 TrayContract.Preferences.BASE_PATH + "/*/*",
                 SINGLE_PREFERENCE);
 
+        // BASE/module/key/elements
+        sURIMatcher.addURI(authority,
+                TrayContract.Preferences.BASE_PATH + "/*/*/"
+                        + TrayContract.Preferences.ELEMENTS_PATH,
+                SET_ELEMENTS);
+
         sURIMatcher.addURI(authority,
                 TrayContract.InternalPreferences.BASE_PATH,
                 INTERNAL_ALL_PREFERENCE);
@@ -348,6 +671,14 @@ public class TrayContentProvider extends ContentProvider {
         sURIMatcher.addURI(authority,
                 TrayContract.InternalPreferences.BASE_PATH + "/*/*",
                 INTERNAL_SINGLE_PREFERENCE);
+
+        sURIMatcher.addURI(authority,
+                TrayContract.Changes.BASE_PATH,
+                CHANGES);
+
+        sURIMatcher.addURI(authority,
+                TrayContract.Version.BASE_PATH,
+                VERSION);
     }
 
 }
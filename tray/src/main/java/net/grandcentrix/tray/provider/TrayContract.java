@@ -53,9 +53,41 @@ class TrayContract {
             String UPDATED = TrayDBHelper.UPDATED; // DATE
 
             String MIGRATED_KEY = TrayDBHelper.MIGRATED_KEY;
+
+            /**
+             * tag of the {@link net.grandcentrix.tray.core.ValueType}, null for old items
+             */
+            String TYPE = TrayDBHelper.TYPE;
+
+            /**
+             * element of a set, only in the rows of {@link #ELEMENTS_PATH} uris
+             */
+            String ELEMENT = TrayDBHelper.ELEMENT;
         }
 
         String BASE_PATH = "preferences";
+
+        /**
+         * appended to the uri of a single preference to access the elements of a set.
+         * <code>bulkInsert</code> adds elements, <code>delete</code> removes them
+         */
+        String ELEMENTS_PATH = "elements";
+
+        /**
+         * query parameter restricting an elements uri to the given elements. Can be repeated
+         */
+        String QUERY_PARAM_ELEMENT = "element";
+
+        /**
+         * query parameter of an elements uri, <code>true</code> replaces all elements with the
+         * inserted ones
+         */
+        String QUERY_PARAM_REPLACE = "replace";
+
+        /**
+         * query parameter restricting a module uri to the given keys. Can be repeated
+         */
+        String QUERY_PARAM_KEY = "key";
     }
 
     /**
@@ -66,6 +98,41 @@ class TrayContract {
         String BASE_PATH = "internal_preferences";
     }
 
+    /**
+     * log of the changes in the {@link Preferences}, one per database. Requires the backup
+     * parameter.
+     */
+    public interface Changes {
+
+        interface Columns extends Preferences.Columns {
+
+            String SEQUENCE = TrayDBHelper.SEQUENCE;
+
+            String DELETED = TrayDBHelper.DELETED;
+        }
+
+        String BASE_PATH = "changes";
+
+        /**
+         * query parameter restricting the changes to sequence numbers greater than the given one
+         */
+        String QUERY_PARAM_AFTER = "after";
+    }
+
+    /**
+     * version of the data of the provider, a single row with the {@link Columns#VERSION}. It
+     * changes with every write, other processes check it before serving their {@link TrayCache}.
+     */
+    public interface Version {
+
+        interface Columns {
+
+            String VERSION = "VERSION";
+        }
+
+        String BASE_PATH = "version";
+    }
+
     private static String sTestAuthority;
 
     @NonNull
@@ -83,6 +150,16 @@ class TrayContract {
         sTestAuthority = authority;
     }
 
+    @NonNull
+    /*package*/ static Uri generateChangesContentUri(@NonNull final Context context) {
+        return generateContentUri(context, Changes.BASE_PATH);
+    }
+
+    @NonNull
+    /*package*/ static Uri generateVersionContentUri(@NonNull final Context context) {
+        return generateContentUri(context, Version.BASE_PATH);
+    }
+
     @NonNull
     /*package*/ static Uri generateInternalContentUri(@NonNull final Context context) {
         return generateContentUri(context, InternalPreferences.BASE_PATH);
@@ -18,6 +18,7 @@ package net.grandcentrix.tray.provider;
 
 
 import net.grandcentrix.tray.core.TrayLog;
+import net.grandcentrix.tray.core.ValueType;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
@@ -38,6 +39,10 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     public static final String INTERNAL_TABLE_NAME = "TrayInternal";
 
+    public static final String CHANGES_TABLE_NAME = "TrayChanges";
+
+    public static final String SETS_TABLE_NAME = "TraySets";
+
     public static final String DATABASE_NAME = "tray.db";
 
     public static final String DATABASE_NAME_NO_BACKUP = "tray_backup_excluded.db";
@@ -54,6 +59,26 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     public static final String MIGRATED_KEY = "MIGRATED_KEY";
 
+    public static final String SEQUENCE = "SEQUENCE";
+
+    public static final String DELETED = "DELETED";
+
+    public static final String TYPE = "TYPE";
+
+    public static final String ELEMENT = "ELEMENT";
+
+    /**
+     * the number of entries kept in the {@link #CHANGES_TABLE_NAME}. Observers which fall further
+     * behind have to read the whole module again
+     */
+    /*package*/ static final int MAX_CHANGES = 500;
+
+    private static final String INSERT_TRIGGER = "TrayPreferencesInserted";
+
+    private static final String UPDATE_TRIGGER = "TrayPreferencesUpdated";
+
+    private static final String DELETE_TRIGGER = "TrayPreferencesDeleted";
+
     // TODO add additional meta fields:
     // public static final String APP_VERSION_CODE = "APP_VERSION_CODE";
 
@@ -89,7 +114,89 @@ public class TrayDBHelper extends SQLiteOpenHelper {
             + ")"
             + ");";
 
-    /*package*/ static final int DATABASE_VERSION = 2;
+    /**
+     * log of all changes in the {@link #TABLE_NAME}, written by triggers. {@link #SEQUENCE} is
+     * increasing and never reused, deleted items have {@link #DELETED} set
+     */
+    public static final String V3_CREATE_CHANGES_TABLE = "CREATE TABLE "
+            + CHANGES_TABLE_NAME + " ( "
+            + SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + KEY + " TEXT NOT NULL, "
+            + VALUE + " TEXT, "
+            + MODULE + " TEXT, "
+            + CREATED + " INT DEFAULT 0, "  // Date
+            + UPDATED + " INT DEFAULT 0, "    // Date
+            + MIGRATED_KEY + " TEXT, "
+            + DELETED + " INT DEFAULT 0"
+            + ");";
+
+    public static final String V3_CREATE_INSERT_TRIGGER =
+            createChangeTrigger(INSERT_TRIGGER, "INSERT", "NEW", false, false);
+
+    public static final String V3_CREATE_UPDATE_TRIGGER =
+            createChangeTrigger(UPDATE_TRIGGER, "UPDATE", "NEW", false, false);
+
+    public static final String V3_CREATE_DELETE_TRIGGER =
+            createChangeTrigger(DELETE_TRIGGER, "DELETE", "OLD", true, false);
+
+    public static final String V3_CREATE_TRIM_CHANGES_TRIGGER = "CREATE TRIGGER "
+            + "TrayChangesTrimmed AFTER INSERT ON " + CHANGES_TABLE_NAME + " BEGIN "
+            + "DELETE FROM " + CHANGES_TABLE_NAME
+            + " WHERE " + SEQUENCE + " <= NEW." + SEQUENCE + " - " + MAX_CHANGES + "; "
+            + "END;";
+
+    public static final String V4_ALTER_PREFERENCES_TABLE = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + TYPE + " INT";
+
+    public static final String V4_ALTER_INTERNAL_TRAY_TABLE = "ALTER TABLE " + INTERNAL_TABLE_NAME
+            + " ADD COLUMN " + TYPE + " INT";
+
+    public static final String V4_ALTER_CHANGES_TABLE = "ALTER TABLE " + CHANGES_TABLE_NAME
+            + " ADD COLUMN " + TYPE + " INT";
+
+    /**
+     * elements of the items with the type {@link ValueType#STRING_SET}
+     */
+    public static final String V4_CREATE_SETS_TABLE = "CREATE TABLE "
+            + SETS_TABLE_NAME + " ( "
+            + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + MODULE + " TEXT, "
+            + KEY + " TEXT NOT NULL, "
+            + ELEMENT + " TEXT NOT NULL, "
+            + "UNIQUE ("
+            + MODULE + ", "
+            + KEY + ", "
+            + ELEMENT
+            + ")"
+            + ");";
+
+    // the change log triggers of version 3 get replaced to log the type
+    public static final String V4_DROP_INSERT_TRIGGER = "DROP TRIGGER " + INSERT_TRIGGER;
+
+    public static final String V4_DROP_UPDATE_TRIGGER = "DROP TRIGGER " + UPDATE_TRIGGER;
+
+    public static final String V4_DROP_DELETE_TRIGGER = "DROP TRIGGER " + DELETE_TRIGGER;
+
+    public static final String V4_CREATE_INSERT_TRIGGER =
+            createChangeTrigger(INSERT_TRIGGER, "INSERT", "NEW", false, true);
+
+    public static final String V4_CREATE_UPDATE_TRIGGER =
+            createChangeTrigger(UPDATE_TRIGGER, "UPDATE", "NEW", false, true);
+
+    public static final String V4_CREATE_DELETE_TRIGGER =
+            createChangeTrigger(DELETE_TRIGGER, "DELETE", "OLD", true, true);
+
+    // elements of an item are deleted with the item or when it is saved with another type
+    public static final String V4_CREATE_SET_INSERT_TRIGGER =
+            createSetCleanupTrigger("TraySetsReplaced", "INSERT", "NEW");
+
+    public static final String V4_CREATE_SET_UPDATE_TRIGGER =
+            createSetCleanupTrigger("TraySetsUpdated", "UPDATE", "NEW");
+
+    public static final String V4_CREATE_SET_DELETE_TRIGGER =
+            createSetCleanupTrigger("TraySetsDeleted", "DELETE", "OLD");
+
+    /*package*/ static final int DATABASE_VERSION = 4;
 
     private final int mCreateVersion;
 
@@ -132,7 +239,7 @@ public class TrayDBHelper extends SQLiteOpenHelper {
                 + " to version " + newVersion);
 
         // increase the version here after the upgrade was implemented
-        if (newVersion > 2) {
+        if (newVersion > 4) {
             throw new IllegalStateException(
                     "onUpgrade doesn't support the upgrade to version " + newVersion);
         }
@@ -141,6 +248,20 @@ public class TrayDBHelper extends SQLiteOpenHelper {
             case 1:
                 upgradeToV2(db);
                 TrayLog.v(logTag() + "upgraded Database to version 2");
+                if (newVersion == 2) {
+                    break;
+                }
+                // no break
+            case 2:
+                upgradeToV3(db);
+                TrayLog.v(logTag() + "upgraded Database to version 3");
+                if (newVersion == 3) {
+                    break;
+                }
+                // no break
+            case 3:
+                upgradeToV4(db);
+                TrayLog.v(logTag() + "upgraded Database to version 4");
                 break;
             default:
                 throw new IllegalArgumentException(
@@ -148,6 +269,43 @@ public class TrayDBHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * @return sql for a trigger copying the changed row of the {@link #TABLE_NAME} into the
+     * {@link #CHANGES_TABLE_NAME}
+     */
+    private static String createChangeTrigger(final String name, final String event,
+            final String row, final boolean deleted, final boolean withType) {
+        return "CREATE TRIGGER " + name + " AFTER " + event + " ON " + TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + CHANGES_TABLE_NAME + " ("
+                + KEY + ", " + VALUE + ", " + MODULE + ", " + CREATED + ", " + UPDATED + ", "
+                + MIGRATED_KEY + ", " + DELETED + (withType ? ", " + TYPE : "") + ") VALUES ("
+                + row + "." + KEY + ", "
+                + (deleted ? "NULL" : row + "." + VALUE) + ", "
+                + row + "." + MODULE + ", "
+                + row + "." + CREATED + ", "
+                + row + "." + UPDATED + ", "
+                + row + "." + MIGRATED_KEY + ", "
+                + (deleted ? 1 : 0)
+                + (withType ? ", " + row + "." + TYPE : "") + "); "
+                + "END;";
+    }
+
+    /**
+     * @return sql for a trigger deleting the elements of an item in the {@link #TABLE_NAME}
+     * which is deleted or no longer a {@link ValueType#STRING_SET}
+     */
+    private static String createSetCleanupTrigger(final String name, final String event,
+            final String row) {
+        return "CREATE TRIGGER " + name + " AFTER " + event + " ON " + TABLE_NAME
+                + ("OLD".equals(row) ? "" : " WHEN " + row + "." + TYPE + " IS NOT "
+                + ValueType.STRING_SET.tag())
+                + " BEGIN "
+                + "DELETE FROM " + SETS_TABLE_NAME + " WHERE "
+                + MODULE + " = " + row + "." + MODULE + " AND "
+                + KEY + " = " + row + "." + KEY + "; "
+                + "END;";
+    }
+
     private void createV1(final SQLiteDatabase db) {
         db.execSQL(V1_PREFERENCES_CREATE);
     }
@@ -161,4 +319,28 @@ public class TrayDBHelper extends SQLiteOpenHelper {
         db.execSQL(V2_ALTER_PREFERENCES_TABLE);
         db.execSQL(V2_CREATE_INTERNAL_TRAY_TABLE);
     }
+
+    private void upgradeToV3(final SQLiteDatabase db) {
+        db.execSQL(V3_CREATE_CHANGES_TABLE);
+        db.execSQL(V3_CREATE_INSERT_TRIGGER);
+        db.execSQL(V3_CREATE_UPDATE_TRIGGER);
+        db.execSQL(V3_CREATE_DELETE_TRIGGER);
+        db.execSQL(V3_CREATE_TRIM_CHANGES_TRIGGER);
+    }
+
+    private void upgradeToV4(final SQLiteDatabase db) {
+        db.execSQL(V4_ALTER_PREFERENCES_TABLE);
+        db.execSQL(V4_ALTER_INTERNAL_TRAY_TABLE);
+        db.execSQL(V4_ALTER_CHANGES_TABLE);
+        db.execSQL(V4_CREATE_SETS_TABLE);
+        db.execSQL(V4_DROP_INSERT_TRIGGER);
+        db.execSQL(V4_DROP_UPDATE_TRIGGER);
+        db.execSQL(V4_DROP_DELETE_TRIGGER);
+        db.execSQL(V4_CREATE_INSERT_TRIGGER);
+        db.execSQL(V4_CREATE_UPDATE_TRIGGER);
+        db.execSQL(V4_CREATE_DELETE_TRIGGER);
+        db.execSQL(V4_CREATE_SET_INSERT_TRIGGER);
+        db.execSQL(V4_CREATE_SET_UPDATE_TRIGGER);
+        db.execSQL(V4_CREATE_SET_DELETE_TRIGGER);
+    }
 }
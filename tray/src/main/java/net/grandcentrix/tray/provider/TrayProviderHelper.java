@@ -18,6 +18,7 @@ package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.TrayPreferences;
 import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.ValueType;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -25,6 +26,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -51,6 +53,7 @@ public class TrayProviderHelper {
      */
     public void clear() {
         mContext.getContentResolver().delete(mTrayUri.get(), null, null);
+        TrayCache.invalidate(mTrayUri.get());
     }
 
     /**
@@ -74,6 +77,7 @@ public class TrayProviderHelper {
         }
 
         mContext.getContentResolver().delete(mTrayUri.get(), selection, selectionArgs);
+        TrayCache.invalidate(mTrayUri.get());
     }
 
     /**
@@ -122,10 +126,85 @@ public class TrayProviderHelper {
 
     public void persist(@NonNull final Uri uri, @Nullable String value,
             @Nullable final String previousKey) {
+        persist(uri, value, previousKey, null);
+    }
+
+    /**
+     * saves the value with the tag of its type
+     *
+     * @param type the type of the value, null if unknown
+     */
+    public void persist(@NonNull final Uri uri, @Nullable String value,
+            @Nullable final String previousKey, @Nullable final ValueType type) {
         ContentValues values = new ContentValues();
         values.put(TrayContract.Preferences.Columns.VALUE, value);
         values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
+        if (type != null) {
+            values.put(TrayContract.Preferences.Columns.TYPE, type.tag());
+        }
         mContext.getContentResolver().insert(uri, values);
+        TrayCache.invalidate(uri);
+    }
+
+    /**
+     * saves multiple values of a module into the database in one transaction. Observers are
+     * notified once for all values.
+     *
+     * @param uri    the module uri, including the type
+     * @param values values with at least the key, value and migrated key columns
+     */
+    public void persistAll(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        mContext.getContentResolver().bulkInsert(uri, values);
+        TrayCache.invalidate(uri);
+    }
+
+    /**
+     * @return the version of the provider data, changed by every write. Read directly when the
+     * provider runs in this process, from the {@link DataVersionFile} of the provider otherwise.
+     * Queried only until the provider published its version
+     */
+    long getDataVersion() {
+        final Long localVersion = TrayContentProvider.getLocalVersion();
+        if (localVersion != null) {
+            return localVersion;
+        }
+        final Long publishedVersion = readPublishedDataVersion();
+        return publishedVersion != null ? publishedVersion : queryDataVersion();
+    }
+
+    /**
+     * @return the version of the provider data as published in the {@link DataVersionFile}, null
+     * if it isn't published yet
+     */
+    @VisibleForTesting
+    @Nullable
+    Long readPublishedDataVersion() {
+        final DataVersionFile versionFile = DataVersionFile.openForReading(mContext);
+        return versionFile == null ? null : versionFile.read();
+    }
+
+    /**
+     * @return the version of the provider data, queried from the provider
+     * @throws IllegalStateException something is wrong with the provider
+     */
+    @VisibleForTesting
+    long queryDataVersion() throws IllegalStateException {
+        final Uri uri = TrayContract.generateVersionContentUri(mContext);
+        final Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("could not access the data version with uri " + uri);
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new IllegalStateException("no data version at uri " + uri);
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -187,6 +266,9 @@ public class TrayProviderHelper {
                 .getColumnIndexOrThrow(TrayContract.Preferences.Columns.CREATED)));
         final Date updated = new Date(cursor.getLong(cursor
                 .getColumnIndexOrThrow(TrayContract.Preferences.Columns.UPDATED)));
-        return new TrayItem(module, key, migratedKey, value, created, updated);
+        final int typeColumn = cursor.getColumnIndex(TrayContract.Preferences.Columns.TYPE);
+        final ValueType type = typeColumn == -1 || cursor.isNull(typeColumn)
+                ? null : ValueType.fromTag(cursor.getInt(typeColumn));
+        return new TrayItem(module, key, migratedKey, value, type, created, updated);
     }
 }
@@ -15,6 +15,8 @@ class TrayUri {
 
     public final class Builder {
 
+        private boolean mElements;
+
         private boolean mInternal;
 
         private String mKey;
@@ -35,6 +37,9 @@ class TrayUri {
             }
             if (mKey != null) {
                 builder.appendPath(mKey);
+                if (mElements) {
+                    builder.appendPath(TrayContract.Preferences.ELEMENTS_PATH);
+                }
             }
             if (mType != TrayStorage.Type.UNDEFINED) {
                 builder.appendQueryParameter("backup",
@@ -43,6 +48,14 @@ class TrayUri {
             return builder.build();
         }
 
+        /**
+         * points the uri of a key to the elements of the set saved for the key
+         */
+        public Builder setElements(final boolean elements) {
+            mElements = elements;
+            return this;
+        }
+
         public Builder setInternal(final boolean internal) {
             mInternal = internal;
             return this;
@@ -66,6 +79,8 @@ class TrayUri {
 
     private final Uri mContentUri;
 
+    private final Uri mContentUriChanges;
+
     private final Uri mContentUriInternal;
 
     private Context mContext;
@@ -74,6 +89,7 @@ class TrayUri {
         mContext = context;
         mContentUri = TrayContract.generateContentUri(context);
         mContentUriInternal = TrayContract.generateInternalContentUri(context);
+        mContentUriChanges = TrayContract.generateChangesContentUri(context);
     }
 
     public Builder builder() {
@@ -84,6 +100,26 @@ class TrayUri {
         return mContentUri;
     }
 
+    /**
+     * @param type  {@link TrayStorage.Type#USER} or {@link TrayStorage.Type#DEVICE}, each
+     *              database has its own log
+     * @param after only changes with a greater sequence number, all if negative
+     * @return uri of the change log of a database
+     */
+    public Uri getChanges(@NonNull final TrayStorage.Type type, final long after) {
+        if (type == TrayStorage.Type.UNDEFINED) {
+            throw new IllegalArgumentException("the change log requires a type");
+        }
+        final Uri.Builder builder = mContentUriChanges.buildUpon()
+                .appendQueryParameter("backup",
+                        TrayStorage.Type.USER.equals(type) ? "true" : "false");
+        if (after >= 0) {
+            builder.appendQueryParameter(TrayContract.Changes.QUERY_PARAM_AFTER,
+                    String.valueOf(after));
+        }
+        return builder.build();
+    }
+
     public Uri getInternal() {
         return mContentUriInternal;
     }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayLog;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per process queue for the asynchronous writes of one module and {@link TrayStorage.Type}.
+ * <p>
+ * Writes are kept in memory and saved together {@link #FLUSH_DELAY_MS} after the first write
+ * was queued. A key written multiple times before the flush is saved once, with its latest
+ * value. Queued and currently saved items are visible to {@link #get(String)} so a storage can
+ * read its own writes before they reach the {@link TrayContentProvider}. Items of a failed flush
+ * stay queued and the flush is retried with an exponential backoff.
+ */
+class WriteBehindQueue {
+
+    /**
+     * time the first write of a batch waits for more writes before all get saved
+     */
+    @VisibleForTesting
+    static final long FLUSH_DELAY_MS = 100;
+
+    /**
+     * longest wait before a failed flush is retried, the wait doubles with each failure
+     */
+    @VisibleForTesting
+    static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    /**
+     * all queues of this process, by module uri
+     */
+    private static final HashMap<String, WriteBehindQueue> sQueues = new HashMap<>();
+
+    /**
+     * runs the delayed flushes of all queues, started on first use
+     */
+    private static Handler sHandler;
+
+    /**
+     * serializes flushes so batches are saved in the order they were queued
+     */
+    private final Object mFlushLock = new Object();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // the items are queued again and saved with the next flush
+                TrayLog.w("could not save the queued items of " + mModuleUri + ": " + e);
+            }
+        }
+    };
+
+    /**
+     * true while a delayed flush is posted to the handler
+     */
+    private boolean mFlushScheduled = false;
+
+    /**
+     * wait before the next retry of a failed flush, 0 while flushes succeed
+     */
+    private long mRetryDelay = 0;
+
+    /**
+     * the items currently saved by {@link #flush()}, null when no flush is running
+     */
+    private Map<String, TrayItem> mInFlight;
+
+    private LinkedHashMap<String, TrayItem> mPending = new LinkedHashMap<>();
+
+    private final Uri mModuleUri;
+
+    /**
+     * the storage which saves the queued items, the one of the latest write
+     */
+    private ContentProviderStorage mStorage;
+
+    private WriteBehindQueue(@NonNull final Uri moduleUri) {
+        mModuleUri = moduleUri;
+    }
+
+    /**
+     * @return the queue for the module and type of the storage, created on first use
+     */
+    @NonNull
+    static WriteBehindQueue forModule(@NonNull final TrayUri trayUri,
+            @NonNull final TrayStorage storage) {
+        final Uri moduleUri = trayUri.builder()
+                .setType(storage.getType())
+                .setModule(storage.getModuleName())
+                .build();
+        final String queueKey = moduleUri.toString();
+        synchronized (sQueues) {
+            WriteBehindQueue queue = sQueues.get(queueKey);
+            if (queue == null) {
+                queue = new WriteBehindQueue(moduleUri);
+                sQueues.put(queueKey, queue);
+            }
+            return queue;
+        }
+    }
+
+    @NonNull
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread = new HandlerThread("TrayWriteBehind");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /**
+     * saves all queued items in a single transaction and returns when they are stored. Items
+     * queued while the flush runs are saved with the next one.
+     *
+     * @throws RuntimeException when saving failed, the items are queued again unless they were
+     *                          written again in the meantime
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            final Map<String, TrayItem> items;
+            final ContentProviderStorage storage;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                items = mPending;
+                mPending = new LinkedHashMap<>();
+                mInFlight = items;
+                storage = mStorage;
+                getHandler().removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+            }
+            try {
+                storage.writeAll(items.values());
+                synchronized (this) {
+                    mRetryDelay = 0;
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    // newer writes win over the failed ones
+                    final LinkedHashMap<String, TrayItem> pending = new LinkedHashMap<>(items);
+                    for (final String key : mPending.keySet()) {
+                        pending.remove(key);
+                    }
+                    pending.putAll(mPending);
+                    mPending = pending;
+
+                    mRetryDelay = mRetryDelay == 0 ? FLUSH_DELAY_MS
+                            : Math.min(mRetryDelay * 2, MAX_RETRY_DELAY_MS);
+                    // a write queued meanwhile has scheduled the flush with the short delay
+                    getHandler().removeCallbacks(mFlushRunnable);
+                    mFlushScheduled = true;
+                    getHandler().postDelayed(mFlushRunnable, mRetryDelay);
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    mInFlight = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the not yet stored item of the key, null if no write of the key is pending
+     */
+    @Nullable
+    synchronized TrayItem get(@NonNull final String key) {
+        final TrayItem item = mPending.get(key);
+        if (item != null || mInFlight == null) {
+            return item;
+        }
+        return mInFlight.get(key);
+    }
+
+    /**
+     * queues the item, replaces an already queued item of the same key
+     *
+     * @param storage saves the item with all other queued items
+     */
+    synchronized void put(@NonNull final ContentProviderStorage storage,
+            @NonNull final TrayItem item) {
+        mStorage = storage;
+        // re-putting a key moves it to the end, like separate puts would have ordered it
+        mPending.remove(item.key());
+        mPending.put(item.key(), item);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            getHandler().postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+}